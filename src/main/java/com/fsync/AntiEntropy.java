@@ -0,0 +1,325 @@
+package com.fsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.entity.ContentProducer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.fsync.ChecksumIndex.Record;
+import com.fsync.DirectoryChangeEvent.DirectoryChangeEventType;
+import com.fsync.Http.HttpStatusException;
+import com.fsync.Http.StreamingResponse;
+import com.fsync.MerkleTree.NodeInfo;
+
+/**
+ * This class finds the files a peer missed, for instance while it was down
+ * or when its journal was lost, and sends them again. The hashes of the
+ * directories of the {@link MerkleTree} are compared with the peer from the
+ * top down, a level of the tree per request, and only the directories whose
+ * hashes differ are visited. The files of a directory are compared when the
+ * hash of its files differs, in the same request as the next level. Two
+ * replicas of millions of files that differ by a few files are thus
+ * reconciled in about as many requests as the tree is deep.
+ * <p>
+ * Each side only sends the files it has the newer copy of, so running the
+ * reconciliation on both peers brings them together. A file is sent when the
+ * peer does not have it, or has another checksum with an older modification
+ * time, the larger checksum winning a tie. Deletes are not sent, but a file
+ * the peer deleted is not sent back to it either: the peer keeps a record of
+ * the delete, and only drops it once the delete is old and its journal holds
+ * no pending update of the file for any peer, that is once every peer
+ * received the delete. A peer whose journal was lost before it received a
+ * delete can still get the file back.
+ * @author shreyas shinde
+ *
+ */
+public class AntiEntropy {
+	/** The default time between two reconciliations */
+	public static final long DEFAULT_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+	/** The maximum number of directories asked for in a request */
+	private static final int MAX_PATHS_PER_REQUEST = 1000;
+
+	/** Request and response fields */
+	private static final String PATHS      = "paths";
+	private static final String FILES      = "files";
+	private static final String NODES      = "nodes";
+	private static final String HASH       = "hash";
+	private static final String FILES_HASH = "filesHash";
+	private static final String COUNT      = "count";
+	private static final String TOTAL      = "total";
+	private static final String DIRS       = "dirs";
+	private static final String CHECKSUM   = "checksum";
+	private static final String MTIME      = "mtime";
+
+	private final ChecksumManager checksumManager;
+	private final File syncDir;
+
+	/** Statistics */
+	private final AtomicLong runs         = new AtomicLong();
+	private final AtomicLong roundTrips   = new AtomicLong();
+	private final AtomicLong dirsCompared = new AtomicLong();
+	private final AtomicLong filesSent    = new AtomicLong();
+
+	private static final Logger logger = Logger.getLogger(AntiEntropy.class.getName());
+
+	/**
+	 * @param checksumManager the checksums of the files of the sync directory
+	 * @param syncDir the sync directory
+	 */
+	public AntiEntropy(ChecksumManager checksumManager, File syncDir) {
+		this.checksumManager = checksumManager;
+		this.syncDir = syncDir;
+	}
+
+	/**
+	 * Writes the nodes of some directories and the files of others, as asked
+	 * by a peer.
+	 * @param in the request with the paths of the directories
+	 * @param out where the response is written
+	 */
+	public void answer(InputStream in, Writer out) throws IOException {
+		JSONObject request = new JSONObject(new JSONTokener(new InputStreamReader(in, "UTF-8")));
+		List<String> paths = toList(request.optJSONArray(PATHS));
+		List<String> fileDirs = toList(request.optJSONArray(FILES));
+		if(paths.size() + fileDirs.size() > MAX_PATHS_PER_REQUEST) {
+			throw new IllegalArgumentException("Too many paths in the request: " + (paths.size() + fileDirs.size()));
+		}
+
+		// Directories without files are left out
+		JSONObject nodes = new JSONObject();
+		MerkleTree tree = checksumManager.getMerkleTree();
+		for(String path : paths) {
+			NodeInfo node = tree.getNode(path);
+			if(node != null) {
+				JSONObject json = new JSONObject();
+				json.put(HASH, node.getHash());
+				json.put(FILES_HASH, node.getFilesHash());
+				json.put(COUNT, node.getFiles());
+				json.put(TOTAL, node.getTotal());
+				json.put(DIRS, node.getDirs());
+				nodes.put(path, json);
+			}
+		}
+		JSONObject files = new JSONObject();
+		if(!fileDirs.isEmpty()) {
+			for(Map.Entry<String, Map<String, Record>> dir : checksumManager.getFiles(fileDirs).entrySet()) {
+				JSONObject json = new JSONObject();
+				for(Map.Entry<String, Record> file : dir.getValue().entrySet()) {
+					JSONObject record = new JSONObject();
+					record.put(CHECKSUM, file.getValue().getChecksum());
+					record.put(MTIME, file.getValue().getMtime());
+					json.put(file.getKey(), record);
+				}
+				files.put(dir.getKey(), json);
+			}
+		}
+		JSONObject response = new JSONObject();
+		response.put(NODES, nodes);
+		response.put(FILES, files);
+		response.write(out);
+		out.flush();
+	}
+
+	/**
+	 * Compares the sync directory with a peer and queues the files the peer
+	 * is missing for the peer.
+	 * @param sender the outbound queue of the peer
+	 * @return the number of files queued, or -1 if the peer does not support
+	 *         reconciliation
+	 * @throws IOException if the peer could not be reached
+	 */
+	public int reconcile(PeerSender sender) throws IOException {
+		runs.incrementAndGet();
+		MerkleTree tree = checksumManager.getMerkleTree();
+		List<String> level = new ArrayList<String>();
+		List<String> fileDirs = new ArrayList<String>();
+		level.add("");
+		int requests = 0, visited = 0, queued = 0;
+		while(!level.isEmpty() || !fileDirs.isEmpty()) {
+			JSONObject nodes = new JSONObject();
+			JSONObject files = new JSONObject();
+			for(int i = 0; i < Math.max(level.size(), fileDirs.size()); i += MAX_PATHS_PER_REQUEST / 2) {
+				JSONObject response;
+				try {
+					response = ask(sender.getPeer(), sublist(level, i), sublist(fileDirs, i));
+				} catch(HttpStatusException e) {
+					if(e.getStatus() == HttpServletResponse.SC_NOT_FOUND) {
+						logger.fine("Peer " + sender.getPeer() + " does not support reconciliation.");
+						return -1;
+					}
+					throw e;
+				}
+				requests++;
+				roundTrips.incrementAndGet();
+				merge(nodes, response.getJSONObject(NODES));
+				merge(files, response.getJSONObject(FILES));
+			}
+
+			// Send the files the peer is missing in the directories compared
+			if(!fileDirs.isEmpty()) {
+				Map<String, Map<String, Record>> local = checksumManager.getFiles(fileDirs);
+				for(String dir : fileDirs) {
+					JSONObject remote = files.optJSONObject(dir);
+					for(Map.Entry<String, Record> file : local.get(dir).entrySet()) {
+						JSONObject theirs = remote == null ? null : remote.optJSONObject(file.getKey());
+						if(isNewer(file.getValue(), theirs) && send(sender, dir, file.getKey(), file.getValue())) {
+							queued++;
+						}
+					}
+				}
+			}
+
+			// Descend into the directories whose hashes differ
+			List<String> next = new ArrayList<String>();
+			fileDirs = new ArrayList<String>();
+			for(String path : level) {
+				NodeInfo node = tree.getNode(path);
+				if(node == null) {
+					continue;
+				}
+				JSONObject remote = nodes.optJSONObject(path);
+				if(remote != null && node.getHash().equals(remote.getString(HASH))) {
+					continue;
+				}
+				visited++;
+				dirsCompared.incrementAndGet();
+				if(node.getFiles() > 0 && (remote == null || !node.getFilesHash().equals(remote.getString(FILES_HASH)))) {
+					fileDirs.add(path);
+				}
+				JSONObject remoteDirs = remote == null ? null : remote.getJSONObject(DIRS);
+				for(Map.Entry<String, String> dir : node.getDirs().entrySet()) {
+					if(remoteDirs == null || !dir.getValue().equals(remoteDirs.optString(dir.getKey(), null))) {
+						next.add(path.isEmpty() ? dir.getKey() : path + "/" + dir.getKey());
+					}
+				}
+			}
+			level = next;
+		}
+		logger.info("Reconciled with peer " + sender.getPeer() + " in " + requests + " requests, " + visited
+				+ " directories differ, " + queued + " files queued.");
+		return queued;
+	}
+
+	/**
+	 * Returns the statistics of the reconciliations in JSON format.
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("runs", runs.get());
+		stats.put("roundTrips", roundTrips.get());
+		stats.put("dirsCompared", dirsCompared.get());
+		stats.put("filesSent", filesSent.get());
+		return stats;
+	}
+
+	/**
+	 * Asks the peer for the nodes of some directories and the files of others.
+	 */
+	private JSONObject ask(String peer, List<String> paths, List<String> fileDirs) throws IOException {
+		final JSONObject request = new JSONObject();
+		request.put(PATHS, paths);
+		request.put(FILES, fileDirs);
+		StreamingResponse response = Http.openPost("http://" + peer + "/manifest", null, Http.body(new ContentProducer() {
+			public void writeTo(OutputStream out) throws IOException {
+				Writer writer = new OutputStreamWriter(out, "UTF-8");
+				writer.write(request.toString());
+				writer.flush();
+			}
+		}));
+		try {
+			return new JSONObject(new JSONTokener(new InputStreamReader(response.getContent(), "UTF-8")));
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Tests if the local copy of a file wins over the copy of the peer.
+	 * @param ours the local record, deleted files never win
+	 * @param theirs the record of the peer, with an empty checksum if the peer
+	 *        deleted the file, or null if the peer does not have the file and
+	 *        every peer received its delete if it ever had it
+	 */
+	static boolean isNewer(Record ours, JSONObject theirs) {
+		if(ours.getChecksum().isEmpty()) {
+			return false;
+		}
+		if(theirs == null) {
+			return true;
+		}
+		String checksum = theirs.getString(CHECKSUM);
+		if(checksum.isEmpty() || checksum.equalsIgnoreCase(ours.getChecksum())) {
+			return false;
+		}
+		long mtime = theirs.getLong(MTIME);
+		if(ours.getMtime() != mtime) {
+			return ours.getMtime() > mtime;
+		}
+		return ours.getChecksum().compareToIgnoreCase(checksum) > 0;
+	}
+
+	/**
+	 * Queues a file for the peer if the file has not changed since its
+	 * checksum was recorded. A changed file is sent when its change is
+	 * observed.
+	 */
+	private boolean send(PeerSender sender, String dir, String name, Record record) {
+		String relativePath = (dir.isEmpty() ? name : dir + "/" + name).replace('/', File.separatorChar);
+		File f = new File(syncDir, relativePath);
+		try {
+			if(!record.matches(Files.readAttributes(f.toPath(), BasicFileAttributes.class))) {
+				return false;
+			}
+		} catch(IOException e) {
+			return false;
+		}
+		DirectoryChangeEvent event = new DirectoryChangeEvent();
+		event.setRelativeFilePath(relativePath);
+		event.setType(DirectoryChangeEventType.MODIFIED).setTime(System.currentTimeMillis());
+		logger.info("Sending " + relativePath + " to peer " + sender.getPeer() + ", the peer does not have it.");
+		sender.submit(event, f);
+		filesSent.incrementAndGet();
+		return true;
+	}
+
+	private static List<String> sublist(List<String> list, int from) {
+		return list.subList(Math.min(from, list.size()), Math.min(from + MAX_PATHS_PER_REQUEST / 2, list.size()));
+	}
+
+	private static List<String> toList(JSONArray array) {
+		List<String> list = new ArrayList<String>();
+		if(array != null) {
+			for(int i = 0; i < array.length(); i++) {
+				list.add(array.getString(i));
+			}
+		}
+		return list;
+	}
+
+	private static void merge(JSONObject into, JSONObject from) {
+		String[] names = JSONObject.getNames(from);
+		if(names != null) {
+			for(String name : names) {
+				into.put(name, from.get(name));
+			}
+		}
+	}
+}
@@ -13,6 +13,7 @@ public class App {
 	
     public static void main( String[] args ) throws Exception {
     	DirectoryObserver observer= null;
+    	ChecksumManager checksumManager = null;
     	try {
     		// Test if the sync dir creates
     		File syncDir = new File(AppProperties.get(AppProperties.SYNC_DIR));
@@ -23,18 +24,72 @@ public class App {
     			}
     		}
     		
+    		// fsync keeps its own state alongside the sync directory
+    		File stateDir = new File(AppProperties.get(AppProperties.SYNC_STATE_DIR, syncDir.getAbsolutePath() + ".fsync"));
+    		if(!stateDir.exists() && !stateDir.mkdirs()) {
+    			throw new RuntimeException("Failed to create state directory: " + stateDir.getAbsolutePath());
+    		}
+    		
     		// The checksum manager will keep track of all the file checksums in the 
     		// shared directory
-    		ChecksumManager checksumManager = new ChecksumManager(syncDir.getAbsolutePath());
+    		checksumManager = new ChecksumManager(syncDir.getAbsolutePath());
+    		checksumManager.setIndexFile(new File(stateDir, "checksums.idx").toPath());
+    		checksumManager.setScanParallelism(AppProperties.getInt(AppProperties.SYNC_SCAN_PARALLELISM,
+    				Runtime.getRuntime().availableProcessors()));
     		checksumManager.createChecksumOnDirectory();
     		
+			// Connections to peers are pooled and shared by all the requests
+			Http.configure(
+					AppProperties.getInt(AppProperties.HTTP_MAX_CONNECTIONS, Http.DEFAULT_MAX_CONNECTIONS),
+					AppProperties.getInt(AppProperties.HTTP_MAX_CONNECTIONS_PER_PEER, Http.DEFAULT_MAX_CONNECTIONS_PER_PEER),
+					AppProperties.getInt(AppProperties.HTTP_CONNECT_TIMEOUT_MS, Http.DEFAULT_CONNECT_TIMEOUT_MS),
+					AppProperties.getInt(AppProperties.HTTP_SOCKET_TIMEOUT_MS, Http.DEFAULT_SOCKET_TIMEOUT_MS),
+					AppProperties.getInt(AppProperties.HTTP_REQUEST_TIMEOUT_MS, Http.DEFAULT_REQUEST_TIMEOUT_MS),
+					AppProperties.getInt(AppProperties.HTTP_KEEP_ALIVE_MS, Http.DEFAULT_KEEP_ALIVE_MS));
+			
 			// This communicator will broadcast directory updates to all
     		// peers while listening on an HTTP protocol for changes broadcasted
     		// by peers.
 			Peer2PeerCommunicator p2p = new Peer2PeerCommunicator(checksumManager);
+			p2p.setPeerQueues(
+					AppProperties.getInt(AppProperties.SYNC_PEER_WORKERS, PeerSender.DEFAULT_WORKERS),
+					AppProperties.getInt(AppProperties.SYNC_PEER_QUEUE, PeerSender.DEFAULT_CAPACITY));
+			p2p.setPeerRetry(
+					AppProperties.getInt(AppProperties.SYNC_PEER_RETRY_MIN_MS, (int)PeerSender.DEFAULT_RETRY_MIN_MILLIS),
+					AppProperties.getInt(AppProperties.SYNC_PEER_RETRY_MAX_MS, (int)PeerSender.DEFAULT_RETRY_MAX_MILLIS));
+			p2p.setJournalDirectory(new File(stateDir, "journal").toPath());
+			p2p.setTempDirectory(new File(stateDir, "tmp").toPath());
+			p2p.setDeltaMinSize(AppProperties.getLong(AppProperties.SYNC_DELTA_MIN_SIZE, PeerSender.DEFAULT_DELTA_MIN_SIZE));
+			p2p.setTransferMode(
+					PeerSender.TransferMode.valueOf(AppProperties.get(AppProperties.SYNC_TRANSFER_MODE, "chunks").toUpperCase()),
+					AppProperties.getLong(AppProperties.SYNC_CHUNKS_MIN_SIZE, PeerSender.DEFAULT_CHUNK_MIN_SIZE));
+			p2p.setCompressionLevel(AppProperties.getInt(AppProperties.SYNC_COMPRESS_LEVEL, Compression.DEFAULT_LEVEL));
+			p2p.setZeroCopyMinSize(AppProperties.getLong(AppProperties.SYNC_ZEROCOPY_MIN_SIZE, PeerSender.DEFAULT_ZERO_COPY_MIN_SIZE));
+			p2p.setResumableMinSize(AppProperties.getLong(AppProperties.SYNC_RESUMABLE_MIN_SIZE, PeerSender.DEFAULT_RESUMABLE_MIN_SIZE));
+			p2p.setMaxStreams(AppProperties.getInt(AppProperties.SYNC_TRANSFER_MAX_STREAMS, PeerSender.DEFAULT_MAX_STREAMS));
+			p2p.setLargeFileSize(AppProperties.getLong(AppProperties.SYNC_TRANSFER_LARGE_SIZE, TransferScheduler.DEFAULT_LARGE_FILE_SIZE));
+			p2p.setBandwidthLimits(
+					AppProperties.getLong(AppProperties.SYNC_BANDWIDTH_MAX, 0),
+					AppProperties.getLong(AppProperties.SYNC_BANDWIDTH_PEER_MAX, 0));
+			p2p.setBatchLimits(
+					AppProperties.getInt(AppProperties.SYNC_BATCH_MAX_UPDATES, PeerSender.DEFAULT_BATCH_MAX_UPDATES),
+					AppProperties.getLong(AppProperties.SYNC_BATCH_MAX_BYTES, PeerSender.DEFAULT_BATCH_MAX_BYTES),
+					AppProperties.getInt(AppProperties.SYNC_BATCH_MAX_DELAY_MS, (int)PeerSender.DEFAULT_BATCH_MAX_DELAY_MILLIS));
+			p2p.setAntiEntropyInterval(
+					AppProperties.getInt(AppProperties.SYNC_ANTIENTROPY_INTERVAL_MS, (int)AntiEntropy.DEFAULT_INTERVAL_MILLIS));
+			p2p.setChunkStore(new ChunkStore(new File(stateDir, "chunks").toPath(),
+					AppProperties.getInt(AppProperties.SYNC_CHUNKS_MAX_MB, (int)(ChunkStore.DEFAULT_MAX_BYTES >> 20)) * 1024L * 1024));
+			p2p.setUploadSessions(new UploadSessions(new File(stateDir, "uploads").toPath(), UploadSessions.DEFAULT_PART_SIZE));
 			
 			// New directory observer
 			observer = new DirectoryObserver();
+			observer.setEventCoalescing(
+					AppProperties.getInt(AppProperties.SYNC_EVENTS_QUIET_MS, (int)EventCoalescer.DEFAULT_QUIET_MILLIS),
+					AppProperties.getInt(AppProperties.SYNC_EVENTS_MAX_DELAY_MS, (int)EventCoalescer.DEFAULT_MAX_DELAY_MILLIS));
+			observer.setDispatch(
+					AppProperties.getInt(AppProperties.SYNC_DISPATCH_WORKERS, DirectoryObserver.DEFAULT_DISPATCH_WORKERS),
+					AppProperties.getInt(AppProperties.SYNC_DISPATCH_QUEUE, DirectoryObserver.DEFAULT_DISPATCH_CAPACITY));
+			observer.setChecksumManager(checksumManager);
 			observer.start();
 			observer.registerListener(p2p);
 
@@ -53,6 +108,10 @@ public class App {
 			if(observer != null) {
 				observer.stop();
 			}
+			if(checksumManager != null) {
+				checksumManager.saveIndex();
+			}
+			Http.shutdown();
 		}
     }
 }
@@ -19,6 +19,37 @@ public class AppProperties {
 	/** Names of properties */
 	public static final String SYNC_PEERS       = "sync.peers";
 	public static final String SYNC_DIR         = "sync.dir";
+	public static final String SYNC_STATE_DIR   = "sync.state.dir";
+	public static final String SYNC_SCAN_PARALLELISM = "sync.scan.parallelism";
+	public static final String SYNC_EVENTS_QUIET_MS   = "sync.events.quiet.ms";
+	public static final String SYNC_EVENTS_MAX_DELAY_MS = "sync.events.max.delay.ms";
+	public static final String SYNC_DISPATCH_WORKERS  = "sync.dispatch.workers";
+	public static final String SYNC_DISPATCH_QUEUE    = "sync.dispatch.queue";
+	public static final String SYNC_PEER_WORKERS      = "sync.peer.workers";
+	public static final String SYNC_PEER_QUEUE        = "sync.peer.queue";
+	public static final String SYNC_PEER_RETRY_MIN_MS = "sync.peer.retry.min.ms";
+	public static final String SYNC_PEER_RETRY_MAX_MS = "sync.peer.retry.max.ms";
+	public static final String SYNC_TRANSFER_MODE     = "sync.transfer.mode";
+	public static final String SYNC_DELTA_MIN_SIZE    = "sync.delta.min.size";
+	public static final String SYNC_CHUNKS_MIN_SIZE   = "sync.chunks.min.size";
+	public static final String SYNC_CHUNKS_MAX_MB     = "sync.chunks.max.mb";
+	public static final String SYNC_COMPRESS_LEVEL    = "sync.compress.level";
+	public static final String SYNC_ZEROCOPY_MIN_SIZE = "sync.zerocopy.min.size";
+	public static final String SYNC_RESUMABLE_MIN_SIZE = "sync.resumable.min.size";
+	public static final String SYNC_TRANSFER_MAX_STREAMS = "sync.transfer.max.streams";
+	public static final String SYNC_TRANSFER_LARGE_SIZE  = "sync.transfer.large.size";
+	public static final String SYNC_BANDWIDTH_MAX        = "sync.bandwidth.max";
+	public static final String SYNC_BANDWIDTH_PEER_MAX   = "sync.bandwidth.peer.max";
+	public static final String SYNC_BATCH_MAX_UPDATES = "sync.batch.max.updates";
+	public static final String SYNC_BATCH_MAX_BYTES   = "sync.batch.max.bytes";
+	public static final String SYNC_BATCH_MAX_DELAY_MS = "sync.batch.max.delay.ms";
+	public static final String SYNC_ANTIENTROPY_INTERVAL_MS = "sync.antientropy.interval.ms";
+	public static final String HTTP_MAX_CONNECTIONS   = "http.max.connections";
+	public static final String HTTP_MAX_CONNECTIONS_PER_PEER = "http.max.connections.per.peer";
+	public static final String HTTP_CONNECT_TIMEOUT_MS = "http.connect.timeout.ms";
+	public static final String HTTP_SOCKET_TIMEOUT_MS  = "http.socket.timeout.ms";
+	public static final String HTTP_REQUEST_TIMEOUT_MS = "http.request.timeout.ms";
+	public static final String HTTP_KEEP_ALIVE_MS      = "http.keep.alive.ms";
 	
 	static {
 		InputStream is;
@@ -43,4 +74,55 @@ public class AppProperties {
 	public static String get(String propName) {
 		return props.getProperty(propName);
 	}
+	
+	/**
+	 * Returns the value of the property if it exists. The default value otherwise.
+	 * @param propName the name of the property.
+	 * @param defaultValue the value returned if the property is not set
+	 * @return the value of the property or the default value
+	 */
+	public static String get(String propName, String defaultValue) {
+		String value = get(propName);
+		if(value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+	
+	/**
+	 * Returns the integer value of the property if it exists. The default value otherwise.
+	 * @param propName the name of the property.
+	 * @param defaultValue the value returned if the property is not set
+	 * @return the value of the property or the default value
+	 */
+	public static int getInt(String propName, int defaultValue) {
+		String value = get(propName);
+		if(value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch(NumberFormatException e) {
+			throw new RuntimeException("Property '" + propName + "' is not a valid integer: " + value);
+		}
+	}
+	
+	/**
+	 * Returns the long value of the property if it exists. The default value
+	 * otherwise. Used for sizes and rates in bytes, which may not fit in an int.
+	 * @param propName the name of the property.
+	 * @param defaultValue the value returned if the property is not set
+	 * @return the value of the property or the default value
+	 */
+	public static long getLong(String propName, long defaultValue) {
+		String value = get(propName);
+		if(value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch(NumberFormatException e) {
+			throw new RuntimeException("Property '" + propName + "' is not a valid number: " + value);
+		}
+	}
 }
@@ -0,0 +1,286 @@
+package com.fsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * This class reads and writes the on-disk index of file checksums. Along with
+ * the checksum, each record keeps the size, modification time and file key
+ * of the file when it was hashed so that a restart only needs to rehash the
+ * files whose stat data changed.
+ * @author shreyas shinde
+ *
+ */
+public class ChecksumIndex {
+	/** Identifies an index file */
+	private static final int MAGIC   = 0x46534958; //FSIX
+
+	/** Version of the index file format */
+	private static final int VERSION = 3;
+
+	/** Record markers */
+	private static final byte RECORD  = 1;
+	private static final byte DELETED = 2;
+	private static final byte END     = 0;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The logger */
+	private static final Logger logger = Logger.getLogger(ChecksumIndex.class.getName());
+
+	/**
+	 * Loads the index from disk. An index that is missing, corrupt or that was
+	 * written with a different digest algorithm is ignored.
+	 * @param indexFile the path to the index file
+	 * @return a store of relative file names to their index records, empty if
+	 *         the index could not be used.
+	 */
+	public static ChecksumStore load(Path indexFile) {
+		ChecksumStore records = new ChecksumStore();
+		if(!Files.exists(indexFile)) {
+			return records;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile), 1 << 16));
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				logger.warning("Ignoring unrecognized checksum index: " + indexFile);
+				return records;
+			}
+			String algorithm = in.readUTF();
+			if(!algorithm.equals(ChecksumUtil.getMessageDigestAlgorithm())) {
+				logger.info("Ignoring checksum index created with algorithm " + algorithm + ": " + indexFile);
+				return records;
+			}
+			byte marker;
+			while((marker = in.readByte()) != END) {
+				String path = in.readUTF();
+				if(marker == DELETED) {
+					records.put(path, Record.deleted(in.readLong()));
+					continue;
+				}
+				if(marker != RECORD) {
+					throw new IOException("Unknown record marker " + marker);
+				}
+				long size = in.readLong();
+				long mtime = in.readLong();
+				long fileKey = in.readLong();
+				String checksum = in.readUTF();
+				records.put(path, new Record(checksum, size, mtime, fileKey));
+			}
+			logger.info("Loaded " + records.size() + " records from checksum index: " + indexFile);
+			return records;
+		} catch(EOFException e) {
+			logger.warning("Ignoring truncated checksum index: " + indexFile);
+			return new ChecksumStore();
+		} catch(IOException e) {
+			logger.warning("Ignoring unreadable checksum index: " + indexFile + ". " + e.getLocalizedMessage());
+			return new ChecksumStore();
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch(IOException ignore) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the index to disk. The index is first written to a temporary file
+	 * which then atomically replaces the previous index. Records without stat
+	 * data, and racy records, are skipped since they could never be trusted on
+	 * a restart. The
+	 * records of deleted files are kept with the time of the deletion, so that
+	 * a delete a peer has yet to receive is not undone after a restart.
+	 * @param indexFile the path to the index file
+	 * @param records the records keyed by relative file name
+	 * @throws IOException if the index could not be written
+	 */
+	public static void save(Path indexFile, ChecksumStore records) throws IOException {
+		Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp.toFile());
+		int count = 0;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(ChecksumUtil.getMessageDigestAlgorithm());
+			// A snapshot is walked so that no lock is held while writing to disk
+			for(ChecksumStore.Entry entry : records.snapshot()) {
+				Record r = entry.getRecord();
+				if(r.isDeleted()) {
+					out.writeByte(DELETED);
+					out.writeUTF(entry.getPath());
+					out.writeLong(r.getDeletedMillis());
+					count++;
+					continue;
+				}
+				if(r.size < 0 || r.isRacy()) {
+					continue;
+				}
+				out.writeByte(RECORD);
+				out.writeUTF(entry.getPath());
+				out.writeLong(r.size);
+				out.writeLong(r.mtime);
+				out.writeLong(r.fileKey);
+				out.writeUTF(r.checksum);
+				count++;
+			}
+			out.writeByte(END);
+			out.flush();
+			fos.getChannel().force(false);
+		} finally {
+			fos.close();
+		}
+		Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Saved " + count + " records to checksum index: " + indexFile);
+	}
+
+	/**
+	 * A single index record: the checksum of a file along with the stat data
+	 * of the file at the time it was hashed.
+	 * <p>
+	 * A file written again within the timestamp granularity of the file system
+	 * keeps its modification time, so a record whose file was modified that
+	 * close to the time it was read is racy: its stat data may match content
+	 * other than the one hashed. As git does for its racily clean entries, the
+	 * checksum of a racy record is only trusted once the file is hashed again.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class Record {
+		/** Stat data is unknown */
+		public static final long UNKNOWN = -1;
+
+		/** The coarsest modification time kept by a file system, FAT keeps it to 2 seconds */
+		public static final long TIMESTAMP_GRANULARITY_MILLIS = 2000;
+
+		final String checksum;
+		final long size;
+		final long mtime;
+		final long fileKey;
+		final boolean racy;
+
+		public Record(String checksum, long size, long mtime, long fileKey) {
+			this(checksum, size, mtime, fileKey, false);
+		}
+
+		public Record(String checksum, long size, long mtime, long fileKey, boolean racy) {
+			this.checksum = checksum;
+			this.size = size;
+			this.mtime = mtime;
+			this.fileKey = fileKey;
+			this.racy = racy;
+		}
+
+		/**
+		 * Creates a record for a checksum without any stat data.
+		 * @param checksum the checksum of the file
+		 */
+		public Record(String checksum) {
+			this(checksum, UNKNOWN, UNKNOWN, 0);
+		}
+
+		/**
+		 * Creates a record from the attributes of the file.
+		 * @param checksum the checksum of the file
+		 * @param attrs the attributes of the file read before it was hashed
+		 * @param statMillis the time right before the attributes were read
+		 */
+		public Record(String checksum, BasicFileAttributes attrs, long statMillis) {
+			this(checksum, attrs.size(), mtimeOf(attrs), fileKeyOf(attrs),
+					attrs.lastModifiedTime().toMillis() > statMillis - TIMESTAMP_GRANULARITY_MILLIS);
+		}
+
+		/**
+		 * Creates the record of a deleted file, which keeps the time of the
+		 * deletion as its modification time so that it can be expired.
+		 * @param millis the time of the deletion
+		 */
+		public static Record deleted(long millis) {
+			return new Record("", UNKNOWN, TimeUnit.MILLISECONDS.toNanos(millis), 0);
+		}
+
+		public String getChecksum() {
+			return checksum;
+		}
+
+		/**
+		 * Tests if the record marks a deleted file.
+		 */
+		public boolean isDeleted() {
+			return checksum.isEmpty();
+		}
+
+		/**
+		 * Returns the time the file was deleted, in milliseconds since the epoch,
+		 * if the record marks a deleted file.
+		 */
+		public long getDeletedMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(mtime);
+		}
+
+		/**
+		 * Returns the modification time of the file in nanoseconds or {@link #UNKNOWN}.
+		 */
+		public long getMtime() {
+			return mtime;
+		}
+
+		/**
+		 * Tests if the file was modified within the timestamp granularity of
+		 * the time it was read, so that the checksum cannot be trusted from
+		 * the stat data alone.
+		 */
+		public boolean isRacy() {
+			return racy;
+		}
+
+		/**
+		 * Tests if the checksum of the record can be trusted for the file
+		 * without reading it: the file still has the stat data that was
+		 * recorded and the record is not racy.
+		 * @param attrs the current attributes of the file
+		 */
+		public boolean isClean(BasicFileAttributes attrs) {
+			return !racy && matches(attrs);
+		}
+
+		/**
+		 * Tests if the file still has the stat data that was recorded.
+		 * @param attrs the current attributes of the file
+		 * @return true if the size, modification time and file key are unchanged
+		 */
+		public boolean matches(BasicFileAttributes attrs) {
+			return size != UNKNOWN && size == attrs.size() && mtime == mtimeOf(attrs)
+					&& fileKey == fileKeyOf(attrs);
+		}
+
+		static long mtimeOf(BasicFileAttributes attrs) {
+			return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Returns a 64-bit hash of the file key (device and inode on unix) of the file.
+		 */
+		static long fileKeyOf(BasicFileAttributes attrs) {
+			Object key = attrs.fileKey();
+			return key == null ? 0 : Hashing.murmur3_128().hashString(key.toString(), UTF8).asLong();
+		}
+	}
+}
@@ -1,18 +1,32 @@
 package com.fsync;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import com.fsync.ChecksumIndex.Record;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * The class is responsible for keeping track of the checksum of all the files
  * in the synchronized directory.
@@ -20,8 +34,35 @@ import java.util.logging.Logger;
  *
  */
 public class ChecksumManager {
+	/** Number of files hashed together by one scan task */
+	private static final int SCAN_BATCH_FILES          = 64;
+	
+	/** Number of bytes hashed together by one scan task */
+	private static final long SCAN_BATCH_BYTES         = 64L * 1024 * 1024;
+	
+	/** Default time the records of deleted files are kept */
+	public static final long DEFAULT_DELETION_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(1);
+	
+	/** How often the progress of a directory scan is logged */
+	private static final long PROGRESS_INTERVAL_SECONDS = 10;
+	
 	/** To keep the checksum of each of the files in the shared directory */
-	private Map<String, String> checksums = new HashMap<String, String>();
+	private ChecksumStore checksums = new ChecksumStore();
+	
+	/** The hashes of the directories, kept up to date with the checksums */
+	private MerkleTree tree = new MerkleTree();
+	
+	/** The files of each directory, kept up to date with the checksums */
+	private DirectoryIndex index = new DirectoryIndex();
+	
+	/** The on-disk index of checksums, null if the checksums are not persisted */
+	private Path indexFile = null;
+	
+	/** The records loaded from the index while a directory scan is running */
+	private ChecksumStore indexed = null;
+	
+	/** Number of threads used to walk and checksum the directory */
+	private int scanParallelism = Runtime.getRuntime().availableProcessors();
 	
 	/** The path to the sync folder so that this class can keep relative paths */
 	private String syncDirectory = null;
@@ -39,24 +80,98 @@ public class ChecksumManager {
 			throw new NullPointerException("The path to sync directory cannot be null or empty.");
 		}
 		this.syncDirectory = syncDirectory;
+		checksums.setListener(new ChecksumStore.Listener() {
+			public void changed(String path, String previous, String checksum) {
+				tree.changed(path, previous, checksum);
+				index.changed(path, previous, checksum);
+			}
+		});
+	}
+	
+	/**
+	 * Sets the number of threads used by {@code createChecksumOnDirectory} to walk
+	 * the directory and compute checksums.
+	 * @param scanParallelism the number of threads, at least 1.
+	 */
+	public void setScanParallelism(int scanParallelism) {
+		if(scanParallelism < 1) {
+			throw new IllegalArgumentException("The scan parallelism must be at least 1.");
+		}
+		this.scanParallelism = scanParallelism;
+	}
+	
+	/**
+	 * Sets the file in which the checksums are persisted. When set, the index is
+	 * consulted by {@code createChecksumOnDirectory} so that only the files whose
+	 * size, modification time or file key changed are rehashed.
+	 * @param indexFile the path to the index file
+	 */
+	public void setIndexFile(Path indexFile) {
+		this.indexFile = indexFile;
+	}
+	
+	/**
+	 * Writes the checksums to the index file, if one is set.
+	 * @throws IOException if the index could not be written
+	 */
+	public void saveIndex() throws IOException {
+		if(indexFile != null) {
+			ChecksumIndex.save(indexFile, checksums);
+		}
 	}
 	
 	/**
 	 * This method creates a checksum of every file in the directory and
 	 * caches the checksum in memory. The checksums are then ready for
 	 * consultation. This method may take some time as every file in the
-	 * directory is visited.
+	 * directory is visited. The directory walk and the hashing run together
+	 * on a work-stealing pool and the progress is logged periodically. If an
+	 * index file is set, files that did not change since the index was saved
+	 * are not rehashed and the index is saved again once the scan completes.
 	 */
 	public void createChecksumOnDirectory() throws IOException {
-		logger.info("Creating checksum on directory: " + syncDirectory);
-		FileVisitor fv = new FileVisitor();
-		Files.walkFileTree(Paths.get(syncDirectory), fv);
-		List<Path> files = fv.getAllFiles();
-		for(Path f : files) {
-			String checksum = ChecksumUtil.computeChecksumForFile(f.toFile().getAbsolutePath());
-			checksums.put(f.toFile().getAbsolutePath().replace(syncDirectory, ""), checksum);
+		logger.info("Creating checksum on directory: " + syncDirectory + " using " + scanParallelism + " threads.");
+		indexed = indexFile != null ? ChecksumIndex.load(indexFile) : new ChecksumStore();
+		final ScanProgress progress = new ScanProgress();
+		ForkJoinPool pool = new ForkJoinPool(scanParallelism);
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("fsync-scan-progress").setDaemon(true).build());
+		reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				logger.info("Checksum scan in progress: " + progress);
+			}
+		}, PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		try {
+			pool.invoke(new DirectoryScanTask(Paths.get(syncDirectory), progress));
+			restoreDeletions();
+		} catch(UncheckedScanException e) {
+			throw e.getCause();
+		} finally {
+			reporter.shutdownNow();
+			pool.shutdown();
+			indexed = null;
+		}
+		logger.info("Checksum created for " + progress.files.get() + " files: " + progress);
+		saveIndex();
+	}
+	
+	/**
+	 * Puts back the records of the files deleted before the index was saved
+	 * that were not created again since. They are kept until they expire so
+	 * that peers that missed the delete do not send the file back.
+	 */
+	private void restoreDeletions() {
+		int restored = 0;
+		for(ChecksumStore.Entry entry : indexed.snapshot()) {
+			Record record = entry.getRecord();
+			if(record.isDeleted() && checksums.get(entry.getPath()) == null) {
+				checksums.put(entry.getPath(), record);
+				restored++;
+			}
+		}
+		if(restored > 0) {
+			logger.info("Restored the records of " + restored + " deleted files from the index.");
 		}
-		logger.info("Checksum created for " + files.size() + " files.");
 	}
 	
 	/**
@@ -66,7 +181,82 @@ public class ChecksumManager {
 	 * @param filepath the full path to the file for which to update the checksum.
 	 */
 	public void updateChecksumOnFile(String checksum, String filepath) {
-		checksums.put(filepath.replace(syncDirectory, ""), checksum);
+		checksums.put(filepath.replace(syncDirectory, ""), new Record(checksum));
+	}
+	
+	/**
+	 * Updates the checksum on a file along with the stat data of the file so that
+	 * the checksum can be trusted after a restart.
+	 * @param checksum the new checksum for the file
+	 * @param filepath the full path to the file for which to update the checksum.
+	 * @param attrs the attributes of the file read before the checksum was computed.
+	 * @param statMillis the time right before the attributes were read, which
+	 *        tells if the record is racy.
+	 */
+	public void updateChecksumOnFile(String checksum, String filepath, BasicFileAttributes attrs, long statMillis) {
+		checksums.put(filepath.replace(syncDirectory, ""), new Record(checksum, attrs, statMillis));
+	}
+	
+	/**
+	 * Records that a file was deleted. The record is kept until it expires so
+	 * that the deletion is only handled once.
+	 * @param filepath the full path to the deleted file
+	 */
+	public void recordDeletion(String filepath) {
+		recordDeletion(filepath, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Records that a file was deleted at a given time.
+	 * @param filepath the full path to the deleted file
+	 * @param deletedMillis when the file was deleted, in milliseconds since the epoch
+	 */
+	public void recordDeletion(String filepath, long deletedMillis) {
+		checksums.put(filepath.replace(syncDirectory, ""), Record.deleted(deletedMillis));
+	}
+	
+	/**
+	 * Drops the records of the files deleted long ago. The checksums are walked
+	 * from a snapshot and a record is only dropped if the file was not created
+	 * again in the meantime.
+	 * @param retentionMillis how long the records of deleted files are kept
+	 * @return the number of records dropped
+	 */
+	public int expireDeletions(long retentionMillis) {
+		return expireDeletions(retentionMillis, Predicates.<String>alwaysFalse());
+	}
+	
+	/**
+	 * Drops the records of the files deleted long ago whose delete no peer
+	 * has yet to receive. A peer that missed the delete still has the file,
+	 * and would send it back once the record is gone.
+	 * @param retentionMillis how long the records of deleted files are kept at least
+	 * @param pending tells if the delete of a file, by its path relative to the
+	 *        sync directory, is still pending for a peer
+	 * @return the number of records dropped
+	 */
+	public int expireDeletions(long retentionMillis, Predicate<String> pending) {
+		long before = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - retentionMillis);
+		int expired = 0;
+		for(ChecksumStore.Entry entry : checksums.snapshot()) {
+			Record record = entry.getRecord();
+			if(record.isDeleted() && record.getMtime() < before && !pending.apply(toRelativePath(entry.getPath()))
+					&& checksums.remove(entry.getPath(), record)) {
+				expired++;
+			}
+		}
+		if(expired > 0) {
+			logger.info("Expired the records of " + expired + " deleted files.");
+		}
+		return expired;
+	}
+	
+	/**
+	 * Returns the path of a file relative to the sync directory from its path
+	 * in the checksum store.
+	 */
+	private static String toRelativePath(String path) {
+		return path.startsWith(File.separator) ? path.substring(File.separator.length()) : path;
 	}
 	
 	/**
@@ -76,11 +266,11 @@ public class ChecksumManager {
 	 * @return true if the checksum is valid, false otherwise
 	 */
 	public boolean isChecksumValid(String expected, String filepath) {
-		String key = filepath.replace(syncDirectory, "");
-		if(!checksums.containsKey(key)) {
+		Record record = checksums.get(filepath.replace(syncDirectory, ""));
+		if(record == null) {
 			return false;
 		}
-		return checksums.get(key).equalsIgnoreCase(expected);
+		return record.getChecksum().equalsIgnoreCase(expected);
 	}
 	
 	/**
@@ -89,44 +279,274 @@ public class ChecksumManager {
 	 * @return the checksum if the file is present, null otherwise.
 	 */
 	public String getChecksum(String filepath) {
-		String key = filepath.replace(syncDirectory, "");
-		return checksums.get(key);
+		return checksums.getChecksum(filepath.replace(syncDirectory, ""));
+	}
+	
+	/**
+	 * Returns the checksum of a file along with the stat data of the file when it
+	 * was hashed.
+	 * @param filepath the absolute path to the file
+	 * @return the record if the file is present, null otherwise.
+	 */
+	public Record getRecord(String filepath) {
+		return checksums.get(filepath.replace(syncDirectory, ""));
 	}
 	
 	/**
-	 * Returns the checksums on all the files in the shared directory.
+	 * Visits the checksums of all the files in the shared directory. The visitor
+	 * is called with the absolute path of each file and should not block.
+	 * @param visitor the visitor called for each file
+	 */
+	public void forEachChecksum(final ChecksumStore.Visitor visitor) {
+		checksums.forEach(new ChecksumStore.Visitor() {
+			public void visit(String path, Record record) {
+				visitor.visit(syncDirectory + path, record);
+			}
+		});
+	}
+	
+	/**
+	 * Returns the hash tree of the directories of the shared directory.
+	 */
+	public MerkleTree getMerkleTree() {
+		return tree;
+	}
+	
+	/**
+	 * Returns the records of the files directly in some directories, deleted
+	 * files included. Only the files of the directories asked for are looked up.
+	 * @param dirs the paths of the directories relative to the shared directory
+	 *        with '/' as separator, empty for the shared directory
+	 * @return the records by file name of each directory
+	 */
+	public Map<String, Map<String, Record>> getFiles(Collection<String> dirs) {
+		Map<String, Map<String, Record>> files = new HashMap<String, Map<String, Record>>();
+		for(String dir : dirs) {
+			Map<String, Record> entries = new HashMap<String, Record>();
+			for(String path : index.getFiles(dir, false)) {
+				Record record = checksums.get(path);
+				if(record != null) {
+					List<String> names = MerkleTree.split(path);
+					entries.put(names.get(names.size() - 1), record);
+				}
+			}
+			files.put(dir, entries);
+		}
+		return files;
+	}
+	
+	/**
+	 * Visits the records of the files under a directory, deleted files
+	 * included. Only the files of the directory are looked up. The visitor is
+	 * called with the absolute path of each file and should not block.
+	 * @param dirpath the absolute path to the directory
+	 * @param recursive true to visit the files of the sub-directories as well
+	 * @param visitor the visitor called for each file
+	 */
+	public void forEachChecksumUnder(String dirpath, boolean recursive, ChecksumStore.Visitor visitor) {
+		for(String path : index.getFiles(dirpath.replace(syncDirectory, ""), recursive)) {
+			Record record = checksums.get(path);
+			if(record != null) {
+				visitor.visit(syncDirectory + path, record);
+			}
+		}
+	}
+	
+	/**
+	 * Takes a consistent snapshot of the checksums of the files in the shared
+	 * directory. The snapshot is walked without copying the checksums and
+	 * without holding up writers. The paths of the entries are relative to the
+	 * shared directory.
+	 * @return the snapshot
+	 */
+	public ChecksumStore.Snapshot getSnapshot() {
+		return checksums.snapshot();
+	}
+	
+	/**
+	 * Returns the checksums on all the files in the shared directory. The
+	 * checksums are copied from a snapshot so the copy is consistent and no
+	 * lock is held while copying. Use {@link #getSnapshot()} to walk a large
+	 * directory without copying it.
 	 * @return a map of the relative file names in the shared directory and 
 	 *         their checksums.
 	 */
 	public Map<String,String> getChecksumOnDirectory() {
-		return new HashMap<String,String>(checksums);
+		ChecksumStore.Snapshot snapshot = checksums.snapshot();
+		Map<String,String> copy = new HashMap<String,String>(snapshot.size() * 4 / 3 + 1);
+		for(ChecksumStore.Entry entry : snapshot) {
+			copy.put(entry.getPath(), entry.getRecord().getChecksum());
+		}
+		return copy;
+	}
+	
+	/**
+	 * Computes and records the checksum of a single file found by the scan.
+	 * @param file the file to checksum
+	 * @param attrs the attributes read while listing the directory
+	 * @param progress the scan progress to update
+	 * @throws IOException if the file could not be read
+	 */
+	private void checksumScannedFile(Path file, BasicFileAttributes attrs, ScanProgress progress) throws IOException {
+		String key = file.toFile().getAbsolutePath().replace(syncDirectory, "");
+		Record previous = indexed.get(key);
+		if(previous != null && previous.matches(attrs)) {
+			// Unchanged since the index was saved
+			checksums.put(key, previous);
+			progress.files.incrementAndGet();
+			progress.reused.incrementAndGet();
+			return;
+		}
+		String checksum;
+		try {
+			checksum = ChecksumUtil.encode(ChecksumUtil.computeDigestForFile(file));
+		} catch(NoSuchFileException e) {
+			// Deleted after it was listed - the observer will report it
+			return;
+		}
+		checksums.put(key, new Record(checksum, attrs, progress.startMillis));
+		progress.files.incrementAndGet();
+		progress.bytes.addAndGet(attrs.size());
+	}
+	
+	/**
+	 * This task lists a single directory, forks a task for each sub-directory and
+	 * hashes the files it finds in batches so that idle workers can steal both
+	 * the walk and the hashing.
+	 * @author shreyas shinde
+	 *
+	 */
+	private class DirectoryScanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final Path dir;
+		private final ScanProgress progress;
 		
+		DirectoryScanTask(Path dir, ScanProgress progress) {
+			this.dir = dir;
+			this.progress = progress;
+		}
+		
+		@Override
+		protected void compute() {
+			List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			List<Path> batch = new ArrayList<Path>();
+			List<BasicFileAttributes> batchAttrs = new ArrayList<BasicFileAttributes>();
+			long batchBytes = 0;
+			try {
+				DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+				try {
+					for(Path entry : stream) {
+						BasicFileAttributes attrs;
+						try {
+							attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						} catch(NoSuchFileException e) {
+							continue;
+						}
+						if(attrs.isDirectory()) {
+							// Start walking the sub-directory right away
+							RecursiveAction task = new DirectoryScanTask(entry, progress);
+							task.fork();
+							tasks.add(task);
+						} else if(attrs.isRegularFile()) {
+							batch.add(entry);
+							batchAttrs.add(attrs);
+							batchBytes += attrs.size();
+							if(batch.size() >= SCAN_BATCH_FILES || batchBytes >= SCAN_BATCH_BYTES) {
+								RecursiveAction task = new FileBatchTask(batch, batchAttrs, progress);
+								task.fork();
+								tasks.add(task);
+								batch = new ArrayList<Path>();
+								batchAttrs = new ArrayList<BasicFileAttributes>();
+								batchBytes = 0;
+							}
+						}
+					}
+				} finally {
+					stream.close();
+				}
+				progress.directories.incrementAndGet();
+				
+				// The last batch is hashed by this thread
+				new FileBatchTask(batch, batchAttrs, progress).compute();
+			} catch(IOException e) {
+				throw new UncheckedScanException(e);
+			}
+			for(RecursiveAction task : tasks) {
+				task.join();
+			}
+		}
 	}
 	
 	/**
-	 * This class returns the list of files traversed in 
-	 * a directory.
+	 * This task computes the checksums of a batch of files from one directory.
 	 * @author shreyas shinde
 	 *
 	 */
-	private static class FileVisitor extends SimpleFileVisitor<Path> {
-		List<Path> paths = new ArrayList<Path>();
+	private class FileBatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final List<Path> files;
+		private final List<BasicFileAttributes> attrs;
+		private final ScanProgress progress;
+		
+		FileBatchTask(List<Path> files, List<BasicFileAttributes> attrs, ScanProgress progress) {
+			this.files = files;
+			this.attrs = attrs;
+			this.progress = progress;
+		}
 		
 		@Override
-		public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-				throws IOException {
-			if(attrs.isRegularFile()) {
-				paths.add(file);
+		protected void compute() {
+			try {
+				for(int i = 0; i < files.size(); i++) {
+					checksumScannedFile(files.get(i), attrs.get(i), progress);
+				}
+			} catch(IOException e) {
+				throw new UncheckedScanException(e);
 			}
-			return super.visitFile(file, attrs);
+		}
+	}
+	
+	/**
+	 * Keeps count of the work done by a directory scan.
+	 * @author shreyas shinde
+	 *
+	 */
+	private static class ScanProgress {
+		final AtomicLong directories = new AtomicLong();
+		final AtomicLong files = new AtomicLong();
+		final AtomicLong reused = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		final long start = System.nanoTime();
+		
+		/** Before any file is listed, so before the attributes of any file are read */
+		final long startMillis = System.currentTimeMillis();
+		
+		@Override
+		public String toString() {
+			double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+			double mb = bytes.get() / (1024.0 * 1024.0);
+			return String.format("%d directories, %d files (%d unchanged since last index), %.1f MB hashed in %.1f s (%.0f files/s, %.1f MB/s)",
+					directories.get(), files.get(), reused.get(), mb, seconds, files.get() / seconds, mb / seconds);
+		}
+	}
+	
+	/**
+	 * Carries an I/O failure out of the fork-join tasks.
+	 * @author shreyas shinde
+	 *
+	 */
+	private static class UncheckedScanException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		UncheckedScanException(IOException cause) {
+			super(cause);
 		}
 		
-		/**
-		 * Returns a list of all the files under a given path.
-		 * @return
-		 */
-		public List<Path> getAllFiles() {
-			return paths;
+		@Override
+		public synchronized IOException getCause() {
+			return (IOException)super.getCause();
 		}
 	}
 }
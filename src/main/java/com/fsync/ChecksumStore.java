@@ -0,0 +1,816 @@
+package com.fsync;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.fsync.ChecksumIndex.Record;
+
+/**
+ * This class is a concurrent, memory-compact map of relative file paths to their
+ * checksum and stat data. The entries are spread over independently locked shards
+ * so that readers and writers of different shards never contend. Each shard is an
+ * open-addressing table that keeps no per-entry objects: the checksum, size,
+ * modification time and file key are packed into a {@code long[]} and the path is
+ * kept as UTF-8 bytes in a per-shard byte arena.
+ * <p>
+ * Checksums are the lower case base64 encoding of a digest, which cannot be
+ * decoded back into the digest. Each of their characters is packed instead as
+ * a 6-bit code, ten to a word, which takes a word more than the digest at most.
+ * Checksums with other characters or too long for the packed words are kept as
+ * strings on the side. The empty checksum, which marks a deleted file, is kept
+ * as zero codes.
+ * <p>
+ * A {@link Snapshot} of the store is taken without copying it: the tables of
+ * the shards are shared with the snapshot. The slots of a table are split in
+ * segments and a segment is only copied the first time it is written to after
+ * the snapshot was taken, so walking millions of entries neither copies the
+ * store nor holds any lock, and a write after a snapshot copies a few thousand
+ * slots at most.
+ * @author shreyas shinde
+ *
+ */
+public class ChecksumStore {
+	/** Default number of shards */
+	public static final int DEFAULT_SHARDS  = 64;
+
+	private static final Charset UTF8       = Charset.forName("UTF-8");
+
+	/** Layout of the words of a slot, after the checksum words */
+	private static final int KEY_WORD       = 0; //arena offset (32) | key length (16) | checksum length (8) | flags (8)
+	private static final int SIZE_WORD      = 1;
+	private static final int MTIME_WORD     = 2;
+	private static final int FILE_KEY_WORD  = 3;
+	private static final int FIXED_WORDS    = 4;
+
+	/** The checksum of the entry is kept in the literal map */
+	private static final long LITERAL_FLAG  = 1L;
+
+	/** The record of the entry is racy */
+	private static final long RACY_FLAG     = 2L;
+
+	/** The characters of the checksums kept packed, by their code */
+	private static final String CODES       = "abcdefghijklmnopqrstuvwxyz0123456789+/=";
+
+	/** Number of 6-bit codes packed in a word */
+	private static final int CODES_PER_WORD = 10;
+
+	/** Initial capacity of a shard, must be a power of 2 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** Number of slots of a segment of a table, the unit copied on write */
+	private static final int SEGMENT_SHIFT  = 10;
+	private static final int SEGMENT_SLOTS  = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK   = SEGMENT_SLOTS - 1;
+
+	/** Number of words used by the codes of a checksum and by a whole slot */
+	private final int checksumWords;
+	private final int stride;
+
+	private final Shard[] shards;
+	private final int shardShift;
+
+	/** Incremented on every change of the store */
+	private final AtomicLong version = new AtomicLong();
+
+	/** Told of every change of checksum, null if nobody listens */
+	private volatile Listener listener = null;
+
+	/**
+	 * Creates a store sized for the digests of the currently configured algorithm.
+	 */
+	public ChecksumStore() {
+		this(DEFAULT_SHARDS, ChecksumUtil.getMessageDigest().getDigestLength());
+	}
+
+	/**
+	 * Creates a store.
+	 * @param shardCount the number of shards, rounded up to a power of 2
+	 * @param digestLength the length in bytes of the digests whose checksums are kept packed
+	 */
+	public ChecksumStore(int shardCount, int digestLength) {
+		int checksumLength = (digestLength + 2) / 3 * 4;
+		checksumWords = (checksumLength + CODES_PER_WORD - 1) / CODES_PER_WORD;
+		stride = checksumWords + FIXED_WORDS;
+		int n = Integer.highestOneBit(Math.max(1, shardCount - 1)) << 1;
+		if(shardCount == 1) {
+			n = 1;
+		}
+		shards = new Shard[n];
+		for(int i = 0; i < n; i++) {
+			shards[i] = new Shard();
+		}
+		shardShift = 32 - Integer.numberOfTrailingZeros(n);
+	}
+
+	/**
+	 * Sets the listener told of every change of checksum.
+	 * @param listener the listener or null
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Stores the checksum and stat data of a file, replacing any previous entry.
+	 * @param path the relative path of the file
+	 * @param record the checksum and stat data
+	 */
+	public void put(String path, Record record) {
+		byte[] key = path.getBytes(UTF8);
+		int hash = hash(key);
+		byte[] codes = pack(record.getChecksum());
+		Shard shard = shardFor(hash);
+		Listener listener = this.listener;
+		shard.lock.writeLock().lock();
+		try {
+			String previous = null;
+			if(listener != null) {
+				int slot = shard.find(key, hash);
+				previous = slot < 0 ? null : shard.record(slot, path).getChecksum();
+			}
+			if(codes == null) {
+				shard.putLiteral(path, record.getChecksum());
+			}
+			shard.put(key, hash, codes, record);
+			if(codes != null) {
+				shard.removeLiteral(path);
+			}
+			version.incrementAndGet();
+			if(listener != null && !record.getChecksum().equals(previous)) {
+				listener.changed(path, previous, record.getChecksum());
+			}
+		} finally {
+			shard.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the checksum and stat data of a file.
+	 * @param path the relative path of the file
+	 * @return the record, or null if there is no entry for the path
+	 */
+	public Record get(String path) {
+		byte[] key = path.getBytes(UTF8);
+		int hash = hash(key);
+		Shard shard = shardFor(hash);
+		shard.lock.readLock().lock();
+		try {
+			int slot = shard.find(key, hash);
+			if(slot < 0) {
+				return null;
+			}
+			return shard.record(slot, path);
+		} finally {
+			shard.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the checksum of a file.
+	 * @param path the relative path of the file
+	 * @return the checksum, or null if there is no entry for the path
+	 */
+	public String getChecksum(String path) {
+		Record record = get(path);
+		return record == null ? null : record.getChecksum();
+	}
+
+	/**
+	 * Removes the entry of a file.
+	 * @param path the relative path of the file
+	 * @return true if there was an entry for the path
+	 */
+	public boolean remove(String path) {
+		byte[] key = path.getBytes(UTF8);
+		int hash = hash(key);
+		Shard shard = shardFor(hash);
+		shard.lock.writeLock().lock();
+		try {
+			int slot = shard.find(key, hash);
+			if(slot < 0) {
+				return false;
+			}
+			Listener listener = this.listener;
+			String previous = listener == null ? null : shard.record(slot, path).getChecksum();
+			if((shard.word(slot, checksumWords + KEY_WORD) & LITERAL_FLAG) != 0) {
+				shard.removeLiteral(path);
+			}
+			shard.delete(slot);
+			version.incrementAndGet();
+			if(listener != null) {
+				listener.changed(path, previous, null);
+			}
+			return true;
+		} finally {
+			shard.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the entry of a file if it is still the one given.
+	 * @param path the relative path of the file
+	 * @param expected the record the entry must have
+	 * @return true if the entry was removed
+	 */
+	public boolean remove(String path, Record expected) {
+		byte[] key = path.getBytes(UTF8);
+		int hash = hash(key);
+		Shard shard = shardFor(hash);
+		shard.lock.writeLock().lock();
+		try {
+			int slot = shard.find(key, hash);
+			if(slot < 0) {
+				return false;
+			}
+			Record record = shard.record(slot, path);
+			if(!record.checksum.equals(expected.checksum) || record.size != expected.size
+					|| record.mtime != expected.mtime || record.fileKey != expected.fileKey) {
+				return false;
+			}
+			return remove(path);
+		} finally {
+			shard.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of entries in the store.
+	 */
+	public int size() {
+		int size = 0;
+		for(Shard shard : shards) {
+			shard.lock.readLock().lock();
+			try {
+				size += shard.size;
+			} finally {
+				shard.lock.readLock().unlock();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Visits every entry in the store. Each shard is read-locked while its entries
+	 * are visited so the visitor should not block for long.
+	 * @param visitor the visitor called for each entry
+	 */
+	public void forEach(Visitor visitor) {
+		for(Shard shard : shards) {
+			shard.lock.readLock().lock();
+			try {
+				for(int slot = 0; slot < shard.capacity; slot++) {
+					if(shard.isOccupied(slot)) {
+						String path = shard.path(slot);
+						visitor.visit(path, shard.record(slot, path));
+					}
+				}
+			} finally {
+				shard.lock.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Takes a consistent snapshot of the store. All the shards are locked at
+	 * once for as long as it takes to share their tables with the snapshot,
+	 * later writes copy the segment of the table they change first.
+	 * @return the snapshot
+	 */
+	public Snapshot snapshot() {
+		for(Shard shard : shards) {
+			shard.lock.writeLock().lock();
+		}
+		try {
+			Table[] tables = new Table[shards.length];
+			int size = 0;
+			for(int i = 0; i < shards.length; i++) {
+				tables[i] = shards[i].share();
+				size += shards[i].size;
+			}
+			return new Snapshot(tables, size, version.get());
+		} finally {
+			for(Shard shard : shards) {
+				shard.lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes taken by the tables and key arenas of the store,
+	 * not counting the checksums kept as strings.
+	 */
+	public long getTableBytes() {
+		long bytes = 0;
+		for(Shard shard : shards) {
+			shard.lock.readLock().lock();
+			try {
+				bytes += shard.capacity * (stride * 8L + 4L) + shard.arena.length;
+			} finally {
+				shard.lock.readLock().unlock();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the codes of the characters of a checksum to pack. Returns null if
+	 * the checksum has other characters or does not fit the packed words.
+	 */
+	private byte[] pack(String checksum) {
+		if(checksum.length() > checksumWords * CODES_PER_WORD) {
+			return null;
+		}
+		byte[] codes = new byte[checksum.length()];
+		for(int i = 0; i < codes.length; i++) {
+			int code = CODES.indexOf(checksum.charAt(i));
+			if(code < 0) {
+				return null;
+			}
+			codes[i] = (byte)code;
+		}
+		return codes;
+	}
+
+	/**
+	 * Returns the position in its word of the code of a character of a checksum.
+	 */
+	private static int shiftOf(int i) {
+		return 54 - 6 * (i % CODES_PER_WORD);
+	}
+
+	private Shard shardFor(int hash) {
+		return shards.length == 1 ? shards[0] : shards[hash >>> shardShift];
+	}
+
+	private static int hash(byte[] key) {
+		int h = Arrays.hashCode(key);
+		// Spread the bits since both the shard and the slot are taken from the hash
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Visits the entries of the store.
+	 * @author shreyas shinde
+	 *
+	 */
+	public interface Visitor {
+		/**
+		 * Called for each entry of the store.
+		 * @param path the relative path of the file
+		 * @param record the checksum and stat data of the file
+		 */
+		public void visit(String path, Record record);
+	}
+
+	/**
+	 * An entry of the store.
+	 */
+	public static class Entry {
+		private final String path;
+		private final Record record;
+
+		Entry(String path, Record record) {
+			this.path = path;
+			this.record = record;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public Record getRecord() {
+			return record;
+		}
+	}
+
+	/**
+	 * The entries of the store at the time the snapshot was taken. Entries are
+	 * returned in no particular order but always in the same order, so that a
+	 * walk can be resumed from the position of a {@link Cursor}.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class Snapshot implements Iterable<Entry> {
+		private final Table[] tables;
+		private final int size;
+		private final long version;
+
+		Snapshot(Table[] tables, int size, long version) {
+			this.tables = tables;
+			this.size = size;
+			this.version = version;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns the number of changes made to the store before the snapshot
+		 * was taken. Two snapshots with the same version have the same entries.
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		public Cursor iterator() {
+			return cursor(0);
+		}
+
+		/**
+		 * Returns a cursor on the entries from a position.
+		 * @param position a position returned by {@link Cursor#getPosition()}, 0 for the first entry
+		 */
+		public Cursor cursor(long position) {
+			int table = (int)(position >>> 32);
+			int slot = (int)position;
+			if(position < 0 || table > tables.length || (table < tables.length && slot > tables[table].capacity)) {
+				throw new IllegalArgumentException("Invalid position: " + position);
+			}
+			return new Cursor(this, table, slot);
+		}
+	}
+
+	/**
+	 * Walks the entries of a snapshot.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class Cursor implements Iterator<Entry> {
+		private final Snapshot snapshot;
+		private int table;
+		private int slot;
+
+		Cursor(Snapshot snapshot, int table, int slot) {
+			this.snapshot = snapshot;
+			this.table = table;
+			this.slot = slot;
+			advance();
+		}
+
+		public boolean hasNext() {
+			return table < snapshot.tables.length;
+		}
+
+		public Entry next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Table t = snapshot.tables[table];
+			String path = t.path(slot);
+			Entry entry = new Entry(path, t.record(slot, path));
+			slot++;
+			advance();
+			return entry;
+		}
+
+		/**
+		 * Returns the position of the next entry, from which a cursor of the
+		 * same snapshot resumes the walk.
+		 */
+		public long getPosition() {
+			return ((long)table << 32) | slot;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Moves to the next occupied slot from the current one.
+		 */
+		private void advance() {
+			while(table < snapshot.tables.length) {
+				Table t = snapshot.tables[table];
+				while(slot < t.capacity && !t.isOccupied(slot)) {
+					slot++;
+				}
+				if(slot < t.capacity) {
+					return;
+				}
+				table++;
+				slot = 0;
+			}
+		}
+	}
+
+	/**
+	 * Listens to the changes of checksum of the store.
+	 * @author shreyas shinde
+	 *
+	 */
+	public interface Listener {
+		/**
+		 * Called when the checksum of a file changes. The entry of the file is
+		 * locked during the call so the changes of a file are seen in order.
+		 * @param path the relative path of the file
+		 * @param previous the previous checksum or null if there was no entry
+		 * @param checksum the new checksum or null if the entry was removed
+		 */
+		public void changed(String path, String previous, String checksum);
+	}
+
+	/**
+	 * The arrays of a shard, which a snapshot keeps as they were when it was taken.
+	 * The hashes and words of the slots are split in segments of
+	 * {@code SEGMENT_SLOTS} slots, fewer for a small table.
+	 */
+	private class Table {
+		int capacity;
+
+		/** The hash of each slot, 0 marks an empty slot so hashes are never 0 */
+		int[][] hashes;
+		long[][] words;
+		byte[] arena;
+
+		/** Checksums that could not be packed into the checksum words */
+		Map<String, String> literals;
+
+		/**
+		 * Creates an empty table.
+		 */
+		Table(int capacity, byte[] arena, Map<String, String> literals) {
+			int segments = (capacity + SEGMENT_SLOTS - 1) >>> SEGMENT_SHIFT;
+			int slots = Math.min(capacity, SEGMENT_SLOTS);
+			this.capacity = capacity;
+			this.hashes = new int[segments][slots];
+			this.words = new long[segments][slots * stride];
+			this.arena = arena;
+			this.literals = literals;
+		}
+
+		/**
+		 * Creates a table sharing the segments of another one.
+		 */
+		Table(Table table) {
+			this.capacity = table.capacity;
+			this.hashes = table.hashes.clone();
+			this.words = table.words.clone();
+			this.arena = table.arena;
+			this.literals = table.literals;
+		}
+
+		int hashAt(int slot) {
+			return hashes[slot >>> SEGMENT_SHIFT][slot & SEGMENT_MASK];
+		}
+
+		long word(int slot, int word) {
+			return words[slot >>> SEGMENT_SHIFT][(slot & SEGMENT_MASK) * stride + word];
+		}
+
+		boolean isOccupied(int slot) {
+			return hashAt(slot) != 0;
+		}
+
+		Record record(int slot, String path) {
+			long keyWord = word(slot, checksumWords + KEY_WORD);
+			String checksum;
+			if((keyWord & LITERAL_FLAG) != 0) {
+				checksum = literals.get(path);
+			} else {
+				char[] chars = new char[(int)((keyWord >>> 8) & 0xff)];
+				for(int i = 0; i < chars.length; i++) {
+					chars[i] = CODES.charAt((int)(word(slot, i / CODES_PER_WORD) >>> shiftOf(i)) & 0x3f);
+				}
+				checksum = new String(chars);
+			}
+			return new Record(checksum, word(slot, checksumWords + SIZE_WORD), word(slot, checksumWords + MTIME_WORD),
+					word(slot, checksumWords + FILE_KEY_WORD), (keyWord & RACY_FLAG) != 0);
+		}
+
+		String path(int slot) {
+			long keyWord = word(slot, checksumWords + KEY_WORD);
+			return new String(arena, (int)(keyWord >>> 32), (int)((keyWord >>> 16) & 0xffff), UTF8);
+		}
+	}
+
+	/**
+	 * A linear probing table guarded by its own lock. Deletes shift the following
+	 * entries back so no tombstones are needed.
+	 * @author shreyas shinde
+	 *
+	 */
+	private class Shard extends Table {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		int arenaUsed = 0;
+		int arenaGarbage = 0;
+		int size = 0;
+
+		/** The segments shared with a snapshot, which must be copied before a write */
+		boolean[] shared;
+
+		/** The literals are shared with a snapshot and must be copied before a write */
+		boolean literalsShared = false;
+
+		Shard() {
+			super(INITIAL_CAPACITY, new byte[INITIAL_CAPACITY * 32], new HashMap<String, String>());
+			shared = new boolean[hashes.length];
+		}
+
+		/**
+		 * Shares the segments with a snapshot. The key arena is shared as is since
+		 * keys are only ever appended past the part the snapshot reads, and a
+		 * resize builds a new arena.
+		 */
+		Table share() {
+			Arrays.fill(shared, true);
+			literalsShared = true;
+			return new Table(this);
+		}
+
+		void putLiteral(String path, String checksum) {
+			ownLiterals();
+			literals.put(path, checksum);
+		}
+
+		void removeLiteral(String path) {
+			if(literals.containsKey(path)) {
+				ownLiterals();
+				literals.remove(path);
+			}
+		}
+
+		int find(byte[] key, int hash) {
+			int h = nonZero(hash);
+			int mask = capacity - 1;
+			for(int slot = h & mask; hashAt(slot) != 0; slot = (slot + 1) & mask) {
+				if(hashAt(slot) == h && keyEquals(slot, key)) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		void put(byte[] key, int hash, byte[] codes, Record record) {
+			int h = nonZero(hash);
+			int slot = find(key, hash);
+			if(slot < 0) {
+				if((size + 1) * 4 > capacity * 3) {
+					resize(capacity * 2);
+				}
+				int mask = capacity - 1;
+				for(slot = h & mask; hashAt(slot) != 0; slot = (slot + 1) & mask) {
+				}
+				own(slot);
+				setHash(slot, h);
+				setWord(slot, checksumWords + KEY_WORD, ((long)append(key) << 32) | ((long)key.length << 16));
+				size++;
+			}
+			own(slot);
+			for(int i = 0; i < checksumWords; i++) {
+				setWord(slot, i, 0L);
+			}
+			long flags = record.racy ? RACY_FLAG : 0;
+			int checksumLength = 0;
+			if(codes == null) {
+				flags |= LITERAL_FLAG;
+			} else {
+				checksumLength = codes.length;
+				for(int i = 0; i < codes.length; i++) {
+					int w = i / CODES_PER_WORD;
+					setWord(slot, w, word(slot, w) | (long)codes[i] << shiftOf(i));
+				}
+			}
+			long keyWord = word(slot, checksumWords + KEY_WORD) & 0xffffffffffff0000L;
+			setWord(slot, checksumWords + KEY_WORD, keyWord | ((long)checksumLength << 8) | flags);
+			setWord(slot, checksumWords + SIZE_WORD, record.size);
+			setWord(slot, checksumWords + MTIME_WORD, record.mtime);
+			setWord(slot, checksumWords + FILE_KEY_WORD, record.fileKey);
+		}
+
+		void delete(int slot) {
+			int keyLength = (int)((word(slot, checksumWords + KEY_WORD) >>> 16) & 0xffff);
+			arenaGarbage += keyLength;
+			own(slot);
+			setHash(slot, 0);
+			size--;
+
+			// Shift back the entries of the probe sequence that follow the hole
+			int mask = capacity - 1;
+			int hole = slot;
+			for(int next = (hole + 1) & mask; hashAt(next) != 0; next = (next + 1) & mask) {
+				int home = hashAt(next) & mask;
+				boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+				if(movable) {
+					own(hole);
+					own(next);
+					setHash(hole, hashAt(next));
+					System.arraycopy(words[next >>> SEGMENT_SHIFT], (next & SEGMENT_MASK) * stride,
+							words[hole >>> SEGMENT_SHIFT], (hole & SEGMENT_MASK) * stride, stride);
+					setHash(next, 0);
+					hole = next;
+				}
+			}
+			if(arenaGarbage > arenaUsed / 2 && arenaGarbage > 4096) {
+				resize(capacity);
+			}
+		}
+
+		/**
+		 * Copies the segment of a slot if it is shared with a snapshot.
+		 */
+		private void own(int slot) {
+			int segment = slot >>> SEGMENT_SHIFT;
+			if(shared[segment]) {
+				hashes[segment] = hashes[segment].clone();
+				words[segment] = words[segment].clone();
+				shared[segment] = false;
+			}
+		}
+
+		private void ownLiterals() {
+			if(literalsShared) {
+				literals = new HashMap<String, String>(literals);
+				literalsShared = false;
+			}
+		}
+
+		private void setHash(int slot, int hash) {
+			hashes[slot >>> SEGMENT_SHIFT][slot & SEGMENT_MASK] = hash;
+		}
+
+		private void setWord(int slot, int word, long value) {
+			words[slot >>> SEGMENT_SHIFT][(slot & SEGMENT_MASK) * stride + word] = value;
+		}
+
+		private boolean keyEquals(int slot, byte[] key) {
+			long keyWord = word(slot, checksumWords + KEY_WORD);
+			int offset = (int)(keyWord >>> 32);
+			int length = (int)((keyWord >>> 16) & 0xffff);
+			if(length != key.length) {
+				return false;
+			}
+			for(int i = 0; i < length; i++) {
+				if(arena[offset + i] != key[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int append(byte[] key) {
+			if(key.length > 0xffff) {
+				throw new IllegalArgumentException("Path is too long: " + key.length + " bytes");
+			}
+			if(arenaUsed + key.length > arena.length) {
+				arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaUsed + key.length));
+			}
+			int offset = arenaUsed;
+			System.arraycopy(key, 0, arena, offset, key.length);
+			arenaUsed += key.length;
+			return offset;
+		}
+
+		/**
+		 * Rebuilds the table with a new capacity, compacting the key arena.
+		 */
+		private void resize(int newCapacity) {
+			Table old = new Table(this);
+			Table table = new Table(newCapacity,
+					new byte[Math.max(INITIAL_CAPACITY * 32, arenaUsed - arenaGarbage + (arenaUsed - arenaGarbage) / 2)],
+					literals);
+			capacity = table.capacity;
+			hashes = table.hashes;
+			words = table.words;
+			arena = table.arena;
+			shared = new boolean[hashes.length];
+			arenaUsed = 0;
+			arenaGarbage = 0;
+			int mask = capacity - 1;
+			for(int slot = 0; slot < old.capacity; slot++) {
+				if(!old.isOccupied(slot)) {
+					continue;
+				}
+				int to = old.hashAt(slot) & mask;
+				while(hashAt(to) != 0) {
+					to = (to + 1) & mask;
+				}
+				setHash(to, old.hashAt(slot));
+				System.arraycopy(old.words[slot >>> SEGMENT_SHIFT], (slot & SEGMENT_MASK) * stride,
+						words[to >>> SEGMENT_SHIFT], (to & SEGMENT_MASK) * stride, stride);
+				long keyWord = old.word(slot, checksumWords + KEY_WORD);
+				int length = (int)((keyWord >>> 16) & 0xffff);
+				int offset = arenaUsed;
+				System.arraycopy(old.arena, (int)(keyWord >>> 32), arena, offset, length);
+				arenaUsed += length;
+				setWord(to, checksumWords + KEY_WORD, ((long)offset << 32) | (keyWord & 0xffffffffL));
+			}
+		}
+
+		private int nonZero(int hash) {
+			return hash == 0 ? 1 : hash;
+		}
+	}
+}
@@ -1,16 +1,19 @@
 package com.fsync;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.DigestInputStream;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.fileupload.util.Streams;
 
 
 /**
@@ -25,6 +28,26 @@ public class ChecksumUtil {
 	/** Currently configured algorithm */
 	private static String messageDigestAlgorithm        = MESSAGE_DIGEST_ALGORITHM;
 	
+	/** Files at or above this size are memory-mapped instead of read through a buffer */
+	public static final long MMAP_THRESHOLD             = 64L * 1024 * 1024;
+	
+	/** Size of each region mapped at a time when hashing a large file */
+	static final long MMAP_REGION_SIZE                  = 256L * 1024 * 1024;
+	
+	/** Size of the per-thread scratch buffer used for reading and copying */
+	public static final int BUFFER_SIZE                 = 256 * 1024;
+	
+	/** Scratch buffers are reused per thread so hashing does not churn the heap */
+	private static final ThreadLocal<byte[]> scratchBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+	
+	/** Message digests are expensive to look up so they are cached per thread */
+	private static final ThreadLocal<MessageDigest> cachedDigest = new ThreadLocal<MessageDigest>();
+	
 	/**
 	 * Returns the currently configured message digest algorithm.
 	 * @return the name of the message digest algorithm.
@@ -50,35 +73,52 @@ public class ChecksumUtil {
 	}
 
 	/**
-	 * Computes the MD5 checksum on a file.
+	 * Computes the checksum on a file.
 	 * @param filepath the path to the file whose checksum needs to be computed. 
 	 * @return a base64 encoded string checksum of the contents of the file.
 	 */
 	public static String computeChecksumForFile(String filepath) {
-		InputStream is = null;
 		try {
-			// We use Java's message digester to simply read all the bytes
-			// from the file and then compute the digest.
-			MessageDigest md = MessageDigest.getInstance(messageDigestAlgorithm);
-			is = Files.newInputStream(Paths.get(filepath));
-			DigestInputStream dis = new DigestInputStream(is, md);
-			while(dis.read() != -1) {
-				;
-			}
-			byte[] digest = md.digest();
-			
-			// The digest is then Base64 encoded
-			return new Base64().encodeAsString(digest).toLowerCase();
+			return encode(computeDigestForFile(Paths.get(filepath)));
 		} catch(Exception e) {
 			throw new RuntimeException(e);
-		} finally {
-			if(is != null) {
-				try {
-					is.close();
-				} catch (IOException ignore) {
+		}
+	}
+	
+	/**
+	 * Computes the raw message digest of a file. Small files are read through a 
+	 * reusable per-thread buffer while files at or above {@link #MMAP_THRESHOLD} are
+	 * memory-mapped region by region so that the data is paged straight into the digest.
+	 * @param path the path to the file whose digest needs to be computed.
+	 * @return the digest bytes of the contents of the file.
+	 * @throws IOException if the file could not be read
+	 */
+	public static byte[] computeDigestForFile(Path path) throws IOException {
+		MessageDigest md = getMessageDigest();
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if(size >= MMAP_THRESHOLD) {
+				long position = 0;
+				while(position < size) {
+					long length = Math.min(MMAP_REGION_SIZE, size - position);
+					MappedByteBuffer region = channel.map(MapMode.READ_ONLY, position, length);
+					md.update(region);
+					position += length;
+				}
+			} else {
+				byte[] scratch = scratchBuffer.get();
+				ByteBuffer buffer = ByteBuffer.wrap(scratch);
+				int read;
+				while((read = channel.read(buffer)) != -1) {
+					md.update(scratch, 0, read);
+					buffer.clear();
 				}
 			}
+		} finally {
+			channel.close();
 		}
+		return md.digest();
 	}
 	
 	/**
@@ -87,24 +127,62 @@ public class ChecksumUtil {
 	 * @return a base64 encoded string checksum of the data
 	 */
 	public static String computeChecksumForData(byte[] data) {
-		ByteArrayInputStream bais = null;
 		try {
-			// Just run the bytes through the DigestInputStream
-			MessageDigest md = MessageDigest.getInstance(messageDigestAlgorithm);
-			bais = new ByteArrayInputStream(data);
-			DigestInputStream dis = new DigestInputStream(bais, md);
-			while(dis.read() != -1) {
-				;
-			}
-			byte[] digest = md.digest();
-			return new Base64().encodeAsString(digest).toLowerCase();
+			MessageDigest md = getMessageDigest();
+			md.update(data);
+			return encode(md.digest());
 		} catch(Exception e) {
 			throw new RuntimeException(e);
-		} finally {
-			try {
-				bais.close();
-			} catch(IOException ignore) {
-			}
+		}
+	}
+	
+	/**
+	 * Encodes a raw digest into the string form used throughout fsync and sent
+	 * to the peers: the base64 encoding of the digest, in lower case.
+	 * @param digest the digest bytes
+	 * @return a base64 encoded string of the digest
+	 */
+	public static String encode(byte[] digest) {
+		return new Base64().encodeAsString(digest).toLowerCase();
+	}
+	
+	/**
+	 * Tests if a checksum is the encoding of a digest of the currently
+	 * configured algorithm, as opposed to an empty or made up checksum.
+	 * @param checksum the checksum
+	 * @return true if the checksum has the length of an encoded digest
+	 */
+	public static boolean isDigest(String checksum) {
+		int length = getMessageDigest().getDigestLength();
+		return checksum.length() == (length + 2) / 3 * 4 && Base64.isBase64(checksum);
+	}
+	
+	/**
+	 * Returns a message digest for the currently configured algorithm. The digest
+	 * is cached per thread and reset before it is returned so callers must not
+	 * hold on to it across invocations.
+	 * @return a ready to use message digest
+	 */
+	public static MessageDigest getMessageDigest() {
+		MessageDigest md = cachedDigest.get();
+		if(md == null || !md.getAlgorithm().equals(messageDigestAlgorithm)) {
+			md = createMessageDigest();
+			cachedDigest.set(md);
+		}
+		md.reset();
+		return md;
+	}
+	
+	/**
+	 * Returns a new message digest for the currently configured algorithm, for
+	 * callers that need more than one digest at a time.
+	 * @return a new message digest
+	 */
+	public static MessageDigest createMessageDigest() {
+		try {
+			return MessageDigest.getInstance(messageDigestAlgorithm);
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
 		}
 	}
 	
@@ -117,13 +195,18 @@ public class ChecksumUtil {
 	 */
 	public static String computeChecksumAndCopy(InputStream in, OutputStream out) {
 		try {
-			// Just run the bytes through the DigestInputStream
-			MessageDigest md = MessageDigest.getInstance(messageDigestAlgorithm);
-			DigestInputStream dis = new DigestInputStream(in, md);
-			Streams.copy(dis, out, true);
+			// Run the bytes through the digest as they are copied
+			MessageDigest md = getMessageDigest();
+			byte[] scratch = scratchBuffer.get();
+			int read;
+			while((read = in.read(scratch)) != -1) {
+				md.update(scratch, 0, read);
+				out.write(scratch, 0, read);
+			}
+			out.close();
 			byte[] digest = md.digest();
-			dis.close();
-			return new Base64().encodeAsString(digest);
+			in.close();
+			return encode(digest);
 		} catch(Exception e) {
 			throw new RuntimeException(e);
 		}
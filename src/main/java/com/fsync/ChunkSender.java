@@ -0,0 +1,314 @@
+package com.fsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentProducer;
+import org.json.JSONObject;
+
+import com.fsync.ChunkTransfer.Manifest;
+import com.fsync.Http.HttpStatusException;
+import com.fsync.Http.StreamingResponse;
+import com.fsync.ReplicationJournal.Entry;
+
+/**
+ * This class sends files as the content-defined chunks the peer does not
+ * have. A file is read once and streamed: it is cut a window at a time and
+ * the peer is asked which chunks of each window it is missing before the
+ * window is written to the stream. For the peers that do not take streams of
+ * chunks, and for files too large to be sent in a request that starts over
+ * if it fails, the manifest of the file is sent first and the chunks the peer
+ * is missing are read again from the file.
+ * @author shreyas shinde
+ *
+ */
+public class ChunkSender implements FileSender {
+	/** The chunks of a file streamed to the peer are looked up a window of this many bytes at a time */
+	private static final int WINDOW_SIZE = 4 * 1024 * 1024;
+
+	private final PeerConnection connection;
+
+	/** Decides which files are too large to be sent in a single request */
+	private final ResumableSender resumable;
+
+	/** Files at least this large are sent as chunks */
+	private volatile long minSize = PeerSender.DEFAULT_CHUNK_MIN_SIZE;
+	private final AtomicLong files        = new AtomicLong();
+	private final AtomicLong fallbacks    = new AtomicLong();
+	private final AtomicLong bytesSent    = new AtomicLong();
+	private final AtomicLong bytesSkipped = new AtomicLong();
+
+	/** Set when the peer does not accept streams of chunks, files are then sent with a manifest first */
+	private volatile boolean streamRefused = false;
+
+	private static final Logger logger = Logger.getLogger(ChunkSender.class.getName());
+
+	/**
+	 * @param connection the connection to the peer
+	 * @param resumable the resumable uploads to the peer
+	 */
+	public ChunkSender(PeerConnection connection, ResumableSender resumable) {
+		this.connection = connection;
+		this.resumable = resumable;
+	}
+
+	/**
+	 * Sets the size from which files are sent as chunks.
+	 * @param minSize the size in bytes
+	 */
+	public void setMinSize(long minSize) {
+		this.minSize = minSize;
+	}
+
+	/**
+	 * Sends a file as chunks. The checksum of a file whose manifest was
+	 * computed is known to the senders tried after this one.
+	 * @return the checksum of the file sent or null if it has to be sent otherwise
+	 * @throws IOException if the peer could not be reached
+	 */
+	public String send(Upload upload) throws IOException {
+		long size = upload.attrs.size();
+		if(size < minSize) {
+			return null;
+		}
+		String checksum = null;
+		if(!streamRefused && !resumable.isResumable(size)) {
+			// The file is read once, its chunks are sent as they are cut
+			checksum = stream(upload);
+		}
+		if(checksum == null && (streamRefused || resumable.isResumable(size))
+				&& !resumable.isNewLargeFile(upload.entry, size)) {
+			Manifest manifest = ChunkTransfer.manifest(upload.file.toPath());
+			upload.known = manifest.getChecksum();
+			checksum = sendManifest(upload, manifest);
+		}
+		return checksum;
+	}
+
+	public void addStats(JSONObject stats) {
+		stats.put("chunkFiles", files.get());
+		stats.put("chunkFallbacks", fallbacks.get());
+		stats.put("chunkBytesSent", bytesSent.get());
+		stats.put("chunkBytesSkipped", bytesSkipped.get());
+	}
+
+	/**
+	 * Sends a file as a stream of chunks, with the data of the chunks the peer
+	 * does not have.
+	 * @return the checksum of the file sent or null if it has to be sent otherwise
+	 * @throws IOException if the peer could not be reached
+	 */
+	private String stream(Upload upload) throws IOException {
+		final Entry e = upload.entry;
+		final File f = upload.file;
+		final Window[] stream = new Window[1];
+		final byte[][] digest = new byte[1][];
+		// The peer keeps the chunks of its local copy for this stream alone
+		final String transfer = UUID.randomUUID().toString();
+		Map<String, String> params = new HashMap<String, String>();
+		params.put(Peer2PeerCommunicator.EVENT_PARAM, e.getEvent());
+		params.put(Peer2PeerCommunicator.TRANSFER_PARAM, transfer);
+		try {
+			connection.post("/chunks/stream", params, upload.priority, new ContentProducer() {
+				public void writeTo(OutputStream os) throws IOException {
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+					final Window window = new Window(e.getPath(), transfer, out);
+					stream[0] = window;
+					ChunkTransfer.writeStreamHeader(out);
+					digest[0] = Chunker.chunk(f.toPath(), new Chunker.Visitor() {
+						public void visit(long offset, byte[] data, int off, int len, byte[] hash) throws IOException {
+							window.add(data, off, len, hash);
+						}
+					});
+					window.flush();
+					ChunkTransfer.writeStreamEnd(digest[0], out);
+				}
+			}, upload.compress).close();
+		} catch(HttpStatusException ex) {
+			if(ex.getStatus() == HttpServletResponse.SC_NOT_FOUND) {
+				// The peer does not take streams of chunks, or keeps no chunk store
+				streamRefused = true;
+				logger.info("Peer " + connection.getPeer() + " does not accept streams of chunks, sending the manifest first.");
+				return null;
+			}
+			if(ex.getStatus() == HttpServletResponse.SC_CONFLICT) {
+				// A chunk left the chunk store or the local copy of the peer in between
+				fallbacks.incrementAndGet();
+				return null;
+			}
+			throw ex;
+		}
+		files.incrementAndGet();
+		bytesSent.addAndGet(stream[0].sentBytes);
+		bytesSkipped.addAndGet(stream[0].skippedBytes);
+		return ChecksumUtil.encode(digest[0]);
+	}
+
+	/**
+	 * Sends a file as the chunks the peer does not have yet. The chunks the
+	 * peer is missing are read again from the file, right after the manifest
+	 * was computed.
+	 * @param manifest the manifest of the file
+	 * @return the checksum of the file sent or null if it has to be sent in full instead
+	 * @throws IOException if the peer could not be reached
+	 */
+	private String sendManifest(Upload upload, final Manifest manifest) throws IOException {
+		final File f = upload.file;
+		// Ask the peer which chunks it does not have
+		final int[] missing;
+		try {
+			HttpEntity body = Http.body(new ContentProducer() {
+				public void writeTo(OutputStream out) throws IOException {
+					ChunkTransfer.writeManifest(manifest, new DataOutputStream(new BufferedOutputStream(out, 64 * 1024)));
+				}
+			});
+			StreamingResponse response = Http.openPost(connection.url("/chunks/want"),
+					Collections.singletonMap(Peer2PeerCommunicator.PATH_PARAM, upload.entry.getPath()), body);
+			try {
+				missing = ChunkTransfer.readMissing(manifest, new DataInputStream(new BufferedInputStream(response.getContent())));
+			} finally {
+				response.close();
+			}
+		} catch(HttpStatusException ex) {
+			if(ex.getStatus() == HttpServletResponse.SC_NOT_FOUND) {
+				// The peer does not keep a chunk store
+				fallbacks.incrementAndGet();
+				return null;
+			}
+			throw ex;
+		}
+
+		if(resumable.isResumable(manifest.getBytes(missing))) {
+			// Too much to send in a request that starts over if it fails
+			fallbacks.incrementAndGet();
+			return null;
+		}
+
+		// Send the missing chunks
+		try {
+			connection.post("/chunks/commit", Collections.singletonMap(Peer2PeerCommunicator.EVENT_PARAM, upload.entry.getEvent()),
+					upload.priority, new ContentProducer() {
+				public void writeTo(OutputStream out) throws IOException {
+					ChunkTransfer.writeCommit(manifest, missing, f.toPath(),
+							new DataOutputStream(new BufferedOutputStream(out, 64 * 1024)));
+				}
+			}, upload.compress && missing.length > 0).close();
+		} catch(HttpStatusException ex) {
+			if(ex.getStatus() == HttpServletResponse.SC_NOT_FOUND || ex.getStatus() == HttpServletResponse.SC_CONFLICT) {
+				// The file or the chunk store of the peer changed in between
+				fallbacks.incrementAndGet();
+				return null;
+			}
+			throw ex;
+		}
+		long sentBytes = manifest.getBytes(missing);
+		files.incrementAndGet();
+		bytesSent.addAndGet(sentBytes);
+		bytesSkipped.addAndGet(manifest.getSize() - sentBytes);
+		return manifest.getChecksum();
+	}
+
+	/**
+	 * A window of the chunks of a file being streamed to the peer. The chunks
+	 * are held until the window is full, then the peer is asked which of them
+	 * it is missing and they are written to the stream.
+	 */
+	private class Window {
+		final String path;
+		final String transfer;
+		final DataOutputStream out;
+		final byte[] data = new byte[WINDOW_SIZE];
+		int length = 0;
+		final List<byte[]> hashes = new ArrayList<byte[]>();
+		final List<Integer> offsets = new ArrayList<Integer>();
+
+		/** The chunks whose data was written to the stream already */
+		final Set<ByteBuffer> sent = new HashSet<ByteBuffer>();
+		long sentBytes = 0;
+		long skippedBytes = 0;
+
+		Window(String path, String transfer, DataOutputStream out) {
+			this.path = path;
+			this.transfer = transfer;
+			this.out = out;
+		}
+
+		void add(byte[] chunk, int off, int len, byte[] hash) throws IOException {
+			if(length + len > data.length) {
+				flush();
+			}
+			System.arraycopy(chunk, off, data, length, len);
+			hashes.add(hash);
+			offsets.add(length);
+			length += len;
+		}
+
+		void flush() throws IOException {
+			if(hashes.isEmpty()) {
+				return;
+			}
+			BitSet missing = want();
+			for(int i = 0; i < hashes.size(); i++) {
+				byte[] hash = hashes.get(i);
+				int off = offsets.get(i);
+				int len = (i + 1 < offsets.size() ? offsets.get(i + 1) : length) - off;
+				// The peer may not have put the chunks sent earlier in its store yet
+				boolean withData = missing.get(i) && sent.add(ByteBuffer.wrap(hash));
+				ChunkTransfer.writeStreamChunk(hash, data, off, len, withData, out);
+				if(withData) {
+					sentBytes += len;
+				} else {
+					skippedBytes += len;
+				}
+			}
+			hashes.clear();
+			offsets.clear();
+			length = 0;
+		}
+
+		/**
+		 * Asks the peer which chunks of the window it does not have.
+		 */
+		private BitSet want() throws IOException {
+			final List<byte[]> asked = new ArrayList<byte[]>(hashes);
+			HttpEntity body = Http.body(new ContentProducer() {
+				public void writeTo(OutputStream out) throws IOException {
+					ChunkTransfer.writeHashes(asked, new DataOutputStream(new BufferedOutputStream(out, 64 * 1024)));
+				}
+			});
+			Map<String, String> params = new HashMap<String, String>();
+			params.put(Peer2PeerCommunicator.PATH_PARAM, path);
+			params.put(Peer2PeerCommunicator.TRANSFER_PARAM, transfer);
+			StreamingResponse response = Http.openPost(connection.url("/chunks/have"), params, body);
+			BitSet missing = new BitSet(asked.size());
+			try {
+				for(int index : ChunkTransfer.readMissing(asked.size(), new DataInputStream(new BufferedInputStream(response.getContent())))) {
+					missing.set(index);
+				}
+			} finally {
+				response.close();
+			}
+			return missing;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package com.fsync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.json.JSONObject;
+
+/**
+ * This class stores chunks of file data by their digest. Chunks are kept in
+ * files named after the hex encoded digest, spread over 256 directories.
+ * Once the store grows beyond its maximum size the chunks that were least
+ * recently used are removed.
+ * @author shreyas shinde
+ *
+ */
+public class ChunkStore {
+	/** Default maximum size of the store */
+	public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+	/** When the store is full it is trimmed down to this fraction of the maximum size */
+	private static final double TRIM_RATIO = 0.9;
+
+	private final Path dir;
+	private final long maxBytes;
+
+	/** The size of the chunks in the store */
+	private final AtomicLong bytes = new AtomicLong();
+
+	/** Counters */
+	private final AtomicLong hits    = new AtomicLong();
+	private final AtomicLong misses  = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	private static final Logger logger = Logger.getLogger(ChunkStore.class.getName());
+
+	/**
+	 * Opens a store.
+	 * @param dir the directory of the store
+	 * @param maxBytes the maximum size of the store
+	 * @throws IOException if the directory could not be created or read
+	 */
+	public ChunkStore(Path dir, long maxBytes) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(dir);
+		long total = 0;
+		int count = 0;
+		for(File f : listChunks()) {
+			total += f.length();
+			count++;
+		}
+		bytes.set(total);
+		logger.info("Chunk store has " + count + " chunks, " + total + " bytes: " + dir);
+	}
+
+	/**
+	 * Tests if the store has a chunk. A chunk the store has counts as used,
+	 * so that it is still there when it is read after a peer was told so.
+	 * @param hash the digest of the chunk
+	 */
+	public boolean has(byte[] hash) {
+		return pathOf(hash).toFile().setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Adds a chunk to the store unless it has it already. The data must match
+	 * the digest.
+	 * @param hash the digest of the chunk
+	 * @param data the buffer holding the chunk
+	 * @param off the offset of the chunk in the buffer
+	 * @param len the length of the chunk
+	 * @throws IOException if the data does not match the digest or could not be written
+	 */
+	public void put(byte[] hash, byte[] data, int off, int len) throws IOException {
+		Path path = pathOf(hash);
+		if(Files.exists(path)) {
+			return;
+		}
+		MessageDigest md = ChecksumUtil.getMessageDigest();
+		md.update(data, off, len);
+		if(!MessageDigest.isEqual(hash, md.digest())) {
+			throw new IOException("The chunk does not match its digest.");
+		}
+		Files.createDirectories(path.getParent());
+		Path tmp = Files.createTempFile(path.getParent(), "chunk", ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tmp.toFile());
+			try {
+				out.write(data, off, len);
+			} finally {
+				out.close();
+			}
+			// Published without replacing a copy stored by another thread in between,
+			// so that the chunk is only counted once
+			try {
+				Files.createLink(path, tmp);
+			} catch(UnsupportedOperationException e) {
+				Files.move(tmp, path);
+			}
+		} catch(FileAlreadyExistsException e) {
+			return;
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		if(bytes.addAndGet(len) > maxBytes) {
+			trim();
+		}
+	}
+
+	/**
+	 * Reads a chunk from the store.
+	 * @param hash the digest of the chunk
+	 * @return the chunk or null if the store does not have it
+	 * @throws IOException if the chunk could not be read
+	 */
+	public byte[] get(byte[] hash) throws IOException {
+		Path path = pathOf(hash);
+		try {
+			byte[] data = Files.readAllBytes(path);
+			hits.incrementAndGet();
+			// The modification time tracks when the chunk was last used
+			path.toFile().setLastModified(System.currentTimeMillis());
+			return data;
+		} catch(NoSuchFileException e) {
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the size of the chunks in the store.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Returns the statistics of the store in JSON format.
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("bytes", bytes.get());
+		stats.put("maxBytes", maxBytes);
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("evicted", evicted.get());
+		return stats;
+	}
+
+	/**
+	 * Removes the least recently used chunks until the store is below its trim size.
+	 */
+	private synchronized void trim() {
+		if(bytes.get() <= maxBytes) {
+			return;
+		}
+		List<File> chunks = listChunks();
+		final Map<File, Long> lastUsed = new HashMap<File, Long>();
+		for(File f : chunks) {
+			lastUsed.put(f, f.lastModified());
+		}
+		Collections.sort(chunks, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(lastUsed.get(a), lastUsed.get(b));
+			}
+		});
+		long target = (long)(maxBytes * TRIM_RATIO);
+		int removed = 0;
+		for(File f : chunks) {
+			if(bytes.get() <= target) {
+				break;
+			}
+			long len = f.length();
+			if(f.delete()) {
+				bytes.addAndGet(-len);
+				removed++;
+			}
+		}
+		evicted.addAndGet(removed);
+		logger.info("Removed " + removed + " least recently used chunks from the chunk store.");
+	}
+
+	private List<File> listChunks() {
+		List<File> chunks = new ArrayList<File>();
+		File[] subdirs = dir.toFile().listFiles();
+		if(subdirs != null) {
+			for(File subdir : subdirs) {
+				File[] files = subdir.listFiles();
+				if(files != null) {
+					for(File f : files) {
+						if(!f.getName().endsWith(".tmp")) {
+							chunks.add(f);
+						}
+					}
+				}
+			}
+		}
+		return chunks;
+	}
+
+	private Path pathOf(byte[] hash) {
+		String name = Hex.encodeHexString(hash);
+		return dir.resolve(name.substring(0, 2)).resolve(name);
+	}
+}
@@ -0,0 +1,588 @@
+package com.fsync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class transfers files as content-defined chunks. The sender splits the
+ * file into chunks and sends the list of chunks, the manifest. The receiver
+ * answers with the chunks it does not have in its chunk store and the sender
+ * then sends only those chunks along with the manifest again. The receiver
+ * puts the file together from the chunks it received and the chunks in its
+ * store, and verifies the result against the digest of the sender.
+ * <p>
+ * A file can also be sent as a stream of chunks, so that it is read only once.
+ * The sender cuts the file a window at a time, asks the receiver which chunks
+ * of the window it has in its store or in its local copy of the file, and
+ * writes the chunks of the window to the stream, with their data if the
+ * receiver does not have them. The digest of the file ends the stream.
+ * @author shreyas shinde
+ *
+ */
+public class ChunkTransfer {
+	/** Identifies a manifest */
+	private static final int MANIFEST_MAGIC = 0x4653434d; //FSCM
+
+	/** Identifies a stream of chunks */
+	private static final int STREAM_MAGIC = 0x46534353; //FSCS
+
+	/** The most hashes asked for at once, and the longest hash */
+	private static final int MAX_HASHES      = 64 * 1024;
+	private static final int MAX_HASH_LENGTH = 64;
+
+	/**
+	 * Splits a file into chunks.
+	 * @param file the file
+	 * @return the manifest of the file
+	 * @throws IOException if the file could not be read
+	 */
+	public static Manifest manifest(Path file) throws IOException {
+		final Manifest manifest = new Manifest();
+		manifest.digest = Chunker.chunk(file, new Chunker.Visitor() {
+			public void visit(long offset, byte[] data, int off, int len, byte[] hash) {
+				manifest.chunks.add(new ChunkRef(hash, offset, len));
+				manifest.size += len;
+			}
+		});
+		return manifest;
+	}
+
+	public static void writeManifest(Manifest manifest, DataOutputStream out) throws IOException {
+		out.writeInt(MANIFEST_MAGIC);
+		out.writeLong(manifest.size);
+		out.writeShort(manifest.digest.length);
+		out.write(manifest.digest);
+		out.writeInt(manifest.chunks.size());
+		for(ChunkRef chunk : manifest.chunks) {
+			out.write(chunk.hash);
+			out.writeInt(chunk.length);
+		}
+		out.flush();
+	}
+
+	public static Manifest readManifest(DataInputStream in) throws IOException {
+		if(in.readInt() != MANIFEST_MAGIC) {
+			throw new IOException("Not a chunk manifest.");
+		}
+		Manifest manifest = new Manifest();
+		manifest.size = in.readLong();
+		manifest.digest = new byte[in.readUnsignedShort()];
+		in.readFully(manifest.digest);
+		int count = in.readInt();
+		long offset = 0;
+		for(int i = 0; i < count; i++) {
+			byte[] hash = new byte[manifest.digest.length];
+			in.readFully(hash);
+			int length = in.readInt();
+			if(length < 0 || length > Chunker.MAX_SIZE) {
+				throw new IOException("Invalid chunk length: " + length);
+			}
+			manifest.chunks.add(new ChunkRef(hash, offset, length));
+			offset += length;
+		}
+		if(offset != manifest.size) {
+			throw new IOException("The chunks do not add up to the size of the file.");
+		}
+		return manifest;
+	}
+
+	/**
+	 * Finds the chunks of a manifest that are not in the store. The chunks
+	 * that are missing from the store but found in the local copy of the file
+	 * are added to the store first.
+	 * @param manifest the manifest
+	 * @param store the chunk store
+	 * @param localCopy the local copy of the file or null if there is none
+	 * @return the indices of the missing chunks in ascending order
+	 * @throws IOException if the store or the local copy could not be read
+	 */
+	public static int[] findMissing(Manifest manifest, final ChunkStore store, Path localCopy) throws IOException {
+		int[] missing = missingFromStore(manifest, store);
+		if(missing.length > 0 && localCopy != null && Files.isRegularFile(localCopy)) {
+			final Set<ByteBuffer> wanted = new HashSet<ByteBuffer>();
+			for(int index : missing) {
+				wanted.add(ByteBuffer.wrap(manifest.chunks.get(index).hash));
+			}
+			Chunker.chunk(localCopy, new Chunker.Visitor() {
+				public void visit(long offset, byte[] data, int off, int len, byte[] hash) throws IOException {
+					if(wanted.remove(ByteBuffer.wrap(hash))) {
+						store.put(hash, data, off, len);
+					}
+				}
+			});
+			missing = missingFromStore(manifest, store);
+		}
+		return missing;
+	}
+
+	public static void writeMissing(int[] missing, DataOutputStream out) throws IOException {
+		out.writeInt(missing.length);
+		for(int index : missing) {
+			out.writeInt(index);
+		}
+		out.flush();
+	}
+
+	public static int[] readMissing(Manifest manifest, DataInputStream in) throws IOException {
+		int[] missing = new int[in.readInt()];
+		for(int i = 0; i < missing.length; i++) {
+			missing[i] = in.readInt();
+			if(missing[i] < 0 || missing[i] >= manifest.chunks.size() || (i > 0 && missing[i] <= missing[i - 1])) {
+				throw new IOException("Invalid chunk index: " + missing[i]);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Writes the manifest followed by the data of the missing chunks.
+	 * @param manifest the manifest of the file
+	 * @param missing the indices of the chunks the receiver does not have
+	 * @param file the file
+	 * @param out the stream to write to
+	 * @return the number of bytes of chunk data written
+	 * @throws IOException if the file could not be read
+	 */
+	public static long writeCommit(Manifest manifest, int[] missing, Path file, DataOutputStream out) throws IOException {
+		writeManifest(manifest, out);
+		writeMissing(missing, out);
+		long written = 0;
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			byte[] buf = new byte[Chunker.MAX_SIZE];
+			for(int index : missing) {
+				ChunkRef chunk = manifest.chunks.get(index);
+				ByteBuffer bb = ByteBuffer.wrap(buf, 0, chunk.length);
+				while(bb.hasRemaining()) {
+					if(channel.read(bb, chunk.offset + bb.position()) < 0) {
+						throw new IOException("The file is shorter than its manifest.");
+					}
+				}
+				out.write(buf, 0, chunk.length);
+				written += chunk.length;
+			}
+			out.flush();
+			return written;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Puts a file together from the chunks that follow the manifest and the
+	 * chunks in the store. The chunks received are added to the store.
+	 * @param in the stream written by {@link #writeCommit(Manifest, int[], Path, DataOutputStream)}
+	 * @param store the chunk store
+	 * @param target the file to write
+	 * @return the checksum of the file
+	 * @throws ChunkMismatchException if a chunk is no longer in the store or the
+	 *         file does not match the file of the sender
+	 * @throws IOException if the file could not be written
+	 */
+	public static String applyCommit(DataInputStream in, ChunkStore store, Path target) throws IOException {
+		Manifest manifest = readManifest(in);
+		int[] missing = readMissing(manifest, in);
+		MessageDigest md = ChecksumUtil.createMessageDigest();
+		MessageDigest chunkDigest = ChecksumUtil.createMessageDigest();
+		byte[] buf = new byte[Chunker.MAX_SIZE];
+		FileOutputStream fos = new FileOutputStream(target.toFile());
+		try {
+			BufferedOutputStream out = new BufferedOutputStream(fos, 1024 * 1024);
+			int next = 0;
+			for(int i = 0; i < manifest.chunks.size(); i++) {
+				ChunkRef chunk = manifest.chunks.get(i);
+				byte[] data;
+				if(next < missing.length && missing[next] == i) {
+					// Sent by the peer
+					next++;
+					in.readFully(buf, 0, chunk.length);
+					chunkDigest.update(buf, 0, chunk.length);
+					if(!MessageDigest.isEqual(chunk.hash, chunkDigest.digest())) {
+						throw new ChunkMismatchException("A chunk does not match its digest, the file changed while it was sent.");
+					}
+					store.put(chunk.hash, buf, 0, chunk.length);
+					data = buf;
+				} else {
+					data = store.get(chunk.hash);
+					if(data == null || data.length != chunk.length) {
+						throw new ChunkMismatchException("A chunk is no longer in the chunk store.");
+					}
+				}
+				md.update(data, 0, chunk.length);
+				out.write(data, 0, chunk.length);
+			}
+			out.flush();
+			if(!Arrays.equals(md.digest(), manifest.digest)) {
+				throw new ChunkMismatchException("The file put together does not match its digest.");
+			}
+			fos.getChannel().force(false);
+			return ChecksumUtil.encode(manifest.digest);
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Writes the hashes of a window of chunks, for the receiver to tell which
+	 * ones it does not have.
+	 */
+	public static void writeHashes(List<byte[]> hashes, DataOutputStream out) throws IOException {
+		out.writeInt(hashes.size());
+		for(byte[] hash : hashes) {
+			writeHash(hash, out);
+		}
+		out.flush();
+	}
+
+	public static List<byte[]> readHashes(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if(count < 0 || count > MAX_HASHES) {
+			throw new IOException("Invalid number of hashes: " + count);
+		}
+		List<byte[]> hashes = new ArrayList<byte[]>(count);
+		for(int i = 0; i < count; i++) {
+			hashes.add(readHash(in));
+		}
+		return hashes;
+	}
+
+	/**
+	 * Finds the chunks of a window that are neither in the store nor in the
+	 * local copy of the file.
+	 * @param hashes the hashes of the chunks of the window
+	 * @param store the chunk store
+	 * @param local the chunks of the local copy of the file
+	 * @return the indices of the missing chunks in ascending order
+	 */
+	public static int[] findMissing(List<byte[]> hashes, ChunkStore store, LocalChunks local) {
+		List<Integer> missing = new ArrayList<Integer>();
+		Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+		for(int i = 0; i < hashes.size(); i++) {
+			byte[] hash = hashes.get(i);
+			// A chunk that repeats within the window only needs to be sent once
+			if(seen.add(ByteBuffer.wrap(hash)) && !store.has(hash) && !local.has(hash)) {
+				missing.add(i);
+			}
+		}
+		return toArray(missing);
+	}
+
+	/**
+	 * Reads the indices of the missing chunks of a window.
+	 * @param count the number of chunks in the window
+	 */
+	public static int[] readMissing(int count, DataInputStream in) throws IOException {
+		int[] missing = new int[in.readInt()];
+		for(int i = 0; i < missing.length; i++) {
+			missing[i] = in.readInt();
+			if(missing[i] < 0 || missing[i] >= count || (i > 0 && missing[i] <= missing[i - 1])) {
+				throw new IOException("Invalid chunk index: " + missing[i]);
+			}
+		}
+		return missing;
+	}
+
+	public static void writeStreamHeader(DataOutputStream out) throws IOException {
+		out.writeInt(STREAM_MAGIC);
+	}
+
+	/**
+	 * Writes a chunk to a stream of chunks.
+	 * @param withData true to write the data of the chunk, false if the
+	 *        receiver has the chunk
+	 */
+	public static void writeStreamChunk(byte[] hash, byte[] data, int off, int len, boolean withData,
+			DataOutputStream out) throws IOException {
+		out.writeInt(len);
+		writeHash(hash, out);
+		out.writeBoolean(withData);
+		if(withData) {
+			out.write(data, off, len);
+		}
+	}
+
+	/**
+	 * Ends a stream of chunks with the digest of the file.
+	 */
+	public static void writeStreamEnd(byte[] digest, DataOutputStream out) throws IOException {
+		out.writeInt(-1);
+		writeHash(digest, out);
+		out.flush();
+	}
+
+	/**
+	 * Puts a file together from a stream of chunks. The chunks received are
+	 * added to the store, the others are taken from the store or from the
+	 * local copy of the file.
+	 * @param in the stream of chunks
+	 * @param store the chunk store
+	 * @param lookup looks up the chunks of the local copy of the file the first
+	 *        time a chunk is not in the store, or null
+	 * @param target the file to write
+	 * @return the checksum of the file
+	 * @throws ChunkMismatchException if a chunk is no longer in the store or in
+	 *         the local copy, or the file does not match the file of the sender
+	 * @throws IOException if the file could not be written
+	 */
+	public static String applyStream(DataInputStream in, ChunkStore store, LocalChunksLookup lookup, Path target) throws IOException {
+		if(in.readInt() != STREAM_MAGIC) {
+			throw new IOException("Not a chunk stream.");
+		}
+		MessageDigest md = ChecksumUtil.createMessageDigest();
+		MessageDigest chunkDigest = ChecksumUtil.createMessageDigest();
+		byte[] buf = new byte[Chunker.MAX_SIZE];
+		LocalChunks local = null;
+		FileOutputStream fos = new FileOutputStream(target.toFile());
+		try {
+			BufferedOutputStream out = new BufferedOutputStream(fos, 1024 * 1024);
+			int length;
+			while((length = in.readInt()) >= 0) {
+				if(length > Chunker.MAX_SIZE) {
+					throw new IOException("Invalid chunk length: " + length);
+				}
+				byte[] hash = readHash(in);
+				byte[] data = buf;
+				if(in.readBoolean()) {
+					// Sent by the peer
+					in.readFully(buf, 0, length);
+					chunkDigest.update(buf, 0, length);
+					if(!MessageDigest.isEqual(hash, chunkDigest.digest())) {
+						throw new ChunkMismatchException("A chunk does not match its digest, the file changed while it was sent.");
+					}
+					store.put(hash, buf, 0, length);
+				} else {
+					data = store.get(hash);
+					if(data == null || data.length != length) {
+						// The local copy may have changed since it was looked at
+						if(local == null && lookup != null) {
+							local = lookup.get();
+						}
+						data = buf;
+						chunkDigest.update(buf, 0, local == null ? 0 : local.read(hash, buf));
+						if(!MessageDigest.isEqual(hash, chunkDigest.digest())) {
+							throw new ChunkMismatchException("A chunk is no longer in the chunk store or in the local copy.");
+						}
+					}
+				}
+				md.update(data, 0, length);
+				out.write(data, 0, length);
+			}
+			out.flush();
+			byte[] digest = md.digest();
+			if(!Arrays.equals(digest, readHash(in))) {
+				throw new ChunkMismatchException("The file put together does not match its digest.");
+			}
+			fos.getChannel().force(false);
+			return ChecksumUtil.encode(digest);
+		} finally {
+			fos.close();
+		}
+	}
+
+	private static void writeHash(byte[] hash, DataOutputStream out) throws IOException {
+		out.writeShort(hash.length);
+		out.write(hash);
+	}
+
+	private static byte[] readHash(DataInputStream in) throws IOException {
+		int length = in.readUnsignedShort();
+		if(length > MAX_HASH_LENGTH) {
+			throw new IOException("Invalid hash length: " + length);
+		}
+		byte[] hash = new byte[length];
+		in.readFully(hash);
+		return hash;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for(int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+
+	private static int[] missingFromStore(Manifest manifest, ChunkStore store) {
+		List<Integer> missing = new ArrayList<Integer>();
+		Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+		for(int i = 0; i < manifest.chunks.size(); i++) {
+			byte[] hash = manifest.chunks.get(i).hash;
+			// A chunk that repeats within the file only needs to be sent once
+			if(seen.add(ByteBuffer.wrap(hash)) && !store.has(hash)) {
+				missing.add(i);
+			}
+		}
+		return toArray(missing);
+	}
+
+	/**
+	 * The list of chunks of a file.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class Manifest {
+		final List<ChunkRef> chunks = new ArrayList<ChunkRef>();
+		long size = 0;
+		byte[] digest;
+
+		public int getChunkCount() {
+			return chunks.size();
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Returns the checksum of the file, computed while it was split into chunks.
+		 */
+		public String getChecksum() {
+			return ChecksumUtil.encode(digest);
+		}
+
+		/**
+		 * Returns the number of bytes in the chunks with the given indices.
+		 */
+		public long getBytes(int[] indices) {
+			long bytes = 0;
+			for(int index : indices) {
+				bytes += chunks.get(index).length;
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * A chunk of a file.
+	 */
+	static class ChunkRef {
+		final byte[] hash;
+		final long offset;
+		final int length;
+
+		ChunkRef(byte[] hash, long offset, int length) {
+			this.hash = hash;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * The chunks of the local copy of a file, found where they are in the file
+	 * rather than added to the chunk store.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class LocalChunks {
+		private final Path file;
+		private final long size;
+		private final long lastModified;
+		private final Map<ByteBuffer, ChunkRef> chunks;
+
+		private LocalChunks(Path file, long size, long lastModified, Map<ByteBuffer, ChunkRef> chunks) {
+			this.file = file;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.chunks = chunks;
+		}
+
+		/**
+		 * Splits the local copy of a file into chunks.
+		 * @param file the local copy, which may not exist
+		 * @throws IOException if the file could not be read
+		 */
+		public static LocalChunks index(Path file) throws IOException {
+			if(!Files.isRegularFile(file)) {
+				return new LocalChunks(file, -1, -1, Collections.<ByteBuffer, ChunkRef>emptyMap());
+			}
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			final Map<ByteBuffer, ChunkRef> chunks = new HashMap<ByteBuffer, ChunkRef>();
+			Chunker.chunk(file, new Chunker.Visitor() {
+				public void visit(long offset, byte[] data, int off, int len, byte[] hash) {
+					chunks.put(ByteBuffer.wrap(hash), new ChunkRef(hash, offset, len));
+				}
+			});
+			return new LocalChunks(file, attrs.size(), attrs.lastModifiedTime().toMillis(), chunks);
+		}
+
+		/**
+		 * Tests if the local copy changed since it was split into chunks.
+		 */
+		public boolean isStale() throws IOException {
+			if(!Files.isRegularFile(file)) {
+				return size >= 0;
+			}
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			return attrs.size() != size || attrs.lastModifiedTime().toMillis() != lastModified;
+		}
+
+		public boolean has(byte[] hash) {
+			return chunks.containsKey(ByteBuffer.wrap(hash));
+		}
+
+		/**
+		 * Reads a chunk from the local copy.
+		 * @param hash the hash of the chunk
+		 * @param buf the buffer to read into
+		 * @return the length of the chunk, 0 if the local copy does not have it
+		 * @throws IOException if the local copy could not be read
+		 */
+		public int read(byte[] hash, byte[] buf) throws IOException {
+			ChunkRef chunk = chunks.get(ByteBuffer.wrap(hash));
+			if(chunk == null) {
+				return 0;
+			}
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				ByteBuffer bb = ByteBuffer.wrap(buf, 0, chunk.length);
+				while(bb.hasRemaining()) {
+					if(channel.read(bb, chunk.offset + bb.position()) < 0) {
+						return 0;
+					}
+				}
+				return chunk.length;
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Looks up the chunks of the local copy of a file, only when a stream of
+	 * chunks refers to a chunk that is not in the chunk store.
+	 */
+	public interface LocalChunksLookup {
+		LocalChunks get() throws IOException;
+	}
+
+	/**
+	 * Thrown when a file cannot be put together from its chunks.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class ChunkMismatchException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public ChunkMismatchException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.fsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * This class splits files into chunks at boundaries picked by the content of
+ * the file. A rolling gear hash runs over the file and a chunk ends wherever
+ * the top bits of the hash are zero, so an insertion or deletion only changes
+ * the chunks around it and identical data in different files, or at different
+ * offsets of the same file, yields identical chunks.
+ * @author shreyas shinde
+ *
+ */
+public class Chunker {
+	/** Chunk size limits, chunks are about AVG_SIZE on average */
+	public static final int MIN_SIZE = 16 * 1024;
+	public static final int AVG_SIZE = 48 * 1024;
+	public static final int MAX_SIZE = 256 * 1024;
+
+	/**
+	 * A boundary is where the top 15 bits of the hash are zero, which happens
+	 * once in 32KB. The top bits are used since the low bits of a gear hash
+	 * only depend on the last few bytes.
+	 */
+	private static final long MASK   = ((1L << 15) - 1) << (64 - 15);
+
+	/** Size of the reads from the file */
+	private static final int READ_SIZE = 1024 * 1024;
+
+	/** Random values for each byte value. All nodes must use the same values to find the same chunks. */
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x46535943L);
+		for(int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * Receives the chunks of a file.
+	 */
+	public interface Visitor {
+		/**
+		 * Receives a chunk.
+		 * @param offset the offset of the chunk in the file
+		 * @param data the buffer holding the chunk, only valid during the call
+		 * @param off the offset of the chunk in the buffer
+		 * @param len the length of the chunk
+		 * @param hash the digest of the chunk
+		 * @throws IOException to stop chunking the file
+		 */
+		void visit(long offset, byte[] data, int off, int len, byte[] hash) throws IOException;
+	}
+
+	/**
+	 * Splits a file into chunks.
+	 * @param file the file
+	 * @param visitor receives the chunks in order
+	 * @return the digest of the whole file
+	 * @throws IOException if the file could not be read
+	 */
+	public static byte[] chunk(Path file, Visitor visitor) throws IOException {
+		// Own digests so that the visitor is free to use the cached one
+		MessageDigest chunkDigest = ChecksumUtil.createMessageDigest();
+		MessageDigest fileDigest = ChecksumUtil.createMessageDigest();
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			byte[] buf = new byte[READ_SIZE + MAX_SIZE];
+			ByteBuffer bb = ByteBuffer.wrap(buf);
+			int start = 0, end = 0;
+			long offset = 0;
+			boolean eof = false;
+			while(true) {
+				if(end - start < MAX_SIZE && !eof) {
+					// Make room and read more of the file
+					if(start > 0) {
+						System.arraycopy(buf, start, buf, 0, end - start);
+						end -= start;
+						start = 0;
+					}
+					bb.limit(buf.length).position(end);
+					int n = channel.read(bb);
+					if(n < 0) {
+						eof = true;
+					} else {
+						fileDigest.update(buf, end, n);
+						end += n;
+					}
+					continue;
+				}
+				if(start == end) {
+					break;
+				}
+				int len = boundary(buf, start, end - start);
+				chunkDigest.update(buf, start, len);
+				visitor.visit(offset, buf, start, len, chunkDigest.digest());
+				offset += len;
+				start += len;
+			}
+			return fileDigest.digest();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Returns the length of the chunk that starts at the offset.
+	 * @param data the data
+	 * @param off the start of the chunk
+	 * @param available the number of bytes available, at least MAX_SIZE unless at the end of the file
+	 */
+	static int boundary(byte[] data, int off, int available) {
+		if(available <= MIN_SIZE) {
+			return available;
+		}
+		int limit = Math.min(available, MAX_SIZE);
+		long hash = 0;
+		// Bytes before the minimum size cannot end a chunk but they seed the hash
+		for(int i = MIN_SIZE - 64; i < limit; i++) {
+			hash = (hash << 1) + GEAR[data[off + i] & 0xff];
+			if(i >= MIN_SIZE && (hash & MASK) == 0) {
+				return i + 1;
+			}
+		}
+		return limit;
+	}
+}
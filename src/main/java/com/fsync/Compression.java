@@ -0,0 +1,250 @@
+package com.fsync;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.ContentType;
+import org.json.JSONObject;
+
+/**
+ * This class compresses the data sent to a peer with deflate. Before a file
+ * is compressed a few samples of it are compressed to tell whether it is
+ * worth it, so that data that is already compressed is sent as it is.
+ * Compressed bodies are marked with the deflate content encoding and are
+ * compressed while they are sent.
+ * @author shreyas shinde
+ *
+ */
+public class Compression {
+	/** The content encoding of compressed bodies */
+	public static final String DEFLATE = "deflate";
+
+	/** Default compression level, the fastest level still shrinks text several times */
+	public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+	/** Number and size of the samples compressed to probe a file */
+	private static final int SAMPLES     = 4;
+	private static final int SAMPLE_SIZE = 32 * 1024;
+
+	/** Files whose samples do not shrink below this ratio are not compressed */
+	private static final double MAX_RATIO = 0.9;
+
+	/** Size of the buffers of the deflater streams */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final int level;
+
+	/** Counters */
+	private final AtomicLong files        = new AtomicLong();
+	private final AtomicLong skipped      = new AtomicLong();
+	private final AtomicLong bytesIn      = new AtomicLong();
+	private final AtomicLong bytesOut     = new AtomicLong();
+	private final AtomicLong deflateNanos = new AtomicLong();
+
+	/**
+	 * Creates a compression.
+	 * @param level the deflate level from 1 to 9, 0 disables compression
+	 */
+	public Compression(int level) {
+		if(level < 0 || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.level = level;
+	}
+
+	/**
+	 * Returns true unless compression is disabled.
+	 */
+	public boolean isEnabled() {
+		return level > 0;
+	}
+
+	/**
+	 * Tests if a file is worth compressing by compressing a few samples of it.
+	 * @param file the file
+	 * @return false if compression is disabled or the samples do not shrink
+	 */
+	public boolean isCompressible(File file) {
+		if(!isEnabled()) {
+			return false;
+		}
+		long length = file.length();
+		if(length == 0) {
+			return false;
+		}
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		long start = System.nanoTime();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				byte[] sample = new byte[SAMPLE_SIZE];
+				byte[] out = new byte[BUFFER_SIZE];
+				long in = 0, compressed = 0;
+				int samples = length <= SAMPLES * SAMPLE_SIZE ? 1 : SAMPLES;
+				for(int i = 0; i < samples; i++) {
+					// Samples are spread evenly from the start to the end of the file
+					long offset = samples == 1 ? 0 : i * ((length - SAMPLE_SIZE) / (samples - 1));
+					raf.seek(offset);
+					int n = raf.read(sample, 0, (int)Math.min(SAMPLE_SIZE, length - offset));
+					if(n <= 0) {
+						break;
+					}
+					deflater.reset();
+					deflater.setInput(sample, 0, n);
+					deflater.finish();
+					while(!deflater.finished()) {
+						compressed += deflater.deflate(out);
+					}
+					in += n;
+				}
+				boolean compressible = in > 0 && compressed < in * MAX_RATIO;
+				if(!compressible) {
+					skipped.incrementAndGet();
+				}
+				return compressible;
+			} finally {
+				raf.close();
+			}
+		} catch(IOException e) {
+			return false;
+		} finally {
+			deflater.end();
+			deflateNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Returns a body that is compressed as it is written by the producer.
+	 * @param producer writes the uncompressed body
+	 */
+	public HttpEntity compress(final ContentProducer producer) {
+		EntityTemplate entity = new EntityTemplate(new ContentProducer() {
+			public void writeTo(OutputStream out) throws IOException {
+				DeflaterOutputStream dos = new DeflaterOutputStream(out);
+				try {
+					producer.writeTo(dos);
+					dos.finish();
+				} finally {
+					dos.end();
+				}
+			}
+		});
+		entity.setContentType(ContentType.APPLICATION_OCTET_STREAM.toString());
+		entity.setContentEncoding(DEFLATE);
+		return entity;
+	}
+
+	/**
+	 * Returns a stream that reads the body of a request.
+	 * @param in the body as it was received
+	 * @param contentEncoding the content encoding of the body or null
+	 * @return the decompressed body or null if the content encoding is not supported
+	 */
+	public static InputStream decompress(InputStream in, String contentEncoding) {
+		if(contentEncoding == null || contentEncoding.isEmpty() || contentEncoding.equalsIgnoreCase("identity")) {
+			return in;
+		}
+		if(contentEncoding.equalsIgnoreCase(DEFLATE)) {
+			return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+				public void close() throws IOException {
+					super.close();
+					inf.end();
+				}
+			};
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the statistics of the compression in JSON format.
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("level", level);
+		stats.put("files", files.get());
+		stats.put("skipped", skipped.get());
+		stats.put("bytesIn", bytesIn.get());
+		stats.put("bytesOut", bytesOut.get());
+		stats.put("ratio", bytesIn.get() == 0 ? 1.0 : (double)bytesOut.get() / bytesIn.get());
+		stats.put("cpuMillis", deflateNanos.get() / 1000000);
+		return stats;
+	}
+
+	/**
+	 * A deflater stream that counts the bytes going in and out and the time
+	 * spent compressing. The stream does not close the underlying stream.
+	 */
+	private class DeflaterOutputStream extends FilterOutputStream {
+		private final Deflater deflater = new Deflater(level);
+		private final byte[] buf = new byte[BUFFER_SIZE];
+		private long nanos = 0;
+		private long written = 0;
+		private boolean finished = false;
+
+		DeflaterOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			deflater.setInput(b, off, len);
+			while(!deflater.needsInput()) {
+				deflate(Deflater.NO_FLUSH);
+			}
+		}
+
+		public void flush() throws IOException {
+			// Flushing the deflater would hurt the ratio, the data is flushed when the body is finished
+			out.flush();
+		}
+
+		void finish() throws IOException {
+			if(finished) {
+				return;
+			}
+			finished = true;
+			deflater.finish();
+			while(!deflater.finished()) {
+				deflate(Deflater.NO_FLUSH);
+			}
+			out.flush();
+			files.incrementAndGet();
+			bytesIn.addAndGet(deflater.getBytesRead());
+			bytesOut.addAndGet(written);
+		}
+
+		void end() {
+			deflater.end();
+			deflateNanos.addAndGet(nanos);
+		}
+
+		private void deflate(int flush) throws IOException {
+			long start = System.nanoTime();
+			int n = deflater.deflate(buf, 0, buf.length, flush);
+			nanos += System.nanoTime() - start;
+			if(n > 0) {
+				out.write(buf, 0, n);
+				written += n;
+			}
+		}
+
+		public void close() throws IOException {
+			// The producer may close the stream, the body is finished but the connection stays open
+			finish();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.fsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.entity.ContentProducer;
+import org.json.JSONObject;
+
+import com.fsync.DeltaSync.DeltaStats;
+import com.fsync.DeltaSync.Signatures;
+import com.fsync.DirectoryChangeEvent.DirectoryChangeEventType;
+import com.fsync.Http.HttpStatusException;
+import com.fsync.Http.StreamingResponse;
+import com.fsync.ReplicationJournal.Entry;
+
+/**
+ * This class sends modified files as a delta against the copy of the peer:
+ * the peer returns the signatures of the blocks of its copy, and the delta
+ * is computed while it is sent.
+ * @author shreyas shinde
+ *
+ */
+public class DeltaSender implements FileSender {
+	private final PeerConnection connection;
+
+	/** Modified files at least this large are sent as a delta, -1 to always send them in full */
+	private volatile long minSize = PeerSender.DEFAULT_DELTA_MIN_SIZE;
+	private final AtomicLong files        = new AtomicLong();
+	private final AtomicLong fallbacks    = new AtomicLong();
+	private final AtomicLong matchedBytes = new AtomicLong();
+	private final AtomicLong literalBytes = new AtomicLong();
+
+	/**
+	 * @param connection the connection to the peer
+	 */
+	public DeltaSender(PeerConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Sets the size from which modified files are sent as a delta.
+	 * @param minSize the size in bytes, -1 to always send files in full
+	 */
+	public void setMinSize(long minSize) {
+		this.minSize = minSize;
+	}
+
+	/**
+	 * Sends a modified file as a delta.
+	 * @return the checksum of the file sent or null if it has to be sent in full instead
+	 * @throws IOException if the peer could not be reached
+	 */
+	public String send(Upload upload) throws IOException {
+		Entry e = upload.entry;
+		final File f = upload.file;
+		if(minSize < 0 || f.length() < minSize
+				|| DirectoryChangeEvent.fromJSON(e.getEvent()).getType() != DirectoryChangeEventType.MODIFIED) {
+			return null;
+		}
+
+		// The signatures of the blocks of the copy of the peer
+		final Signatures signatures;
+		try {
+			StreamingResponse response = Http.openGet(connection.url("/signatures"),
+					Collections.singletonMap(Peer2PeerCommunicator.PATH_PARAM, e.getPath()));
+			try {
+				signatures = DeltaSync.readSignatures(new DataInputStream(new BufferedInputStream(response.getContent())));
+			} finally {
+				response.close();
+			}
+		} catch(HttpStatusException ex) {
+			if(ex.getStatus() == HttpServletResponse.SC_NOT_FOUND) {
+				// The peer does not have the file
+				fallbacks.incrementAndGet();
+				return null;
+			}
+			throw ex;
+		}
+
+		// The delta is computed while it is sent
+		final DeltaStats[] stats = new DeltaStats[1];
+		ContentProducer body = new ContentProducer() {
+			public void writeTo(OutputStream out) throws IOException {
+				stats[0] = DeltaSync.writeDelta(f.toPath(), signatures,
+						new DataOutputStream(new BufferedOutputStream(out, 64 * 1024)));
+			}
+		};
+		try {
+			connection.post("/delta", Collections.singletonMap(Peer2PeerCommunicator.EVENT_PARAM, e.getEvent()),
+					upload.priority, body, upload.compress).close();
+		} catch(HttpStatusException ex) {
+			if(ex.getStatus() == HttpServletResponse.SC_NOT_FOUND || ex.getStatus() == HttpServletResponse.SC_CONFLICT) {
+				// The copy of the peer went away or changed since it sent its signatures
+				fallbacks.incrementAndGet();
+				return null;
+			}
+			throw ex;
+		}
+		files.incrementAndGet();
+		matchedBytes.addAndGet(stats[0].getMatchedBytes());
+		literalBytes.addAndGet(stats[0].getLiteralBytes());
+		return stats[0].getChecksum();
+	}
+
+	public void addStats(JSONObject stats) {
+		stats.put("deltaFiles", files.get());
+		stats.put("deltaFallbacks", fallbacks.get());
+		stats.put("deltaMatchedBytes", matchedBytes.get());
+		stats.put("deltaLiteralBytes", literalBytes.get());
+	}
+}
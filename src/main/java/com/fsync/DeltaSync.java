@@ -0,0 +1,473 @@
+package com.fsync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * This class implements rsync style delta transfers. The receiver splits its
+ * copy of a file into blocks and sends the signature of each block: a weak
+ * rolling checksum and a strong hash. The sender slides a window over its
+ * copy of the file and, wherever the window matches a block of the receiver,
+ * sends a reference to the block instead of the data. Everything else is sent
+ * as literal data. The receiver rebuilds the file from its own blocks and the
+ * literal data, and verifies the result against the checksum of the sender.
+ * @author shreyas shinde
+ *
+ */
+public class DeltaSync {
+	/** Identifies signatures and deltas */
+	private static final int SIGNATURES_MAGIC = 0x46535347; //FSSG
+	private static final int DELTA_MAGIC      = 0x4653444c; //FSDL
+
+	/** Delta operations */
+	private static final byte OP_END          = 0;
+	private static final byte OP_COPY         = 1;
+	private static final byte OP_LITERAL      = 2;
+
+	/** Block size limits, the block size grows with the square root of the file size */
+	public static final int MIN_BLOCK_SIZE    = 2 * 1024;
+	public static final int MAX_BLOCK_SIZE    = 64 * 1024;
+
+	/** Literal data is sent in pieces of at most this size */
+	private static final int MAX_LITERAL      = 64 * 1024;
+
+	/** Size of the reads from the files */
+	private static final int READ_SIZE        = 1024 * 1024;
+
+	private static final HashFunction STRONG_HASH = Hashing.murmur3_128();
+
+	/**
+	 * Returns the block size used for a file of the given size.
+	 */
+	public static int blockSizeFor(long fileSize) {
+		long size = (long)Math.sqrt(fileSize) & ~1023L;
+		return (int)Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+
+	/**
+	 * Writes the signatures of the blocks of a file.
+	 * @param file the file
+	 * @param out the stream to write the signatures to
+	 * @throws IOException if the file could not be read or the signatures not written
+	 */
+	public static void writeSignatures(Path file, DataOutputStream out) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			int blockSize = blockSizeFor(size);
+			int count = (int)((size + blockSize - 1) / blockSize);
+			out.writeInt(SIGNATURES_MAGIC);
+			out.writeInt(blockSize);
+			out.writeLong(size);
+			out.writeInt(count);
+
+			byte[] block = new byte[blockSize];
+			long position = 0;
+			for(int i = 0; i < count; i++) {
+				int length = (int)Math.min(blockSize, size - position);
+				readFully(channel, block, length, position);
+				out.writeInt(weakChecksum(block, 0, length));
+				out.writeLong(strongHash(block, 0, length));
+				position += length;
+			}
+			out.flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads the signatures written by {@link #writeSignatures(Path, DataOutputStream)}.
+	 * @param in the stream to read the signatures from
+	 * @return the signatures
+	 * @throws IOException if the signatures could not be read
+	 */
+	public static Signatures readSignatures(DataInputStream in) throws IOException {
+		if(in.readInt() != SIGNATURES_MAGIC) {
+			throw new IOException("Not block signatures.");
+		}
+		int blockSize = in.readInt();
+		long size = in.readLong();
+		int count = in.readInt();
+		if(blockSize < 1 || blockSize > MAX_BLOCK_SIZE || count < 0 || (long)count * blockSize < size) {
+			throw new IOException("Invalid block signatures.");
+		}
+		int[] weak = new int[count];
+		long[] strong = new long[count];
+		for(int i = 0; i < count; i++) {
+			weak[i] = in.readInt();
+			strong[i] = in.readLong();
+		}
+		return new Signatures(blockSize, size, weak, strong);
+	}
+
+	/**
+	 * Writes the delta between a file and the copy of the receiver.
+	 * @param file the file of the sender
+	 * @param signatures the signatures of the copy of the receiver
+	 * @param out the stream to write the delta to
+	 * @return the statistics of the delta
+	 * @throws IOException if the file could not be read or the delta not written
+	 */
+	public static DeltaStats writeDelta(Path file, Signatures signatures, DataOutputStream out) throws IOException {
+		int bs = signatures.blockSize;
+		DeltaWriter writer = new DeltaWriter(out, bs);
+		MessageDigest md = ChecksumUtil.getMessageDigest();
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			out.writeInt(DELTA_MAGIC);
+			out.writeInt(bs);
+
+			// The window is buf[pos, pos + bs), the literal data not sent yet is buf[start, pos)
+			byte[] buf = new byte[MAX_LITERAL + bs + READ_SIZE];
+			ByteBuffer bb = ByteBuffer.wrap(buf);
+			int start = 0, pos = 0, end = 0;
+			long total = 0;
+			boolean eof = false;
+			boolean rolling = false;
+			int a = 0, b = 0;
+			while(true) {
+				if(end - pos < bs && !eof) {
+					// Make room and read more of the file
+					if(start > 0) {
+						System.arraycopy(buf, start, buf, 0, end - start);
+						pos -= start;
+						end -= start;
+						start = 0;
+					}
+					bb.limit(buf.length).position(end);
+					int n = channel.read(bb);
+					if(n < 0) {
+						eof = true;
+					} else {
+						md.update(buf, end, n);
+						end += n;
+						total += n;
+					}
+					continue;
+				}
+				int len = Math.min(bs, end - pos);
+				if(len == 0) {
+					break;
+				}
+				if(!rolling) {
+					a = 0;
+					b = 0;
+					for(int i = 0; i < len; i++) {
+						int x = buf[pos + i] & 0xff;
+						a += x;
+						b += (len - i) * x;
+					}
+					rolling = true;
+				}
+				int match = signatures.find((a & 0xffff) | (b << 16), buf, pos, len);
+				if(match >= 0) {
+					writer.literal(buf, start, pos - start);
+					writer.copy(match, len);
+					pos += len;
+					start = pos;
+					rolling = false;
+					continue;
+				}
+				// Slide the window by one byte
+				if(len == bs && pos + bs < end) {
+					int out0 = buf[pos] & 0xff;
+					int in0 = buf[pos + bs] & 0xff;
+					a += in0 - out0;
+					b += a - bs * out0;
+				} else if(eof) {
+					// The window shrinks at the end of the file
+					int out0 = buf[pos] & 0xff;
+					a -= out0;
+					b -= len * out0;
+				} else {
+					rolling = false;
+				}
+				pos++;
+				if(pos - start >= MAX_LITERAL) {
+					writer.literal(buf, start, pos - start);
+					start = pos;
+				}
+			}
+			writer.literal(buf, start, end - start);
+			writer.flush();
+			out.writeByte(OP_END);
+			out.writeLong(total);
+			byte[] digest = md.digest();
+			out.writeShort(digest.length);
+			out.write(digest);
+			out.flush();
+			writer.stats.digest = digest;
+			return writer.stats;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Rebuilds a file from a delta.
+	 * @param in the stream to read the delta from
+	 * @param basis the copy of the file the signatures were computed from
+	 * @param target the file to write
+	 * @return the checksum of the rebuilt file
+	 * @throws DeltaMismatchException if the rebuilt file does not match the file of the sender
+	 * @throws IOException if the delta could not be applied
+	 */
+	public static String applyDelta(DataInputStream in, Path basis, Path target) throws IOException {
+		if(in.readInt() != DELTA_MAGIC) {
+			throw new IOException("Not a delta.");
+		}
+		int bs = in.readInt();
+		if(bs < 1 || bs > MAX_BLOCK_SIZE) {
+			throw new IOException("Invalid delta block size: " + bs);
+		}
+		MessageDigest md = ChecksumUtil.getMessageDigest();
+		byte[] buf = new byte[Math.max(bs, MAX_LITERAL)];
+		FileChannel basisChannel = FileChannel.open(basis, StandardOpenOption.READ);
+		FileOutputStream fos = new FileOutputStream(target.toFile());
+		try {
+			long basisSize = basisChannel.size();
+			long blocks = (basisSize + bs - 1) / bs;
+			BufferedOutputStream out = new BufferedOutputStream(fos, READ_SIZE);
+			long written = 0;
+			byte op;
+			while((op = in.readByte()) != OP_END) {
+				if(op == OP_COPY) {
+					int index = in.readInt();
+					int count = in.readInt();
+					if(index < 0 || count < 0 || (long)index + count > blocks) {
+						throw new DeltaMismatchException("The delta refers to a block past the end of the file.");
+					}
+					for(int i = 0; i < count; i++) {
+						long position = ((long)index + i) * bs;
+						int len = (int)Math.min(bs, basisSize - position);
+						readFully(basisChannel, buf, len, position);
+						md.update(buf, 0, len);
+						out.write(buf, 0, len);
+						written += len;
+					}
+				} else if(op == OP_LITERAL) {
+					int len = in.readInt();
+					if(len < 0 || len > buf.length) {
+						throw new IOException("Invalid literal length: " + len);
+					}
+					in.readFully(buf, 0, len);
+					md.update(buf, 0, len);
+					out.write(buf, 0, len);
+					written += len;
+				} else {
+					throw new IOException("Invalid delta operation: " + op);
+				}
+			}
+			long expectedSize = in.readLong();
+			byte[] expected = new byte[in.readUnsignedShort()];
+			in.readFully(expected);
+			byte[] digest = md.digest();
+			if(written != expectedSize || !Arrays.equals(digest, expected)) {
+				throw new DeltaMismatchException("The rebuilt file does not match, the file changed while the delta was computed.");
+			}
+			out.flush();
+			fos.getChannel().force(false);
+			return ChecksumUtil.encode(digest);
+		} finally {
+			fos.close();
+			basisChannel.close();
+		}
+	}
+
+	/**
+	 * Returns the weak rolling checksum of the data.
+	 */
+	static int weakChecksum(byte[] data, int off, int len) {
+		int a = 0, b = 0;
+		for(int i = 0; i < len; i++) {
+			int x = data[off + i] & 0xff;
+			a += x;
+			b += (len - i) * x;
+		}
+		return (a & 0xffff) | (b << 16);
+	}
+
+	static long strongHash(byte[] data, int off, int len) {
+		return STRONG_HASH.hashBytes(data, off, len).asLong();
+	}
+
+	private static void readFully(FileChannel channel, byte[] buf, int len, long position) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+		while(bb.hasRemaining()) {
+			if(channel.read(bb, position + bb.position()) < 0) {
+				throw new DeltaMismatchException("The file is shorter than expected.");
+			}
+		}
+	}
+
+	/**
+	 * The block signatures of the copy of the receiver.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class Signatures {
+		final int blockSize;
+		final long size;
+		final int[] weak;
+		final long[] strong;
+
+		/** The weak checksum of each block in the high bits and the block in the low bits, sorted */
+		private final long[] index;
+
+		Signatures(int blockSize, long size, int[] weak, long[] strong) {
+			this.blockSize = blockSize;
+			this.size = size;
+			this.weak = weak;
+			this.strong = strong;
+			this.index = new long[weak.length];
+			for(int i = 0; i < weak.length; i++) {
+				index[i] = ((weak[i] & 0xffffffffL) << 32) | i;
+			}
+			Arrays.sort(index);
+		}
+
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		/**
+		 * Returns the size of the copy of the receiver.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Finds a block with the same data.
+		 * @return the block or -1 if there is none
+		 */
+		int find(int weakChecksum, byte[] data, int off, int len) {
+			long key = (weakChecksum & 0xffffffffL) << 32;
+			int i = Arrays.binarySearch(index, key);
+			if(i < 0) {
+				i = -i - 1;
+			}
+			long strongHash = 0;
+			boolean hashed = false;
+			for(; i < index.length && (index[i] & 0xffffffff00000000L) == key; i++) {
+				int block = (int)index[i];
+				if(len != Math.min(blockSize, size - (long)block * blockSize)) {
+					continue;
+				}
+				if(!hashed) {
+					strongHash = strongHash(data, off, len);
+					hashed = true;
+				}
+				if(strong[block] == strongHash) {
+					return block;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * The statistics of a delta.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class DeltaStats {
+		long matchedBytes = 0;
+		long literalBytes = 0;
+		byte[] digest;
+
+		/**
+		 * Returns the number of bytes the receiver copies from its own copy.
+		 */
+		public long getMatchedBytes() {
+			return matchedBytes;
+		}
+
+		/**
+		 * Returns the number of bytes sent as literal data.
+		 */
+		public long getLiteralBytes() {
+			return literalBytes;
+		}
+
+		/**
+		 * Returns the checksum of the file the delta was computed from.
+		 */
+		public String getChecksum() {
+			return ChecksumUtil.encode(digest);
+		}
+	}
+
+	/**
+	 * Thrown when the rebuilt file does not match the file of the sender.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class DeltaMismatchException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public DeltaMismatchException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Writes the operations of a delta, merging references to consecutive blocks.
+	 */
+	private static class DeltaWriter {
+		private final DataOutputStream out;
+		private final int blockSize;
+		private final DeltaStats stats = new DeltaStats();
+		private int runStart = -1;
+		private int runCount = 0;
+
+		DeltaWriter(DataOutputStream out, int blockSize) {
+			this.out = out;
+			this.blockSize = blockSize;
+		}
+
+		void copy(int block, int len) throws IOException {
+			stats.matchedBytes += len;
+			if(runCount > 0 && runStart + runCount == block && len == blockSize) {
+				runCount++;
+				return;
+			}
+			flush();
+			runStart = block;
+			runCount = 1;
+		}
+
+		void literal(byte[] data, int off, int len) throws IOException {
+			if(len == 0) {
+				return;
+			}
+			flush();
+			stats.literalBytes += len;
+			out.writeByte(OP_LITERAL);
+			out.writeInt(len);
+			out.write(data, off, len);
+		}
+
+		void flush() throws IOException {
+			if(runCount > 0) {
+				out.writeByte(OP_COPY);
+				out.writeInt(runStart);
+				out.writeInt(runCount);
+				runCount = 0;
+			}
+		}
+	}
+}
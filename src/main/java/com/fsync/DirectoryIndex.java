@@ -0,0 +1,158 @@
+package com.fsync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class indexes the files of the checksum store by directory, so that
+ * the files of a directory, or of a whole sub-tree, are found without
+ * visiting the rest of the store. Deleted files are indexed for as long as
+ * the store keeps their records. A directory is indexed as long as it has
+ * files or sub-directories with files.
+ * @author shreyas shinde
+ *
+ */
+public class DirectoryIndex implements ChecksumStore.Listener {
+	/** The directories by path with '/' as separator, empty for the sync directory, guarded by this */
+	private final Map<String, Dir> dirs = new HashMap<String, Dir>();
+
+	/**
+	 * Adds a file to the index of its directory, or removes it.
+	 * @param path the relative path of the file in the checksum store
+	 * @param previous the previous checksum or null if there was no entry
+	 * @param checksum the new checksum or null if the entry was removed
+	 */
+	public void changed(String path, String previous, String checksum) {
+		if((previous == null) == (checksum == null)) {
+			// A new checksum of a file already indexed
+			return;
+		}
+		List<String> names = MerkleTree.split(path);
+		if(names.isEmpty()) {
+			return;
+		}
+		int depth = names.size() - 1;
+		String name = names.get(depth);
+		synchronized(this) {
+			if(checksum != null) {
+				Dir dir = getOrCreate(names, depth);
+				if(dir.prefix == null) {
+					dir.prefix = path.substring(0, path.length() - name.length());
+				}
+				dir.files.add(name);
+			} else {
+				Dir dir = dirs.get(join(names, depth));
+				if(dir != null) {
+					dir.files.remove(name);
+					prune(names, depth);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the paths in the checksum store of the files of a directory.
+	 * @param dir the path of the directory relative to the sync directory with
+	 *        '/' as separator, empty for the sync directory
+	 * @param recursive true to include the files of the sub-directories
+	 * @return the paths of the files, empty if the directory has none
+	 */
+	public synchronized List<String> getFiles(String dir, boolean recursive) {
+		List<String> files = new ArrayList<String>();
+		collect(normalize(dir), recursive, files);
+		return files;
+	}
+
+	/**
+	 * Returns the number of directories indexed.
+	 */
+	public synchronized int size() {
+		return dirs.size();
+	}
+
+	/**
+	 * Normalizes the path of a directory to the form of the keys of the index.
+	 */
+	static String normalize(String dir) {
+		List<String> names = MerkleTree.split(dir);
+		return join(names, names.size());
+	}
+
+	private void collect(String path, boolean recursive, List<String> files) {
+		Dir dir = dirs.get(path);
+		if(dir == null) {
+			return;
+		}
+		for(String name : dir.files) {
+			files.add(dir.prefix + name);
+		}
+		if(recursive) {
+			for(String child : dir.dirs) {
+				collect(path.isEmpty() ? child : path + "/" + child, true, files);
+			}
+		}
+	}
+
+	/**
+	 * Returns the directory of the first names of a path, creating it and the
+	 * directories above it if needed.
+	 */
+	private Dir getOrCreate(List<String> names, int depth) {
+		String path = join(names, depth);
+		Dir dir = dirs.get(path);
+		if(dir == null) {
+			dir = new Dir();
+			dirs.put(path, dir);
+			if(depth > 0) {
+				getOrCreate(names, depth - 1).dirs.add(names.get(depth - 1));
+			}
+		}
+		return dir;
+	}
+
+	/**
+	 * Removes the directory of the first names of a path, and the directories
+	 * above it, once they are empty.
+	 */
+	private void prune(List<String> names, int depth) {
+		for(; depth > 0; depth--) {
+			String path = join(names, depth);
+			Dir dir = dirs.get(path);
+			if(dir == null || !dir.files.isEmpty() || !dir.dirs.isEmpty()) {
+				return;
+			}
+			dirs.remove(path);
+			Dir parent = dirs.get(join(names, depth - 1));
+			if(parent != null) {
+				parent.dirs.remove(names.get(depth - 1));
+			}
+		}
+	}
+
+	private static String join(List<String> names, int count) {
+		StringBuilder path = new StringBuilder();
+		for(int i = 0; i < count; i++) {
+			if(i > 0) {
+				path.append('/');
+			}
+			path.append(names.get(i));
+		}
+		return path.toString();
+	}
+
+	/**
+	 * A directory of the index.
+	 */
+	private static class Dir {
+		/** The path in the checksum store of the directory, up to the name of its files */
+		String prefix = null;
+
+		/** The names of the files and of the sub-directories with files */
+		final Set<String> files = new HashSet<String>();
+		final Set<String> dirs = new HashSet<String>();
+	}
+}
@@ -3,22 +3,38 @@ package com.fsync;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.fsync.ChecksumIndex.Record;
 import com.fsync.DirectoryChangeEvent.DirectoryChangeEventType;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * This class observes one or more file system directories and notifies
@@ -28,6 +44,13 @@ import com.fsync.DirectoryChangeEvent.DirectoryChangeEventType;
  */
 public class DirectoryObserver {
 
+	/** Time to gather directories that lost events before they are reconciled */
+	private static final long RECONCILE_GATHER_MILLIS = 200;
+
+	/** Default number of threads and queue size used to notify the listeners */
+	public static final int DEFAULT_DISPATCH_WORKERS  = 4;
+	public static final int DEFAULT_DISPATCH_CAPACITY = 10000;
+
 	/** Contains list of listeners registered with the observer */
 	private Map<String, DirectoryChangeListener> listeners = new HashMap<String, DirectoryChangeListener>();
 	
@@ -44,7 +67,39 @@ public class DirectoryObserver {
 	private Logger logger = Logger.getLogger(DirectoryObserver.class.getName());
 	
 	/** To keep track of all the paths and keys that are being observed */
-	private Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	private Map<WatchKey, WatchedDirectory> keys = new ConcurrentHashMap<WatchKey, WatchedDirectory>();
+	
+	/** The keys of the observed paths, to find the key of a directory that is gone */
+	private Map<Path, WatchKey> watchedPaths = new ConcurrentHashMap<Path, WatchKey>();
+	
+	/** Observed directories that are gone, until their parent notifies that they were deleted */
+	private Set<Path> goneDirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+	
+	/** Registers sub-directories so that walking a large tree never holds up the observer thread */
+	private ExecutorService registrar = null;
+	
+	/** Merges bursts of events on the same file before the listeners are notified */
+	private EventCoalescer coalescer = null;
+	
+	/** Directories waiting to be reconciled after events were lost */
+	private Set<Path> overflowed = new HashSet<Path>();
+	
+	/** Reconciles directories after events were lost, without holding up the observer thread */
+	private Thread reconciler = null;
+	
+	/** The checksum manager consulted to reconcile directories, may be null */
+	private ChecksumManager checksumManager = null;
+	
+	/** Notifies the listeners, in order for each file */
+	private OrderedExecutor dispatcher = null;
+	
+	/** Number of threads and maximum number of queued events of the dispatcher */
+	private int dispatchWorkers = DEFAULT_DISPATCH_WORKERS;
+	private int dispatchCapacity = DEFAULT_DISPATCH_CAPACITY;
+	
+	/** Quiet period and maximum delay of the event coalescing */
+	private long quietMillis = EventCoalescer.DEFAULT_QUIET_MILLIS;
+	private long maxDelayMillis = EventCoalescer.DEFAULT_MAX_DELAY_MILLIS;
 	
 	/**
 	 * Starts a new instance of the observer. For the observer to watch
@@ -55,6 +110,27 @@ public class DirectoryObserver {
 	public void start() throws IOException {
 		// Initialize a watcher
 		watcher = FileSystems.getDefault().newWatchService();
+		registrar = Executors.newSingleThreadExecutor(
+				new ThreadFactoryBuilder().setNameFormat("fsync-watch-registrar").setDaemon(true).build());
+		dispatcher = new OrderedExecutor("fsync-dispatch", dispatchWorkers, dispatchCapacity);
+		coalescer = new EventCoalescer(quietMillis, maxDelayMillis, dispatchCapacity, new DirectoryChangeListener() {
+			public void listen(DirectoryChangeEvent dirChangeEvent) {
+				notifyListeners(dirChangeEvent);
+			}
+			
+			public String getName() {
+				return DirectoryObserver.class.getName();
+			}
+		});
+		coalescer.setChecksumManager(checksumManager);
+		coalescer.start();
+		reconciler = new Thread(new Runnable() {
+			public void run() {
+				reconcileLoop();
+			}
+		}, "fsync-watch-reconciler");
+		reconciler.setDaemon(true);
+		reconciler.start();
 		
 		// Start the observer thread
 		new ObserverThread().start();
@@ -77,12 +153,78 @@ public class DirectoryObserver {
 	 */
 	public void stop() throws IOException {
 		stopObserverThread = true;
+		if(registrar != null) {
+			registrar.shutdownNow();
+		}
+		if(reconciler != null) {
+			reconciler.interrupt();
+		}
 		if(watcher != null) {
 			watcher.close();
 		}
+		if(coalescer != null) {
+			coalescer.stop();
+		}
+		if(dispatcher != null) {
+			try {
+				dispatcher.shutdown(30, TimeUnit.SECONDS);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		keys.clear();
+		watchedPaths.clear();
 		logger.info("Directory observer stopped.");
 	}
 
+	/**
+	 * Sets how events on the same file are merged. An event is passed on to the
+	 * listeners once no other event was seen on its file for the quiet period, but
+	 * never later than the maximum delay. Takes effect when the observer is started.
+	 * @param quietMillis the quiet period in milliseconds, 0 to pass every event on
+	 * @param maxDelayMillis the maximum delay in milliseconds
+	 */
+	public void setEventCoalescing(long quietMillis, long maxDelayMillis) {
+		this.quietMillis = quietMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+	
+	/**
+	 * Sets the checksum manager that knows the files that were last seen in the
+	 * observed directories. When the watcher loses events, the stat data of the files
+	 * is compared with the checksum manager to find out which files changed. Without
+	 * a checksum manager every file in the directory is notified as modified. The
+	 * files of a deleted directory are notified as deleted from the checksum manager
+	 * as well.
+	 * @param checksumManager the checksum manager
+	 */
+	public void setChecksumManager(ChecksumManager checksumManager) {
+		this.checksumManager = checksumManager;
+		if(coalescer != null) {
+			coalescer.setChecksumManager(checksumManager);
+		}
+	}
+	
+	/**
+	 * Sets the number of threads that notify the listeners and the maximum number
+	 * of events waiting to be notified. Once that many events are waiting, the
+	 * observer waits for room before it passes on any other event. Takes effect
+	 * when the observer is started.
+	 * @param workers the number of threads
+	 * @param capacity the maximum number of events waiting or being notified
+	 */
+	public void setDispatch(int workers, int capacity) {
+		this.dispatchWorkers = workers;
+		this.dispatchCapacity = capacity;
+	}
+	
+	/**
+	 * Returns the number of events that were merged away by the event coalescing.
+	 */
+	public long getEventsSaved() {
+		return coalescer == null ? 0 : coalescer.getEventsSaved();
+	}
+
 	/**
 	 * Register a listener with the observer.
 	 * 
@@ -116,7 +258,9 @@ public class DirectoryObserver {
 	}
 	
 	/**
-	 * Register a new directory that needs to be observed for any changes.
+	 * Register a new directory that needs to be observed for any changes. The
+	 * directory itself is registered right away while its sub-directories are
+	 * registered in the background.
 	 * @param dir the full path to the directory that needs to be observed
 	 * @param store a boolean to indicate that the method needs to store the directory
 	 */
@@ -131,24 +275,105 @@ public class DirectoryObserver {
 		if(store) {
 			directories.add(dir);
 		}
-		registerPath(p);
+		if(watcher != null) {
+			registerPath(p, p);
+			registerTreeLater(p, p, false);
+		}
 	}
  	
 	/**
 	 * Registers a path with the watcher service. The create, delete and modify
 	 * events on the registered directory are observed.
-	 * @param path
+	 * @param path the directory to register
+	 * @param root the registered directory that contains the path
+	 * @return true if the path was not registered before
 	 * @throws IOException
 	 */
-	private void registerPath(Path path) throws IOException {
-		if(watcher != null) {
-			// Register the directory path
-			WatchKey key = path.register(watcher,
-					StandardWatchEventKinds.ENTRY_CREATE,
-					StandardWatchEventKinds.ENTRY_DELETE,
-					StandardWatchEventKinds.ENTRY_MODIFY);
-			keys.put(key, path);
-			logger.info("Path registered: " + path);
+	private boolean registerPath(Path path, Path root) throws IOException {
+		if(watcher == null || watchedPaths.containsKey(path)) {
+			return false;
+		}
+		// Register the directory path
+		WatchKey key = path.register(watcher,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		keys.put(key, new WatchedDirectory(path, root));
+		watchedPaths.put(path, key);
+		logger.fine("Path registered: " + path);
+		return true;
+	}
+	
+	/**
+	 * Walks a directory tree in the background and registers every directory in it.
+	 * @param dir the top of the tree
+	 * @param root the registered directory that contains the tree
+	 * @param notifyFiles if true, a created event is sent for every file found in a
+	 *        directory that was not registered yet since the files may have been created
+	 *        before the directory was observed
+	 */
+	private void registerTreeLater(final Path dir, final Path root, final boolean notifyFiles) {
+		registrar.execute(new Runnable() {
+			public void run() {
+				try {
+					final int[] count = new int[1];
+					Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+						@Override
+						public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+							if(stopObserverThread) {
+								return FileVisitResult.TERMINATE;
+							}
+							if(!registerPath(d, root) && !d.equals(dir)) {
+								// Already observed along with everything below it
+								return FileVisitResult.SKIP_SUBTREE;
+							}
+							count[0]++;
+							return FileVisitResult.CONTINUE;
+						}
+
+						@Override
+						public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+							if(notifyFiles && attrs.isRegularFile()) {
+								coalescer.submit(createEvent(file, root, DirectoryChangeEventType.CREATED));
+							}
+							return FileVisitResult.CONTINUE;
+						}
+
+						@Override
+						public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+							// Removed while we were walking
+							return FileVisitResult.CONTINUE;
+						}
+					});
+					logger.info("Registered " + count[0] + " directories under: " + dir);
+				} catch(ClosedWatchServiceException e) {
+					// Observer stopped
+				} catch(IOException e) {
+					logger.log(Level.WARNING, "Failed to register directory tree: " + dir, e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Stops observing a directory and every directory below it.
+	 * @param dir the directory that is no longer observed
+	 */
+	private void unregisterTree(Path dir) {
+		for(Path path : goneDirs) {
+			if(path.startsWith(dir)) {
+				goneDirs.remove(path);
+			}
+		}
+		for(Path path : watchedPaths.keySet()) {
+			if(path.startsWith(dir)) {
+				WatchKey key = watchedPaths.remove(path);
+				if(key != null) {
+					key.cancel();
+					keys.remove(key);
+					logger.fine("Path unregistered: " + path);
+				}
+			}
 		}
 	}
 	
@@ -158,9 +383,217 @@ public class DirectoryObserver {
 	 * @return a boolean to indicate if the directory was removed
 	 */
 	public boolean unregisterDirectory(String path) {
+		unregisterTree(Paths.get(path));
 		return directories.remove(path);
 	}
 	
+	/**
+	 * Creates a change event for a path. The relative path of the event is relative to
+	 * the registered directory that contains the path.
+	 */
+	private DirectoryChangeEvent createEvent(Path path, Path root, DirectoryChangeEventType type) {
+		DirectoryChangeEvent dce = new DirectoryChangeEvent();
+		dce.setAbsoluteFilePath(path.toString()); //absolute
+		dce.setRelativeFilePath(root.relativize(path).toString()); //relative
+		dce.setTime(System.currentTimeMillis());
+		dce.setType(type);
+		return dce;
+	}
+	
+	/**
+	 * Notifies all the listeners of a change on a dispatcher thread. The changes on
+	 * a file are notified in order while changes on different files are notified
+	 * in parallel. Waits if the dispatcher is full.
+	 * @param dce the change
+	 */
+	private void notifyListeners(final DirectoryChangeEvent dce) {
+		logger.info("File change event created: " + dce);
+		
+		// Run the notifications on the dispatcher
+		try {
+			dispatcher.execute(dce.getAbsoluteFilePath(), new Runnable() {
+				public void run() {
+					// Notify all the listeners of the change
+					for(DirectoryChangeListener listener : listeners.values()) {
+						try {
+							listener.listen(dce);
+						} catch(Exception e) {
+							logger.log(Level.WARNING, "Failed to notify listener of change. " + e.getLocalizedMessage(), e);
+						}
+					}
+				}
+			});
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warning("Interrupted, change event not notified: " + dce);
+		} catch(RejectedExecutionException e) {
+			logger.warning("Observer stopped, change event not notified: " + dce);
+		}
+	}
+	
+	/**
+	 * Queues a directory to be reconciled after the watcher lost events for it.
+	 * @param dir the directory
+	 */
+	void reconcileLater(Path dir) {
+		synchronized(overflowed) {
+			if(overflowed.add(dir)) {
+				overflowed.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Waits for directories to reconcile. The directories queued within a short
+	 * time are reconciled together since the watcher usually reports lost events
+	 * on all the observed directories at once.
+	 */
+	private void reconcileLoop() {
+		while(!stopObserverThread) {
+			Set<Path> batch;
+			try {
+				synchronized(overflowed) {
+					while(overflowed.isEmpty()) {
+						overflowed.wait();
+					}
+				}
+				Thread.sleep(RECONCILE_GATHER_MILLIS);
+				synchronized(overflowed) {
+					batch = new HashSet<Path>(overflowed);
+					overflowed.clear();
+				}
+			} catch(InterruptedException e) {
+				break;
+			}
+			try {
+				reconcile(batch);
+			} catch(Exception e) {
+				logger.log(Level.WARNING, "Failed to reconcile directories after lost events. " + e.getLocalizedMessage(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Compares the files in the directories with what the checksum manager knows
+	 * about them and notifies a change for each file that was created, modified or
+	 * deleted. Sub-directories that are not observed yet are registered.
+	 * @param dirs the directories to reconcile
+	 */
+	private void reconcile(final Set<Path> dirs) {
+		logger.warning("Watcher lost events, reconciling " + dirs.size() + " directories.");
+		int changes = 0;
+		
+		// Files that are on disk
+		for(Path dir : dirs) {
+			WatchKey key = watchedPaths.get(dir);
+			WatchedDirectory watched = key == null ? null : keys.get(key);
+			if(watched == null) {
+				continue;
+			}
+			try {
+				DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+				try {
+					for(Path entry : stream) {
+						BasicFileAttributes attrs;
+						try {
+							attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						} catch(NoSuchFileException e) {
+							continue;
+						}
+						if(attrs.isDirectory()) {
+							if(!watchedPaths.containsKey(entry)) {
+								registerTreeLater(entry, watched.root, true);
+							}
+							continue;
+						}
+						if(!attrs.isRegularFile()) {
+							continue;
+						}
+						DirectoryChangeEventType type = DirectoryChangeEventType.MODIFIED;
+						if(checksumManager != null) {
+							Record record = checksumManager.getRecord(entry.toString());
+							if(record == null || record.getChecksum().isEmpty()) {
+								type = DirectoryChangeEventType.CREATED;
+							} else if(record.isClean(attrs)) {
+								continue;
+							}
+						}
+						coalescer.submit(createEvent(entry, watched.root, type));
+						changes++;
+					}
+				} finally {
+					stream.close();
+				}
+			} catch(IOException e) {
+				logger.log(Level.WARNING, "Failed to reconcile directory: " + dir, e);
+			}
+		}
+		
+		// Files that are known but are no longer on disk, either in one of the
+		// directories or in a sub-directory that is gone
+		if(checksumManager != null) {
+			Set<Path> candidates = new HashSet<Path>();
+			for(Path dir : dirs) {
+				for(Path file : getKnownFiles(dir)) {
+					Path parent = file.getParent();
+					if(dirs.contains(parent) || !watchedPaths.containsKey(parent)) {
+						candidates.add(file);
+					}
+				}
+			}
+			for(Path file : candidates) {
+				if(Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+					continue;
+				}
+				for(Path dir : dirs) {
+					WatchKey key = file.startsWith(dir) ? watchedPaths.get(dir) : null;
+					WatchedDirectory watched = key == null ? null : keys.get(key);
+					if(watched != null) {
+						coalescer.submit(createEvent(file, watched.root, DirectoryChangeEventType.DELETED));
+						changes++;
+						break;
+					}
+				}
+			}
+		}
+		logger.info("Reconciled " + dirs.size() + " directories, " + changes + " changes found.");
+	}
+	
+	/**
+	 * Returns the files under a directory that the checksum manager knows of
+	 * and that were not deleted. Only the records under the directory are
+	 * looked up.
+	 * @param dir the directory
+	 * @return the files, in the directory or in one of its sub-directories
+	 */
+	private List<Path> getKnownFiles(Path dir) {
+		final List<Path> files = new ArrayList<Path>();
+		checksumManager.forEachChecksumUnder(dir.toString(), true, new ChecksumStore.Visitor() {
+			public void visit(String path, Record record) {
+				if(!record.isDeleted()) {
+					files.add(Paths.get(path));
+				}
+			}
+		});
+		return files;
+	}
+	
+	/**
+	 * A directory observed by the watcher along with the registered directory
+	 * it belongs to.
+	 * @author shreyas shinde
+	 *
+	 */
+	private static class WatchedDirectory {
+		final Path dir;
+		final Path root;
+		
+		WatchedDirectory(Path dir, Path root) {
+			this.dir = dir;
+			this.root = root;
+		}
+	}
+	
 	private class ObserverThread extends Thread {
 
 		@Override
@@ -180,60 +613,73 @@ public class DirectoryObserver {
 						continue;
 					}
 					
-					Path dir = keys.get(watchKey);
+					WatchedDirectory watched = keys.get(watchKey);
+					Path dir = watched.dir;
 					
 					// Process all the events on the key
 					for(WatchEvent<?> event : watchKey.pollEvents()) {
 						WatchEvent.Kind<?> kind = event.kind();
 						if(kind == StandardWatchEventKinds.OVERFLOW) {
+							// Events were lost, find out what changed in the directory
+							reconcileLater(dir);
 							continue;
 						}
 						
 						@SuppressWarnings("unchecked")
 						WatchEvent<Path> pathEvent = (WatchEvent<Path>)event; //cast
-						Path path = pathEvent.context();
+						Path path = dir.resolve(pathEvent.context());
 						logger.fine("Event observed:" + path + ", type:" + kind.name() + ".");
 						
-						// Create an event to notify
-						final DirectoryChangeEvent dce = new DirectoryChangeEvent();
-						dce.setAbsoluteFilePath(dir.resolve(path.toString()).toString()); //absolute
-						dce.setRelativeFilePath(path.toString()); //relative
-						dce.setTime(System.currentTimeMillis());
+						DirectoryChangeEventType type;
 						if(kind == StandardWatchEventKinds.ENTRY_CREATE) {
-							dce.setType(DirectoryChangeEventType.CREATED); 
+							type = DirectoryChangeEventType.CREATED;
 						} else if(kind == StandardWatchEventKinds.ENTRY_MODIFY) {
-							dce.setType(DirectoryChangeEventType.MODIFIED);
+							type = DirectoryChangeEventType.MODIFIED;
 						} else if(kind == StandardWatchEventKinds.ENTRY_DELETE) {
-							dce.setType(DirectoryChangeEventType.DELETED);
+							type = DirectoryChangeEventType.DELETED;
 						} else {
 							logger.warning("Unknown event type '" + kind.name() + "'.");
 							continue;
 						}
-						logger.info("File change event created: " + dce);
 						
-						// Run the notifications in another thread
-						Thread t = new Thread(new Runnable() {
-							public void run() {
-								// Notify all the listeners of the change
-								for(DirectoryChangeListener listener : listeners.values()) {
-									try {
-										listener.listen(dce);
-									} catch(Exception e) {
-										logger.log(Level.WARNING, "Failed to notify listener of change. " + e.getLocalizedMessage(), e);
-									}
+						// Directories are observed as well; their own events are not
+						// notified as the files in them are. The files of a deleted
+						// directory are notified as deleted since their own events may
+						// never come.
+						if(type == DirectoryChangeEventType.DELETED) {
+							boolean watchedDir = watchedPaths.containsKey(path) || goneDirs.contains(path);
+							if(watchedDir) {
+								unregisterTree(path);
+							}
+							List<Path> files = checksumManager == null ? Collections.<Path>emptyList() : getKnownFiles(path);
+							if(watchedDir || !files.isEmpty()) {
+								for(Path file : files) {
+									coalescer.submit(createEvent(file, watched.root, DirectoryChangeEventType.DELETED));
 								}
+								continue;
 							}
-						});
-						t.start();
+						} else if(Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+							if(type == DirectoryChangeEventType.CREATED) {
+								registerTreeLater(path, watched.root, true);
+							}
+							continue;
+						}
+						
+						// Create an event to notify
+						coalescer.submit(createEvent(path, watched.root, type));
 					}
 				} catch(ClosedWatchServiceException e) {
 					logger.log(Level.INFO, "Closing the file observer.");
 				} catch(Exception e) {
 					logger.log(Level.WARNING, e.getLocalizedMessage(), e);
 				} finally {
-					// Important!: Reset the watch key
-					if(watchKey != null) {
-						watchKey.reset();
+					// Important!: Reset the watch key. A key that cannot be reset
+					// belongs to a directory that is no longer accessible.
+					if(watchKey != null && !watchKey.reset()) {
+						WatchedDirectory watched = keys.remove(watchKey);
+						if(watched != null && watchedPaths.remove(watched.dir, watchKey)) {
+							goneDirs.add(watched.dir);
+						}
 					}
 				}
 			}//while
@@ -0,0 +1,324 @@
+package com.fsync;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fsync.ChecksumIndex.Record;
+import com.fsync.DirectoryChangeEvent.DirectoryChangeEventType;
+
+/**
+ * This class merges bursts of change events on the same file into a single
+ * event. An event is held until no other event was seen for its file during a
+ * quiet period, or until it has been held for the maximum delay, and is then
+ * passed on to the downstream listener. For example, a create followed by a
+ * number of modifies is passed on as one create, and a create followed by a
+ * delete is not passed on at all unless the checksum manager still has a
+ * record of the file, as it does when a file is renamed over an existing one
+ * and then deleted; the pair is then passed on as a delete. At most a bounded
+ * number of files are held; when the bound is reached the oldest held event
+ * is passed on early, which blocks the caller while the downstream listener
+ * is backed up.
+ * @author shreyas shinde
+ *
+ */
+public class EventCoalescer {
+	/** Default quiet period and maximum delay */
+	public static final long DEFAULT_QUIET_MILLIS     = 500;
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 5000;
+	public static final int  DEFAULT_MAX_PENDING      = 10000;
+
+	/** How often the number of saved events is logged */
+	private static final long STATS_INTERVAL_NANOS    = TimeUnit.MINUTES.toNanos(1);
+
+	private final long quietNanos;
+	private final long maxDelayNanos;
+	private final int maxPending;
+	private final DirectoryChangeListener downstream;
+	private volatile ChecksumManager checksumManager = null;
+
+	/** The held events by absolute file path, oldest first */
+	private final Map<String, Pending> pending = new LinkedHashMap<String, Pending>();
+
+	/** When each held event is next due */
+	private final DelayQueue<Deadline> deadlines = new DelayQueue<Deadline>();
+
+	/** Counters */
+	private final AtomicLong received   = new AtomicLong();
+	private final AtomicLong dispatched = new AtomicLong();
+
+	private Thread flusher = null;
+	private volatile boolean stopped = false;
+
+	private static final Logger logger = Logger.getLogger(EventCoalescer.class.getName());
+
+	/**
+	 * Creates a coalescer.
+	 * @param quietMillis an event is passed on once no other event was seen for its
+	 *        file for this long. 0 passes every event on right away.
+	 * @param maxDelayMillis an event is never held longer than this
+	 * @param downstream the listener that receives the merged events
+	 */
+	public EventCoalescer(long quietMillis, long maxDelayMillis, DirectoryChangeListener downstream) {
+		this(quietMillis, maxDelayMillis, DEFAULT_MAX_PENDING, downstream);
+	}
+
+	/**
+	 * Creates a coalescer.
+	 * @param quietMillis an event is passed on once no other event was seen for its
+	 *        file for this long. 0 passes every event on right away.
+	 * @param maxDelayMillis an event is never held longer than this
+	 * @param maxPending the maximum number of files for which an event is held
+	 * @param downstream the listener that receives the merged events
+	 */
+	public EventCoalescer(long quietMillis, long maxDelayMillis, int maxPending, DirectoryChangeListener downstream) {
+		this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(quietMillis, maxDelayMillis));
+		this.maxPending = Math.max(1, maxPending);
+		this.downstream = downstream;
+	}
+
+	/**
+	 * Sets the checksum manager that tells whether a file that was created and
+	 * then deleted had replaced a file that is known.
+	 * @param checksumManager the checksum manager, or null to let a create
+	 *        followed by a delete always cancel out
+	 */
+	public void setChecksumManager(ChecksumManager checksumManager) {
+		this.checksumManager = checksumManager;
+	}
+
+	/**
+	 * Starts the thread that passes on the events that are due.
+	 */
+	public void start() {
+		stopped = false;
+		flusher = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "fsync-event-coalescer");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Stops the coalescer. The events that are still held are passed on right away.
+	 */
+	public void stop() {
+		stopped = true;
+		if(flusher != null) {
+			flusher.interrupt();
+		}
+		List<DirectoryChangeEvent> remaining;
+		synchronized(pending) {
+			remaining = new ArrayList<DirectoryChangeEvent>();
+			for(Pending p : pending.values()) {
+				remaining.add(p.event);
+			}
+			pending.clear();
+			deadlines.clear();
+		}
+		for(DirectoryChangeEvent dce : remaining) {
+			dispatch(dce);
+		}
+		logStats();
+	}
+
+	/**
+	 * Submits an event. The event is merged with any event held for the same file.
+	 * @param dce the event
+	 */
+	public void submit(DirectoryChangeEvent dce) {
+		received.incrementAndGet();
+		if(quietNanos <= 0 || stopped) {
+			dispatch(dce);
+			return;
+		}
+		long now = System.nanoTime();
+		String key = dce.getAbsoluteFilePath();
+		DirectoryChangeEvent early = null;
+		synchronized(pending) {
+			Pending p = pending.get(key);
+			if(p == null) {
+				if(pending.size() >= maxPending) {
+					// Pass the oldest held event on to make room
+					Iterator<Pending> oldest = pending.values().iterator();
+					early = oldest.next().event;
+					oldest.remove();
+				}
+				p = new Pending(dce, now);
+				pending.put(key, p);
+				deadlines.add(new Deadline(key, p, now + quietNanos));
+			} else {
+				DirectoryChangeEventType merged = merge(p.event.getType(), dce.getType());
+				if(merged == null && isKnown(key)) {
+					// The created file replaced a known file which is now gone
+					merged = DirectoryChangeEventType.DELETED;
+				}
+				if(merged == null) {
+					// The file came and went, nothing to notify
+					pending.remove(key);
+					return;
+				}
+				p.event = dce.setType(merged);
+				p.lastSeen = now;
+			}
+		}
+		if(early != null) {
+			dispatch(early);
+		}
+	}
+
+	/**
+	 * Returns the number of events submitted.
+	 */
+	public long getEventsReceived() {
+		return received.get();
+	}
+
+	/**
+	 * Returns the number of events passed on.
+	 */
+	public long getEventsDispatched() {
+		return dispatched.get();
+	}
+
+	/**
+	 * Returns the number of events that were merged away and never passed on.
+	 */
+	public long getEventsSaved() {
+		synchronized(pending) {
+			return received.get() - dispatched.get() - pending.size();
+		}
+	}
+
+	/**
+	 * Merges an event with the event held for the same file.
+	 * @param held the type of the held event
+	 * @param next the type of the new event
+	 * @return the type of the merged event, or null if the two cancel out
+	 */
+	static DirectoryChangeEventType merge(DirectoryChangeEventType held, DirectoryChangeEventType next) {
+		switch(held) {
+		case CREATED:
+			// The file did not exist before the held event
+			return next == DirectoryChangeEventType.DELETED ? null : DirectoryChangeEventType.CREATED;
+		case MODIFIED:
+			return next == DirectoryChangeEventType.DELETED ? DirectoryChangeEventType.DELETED : DirectoryChangeEventType.MODIFIED;
+		case DELETED:
+		default:
+			// A file that is deleted and then created again has been modified
+			return next == DirectoryChangeEventType.DELETED ? DirectoryChangeEventType.DELETED : DirectoryChangeEventType.MODIFIED;
+		}
+	}
+
+	/**
+	 * Returns true if the checksum manager has a record of a file that is not deleted.
+	 */
+	private boolean isKnown(String filepath) {
+		ChecksumManager manager = checksumManager;
+		if(manager == null) {
+			return false;
+		}
+		Record record = manager.getRecord(filepath);
+		return record != null && !record.isDeleted();
+	}
+
+	private void flushLoop() {
+		long lastStats = System.nanoTime();
+		long lastReceived = 0;
+		while(!stopped) {
+			Deadline deadline;
+			try {
+				deadline = deadlines.poll(1, TimeUnit.SECONDS);
+			} catch(InterruptedException e) {
+				break;
+			}
+			if(deadline != null) {
+				DirectoryChangeEvent due = null;
+				synchronized(pending) {
+					Pending p = pending.get(deadline.key);
+					if(p == deadline.pending) {
+						long at = Math.min(p.lastSeen + quietNanos, p.firstSeen + maxDelayNanos);
+						if(at > System.nanoTime()) {
+							deadlines.add(new Deadline(deadline.key, p, at));
+						} else {
+							pending.remove(deadline.key);
+							due = p.event;
+						}
+					}
+				}
+				if(due != null) {
+					dispatch(due);
+				}
+			}
+			if(System.nanoTime() - lastStats > STATS_INTERVAL_NANOS && received.get() != lastReceived) {
+				lastStats = System.nanoTime();
+				lastReceived = received.get();
+				logStats();
+			}
+		}
+	}
+
+	private void dispatch(DirectoryChangeEvent dce) {
+		dispatched.incrementAndGet();
+		try {
+			downstream.listen(dce);
+		} catch(Exception e) {
+			logger.log(Level.WARNING, "Failed to pass on change event. " + e.getLocalizedMessage(), e);
+		}
+	}
+
+	private void logStats() {
+		logger.info("Event coalescing: " + received.get() + " events received, " + dispatched.get()
+				+ " passed on, " + getEventsSaved() + " saved.");
+	}
+
+	/**
+	 * An event held for a file.
+	 */
+	private static class Pending {
+		DirectoryChangeEvent event;
+		final long firstSeen;
+		long lastSeen;
+
+		Pending(DirectoryChangeEvent event, long now) {
+			this.event = event;
+			this.firstSeen = now;
+			this.lastSeen = now;
+		}
+	}
+
+	/**
+	 * The time at which a held event should be looked at again.
+	 */
+	private static class Deadline implements Delayed {
+		final String key;
+		final Pending pending;
+		final long at;
+
+		Deadline(String key, Pending pending, long at) {
+			this.key = key;
+			this.pending = pending;
+			this.at = at;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(at - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			long diff = at - ((Deadline)o).at;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.fsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.json.JSONObject;
+
+import com.fsync.ReplicationJournal.Entry;
+import com.fsync.TransferScheduler.Priority;
+
+/**
+ * A way of sending a created or modified file to a peer. A {@link PeerSender}
+ * tries its file senders in turn until one of them sends the file. A file
+ * sender gives up on a file it cannot send, or on all files once the peer
+ * refused its requests.
+ * @author shreyas shinde
+ *
+ */
+public interface FileSender {
+	/**
+	 * Sends a file.
+	 * @param upload the file and the update it is sent with
+	 * @return the checksum of the file sent or null if it has to be sent otherwise
+	 * @throws IOException if the peer could not be reached
+	 */
+	String send(Upload upload) throws IOException;
+
+	/**
+	 * Adds the statistics of the sender to the statistics of the peer.
+	 */
+	void addStats(JSONObject stats);
+
+	/**
+	 * A file to send along with the update it is sent with.
+	 */
+	public static class Upload {
+		final Entry entry;
+		final File file;
+
+		/** The attributes of the file read before it is read */
+		final BasicFileAttributes attrs;
+		final Priority priority;
+		final boolean compress;
+
+		/**
+		 * The checksum of the file if it is known, then the file is not
+		 * hashed again. Set by a sender that read the whole file but did not
+		 * send it.
+		 */
+		String known;
+
+		public Upload(Entry entry, File file, BasicFileAttributes attrs, String known, Priority priority,
+				boolean compress) {
+			this.entry = entry;
+			this.file = file;
+			this.attrs = attrs;
+			this.known = known;
+			this.priority = priority;
+			this.compress = compress;
+		}
+	}
+}
@@ -1,47 +1,268 @@
 package com.fsync;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 import org.apache.commons.fileupload.util.Streams;
 import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import com.google.common.io.ByteStreams;
 
 /**
  * This class contains static utility functions to
- * invoke HTTP operations.
+ * invoke HTTP operations. All operations share a single client whose
+ * connections are pooled and kept alive between requests, so that
+ * consecutive requests to the same peer reuse the same connection.
  * @author shreyas shinde
  *
  */
 public class Http {
+	/** Default connection pool limits */
+	public static final int DEFAULT_MAX_CONNECTIONS          = 64;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_PEER = 8;
+	
+	/** Default timeouts */
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+	public static final int DEFAULT_SOCKET_TIMEOUT_MS  = 60000;
+	public static final int DEFAULT_REQUEST_TIMEOUT_MS = 30000;
+	
+	/** How long an idle connection is kept when the peer does not say otherwise */
+	public static final int DEFAULT_KEEP_ALIVE_MS      = 60000;
+	
+	/** Size of the buffer used to write streamed bodies */
+	private static final int BODY_BUFFER_SIZE          = 64 * 1024;
+	private static final int DIGEST_MAP_SIZE           = 16 * 1024 * 1024;
+	
+	/** How often expired and idle connections are closed */
+	private static final long EVICT_INTERVAL_MILLIS    = 5000;
+	
+	/** The shared client and its connection pool */
+	private static PoolingHttpClientConnectionManager connectionManager = null;
+	private static CloseableHttpClient httpClient = null;
+	private static Thread evictor = null;
+	
+	/** The timeouts of the connections that bypass the pool */
+	private static int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MS;
+	private static int socketTimeoutMillis  = DEFAULT_SOCKET_TIMEOUT_MS;
+	
+	/** The longest line of a response read from a connection that bypasses the pool */
+	private static final int MAX_STATUS_LINE = 8 * 1024;
+	
+	private static final Logger logger = Logger.getLogger(Http.class.getName());
 	
 	/**
-	 * This method returns the resource identified by the {@code url} parameter.
-	 * If there are parameters, they are URL encoded before they are sent to the server.
-	 * @param url the resource that is requested
-	 * @param optParams the optional bag of query parameters
+	 * Configures the shared client. Any client previously in use is shut down.
+	 * Operations invoked before the client is configured use the defaults.
+	 * @param maxConnections the maximum number of connections across all peers
+	 * @param maxConnectionsPerPeer the maximum number of connections to a single peer
+	 * @param connectTimeoutMillis how long to wait for a connection to be established
+	 * @param socketTimeoutMillis how long to wait for data on an established connection
+	 * @param requestTimeoutMillis how long to wait for a connection from the pool
+	 * @param keepAliveMillis how long an idle connection is kept when the peer
+	 *        does not send a keep-alive timeout
+	 */
+	public static synchronized void configure(int maxConnections, int maxConnectionsPerPeer,
+			int connectTimeoutMillis, int socketTimeoutMillis, int requestTimeoutMillis, final int keepAliveMillis) {
+		shutdown();
+		
+		Http.connectTimeoutMillis = connectTimeoutMillis;
+		Http.socketTimeoutMillis = socketTimeoutMillis;
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(Math.min(maxConnectionsPerPeer, maxConnections));
+		
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeoutMillis)
+				.setSocketTimeout(socketTimeoutMillis)
+				.setConnectionRequestTimeout(requestTimeoutMillis)
+				.setStaleConnectionCheckEnabled(true)
+				.build();
+		
+		// Honor the keep-alive timeout sent by the peer, use our own otherwise
+		ConnectionKeepAliveStrategy keepAlive = new ConnectionKeepAliveStrategy() {
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				BasicHeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+				while(it.hasNext()) {
+					HeaderElement he = it.nextElement();
+					if(he.getValue() != null && he.getName().equalsIgnoreCase("timeout")) {
+						try {
+							return Long.parseLong(he.getValue()) * 1000;
+						} catch(NumberFormatException ignore) {
+						}
+					}
+				}
+				return keepAliveMillis;
+			}
+		};
+		
+		httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(keepAlive)
+				.build();
+		
+		// Connections closed by the peer while idle in the pool are only noticed
+		// when they are used, so close them in the background
+		final PoolingHttpClientConnectionManager cm = connectionManager;
+		final long idleMillis = keepAliveMillis;
+		evictor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while(!Thread.currentThread().isInterrupted()) {
+						Thread.sleep(EVICT_INTERVAL_MILLIS);
+						cm.closeExpiredConnections();
+						cm.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+					}
+				} catch(InterruptedException ignore) {
+				}
+			}
+		}, "fsync-http-evictor");
+		evictor.setDaemon(true);
+		evictor.start();
+		
+		logger.info("Http client configured with " + maxConnections + " connections, " + maxConnectionsPerPeer
+				+ " per peer.");
+	}
+	
+	/**
+	 * Shuts down the shared client and closes all its connections.
+	 */
+	public static synchronized void shutdown() {
+		if(evictor != null) {
+			evictor.interrupt();
+			evictor = null;
+		}
+		if(httpClient != null) {
+			try {
+				httpClient.close();
+			} catch(IOException ignore) {
+			}
+			httpClient = null;
+		}
+		if(connectionManager != null) {
+			connectionManager.shutdown();
+			connectionManager = null;
+		}
+	}
+	
+	/**
+	 * Returns the statistics of the connection pool: the number of connections
+	 * leased, available for reuse and the number of requests waiting for one.
+	 * @return the statistics or null if the client has not been used yet
+	 */
+	public static synchronized PoolStats getPoolStats() {
+		return connectionManager == null ? null : connectionManager.getTotalStats();
+	}
+	
+	/**
+	 * Returns the shared client, creating it with the defaults if needed.
+	 */
+	private static synchronized CloseableHttpClient client() {
+		if(httpClient == null) {
+			configure(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_PEER, DEFAULT_CONNECT_TIMEOUT_MS,
+					DEFAULT_SOCKET_TIMEOUT_MS, DEFAULT_REQUEST_TIMEOUT_MS, DEFAULT_KEEP_ALIVE_MS);
+		}
+		return httpClient;
+	}
+	
+	/**
+	 * Executes the request and returns the response without reading it. A
+	 * response with an error status is read to the end and closed.
+	 * @param request the request
+	 * @return the response, which must be closed by the caller
+	 * @throws HttpStatusException if the server returned an error
+	 * @throws IOException if the request failed
+	 */
+	private static StreamingResponse open(HttpUriRequest request) throws IOException {
+		CloseableHttpResponse response = client().execute(request);
+		int status = response.getStatusLine().getStatusCode();
+		if(status < 200 || status >= 300) {
+			try {
+				// Read the error so that the connection can go back to the pool
+				EntityUtils.consume(response.getEntity());
+			} finally {
+				response.close();
+			}
+			throw new HttpStatusException(status);
+		}
+		return new StreamingResponse(response);
+	}
+	
+	/**
+	 * Executes the request and returns the content of the response. The
+	 * response is always read to the end so that the connection can go back
+	 * to the pool.
+	 * @param request the request
 	 * @return the content returned in byte[] format
+	 * @throws IOException if the request failed or the server returned an error
 	 */
-	public static byte[] get(String url, Map<String, String> optParams) {
-		CloseableHttpClient httpClient = HttpClients.createDefault();
-		CloseableHttpResponse response = null;
-		InputStream in = null;
+	private static byte[] execute(HttpUriRequest request) throws IOException {
+		StreamingResponse response = open(request);
+		try {
+			// Status code check
+			if(response.getStatus() != 200) {
+				throw new HttpStatusException(response.getStatus());
+			}
+			return response.toByteArray();
+		} finally {
+			response.close();
+		}
+	}
+	
+	/**
+	 * Adds the parameters to the query string of the URL.
+	 */
+	private static URI buildUri(String url, Map<String, String> optParams) throws IOException {
 		try {
 			// Using a URIBuilder to make it easy to set parameters
 			URIBuilder uriBuilder = new URIBuilder(url);
@@ -50,35 +271,28 @@ public class Http {
 					uriBuilder.setParameter(param.getKey(), param.getValue());
 				}
 			}
-			
+			return uriBuilder.build();
+		} catch(URISyntaxException e) {
+			throw new IOException("Invalid URL: " + url, e);
+		}
+	}
+	
+	/**
+	 * This method returns the resource identified by the {@code url} parameter.
+	 * If there are parameters, they are URL encoded before they are sent to the server.
+	 * @param url the resource that is requested
+	 * @param optParams the optional bag of query parameters
+	 * @return the content returned in byte[] format
+	 */
+	public static byte[] get(String url, Map<String, String> optParams) {
+		try {
 			// Create the get request
-			HttpGet httpGet = new HttpGet(uriBuilder.build());
+			HttpGet httpGet = new HttpGet(buildUri(url, optParams));
 			
 			// Executing get
-			response = httpClient.execute(httpGet);
-			
-			// Status code check
-			int status = response.getStatusLine().getStatusCode();
-			if(status != 200) {
-				throw new IOException("The server returned error code: " + status);
-			}
-			
-			// Convert the response to byte[]
-			in = response.getEntity().getContent();
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			Streams.copy(in, baos, true);
-			return baos.toByteArray();
+			return execute(httpGet);
 		} catch(Exception e) {
 			throw new RuntimeException(e);
-		} finally {
-			try {
-				httpClient.close();
-			} catch (IOException ignore) {
-			}
-			try {
-				response.close();
-			} catch (IOException ignore) {
-			}
 		}
 	}
 	
@@ -89,9 +303,6 @@ public class Http {
 	 * @return the response of the server in byte[] form
 	 */
 	public static byte[] post(String url, Map<String,String> optParams) {
-		CloseableHttpClient httpClient = HttpClients.createDefault();
-		CloseableHttpResponse response = null;
-		InputStream in = null;
 		try {
 			// Constructing a UrlEncodedFormEntity to process text
 			// parameters
@@ -111,30 +322,9 @@ public class Http {
 			}
 			
 			// Executing post
-			response = httpClient.execute(httpPost);
-			
-			// Status code check
-			int status = response.getStatusLine().getStatusCode();
-			if(status != 200) {
-				throw new IOException("The server returned error code: " + status);
-			}
-			
-			// Convert the response to byte[]
-			in = response.getEntity().getContent();
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			Streams.copy(in, baos, true);
-			return baos.toByteArray();
+			return execute(httpPost);
 		} catch(Exception e) {
 			throw new RuntimeException(e);
-		} finally {
-			try {
-				httpClient.close();
-			} catch (IOException ignore) {
-			}
-			try {
-				response.close();
-			} catch (IOException ignore) {
-			}
 		}
 	}
 	
@@ -147,9 +337,6 @@ public class Http {
 	 * @return the response of the server in byte[] form
 	 */
 	public static byte[] post(String url, Map<String, String> optParams, Map<String,File> optFiles) {
-		CloseableHttpClient httpClient = HttpClients.createDefault();
-		CloseableHttpResponse response = null;
-		InputStream in = null;
 		try {
 			// Using a MultipartEntityBuilder to set text and file params
 			MultipartEntityBuilder meb = MultipartEntityBuilder.create();
@@ -172,30 +359,475 @@ public class Http {
 			httpPost.setEntity(entity);
 			
 			// Executing post
-			response = httpClient.execute(httpPost);
+			return execute(httpPost);
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * This method returns the resource identified by the {@code url} parameter
+	 * as a stream. Unlike {@link #get(String, Map)} the response is not buffered
+	 * in memory and can be of any size.
+	 * @param url the resource that is requested
+	 * @param optParams the optional bag of query parameters
+	 * @return the response, which must be closed by the caller
+	 * @throws HttpStatusException if the server returned an error
+	 * @throws IOException if the request failed
+	 */
+	public static StreamingResponse openGet(String url, Map<String, String> optParams) throws IOException {
+		return open(new HttpGet(buildUri(url, optParams)));
+	}
+	
+	/**
+	 * This method performs an HTTP POST operation with a streamed body. The body
+	 * is written to the server as it is produced and the response is returned
+	 * as a stream. The parameters are sent in the query string.
+	 * @param url the URL to which the body is posted
+	 * @param optParams an optional bag of query parameters
+	 * @param body the body, see {@link #body(InputStream, long)},
+	 *        {@link #body(ReadableByteChannel, long)}, {@link #body(File, long, long)}
+	 *        and {@link #body(ContentProducer)}
+	 * @return the response, which must be closed by the caller
+	 * @throws HttpStatusException if the server returned an error
+	 * @throws IOException if the request failed
+	 */
+	public static StreamingResponse openPost(String url, Map<String, String> optParams, HttpEntity body) throws IOException {
+		return openPost(url, optParams, null, body);
+	}
+	
+	/**
+	 * This method performs an HTTP POST operation with a streamed body and
+	 * extra request headers.
+	 * @param url the URL to which the body is posted
+	 * @param optParams an optional bag of query parameters
+	 * @param optHeaders an optional bag of request headers
+	 * @param body the body
+	 * @return the response, which must be closed by the caller
+	 * @throws HttpStatusException if the server returned an error
+	 * @throws IOException if the request failed
+	 */
+	public static StreamingResponse openPost(String url, Map<String, String> optParams, Map<String, String> optHeaders,
+			HttpEntity body) throws IOException {
+		HttpPost httpPost = new HttpPost(buildUri(url, optParams));
+		if(optHeaders != null) {
+			for(Entry<String, String> header : optHeaders.entrySet()) {
+				httpPost.setHeader(header.getKey(), header.getValue());
+			}
+		}
+		httpPost.setEntity(body);
+		return open(httpPost);
+	}
+	
+	/**
+	 * Posts a file as the raw body of a request. The file is sent straight
+	 * from the page cache to the socket with {@link FileChannel#transferTo},
+	 * without being copied through user space. Since the pooled client can
+	 * only write to a stream, the request uses a connection of its own.
+	 * <p>
+	 * With a digest, each block of the file is read and hashed right before
+	 * the kernel sends it from the page cache, so the file is read from disk
+	 * once, and the digest is sent after the file as a trailer.
+	 * @param url the resource to post the file to
+	 * @param optParams the optional bag of query parameters
+	 * @param optHeaders the optional bag of request headers, in ASCII
+	 * @param file the file
+	 * @param length the number of bytes of the file to send
+	 * @param digest the digest to compute and send after the file, or null
+	 * @return the digest of the bytes sent, or null without a digest
+	 * @throws HttpStatusException if the server returned an error
+	 * @throws IOException if the request failed
+	 */
+	public static byte[] postFile(String url, Map<String, String> optParams, Map<String, String> optHeaders, File file,
+			long length, MessageDigest digest) throws IOException {
+		return postFile(url, optParams, optHeaders, file, length, digest, null);
+	}
+	
+	/**
+	 * Posts a file as the raw body of a request, straight from the page cache
+	 * to the socket, a block at a time as the throttle allows.
+	 * @param throttle paces the blocks of the file, or null
+	 * @see #postFile(String, Map, Map, File, long, MessageDigest)
+	 */
+	public static byte[] postFile(String url, Map<String, String> optParams, Map<String, String> optHeaders, File file,
+			long length, MessageDigest digest, Throttle throttle) throws IOException {
+		return postFile(url, optParams, optHeaders, file, length, digest, null, throttle);
+	}
+	
+	/**
+	 * Posts a file as the raw body of a request followed by a digest computed
+	 * beforehand, so the file is sent by the kernel without being read.
+	 * @param trailer the digest of the file to send after the file
+	 * @param throttle paces the blocks of the file, or null
+	 * @see #postFile(String, Map, Map, File, long, MessageDigest)
+	 */
+	public static void postFile(String url, Map<String, String> optParams, Map<String, String> optHeaders, File file,
+			long length, byte[] trailer, Throttle throttle) throws IOException {
+		postFile(url, optParams, optHeaders, file, length, null, trailer, throttle);
+	}
+	
+	private static byte[] postFile(String url, Map<String, String> optParams, Map<String, String> optHeaders, File file,
+			long length, MessageDigest digest, byte[] trailer, Throttle throttle) throws IOException {
+		URI uri = buildUri(url, optParams);
+		int port = uri.getPort() < 0 ? 80 : uri.getPort();
+		int connectTimeout, socketTimeout;
+		synchronized(Http.class) {
+			connectTimeout = connectTimeoutMillis;
+			socketTimeout = socketTimeoutMillis;
+		}
+		FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		SocketChannel sc = SocketChannel.open();
+		try {
+			sc.socket().setSoTimeout(socketTimeout);
+			sc.socket().connect(new InetSocketAddress(uri.getHost(), port), connectTimeout);
+			int trailerLength = digest != null ? digest.getDigestLength() : trailer != null ? trailer.length : 0;
 			
-			// Status code check
-			int status = response.getStatusLine().getStatusCode();
-			if(status != 200) {
-				throw new IOException("The server returned error code: " + status);
+			// The request head
+			StringBuilder head = new StringBuilder();
+			head.append("POST ").append(uri.getRawPath());
+			if(uri.getRawQuery() != null) {
+				head.append('?').append(uri.getRawQuery());
 			}
+			head.append(" HTTP/1.1\r\n");
+			head.append("Host: ").append(uri.getHost()).append(':').append(port).append("\r\n");
+			head.append("Content-Type: ").append(ContentType.APPLICATION_OCTET_STREAM.getMimeType()).append("\r\n");
+			head.append("Content-Length: ").append(length + trailerLength).append("\r\n");
+			head.append("Connection: close\r\n");
+			// The server answers before the body is sent, a server that refuses the request never reads the body
+			head.append("Expect: 100-continue\r\n");
+			if(optHeaders != null) {
+				for(Entry<String, String> header : optHeaders.entrySet()) {
+					head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+				}
+			}
+			head.append("\r\n");
 			
-			// Convert the response to byte[]
-			in = response.getEntity().getContent();
+			InputStream in = sc.socket().getInputStream();
+			ByteBuffer bb = ByteBuffer.wrap(head.toString().getBytes(Consts.ASCII));
+			while(bb.hasRemaining()) {
+				sc.write(bb);
+			}
+			int status = readStatus(in);
+			if(status == 100) {
+				// The body, sent by the kernel
+				long position = 0;
+				while(position < length) {
+					long end = length;
+					if(throttle != null) {
+						end = Math.min(length, position + BODY_BUFFER_SIZE);
+						throttle.acquire((int)(end - position));
+					}
+					if(digest != null) {
+						// Hash the next block where it is mapped from the page cache, it is
+						// then still there when the kernel sends it
+						end = Math.min(end, position + DIGEST_MAP_SIZE);
+						if(fc.size() < end) {
+							throw new EOFException("The file got shorter while it was sent: " + file);
+						}
+						digest.update(fc.map(FileChannel.MapMode.READ_ONLY, position, end - position));
+					}
+					while(position < end) {
+						long n = fc.transferTo(position, end - position, sc);
+						if(n <= 0 && position >= fc.size()) {
+							throw new EOFException("The file got shorter while it was sent: " + file);
+						}
+						position += n;
+					}
+				}
+				if(digest != null) {
+					trailer = digest.digest();
+				}
+				if(trailer != null) {
+					ByteBuffer tb = ByteBuffer.wrap(trailer);
+					while(tb.hasRemaining()) {
+						sc.write(tb);
+					}
+				}
+				do {
+					status = readStatus(in);
+				} while(status >= 100 && status < 200);
+			}
+			if(status < 200 || status >= 300) {
+				throw new HttpStatusException(status);
+			}
+			return trailer;
+		} finally {
+			sc.close();
+			fc.close();
+		}
+	}
+	
+	/**
+	 * Paces the bytes of the bodies sent.
+	 */
+	public interface Throttle {
+		/**
+		 * Waits until bytes may be sent.
+		 * @param bytes the number of bytes about to be sent
+		 * @throws IOException if interrupted while waiting
+		 */
+		void acquire(int bytes) throws IOException;
+	}
+	
+	/**
+	 * Reads the status line and the headers of a response and returns its
+	 * status code. The content of the response is left unread.
+	 */
+	private static int readStatus(InputStream in) throws IOException {
+		String line = readLine(in);
+		String[] parts = line.split(" ");
+		int status;
+		try {
+			if(parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+				throw new NumberFormatException();
+			}
+			status = Integer.parseInt(parts[1]);
+		} catch(NumberFormatException e) {
+			throw new IOException("The server did not return a valid status line: " + line);
+		}
+		while(!readLine(in).isEmpty()) {
+			;
+		}
+		return status;
+	}
+	
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while((c = in.read()) != '\n') {
+			if(c < 0 || line.length() > MAX_STATUS_LINE) {
+				throw new IOException("The server did not return a valid response.");
+			}
+			line.append((char)c);
+		}
+		return line.toString().trim();
+	}
+	
+	/**
+	 * Returns a body that is read from a stream. The stream is closed once the
+	 * body has been sent.
+	 * @param in the stream
+	 * @param length the number of bytes in the stream or -1 if unknown
+	 */
+	public static HttpEntity body(InputStream in, long length) {
+		return new InputStreamEntity(in, length, ContentType.APPLICATION_OCTET_STREAM);
+	}
+	
+	/**
+	 * Returns a body that is read from a channel. The channel is closed once the
+	 * body has been sent.
+	 * @param channel the channel
+	 * @param length the number of bytes in the channel or -1 if unknown
+	 */
+	public static HttpEntity body(ReadableByteChannel channel, long length) {
+		return new ChannelEntity(channel, length);
+	}
+	
+	/**
+	 * Returns a body that is a region of a file. The file is only opened when
+	 * the body is sent, so the body can be sent more than once.
+	 * @param file the file
+	 * @param offset the offset of the region in the file
+	 * @param length the length of the region
+	 */
+	public static HttpEntity body(File file, long offset, long length) {
+		return new FileRegionEntity(file, offset, length);
+	}
+	
+	/**
+	 * Returns a body that is written by a producer as it is sent. The body can
+	 * be sent more than once if the producer can write it more than once.
+	 * @param producer the producer
+	 */
+	public static HttpEntity body(ContentProducer producer) {
+		EntityTemplate entity = new EntityTemplate(producer);
+		entity.setContentType(ContentType.APPLICATION_OCTET_STREAM.toString());
+		return entity;
+	}
+	
+	/**
+	 * Thrown when the server returns an error status.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class HttpStatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		private final int status;
+		
+		public HttpStatusException(int status) {
+			super("The server returned error code: " + status);
+			this.status = status;
+		}
+		
+		public int getStatus() {
+			return status;
+		}
+	}
+	
+	/**
+	 * A response whose content has not been read yet. Closing the response
+	 * before its content is read to the end closes the connection instead of
+	 * returning it to the pool.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class StreamingResponse implements Closeable {
+		private final CloseableHttpResponse response;
+		
+		StreamingResponse(CloseableHttpResponse response) {
+			this.response = response;
+		}
+		
+		public int getStatus() {
+			return response.getStatusLine().getStatusCode();
+		}
+		
+		/**
+		 * Returns the value of the header or null if the response does not have it.
+		 */
+		public String getHeader(String name) {
+			Header header = response.getFirstHeader(name);
+			return header == null ? null : header.getValue();
+		}
+		
+		/**
+		 * Returns the length of the content or -1 if unknown.
+		 */
+		public long getContentLength() {
+			HttpEntity entity = response.getEntity();
+			return entity == null ? 0 : entity.getContentLength();
+		}
+		
+		/**
+		 * Returns the content of the response. The content can only be read once.
+		 */
+		public InputStream getContent() throws IOException {
+			HttpEntity entity = response.getEntity();
+			return entity == null ? new ByteArrayInputStream(new byte[0]) : entity.getContent();
+		}
+		
+		/**
+		 * Reads the content of the response into memory.
+		 */
+		public byte[] toByteArray() throws IOException {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			Streams.copy(in, baos, true);
+			Streams.copy(getContent(), baos, true);
 			return baos.toByteArray();
-		} catch(Exception e) {
-			throw new RuntimeException(e);
-		} finally {
+		}
+		
+		public void close() throws IOException {
+			response.close();
+		}
+	}
+	
+	/**
+	 * A body that is read from a channel.
+	 */
+	private static class ChannelEntity extends AbstractHttpEntity {
+		private final ReadableByteChannel channel;
+		private final long length;
+		
+		ChannelEntity(ReadableByteChannel channel, long length) {
+			this.channel = channel;
+			this.length = length;
+			setContentType(ContentType.APPLICATION_OCTET_STREAM.toString());
+		}
+		
+		public boolean isRepeatable() {
+			return false;
+		}
+		
+		public long getContentLength() {
+			return length;
+		}
+		
+		public InputStream getContent() throws IOException {
+			return Channels.newInputStream(channel);
+		}
+		
+		public void writeTo(OutputStream out) throws IOException {
 			try {
-				httpClient.close();
-			} catch (IOException ignore) {
+				ByteBuffer buffer = ByteBuffer.allocate(BODY_BUFFER_SIZE);
+				long remaining = length < 0 ? Long.MAX_VALUE : length;
+				while(remaining > 0) {
+					buffer.clear();
+					if(remaining < buffer.capacity()) {
+						buffer.limit((int)remaining);
+					}
+					int n = channel.read(buffer);
+					if(n < 0) {
+						break;
+					}
+					out.write(buffer.array(), 0, n);
+					remaining -= n;
+				}
+				out.flush();
+			} finally {
+				channel.close();
 			}
+		}
+		
+		public boolean isStreaming() {
+			return channel.isOpen();
+		}
+	}
+	
+	/**
+	 * A body that is a region of a file.
+	 */
+	private static class FileRegionEntity extends AbstractHttpEntity {
+		private final File file;
+		private final long offset;
+		private final long length;
+		
+		FileRegionEntity(File file, long offset, long length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+			setContentType(ContentType.APPLICATION_OCTET_STREAM.toString());
+		}
+		
+		public boolean isRepeatable() {
+			return true;
+		}
+		
+		public long getContentLength() {
+			return length;
+		}
+		
+		public InputStream getContent() throws IOException {
+			FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			fc.position(offset);
+			return ByteStreams.limit(Channels.newInputStream(fc), length);
+		}
+		
+		public void writeTo(OutputStream out) throws IOException {
+			FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
 			try {
-				response.close();
-			} catch (IOException ignore) {
+				ByteBuffer buffer = ByteBuffer.allocate(BODY_BUFFER_SIZE);
+				long position = offset;
+				long end = offset + length;
+				while(position < end) {
+					buffer.clear();
+					if(end - position < buffer.capacity()) {
+						buffer.limit((int)(end - position));
+					}
+					int n = fc.read(buffer, position);
+					if(n < 0) {
+						throw new EOFException("The file is shorter than the region: " + file);
+					}
+					out.write(buffer.array(), 0, n);
+					position += n;
+				}
+				out.flush();
+			} finally {
+				fc.close();
 			}
 		}
+		
+		public boolean isStreaming() {
+			return false;
+		}
 	}
 }
@@ -0,0 +1,194 @@
+package com.fsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import com.fsync.ChecksumStore.Cursor;
+import com.fsync.ChecksumStore.Entry;
+import com.fsync.ChecksumStore.Snapshot;
+
+/**
+ * This class serves the checksums of all the files of the sync directory a
+ * page at a time. The first page takes a snapshot of the checksums and every
+ * page ends with a cursor from which the next page resumes the walk of that
+ * same snapshot, so that the pages are consistent with each other however the
+ * files change in between. A page is written as it is read from the snapshot,
+ * so walking millions of files takes constant memory on both sides.
+ * <p>
+ * The snapshot is walked in the order of its hash tables, not by path, so a
+ * prefix does not narrow the walk: the entries that do not match are read
+ * and skipped. A page stops after skipping {@code MAX_SKIPPED} entries so
+ * that a request does a bounded amount of work, and a page of a filtered
+ * walk may thus hold fewer entries than asked for, even none, and still have
+ * a next page. Clients follow the cursors until a page has none.
+ * <p>
+ * Snapshots left idle are dropped, and only a few are kept at a time. The
+ * walk must then be started again.
+ * @author shreyas shinde
+ *
+ */
+public class ManifestPages {
+	/** The number of entries of a page */
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+	public static final int MAX_PAGE_SIZE     = 10000;
+
+	/** The number of entries not matching the prefix skipped by a page at most */
+	private static final int MAX_SKIPPED      = 100000;
+
+	/** Snapshots are dropped when idle for this long, or when too many are open */
+	private static final long MAX_IDLE_MILLIS = 5 * 60 * 1000;
+	private static final int MAX_SNAPSHOTS    = 16;
+
+	private final ChecksumManager checksumManager;
+
+	/** The open snapshots by id, least recently used first, guarded by this */
+	private final Map<Long, Session> sessions = new LinkedHashMap<Long, Session>(16, 0.75f, true);
+	private final AtomicLong ids = new AtomicLong(System.currentTimeMillis());
+
+	public ManifestPages(ChecksumManager checksumManager) {
+		this.checksumManager = checksumManager;
+	}
+
+	/**
+	 * Writes a page of entries as JSON. The page has the version of the
+	 * snapshot, the entries, and the cursor of the next page unless it is the
+	 * last one.
+	 * @param cursor the cursor returned by the previous page, null for the first page
+	 * @param prefix only the files whose path, relative to the sync directory
+	 *        with '/' as separator, starts with the prefix are returned, or null.
+	 *        The whole snapshot is still walked.
+	 * @param limit the maximum number of entries of the page
+	 * @param out where the page is written
+	 * @throws ExpiredCursorException if the snapshot of the cursor was dropped
+	 * @throws IllegalArgumentException if the cursor or limit are not valid
+	 * @throws IOException if the page could not be written
+	 */
+	public void writePage(String cursor, String prefix, int limit, Writer out) throws IOException {
+		if(limit <= 0 || limit > MAX_PAGE_SIZE) {
+			throw new IllegalArgumentException("The page size must be between 1 and " + MAX_PAGE_SIZE + ": " + limit);
+		}
+		long id;
+		Snapshot snapshot;
+		long position = 0;
+		if(cursor == null) {
+			snapshot = checksumManager.getSnapshot();
+			id = open(snapshot);
+		} else {
+			int dash = cursor.indexOf('-');
+			try {
+				id = Long.parseLong(cursor.substring(0, Math.max(0, dash)), 16);
+				position = Long.parseLong(cursor.substring(dash + 1), 16);
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid cursor: " + cursor);
+			}
+			snapshot = get(id);
+		}
+		Cursor entries = snapshot.cursor(position);
+
+		out.write("{\"version\":" + snapshot.getVersion() + ",\"entries\":[");
+		int n = 0;
+		int skipped = 0;
+		while(n < limit && skipped < MAX_SKIPPED && entries.hasNext()) {
+			Entry entry = entries.next();
+			String path = normalize(entry.getPath());
+			if(prefix != null && !path.startsWith(prefix)) {
+				skipped++;
+				continue;
+			}
+			JSONObject json = new JSONObject();
+			json.put("path", path);
+			json.put("checksum", entry.getRecord().getChecksum());
+			json.put("size", entry.getRecord().size);
+			json.put("mtime", entry.getRecord().getMtime());
+			out.write(n++ == 0 ? "" : ",");
+			out.write(json.toString());
+		}
+		out.write("]");
+		if(entries.hasNext()) {
+			out.write(",\"next\":" + JSONObject.quote(Long.toHexString(id) + "-" + Long.toHexString(entries.getPosition())));
+		} else {
+			close(id);
+		}
+		out.write("}");
+		out.flush();
+	}
+
+	private synchronized long open(Snapshot snapshot) {
+		expire();
+		long id = ids.incrementAndGet();
+		sessions.put(id, new Session(snapshot));
+		if(sessions.size() > MAX_SNAPSHOTS) {
+			Iterator<Session> oldest = sessions.values().iterator();
+			oldest.next();
+			oldest.remove();
+		}
+		return id;
+	}
+
+	private synchronized Snapshot get(long id) throws ExpiredCursorException {
+		expire();
+		Session session = sessions.get(id);
+		if(session == null) {
+			throw new ExpiredCursorException();
+		}
+		session.lastUsed = System.currentTimeMillis();
+		return session.snapshot;
+	}
+
+	private synchronized void close(long id) {
+		sessions.remove(id);
+	}
+
+	/**
+	 * Drops the snapshots left idle, guarded by this.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		for(Iterator<Session> i = sessions.values().iterator(); i.hasNext();) {
+			if(now - i.next().lastUsed > MAX_IDLE_MILLIS) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the path of an entry relative to the sync directory with '/' as separator.
+	 */
+	private static String normalize(String path) {
+		String normalized = path.replace(File.separatorChar, '/');
+		int start = 0;
+		while(start < normalized.length() && normalized.charAt(start) == '/') {
+			start++;
+		}
+		return normalized.substring(start);
+	}
+
+	private static class Session {
+		final Snapshot snapshot;
+		long lastUsed = System.currentTimeMillis();
+
+		Session(Snapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+	}
+
+	/**
+	 * Thrown when the snapshot of a cursor was dropped.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class ExpiredCursorException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public ExpiredCursorException() {
+			super("The cursor has expired, the walk must be started again.");
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package com.fsync;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class keeps a hash tree of the checksums of the files in the sync
+ * directory, with a node for each directory, so that two replicas can find
+ * where they differ by comparing the hashes of their directories from the
+ * top down and only descending into the directories that differ.
+ * <p>
+ * The hash of a directory is the XOR of the hashes of its entries: the hash
+ * of the name and checksum of each file, and the hash of the name and hash of
+ * each sub-directory. A change of checksum thus updates the hashes of the
+ * directories above the file without visiting any other entry. Each node also
+ * keeps the hash of its files alone, which tells whether the files of the
+ * directory itself need to be compared. Deleted files are left out, so that a
+ * replica that deleted a file and one that never had it agree, and a
+ * directory without files has no node.
+ * @author shreyas shinde
+ *
+ */
+public class MerkleTree implements ChecksumStore.Listener {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Separates the name from the checksum or hash in the hash of an entry */
+	private static final byte FILE_ENTRY = 0;
+	private static final byte DIR_ENTRY  = 1;
+
+	private final int digestLength = ChecksumUtil.createMessageDigest().getDigestLength();
+
+	/** The sync directory, guarded by this */
+	private final Node root = new Node();
+
+	/**
+	 * Updates the hashes of the directories above a file.
+	 * @param path the relative path of the file in the checksum store
+	 * @param previous the previous checksum or null
+	 * @param checksum the new checksum or null
+	 */
+	public void changed(String path, String previous, String checksum) {
+		boolean wasLive = previous != null && !previous.isEmpty();
+		boolean live = checksum != null && !checksum.isEmpty();
+		if(!wasLive && !live) {
+			return;
+		}
+		List<String> names = split(path);
+		if(names.isEmpty()) {
+			return;
+		}
+		String name = names.get(names.size() - 1);
+		byte[] delta = new byte[digestLength];
+		if(wasLive) {
+			xor(delta, entryHash(FILE_ENTRY, name, checksum(previous)));
+		}
+		if(live) {
+			xor(delta, entryHash(FILE_ENTRY, name, checksum(checksum)));
+		}
+		int count = (live ? 1 : 0) - (wasLive ? 1 : 0);
+		synchronized(this) {
+			// The directories from the top down to the directory of the file
+			Node[] nodes = new Node[names.size()];
+			nodes[0] = root;
+			for(int i = 1; i < nodes.length; i++) {
+				Node child = nodes[i - 1].dirs.get(names.get(i - 1));
+				if(child == null) {
+					child = new Node();
+					nodes[i - 1].dirs.put(names.get(i - 1), child);
+				}
+				nodes[i] = child;
+			}
+			Node dir = nodes[nodes.length - 1];
+			xor(dir.filesHash, delta);
+			dir.files += count;
+
+			// Each directory changes the entry of the directory above it
+			for(int i = nodes.length - 1; i >= 0; i--) {
+				Node node = nodes[i];
+				byte[] before = node.total > 0 ? node.hash.clone() : null;
+				xor(node.hash, delta);
+				node.total += count;
+				if(i == 0) {
+					break;
+				}
+				String dirName = names.get(i - 1);
+				delta = new byte[digestLength];
+				if(before != null) {
+					xor(delta, entryHash(DIR_ENTRY, dirName, before));
+				}
+				if(node.total > 0) {
+					xor(delta, entryHash(DIR_ENTRY, dirName, node.hash));
+				} else {
+					nodes[i - 1].dirs.remove(dirName);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the hash of the sync directory.
+	 */
+	public synchronized String getRootHash() {
+		return ChecksumUtil.encode(root.hash);
+	}
+
+	/**
+	 * Returns a copy of the node of a directory.
+	 * @param dir the path of the directory relative to the sync directory with
+	 *        '/' as separator, empty for the sync directory
+	 * @return the node or null if the directory has no files
+	 */
+	public synchronized NodeInfo getNode(String dir) {
+		Node node = root;
+		for(String name : dir.split("/")) {
+			if(name.isEmpty()) {
+				continue;
+			}
+			node = node.dirs.get(name);
+			if(node == null) {
+				return null;
+			}
+		}
+		Map<String, String> dirs = new TreeMap<String, String>();
+		for(Map.Entry<String, Node> child : node.dirs.entrySet()) {
+			dirs.put(child.getKey(), ChecksumUtil.encode(child.getValue().hash));
+		}
+		return new NodeInfo(ChecksumUtil.encode(node.hash), ChecksumUtil.encode(node.filesHash), node.files,
+				node.total, Collections.unmodifiableMap(dirs));
+	}
+
+	/**
+	 * Splits a path of the checksum store into its names.
+	 */
+	static List<String> split(String path) {
+		List<String> names = new ArrayList<String>();
+		for(String name : path.replace(File.separatorChar, '/').split("/")) {
+			if(!name.isEmpty()) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	private byte[] entryHash(byte type, String name, byte[] value) {
+		MessageDigest md = ChecksumUtil.createMessageDigest();
+		md.update(type);
+		md.update(name.getBytes(UTF8));
+		md.update((byte)0);
+		md.update(value);
+		return md.digest();
+	}
+
+	private static byte[] checksum(String checksum) {
+		return checksum.getBytes(UTF8);
+	}
+
+	private static void xor(byte[] into, byte[] value) {
+		for(int i = 0; i < into.length; i++) {
+			into[i] ^= value[i];
+		}
+	}
+
+	/**
+	 * A directory of the tree.
+	 */
+	private class Node {
+		/** The sub-directories with files by name */
+		final Map<String, Node> dirs = new HashMap<String, Node>();
+
+		/** The hash of all the entries and of the files alone */
+		final byte[] hash = new byte[digestLength];
+		final byte[] filesHash = new byte[digestLength];
+
+		/** The number of files of the directory and of the whole sub-tree */
+		long files = 0;
+		long total = 0;
+	}
+
+	/**
+	 * A copy of the node of a directory.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class NodeInfo {
+		private final String hash;
+		private final String filesHash;
+		private final long files;
+		private final long total;
+		private final Map<String, String> dirs;
+
+		NodeInfo(String hash, String filesHash, long files, long total, Map<String, String> dirs) {
+			this.hash = hash;
+			this.filesHash = filesHash;
+			this.files = files;
+			this.total = total;
+			this.dirs = dirs;
+		}
+
+		/**
+		 * Returns the hash of the directory and everything below it.
+		 */
+		public String getHash() {
+			return hash;
+		}
+
+		/**
+		 * Returns the hash of the files of the directory itself.
+		 */
+		public String getFilesHash() {
+			return filesHash;
+		}
+
+		public long getFiles() {
+			return files;
+		}
+
+		public long getTotal() {
+			return total;
+		}
+
+		/**
+		 * Returns the hashes of the sub-directories by name.
+		 */
+		public Map<String, String> getDirs() {
+			return dirs;
+		}
+	}
+}
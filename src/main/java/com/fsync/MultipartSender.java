@@ -0,0 +1,56 @@
+package com.fsync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.FileBody;
+import org.json.JSONObject;
+
+/**
+ * This class sends files as a multipart form, for the peers that take
+ * nothing else. The file is hashed as it is written to the form, so it is
+ * read once and the checksum is that of the content sent.
+ * @author shreyas shinde
+ *
+ */
+public class MultipartSender implements FileSender {
+	private final PeerConnection connection;
+
+	/**
+	 * @param connection the connection to the peer
+	 */
+	public MultipartSender(PeerConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Sends a file, which is not hashed if its checksum is known.
+	 * @return the checksum of the file sent, never null
+	 * @throws IOException if the peer could not be reached
+	 */
+	public String send(Upload upload) throws IOException {
+		final MessageDigest md = upload.known == null ? ChecksumUtil.createMessageDigest() : null;
+		MultipartEntityBuilder meb = MultipartEntityBuilder.create();
+		meb.addTextBody(Peer2PeerCommunicator.EVENT_PARAM, upload.entry.getEvent());
+		meb.addPart(Peer2PeerCommunicator.FILE_PARAM, new FileBody(upload.file) {
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				if(md == null) {
+					super.writeTo(out);
+					return;
+				}
+				// A form written again is hashed again
+				md.reset();
+				super.writeTo(new DigestOutputStream(out, md));
+			}
+		});
+		Http.openPost(connection.url("/update"), null, connection.throttle(meb.build(), upload.priority)).close();
+		return md == null ? upload.known : ChecksumUtil.encode(md.digest());
+	}
+
+	public void addStats(JSONObject stats) {
+	}
+}
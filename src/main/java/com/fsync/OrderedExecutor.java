@@ -0,0 +1,321 @@
+package com.fsync;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * This class runs tasks on a fixed number of worker threads. Tasks submitted
+ * with the same key run one at a time in the order they were submitted while
+ * tasks with different keys run in parallel. The number of tasks that are
+ * queued or running is bounded: once the bound is reached, {@code execute}
+ * blocks until a task completes.
+ * <p>
+ * Tasks may be given a priority. A free worker picks the key whose next task
+ * has the highest priority, keys of the same priority in the order they got
+ * ready. A task never overtakes an earlier task of its own key.
+ * <p>
+ * The tasks of the lowest priorities may be kept to fewer workers than the
+ * executor has, so that a task of a higher priority queued behind them never
+ * waits for one of them to complete.
+ * @author shreyas shinde
+ *
+ */
+public class OrderedExecutor {
+	/** Number of tasks of a key run back to back before other keys get a turn */
+	private static final int MAX_TASKS_PER_TURN = 16;
+
+	/** Runs the per-key chains */
+	private final ExecutorService workers;
+
+	/** Permits for the tasks that may be queued or running */
+	private final Semaphore permits;
+	private final int capacity;
+
+	/** Set once the executor no longer accepts tasks */
+	private volatile boolean shutdown = false;
+
+	/** The priority of the tasks submitted without one */
+	public static final int DEFAULT_PRIORITY = 0;
+
+	/** The queued tasks of each key that has tasks queued or running */
+	private final Map<String, ArrayDeque<Task>> chains = new HashMap<String, ArrayDeque<Task>>();
+
+	/** Orders the chains of the same priority */
+	private final AtomicLong sequence = new AtomicLong();
+
+	/** Tasks of at least this priority run on at most so many workers at once, guarded by chains */
+	private int backgroundPriority = Integer.MAX_VALUE;
+	private int maxBackground = Integer.MAX_VALUE;
+	private int background = 0;
+
+	/** The chains waiting for a background task to complete, guarded by chains */
+	private final ArrayDeque<Chain> parked = new ArrayDeque<Chain>();
+
+	private static final Logger logger = Logger.getLogger(OrderedExecutor.class.getName());
+
+	/**
+	 * Creates an executor.
+	 * @param name the name of the worker threads
+	 * @param workerCount the number of worker threads
+	 * @param capacity the maximum number of tasks queued or running
+	 */
+	public OrderedExecutor(String name, int workerCount, int capacity) {
+		if(workerCount < 1 || capacity < 1) {
+			throw new IllegalArgumentException("The worker count and capacity must be at least 1.");
+		}
+		this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+		this.permits = new Semaphore(capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Submits a task, waiting for room if the executor is full.
+	 * @param key tasks with the same key run in submission order
+	 * @param task the task
+	 * @throws InterruptedException if interrupted while waiting for room
+	 * @throws RejectedExecutionException if the executor has been shut down
+	 */
+	public void execute(String key, Runnable task) throws InterruptedException {
+		permits.acquire();
+		enqueue(key, DEFAULT_PRIORITY, task);
+	}
+
+	/**
+	 * Submits a task if there is room for it.
+	 * @param key tasks with the same key run in submission order
+	 * @param task the task
+	 * @return false if the executor is full and the task was not submitted
+	 */
+	public boolean tryExecute(String key, Runnable task) {
+		return tryExecute(key, DEFAULT_PRIORITY, task);
+	}
+
+	/**
+	 * Submits a task with a priority if there is room for it.
+	 * @param key tasks with the same key run in submission order
+	 * @param priority tasks with a lower value run first
+	 * @param task the task
+	 * @return false if the executor is full and the task was not submitted
+	 */
+	public boolean tryExecute(String key, int priority, Runnable task) {
+		if(shutdown) {
+			throw new RejectedExecutionException("The executor has been shut down.");
+		}
+		if(!permits.tryAcquire()) {
+			return false;
+		}
+		enqueue(key, priority, task);
+		return true;
+	}
+
+	/**
+	 * Keeps the tasks of the lowest priorities to some of the workers. A key
+	 * whose next task is such a task waits, without holding a worker, until
+	 * one of them completes.
+	 * @param priority tasks with this value or a higher one are limited
+	 * @param maxRunning the number of such tasks that may run at once
+	 */
+	public void setBackgroundLimit(int priority, int maxRunning) {
+		if(maxRunning < 1) {
+			throw new IllegalArgumentException("At least one background task must be allowed to run.");
+		}
+		synchronized(chains) {
+			backgroundPriority = priority;
+			maxBackground = maxRunning;
+		}
+	}
+
+	/**
+	 * Returns the number of tasks queued or running.
+	 */
+	public int getPendingTasks() {
+		return capacity - permits.availablePermits();
+	}
+
+	/**
+	 * Returns the maximum number of tasks queued or running.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Stops accepting tasks and waits for the queued tasks to complete.
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @return true if all the tasks completed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		shutdown = true;
+		boolean completed = permits.tryAcquire(capacity, timeout, unit);
+		if(completed) {
+			workers.shutdown();
+			// Wake up anyone still waiting for room so they see the shutdown
+			permits.release(capacity);
+		} else {
+			workers.shutdownNow();
+		}
+		return completed;
+	}
+
+	private void enqueue(String key, int priority, Runnable task) {
+		if(shutdown) {
+			permits.release();
+			throw new RejectedExecutionException("The executor has been shut down.");
+		}
+		synchronized(chains) {
+			ArrayDeque<Task> chain = chains.get(key);
+			if(chain != null) {
+				// A chain is queued or running for the key, it will pick the task up
+				chain.add(new Task(priority, task));
+				return;
+			}
+			chain = new ArrayDeque<Task>();
+			chain.add(new Task(priority, task));
+			chains.put(key, chain);
+		}
+		try {
+			workers.execute(new Chain(key, priority));
+		} catch(RejectedExecutionException e) {
+			drop(key);
+			throw e;
+		}
+	}
+
+	/**
+	 * Drops the queued tasks of a key once the workers no longer run them,
+	 * releasing their permits.
+	 */
+	private void drop(String key) {
+		int dropped;
+		synchronized(chains) {
+			ArrayDeque<Task> chain = chains.remove(key);
+			dropped = chain == null ? 0 : chain.size();
+		}
+		if(dropped > 0) {
+			logger.warning("Dropped " + dropped + " tasks for '" + key + "', the executor has been shut down.");
+			permits.release(dropped);
+		}
+	}
+
+	/**
+	 * Frees the slot of a background task that completed and queues the
+	 * chain that waited the longest for one.
+	 */
+	private void resumeParked() {
+		Chain next;
+		synchronized(chains) {
+			background--;
+			next = parked.poll();
+		}
+		if(next != null) {
+			next.order = sequence.incrementAndGet();
+			try {
+				workers.execute(next);
+			} catch(RejectedExecutionException e) {
+				// Shut down without waiting for the tasks
+				drop(next.key);
+			}
+		}
+	}
+
+	private static class Task {
+		final int priority;
+		final Runnable runnable;
+
+		Task(int priority, Runnable runnable) {
+			this.priority = priority;
+			this.runnable = runnable;
+		}
+	}
+
+	/**
+	 * Runs the tasks of a key one after the other. Queued chains are ordered
+	 * by the priority of their next task.
+	 */
+	private class Chain implements Runnable, Comparable<Chain> {
+		private final String key;
+		private int priority;
+		private long order;
+
+		Chain(String key, int priority) {
+			this.key = key;
+			this.priority = priority;
+			this.order = sequence.incrementAndGet();
+		}
+
+		public int compareTo(Chain other) {
+			if(priority != other.priority) {
+				return priority < other.priority ? -1 : 1;
+			}
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+
+		public void run() {
+			for(int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+				Task task;
+				boolean isBackground;
+				synchronized(chains) {
+					ArrayDeque<Task> chain = chains.get(key);
+					task = chain.poll();
+					if(task == null) {
+						chains.remove(key);
+						return;
+					}
+					isBackground = task.priority >= backgroundPriority;
+					if(isBackground) {
+						if(background >= maxBackground) {
+							// Leave the worker to the other keys until a background task completes
+							chain.addFirst(task);
+							priority = task.priority;
+							parked.add(this);
+							return;
+						}
+						background++;
+					}
+				}
+				try {
+					task.runnable.run();
+				} catch(Throwable t) {
+					logger.log(Level.WARNING, "Task for '" + key + "' failed. " + t.getLocalizedMessage(), t);
+				} finally {
+					permits.release();
+					if(isBackground) {
+						resumeParked();
+					}
+				}
+			}
+			synchronized(chains) {
+				ArrayDeque<Task> chain = chains.get(key);
+				if(chain.isEmpty()) {
+					chains.remove(key);
+					return;
+				}
+				priority = chain.peek().priority;
+			}
+			// Give the other keys a turn
+			order = sequence.incrementAndGet();
+			try {
+				workers.execute(this);
+			} catch(RejectedExecutionException e) {
+				// Shut down without waiting for the tasks
+				drop(key);
+			}
+		}
+	}
+}
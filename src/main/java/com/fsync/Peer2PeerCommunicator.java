@@ -1,35 +1,64 @@
 package com.fsync;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.logging.Level;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.FileItemFactory;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.fileupload.util.Streams;
+import org.apache.http.pool.PoolStats;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.json.JSONException;
+import org.json.JSONObject;
 
+import com.fsync.ChecksumIndex.Record;
+import com.fsync.ChunkTransfer.ChunkMismatchException;
+import com.fsync.ChunkTransfer.LocalChunks;
+import com.fsync.ChunkTransfer.LocalChunksLookup;
+import com.fsync.ChunkTransfer.Manifest;
+import com.fsync.DeltaSync.DeltaMismatchException;
 import com.fsync.DirectoryChangeEvent.DirectoryChangeEventType;
+import com.fsync.PeerSender.TransferMode;
+import com.fsync.UpdateBatch.Result;
+import com.fsync.UpdateBatch.Update;
+import com.fsync.WriteRegistry.Write;
+import com.google.common.base.Predicate;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 /**
@@ -44,8 +73,32 @@ public class Peer2PeerCommunicator implements DirectoryChangeListener {
 	public static final int DEFAULT_HTTPS_PORT 		= 10443;
 	
 	/** Http parameters */
-	private static final String EVENT_PARAM     	= "event";
-	private static final String FILE_PARAM         	= "file";
+	static final String EVENT_PARAM     			= "event";
+	static final String FILE_PARAM         			= "file";
+	static final String PATH_PARAM         			= "path";
+	static final String UPLOAD_PARAM       			= "upload";
+	static final String PART_PARAM         			= "part";
+	static final String LENGTH_PARAM       			= "length";
+	static final String CHECKSUM_PARAM     			= "checksum";
+	static final String TRANSFER_PARAM     			= "transfer";
+	
+	/** The header that carries the event of a raw upload, URL encoded */
+	static final String EVENT_HEADER       			= "X-Fsync-Event";
+	
+	/** The header that carries the length of the file of a raw upload that is followed by its digest */
+	static final String LENGTH_HEADER      			= "X-Fsync-Length";
+	
+	/** The header that carries the checksum of the file of a raw upload known beforehand, instead of its digest */
+	static final String CHECKSUM_HEADER    			= "X-Fsync-Checksum";
+	
+	/** The content type of files sent as the body of a request */
+	static final String OCTET_STREAM       			= "application/octet-stream";
+	
+	/** The delay before the first reconciliation with the peers after starting */
+	private static final long ANTI_ENTROPY_FIRST_DELAY_MILLIS = 60 * 1000;
+	
+	/** How often the records of deleted files are expired */
+	private static final long EXPIRY_INTERVAL_MILLIS = 60 * 60 * 1000;
 	
 	/** HTTP listener ports */
 	private int httpPort  							= DEFAULT_HTTP_PORT;
@@ -55,20 +108,63 @@ public class Peer2PeerCommunicator implements DirectoryChangeListener {
 	/** The HTTP server that will handle requests/operations */
 	private Server httpServer 						= null;
 	
-	/** We will be using a file-system disk based uploads */
-	private FileItemFactory fileItemFactory 		= new DiskFileItemFactory();
-	
-	/** The file upload handler */
-	private ServletFileUpload upload 				= null;
+	/** The file upload handler, uploads are streamed straight to their temporary file */
+	private ServletFileUpload upload 				= new ServletFileUpload();
 	
 	private static final Logger logger 				= Logger.getLogger(Peer2PeerCommunicator.class.getName());
 	
 	/** List of peers to which the service is connected */
 	private List<String> peers                      = new ArrayList<String>();
 	
+	/** The outbound queue of each peer, created on first use */
+	private List<PeerSender> senders                = null;
+	private int senderWorkers                       = PeerSender.DEFAULT_WORKERS;
+	private int senderCapacity                      = PeerSender.DEFAULT_CAPACITY;
+	private long retryMinMillis                     = PeerSender.DEFAULT_RETRY_MIN_MILLIS;
+	private long retryMaxMillis                     = PeerSender.DEFAULT_RETRY_MAX_MILLIS;
+	private Path journalDir                         = null;
+	private long deltaMinSize                       = PeerSender.DEFAULT_DELTA_MIN_SIZE;
+	private long chunkMinSize                       = PeerSender.DEFAULT_CHUNK_MIN_SIZE;
+	private TransferMode transferMode               = TransferMode.CHUNKS;
+	private int compressionLevel                    = Compression.DEFAULT_LEVEL;
+	private long zeroCopyMinSize                    = PeerSender.DEFAULT_ZERO_COPY_MIN_SIZE;
+	private int batchMaxUpdates                     = PeerSender.DEFAULT_BATCH_MAX_UPDATES;
+	private long batchMaxBytes                      = PeerSender.DEFAULT_BATCH_MAX_BYTES;
+	private long batchMaxDelayMillis                = PeerSender.DEFAULT_BATCH_MAX_DELAY_MILLIS;
+	private long resumableMinSize                   = PeerSender.DEFAULT_RESUMABLE_MIN_SIZE;
+	private int maxStreams                          = PeerSender.DEFAULT_MAX_STREAMS;
+	private long largeFileSize                      = TransferScheduler.DEFAULT_LARGE_FILE_SIZE;
+	private long peerBytesPerSecond                 = 0;
+	
+	/** Paces the bytes sent to all the peers, unlimited by default */
+	private TransferScheduler scheduler             = new TransferScheduler(0);
+	private long antiEntropyIntervalMillis          = AntiEntropy.DEFAULT_INTERVAL_MILLIS;
+	
+	/** Finds the files the peers missed, created when the communicator starts */
+	private AntiEntropy antiEntropy                 = null;
+	
+	/** Serves the checksums of the files a page at a time */
+	private ManifestPages manifestPages             = null;
+	
+	/** The chunks of the files received from peers, null if chunk transfers are not accepted */
+	private ChunkStore chunkStore                   = null;
+	
+	/** The chunks of the local copies of the files being streamed keyed by transfer, least recently used first, guarded by itself */
+	private final Map<String, LocalChunks> localChunks = new LinkedHashMap<String, LocalChunks>(16, 0.75f, true);
+	private static final int MAX_LOCAL_CHUNKS       = 16;
+	
+	/** The uploads of large files in progress, null if resumable uploads are not accepted */
+	private UploadSessions uploadSessions           = null;
+	
+	/** Where files received from peers are put together before they are moved into place */
+	private Path tempDir                            = null;
+	
 	/** To keep track of the checksums of the files */
 	private ChecksumManager checksumManager         = null;
 	
+	/** The writes made on behalf of the peers, whose change events are not sent back */
+	private final WriteRegistry writes              = new WriteRegistry(WriteRegistry.DEFAULT_RETENTION_MILLIS);
+	
 	/**
 	 * Constructs a new communicator that listens on a specific HTTP port.
 	 * @param httpPort the port on which the communicator listens for HTTP requests.
@@ -80,10 +176,6 @@ public class Peer2PeerCommunicator implements DirectoryChangeListener {
 		// Reference to checksum manager
 		this.checksumManager = checksumManager;
 		
-		// Set a temporary directory for the file item factory
-		//File tmpDir = Files.createTempDir();
-		upload = new ServletFileUpload(fileItemFactory);
-		
 		// Get list of peers
 		String initial = AppProperties.get(AppProperties.SYNC_PEERS);
 		if(initial != null) {
@@ -106,6 +198,12 @@ public class Peer2PeerCommunicator implements DirectoryChangeListener {
 	 * directory observer and notifies peers of the change.
 	 */
 	public void listen(DirectoryChangeEvent dirChangeEvent) {
+		// The change was made by us on behalf of a peer
+		if(dirChangeEvent.getAbsoluteFilePath() != null
+				&& writes.isEcho(dirChangeEvent.getAbsoluteFilePath(), dirChangeEvent.getType())) {
+			logger.fine("Change written for a peer will not be broadcasted: " + dirChangeEvent);
+			return;
+		}
 		logger.info("Event received: " + dirChangeEvent);
 		DirectoryChangeEvent event = dirChangeEvent.copy();
 		
@@ -115,49 +213,279 @@ public class Peer2PeerCommunicator implements DirectoryChangeListener {
 		
 		// The changed file
 		File f = null;
-		String checksum = "";
+		BasicFileAttributes attrs = null;
+		long statMillis = System.currentTimeMillis();
 		if(event.getType() == DirectoryChangeEventType.CREATED ||
 				event.getType() == DirectoryChangeEventType.MODIFIED) {
 			f = new File(absolutePath);
-			checksum = ChecksumUtil.computeChecksumForFile(absolutePath);
+			try {
+				attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+			// A file written by a peer, or already sent, still has the stat data
+			// recorded with its checksum. The file is not read here, it is hashed
+			// while it is sent, once for all the peers, and the checksum is
+			// recorded then.
+			Record record = checksumManager.getRecord(absolutePath);
+			if(record != null && record.isClean(attrs)) {
+				logger.info("No change observed in the file. File change will not be broadcasted.");
+				return;
+			}
+			if(record != null && record.matches(attrs)) {
+				// The stat data of a racy record may hide a write, the content is compared
+				String checksum = ChecksumUtil.computeChecksumForFile(absolutePath);
+				if(checksum.equalsIgnoreCase(record.getChecksum())) {
+					checksumManager.updateChecksumOnFile(checksum, absolutePath, attrs, statMillis);
+					logger.info("No change observed in the content. File change will not be broadcasted.");
+					return;
+				}
+			}
+		} else {
+			// Test if the deletion is already known to the checksum manager
+			if(checksumManager.isChecksumValid("", absolutePath)) {
+				// We are aware of this change to don't notify to peers
+				logger.info("No change observed in the content. File change will not be broadcasted.");
+				return;
+			}
+			checksumManager.recordDeletion(absolutePath);
 		}
 		
-		// Test if the checksum of the updated file is the same as one 
-		// with the checksum manager.
-		if(checksumManager.isChecksumValid(checksum, absolutePath)) {
-			// We are aware of this change to don't notify to peers
-			logger.info("No change observed in the content. File change will not be broadcasted.");
+		// Without peers nobody hashes the file, it is hashed here so that the
+		// same change is not handled again
+		List<PeerSender> senders = getSenders();
+		if(senders.isEmpty()) {
+			if(f != null) {
+				checksumManager.updateChecksumOnFile(ChecksumUtil.computeChecksumForFile(absolutePath), absolutePath, attrs, statMillis);
+			}
 			return;
 		}
 		
-		// Update the known checksum 
-		checksumManager.updateChecksumOnFile(checksum, absolutePath);
-		
-		// The event that we intend to send to our peers
-		String eventParam = event.toJSON().toString();
-		Map<String,String> params = new HashMap<String,String>();
-		params.put(EVENT_PARAM, eventParam);
-		Map<String,File> files = null;
-		if(f != null) {
-			files = new HashMap<String,File>();
-			files.put(FILE_PARAM, f);
+		// Queue the event for each of our peers, they are sent in parallel
+		for(PeerSender sender : senders) {
+			sender.submit(event, f);
 		}
-		
-		// Send the event to our peers
-		for(String peer : peers) {
-			String url = "http://" + peer + "/update";
-			try {
-				if(files != null) {
-					Http.post(url, params, files);
-				} else {
-					Http.post(url, params);
+	}
+
+	/**
+	 * Sets the number of threads sending updates to each peer and the maximum
+	 * number of updates queued for each peer. Must be called before any event
+	 * is received.
+	 * @param workers the number of updates sent to a peer in parallel
+	 * @param capacity the maximum number of updates queued for a peer, further
+	 *        updates to that peer are sent from the journal once there is room
+	 */
+	public synchronized void setPeerQueues(int workers, int capacity) {
+		checkSendersNotCreated();
+		this.senderWorkers = workers;
+		this.senderCapacity = capacity;
+	}
+	
+	/**
+	 * Sets the delays between attempts to send updates to a peer that cannot
+	 * be reached. Must be called before any event is received.
+	 * @param minMillis the delay before the first retry
+	 * @param maxMillis the maximum delay, the delay doubles after every failed retry
+	 */
+	public synchronized void setPeerRetry(long minMillis, long maxMillis) {
+		checkSendersNotCreated();
+		this.retryMinMillis = minMillis;
+		this.retryMaxMillis = maxMillis;
+	}
+	
+	/**
+	 * Sets the directory where the journal of the updates to each peer is kept.
+	 * Without a directory, updates not yet sent are lost on a restart. Must be
+	 * called before any event is received.
+	 * @param journalDir the directory
+	 */
+	public synchronized void setJournalDirectory(Path journalDir) {
+		checkSendersNotCreated();
+		this.journalDir = journalDir;
+	}
+	
+	/**
+	 * Sets the size from which modified files are sent to peers as a delta
+	 * against the copy of the peer instead of in full. Must be called before
+	 * any event is received.
+	 * @param deltaMinSize the size in bytes, -1 to always send files in full
+	 */
+	public synchronized void setDeltaMinSize(long deltaMinSize) {
+		checkSendersNotCreated();
+		this.deltaMinSize = deltaMinSize;
+	}
+	
+	/**
+	 * Sets how created and modified files are sent to peers. Must be called
+	 * before any event is received.
+	 * @param transferMode the transfer mode
+	 * @param chunkMinSize the size from which files are sent as chunks in the chunks mode
+	 */
+	public synchronized void setTransferMode(TransferMode transferMode, long chunkMinSize) {
+		checkSendersNotCreated();
+		this.transferMode = transferMode;
+		this.chunkMinSize = chunkMinSize;
+	}
+	
+	/**
+	 * Sets the chunk store that keeps the chunks of the files received from
+	 * peers. Without a chunk store peers send files in full.
+	 * @param chunkStore the chunk store
+	 */
+	public void setChunkStore(ChunkStore chunkStore) {
+		this.chunkStore = chunkStore;
+	}
+	
+	/**
+	 * Sets where the uploads of large files from peers are kept until they
+	 * are complete. Without it peers send large files in a single request,
+	 * which starts over when it fails.
+	 * @param uploadSessions the uploads in progress
+	 */
+	public void setUploadSessions(UploadSessions uploadSessions) {
+		this.uploadSessions = uploadSessions;
+	}
+	
+	/**
+	 * Sets the size from which files are sent to peers as resumable uploads.
+	 * Must be called before any event is received.
+	 * @param resumableMinSize the size in bytes, -1 to never resume uploads
+	 */
+	public synchronized void setResumableMinSize(long resumableMinSize) {
+		checkSendersNotCreated();
+		this.resumableMinSize = resumableMinSize;
+	}
+	
+	/**
+	 * Sets the compression level of the data sent to peers. Must be called
+	 * before any event is received.
+	 * @param compressionLevel the deflate level from 1 to 9, 0 disables compression
+	 */
+	public synchronized void setCompressionLevel(int compressionLevel) {
+		checkSendersNotCreated();
+		this.compressionLevel = compressionLevel;
+	}
+	
+	/**
+	 * Sets the size from which files sent in full are sent straight from the
+	 * page cache. Must be called before any event is received.
+	 * @param zeroCopyMinSize the size in bytes, -1 to always send files as multipart
+	 */
+	public synchronized void setZeroCopyMinSize(long zeroCopyMinSize) {
+		checkSendersNotCreated();
+		this.zeroCopyMinSize = zeroCopyMinSize;
+	}
+	
+	/**
+	 * Sets the limits of the batches of small files and deletes sent to peers
+	 * in a single request. Must be called before any event is received.
+	 * @param maxUpdates the maximum number of updates of a batch, 0 to send every update on its own
+	 * @param maxBytes the maximum number of bytes of the files of a batch
+	 * @param maxDelayMillis the maximum time an update waits for its batch to fill
+	 */
+	public synchronized void setBatchLimits(int maxUpdates, long maxBytes, long maxDelayMillis) {
+		checkSendersNotCreated();
+		this.batchMaxUpdates = maxUpdates;
+		this.batchMaxBytes = maxBytes;
+		this.batchMaxDelayMillis = maxDelayMillis;
+	}
+	
+	/**
+	 * Sets the bandwidth limits of the updates sent to the peers. Must be
+	 * called before any event is received.
+	 * @param bytesPerSecond the maximum throughput to all the peers, 0 for no limit
+	 * @param peerBytesPerSecond the maximum throughput to each peer, 0 for no limit
+	 */
+	public synchronized void setBandwidthLimits(long bytesPerSecond, long peerBytesPerSecond) {
+		checkSendersNotCreated();
+		this.scheduler = new TransferScheduler(bytesPerSecond);
+		this.peerBytesPerSecond = peerBytesPerSecond;
+	}
+	
+	/**
+	 * Sets the size from which files are sent to peers after the other
+	 * updates, giving way to them while they are sent. Must be called before
+	 * any event is received.
+	 * @param largeFileSize the size in bytes
+	 */
+	public synchronized void setLargeFileSize(long largeFileSize) {
+		checkSendersNotCreated();
+		this.largeFileSize = largeFileSize;
+	}
+	
+	/**
+	 * Sets the maximum number of parts of a large file sent to a peer at
+	 * once, each over its own connection. Must be called before any event is
+	 * received.
+	 * @param maxStreams the maximum number of parts, 1 to send one part at a time
+	 */
+	public synchronized void setMaxStreams(int maxStreams) {
+		checkSendersNotCreated();
+		this.maxStreams = maxStreams;
+	}
+	
+	/**
+	 * Sets the time between two reconciliations of the sync directory with
+	 * the peers, which send the peers the files they missed.
+	 * @param intervalMillis the time between two reconciliations, 0 to never reconcile
+	 */
+	public synchronized void setAntiEntropyInterval(long intervalMillis) {
+		this.antiEntropyIntervalMillis = intervalMillis;
+	}
+	
+	/**
+	 * Sets the directory where files received from peers are put together
+	 * before they are moved into the sync directory. It should be on the same
+	 * file system as the sync directory so that the move is atomic.
+	 * @param tempDir the directory
+	 */
+	public void setTempDirectory(Path tempDir) {
+		this.tempDir = tempDir;
+	}
+	
+	private void checkSendersNotCreated() {
+		if(senders != null) {
+			throw new IllegalStateException("The peer queues have already been created.");
+		}
+	}
+	
+	/**
+	 * Returns the outbound queues of the peers, creating them if needed.
+	 */
+	private synchronized List<PeerSender> getSenders() {
+		if(senders == null) {
+			senders = new ArrayList<PeerSender>();
+			for(String value : peers) {
+				String peer = value.trim();
+				ReplicationJournal journal;
+				try {
+					if(journalDir != null) {
+						Files.createDirectories(journalDir);
+						journal = new ReplicationJournal(journalDir.resolve(peer.replaceAll("[^A-Za-z0-9._-]", "_") + ".journal"));
+					} else {
+						journal = new ReplicationJournal(null);
+					}
+				} catch(IOException e) {
+					throw new RuntimeException("Failed to open the journal of peer: " + peer, e);
 				}
-			} catch (Exception e) {
-				logger.log(Level.WARNING, "Failed to send update to peer: " + peer, e);
+				PeerSender sender = new PeerSender(peer, journal, senderWorkers, senderCapacity, retryMinMillis, retryMaxMillis);
+				sender.setTransferMode(transferMode);
+				sender.setCompression(new Compression(compressionLevel));
+				sender.setZeroCopyMinSize(zeroCopyMinSize);
+				sender.setResumableMinSize(resumableMinSize);
+				sender.setMaxStreams(maxStreams);
+				sender.setScheduler(new TransferScheduler(scheduler, peerBytesPerSecond));
+				sender.setLargeFileSize(largeFileSize);
+				sender.setBatchLimits(batchMaxUpdates, batchMaxBytes, batchMaxDelayMillis);
+				sender.setChecksumManager(checksumManager);
+				sender.setChunkMinSize(chunkMinSize);
+				sender.setDeltaMinSize(deltaMinSize);
+				senders.add(sender);
 			}
 		}
+		return senders;
 	}
-
+	
 	public String getName() {
 		return Peer2PeerCommunicator.class.getName();
 	}
@@ -168,33 +496,205 @@ public class Peer2PeerCommunicator implements DirectoryChangeListener {
 	 * @throws Exception If the operation could not be completed successfully.
 	 */
 	public void start() throws Exception {
+		// Updates left pending by a previous run are sent as soon as the queues exist
+		getSenders();
+		antiEntropy = new AntiEntropy(checksumManager,
+				Paths.get(AppProperties.get(AppProperties.SYNC_DIR)).toAbsolutePath().normalize().toFile());
+		manifestPages = new ManifestPages(checksumManager);
+		
 		httpServer = new Server(httpPort);
 		
-		// Create a context that handles the updates
+		// Create a context that handles the updates. The contexts take requests
+		// without a trailing slash since our client does not follow redirects.
 		ContextHandler updateContext = new ContextHandler();
 		updateContext.setHandler(new UpdateHandler());
 		updateContext.setContextPath("/update");
 		updateContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		updateContext.setAllowNullPathInfo(true);
 		//updateContext.setResourceBase(".");
 		logger.fine("Setting the update context.");
 		
+		// Create a context that handles updates with the file as the raw body
+		ContextHandler rawUpdateContext = new ContextHandler();
+		rawUpdateContext.setHandler(new RawUpdateHandler());
+		rawUpdateContext.setContextPath("/update/raw");
+		rawUpdateContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		rawUpdateContext.setAllowNullPathInfo(true);
+		logger.fine("Setting the raw update context.");
+		
+		// Create a context that handles many updates in a single request
+		ContextHandler batchUpdateContext = new ContextHandler();
+		batchUpdateContext.setHandler(new BatchUpdateHandler());
+		batchUpdateContext.setContextPath("/update/batch");
+		batchUpdateContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		batchUpdateContext.setAllowNullPathInfo(true);
+		logger.fine("Setting the batch update context.");
+		
 		// Create a context that handles stopping the service
 		ContextHandler stopContext = new ContextHandler();
 		stopContext.setContextPath("/stop");
 		stopContext.setHandler(new StopHandler());
 		stopContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		stopContext.setAllowNullPathInfo(true);
 		//stopContext.setResourceBase(".");
 		logger.fine("Setting the update context.");
 	
+		// Create a context that reports statistics
+		ContextHandler statsContext = new ContextHandler();
+		statsContext.setContextPath("/stats");
+		statsContext.setHandler(new StatsHandler());
+		statsContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		statsContext.setAllowNullPathInfo(true);
+		logger.fine("Setting the stats context.");
+	
+		// Create the contexts that handle delta transfers
+		ContextHandler signaturesContext = new ContextHandler();
+		signaturesContext.setContextPath("/signatures");
+		signaturesContext.setHandler(new SignaturesHandler());
+		signaturesContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		signaturesContext.setAllowNullPathInfo(true);
+		ContextHandler deltaContext = new ContextHandler();
+		deltaContext.setContextPath("/delta");
+		deltaContext.setHandler(new DeltaHandler());
+		deltaContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		deltaContext.setAllowNullPathInfo(true);
+		logger.fine("Setting the delta contexts.");
+	
+		// Create the contexts that handle chunk transfers
+		ContextHandler chunksWantContext = new ContextHandler();
+		chunksWantContext.setContextPath("/chunks/want");
+		chunksWantContext.setHandler(new ChunksWantHandler());
+		chunksWantContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		chunksWantContext.setAllowNullPathInfo(true);
+		ContextHandler chunksCommitContext = new ContextHandler();
+		chunksCommitContext.setContextPath("/chunks/commit");
+		chunksCommitContext.setHandler(new ChunksCommitHandler());
+		chunksCommitContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		chunksCommitContext.setAllowNullPathInfo(true);
+		ContextHandler chunksHaveContext = new ContextHandler();
+		chunksHaveContext.setContextPath("/chunks/have");
+		chunksHaveContext.setHandler(new ChunksHaveHandler());
+		chunksHaveContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		chunksHaveContext.setAllowNullPathInfo(true);
+		ContextHandler chunksStreamContext = new ContextHandler();
+		chunksStreamContext.setContextPath("/chunks/stream");
+		chunksStreamContext.setHandler(new ChunksStreamHandler());
+		chunksStreamContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		chunksStreamContext.setAllowNullPathInfo(true);
+		logger.fine("Setting the chunk contexts.");
+	
+		// Create the contexts that handle resumable uploads
+		ContextHandler uploadCreateContext = new ContextHandler();
+		uploadCreateContext.setContextPath("/upload/create");
+		uploadCreateContext.setHandler(new UploadCreateHandler());
+		uploadCreateContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		uploadCreateContext.setAllowNullPathInfo(true);
+		ContextHandler uploadStatusContext = new ContextHandler();
+		uploadStatusContext.setContextPath("/upload/status");
+		uploadStatusContext.setHandler(new UploadStatusHandler());
+		uploadStatusContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		uploadStatusContext.setAllowNullPathInfo(true);
+		ContextHandler uploadPartContext = new ContextHandler();
+		uploadPartContext.setContextPath("/upload/part");
+		uploadPartContext.setHandler(new UploadPartHandler());
+		uploadPartContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		uploadPartContext.setAllowNullPathInfo(true);
+		ContextHandler uploadCommitContext = new ContextHandler();
+		uploadCommitContext.setContextPath("/upload/commit");
+		uploadCommitContext.setHandler(new UploadCommitHandler());
+		uploadCommitContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		uploadCommitContext.setAllowNullPathInfo(true);
+		logger.fine("Setting the upload contexts.");
+	
+		// Create a context that returns the hashes of directories for reconciliations
+		ContextHandler manifestContext = new ContextHandler();
+		manifestContext.setContextPath("/manifest");
+		manifestContext.setHandler(new ManifestHandler());
+		manifestContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		manifestContext.setAllowNullPathInfo(true);
+		ContextHandler manifestEntriesContext = new ContextHandler();
+		manifestEntriesContext.setContextPath("/manifest/entries");
+		manifestEntriesContext.setHandler(new ManifestEntriesHandler());
+		manifestEntriesContext.setClassLoader(Thread.currentThread().getContextClassLoader());
+		manifestEntriesContext.setAllowNullPathInfo(true);
+		logger.fine("Setting the manifest contexts.");
+	
 		// Create a collection of context each to match an operation
 		ContextHandlerCollection contexts = new ContextHandlerCollection();
 		contexts.addHandler(updateContext);
+		contexts.addHandler(rawUpdateContext);
+		contexts.addHandler(batchUpdateContext);
 		contexts.addHandler(stopContext);
+		contexts.addHandler(statsContext);
+		contexts.addHandler(signaturesContext);
+		contexts.addHandler(deltaContext);
+		contexts.addHandler(chunksWantContext);
+		contexts.addHandler(chunksCommitContext);
+		contexts.addHandler(chunksHaveContext);
+		contexts.addHandler(chunksStreamContext);
+		contexts.addHandler(uploadCreateContext);
+		contexts.addHandler(uploadStatusContext);
+		contexts.addHandler(uploadPartContext);
+		contexts.addHandler(uploadCommitContext);
+		contexts.addHandler(manifestContext);
+		contexts.addHandler(manifestEntriesContext);
 		httpServer.setHandler(contexts);
 		
 		logger.info("Starting the http listener.");
 		httpServer.start();
+		
+		// Reconcile with the peers now and then, the first time shortly after
+		// starting since updates may have been missed while we were down
+		ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("fsync-maintenance").setDaemon(true).build());
+		if(antiEntropyIntervalMillis > 0) {
+			maintenance.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					reconcile();
+				}
+			}, Math.min(antiEntropyIntervalMillis, ANTI_ENTROPY_FIRST_DELAY_MILLIS), antiEntropyIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+		
+		// Forget the deleted files once the peers heard of them
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				final List<PeerSender> senders = getSenders();
+				checksumManager.expireDeletions(ChecksumManager.DEFAULT_DELETION_RETENTION_MILLIS, new Predicate<String>() {
+					public boolean apply(String path) {
+						for(PeerSender sender : senders) {
+							if(sender.isPending(path)) {
+								return true;
+							}
+						}
+						return false;
+					}
+				});
+			}
+		}, EXPIRY_INTERVAL_MILLIS, EXPIRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
 		httpServer.join();
+		maintenance.shutdownNow();
+		
+		// Give the queued updates a chance to go out
+		for(PeerSender sender : getSenders()) {
+			if(!sender.shutdown(30, TimeUnit.SECONDS)) {
+				logger.warning("Timed out sending queued updates to peer " + sender.getPeer() + ", "
+						+ sender.getPending() + " updates are left in the journal.");
+			}
+		}
+	}
+	
+	/**
+	 * Reconciles the sync directory with each peer in turn.
+	 */
+	private void reconcile() {
+		for(PeerSender sender : getSenders()) {
+			try {
+				antiEntropy.reconcile(sender);
+			} catch(Exception e) {
+				logger.warning("Failed to reconcile with peer " + sender.getPeer() + ". " + e.getLocalizedMessage());
+			}
+		}
 	}
 	
 	/**
@@ -214,9 +714,11 @@ public class Peer2PeerCommunicator implements DirectoryChangeListener {
 	 * This method applies the change sent by the peers to the local file system under
 	 * observation.
 	 * @param dce applies the change as described in the event
-	 * @param data optional data if a file is modified or created
+	 * @param received the file received if a file is modified or created
+	 * @param checksum the checksum of the file received
+	 * @throws IOException if the file could not be moved into place
 	 */
-	private void updateDirectory(DirectoryChangeEvent dce, InputStream data) {
+	private void updateDirectory(DirectoryChangeEvent dce, Path received, String checksum) throws IOException {
 		if(dce.getType() == null) {
 			throw new NullPointerException("The directory change event must always have a type.");
 		}
@@ -224,61 +726,179 @@ public class Peer2PeerCommunicator implements DirectoryChangeListener {
 		case CREATED:
 		case MODIFIED:
 			// The data needs to be written out to disk
-			if(data == null) {
+			if(received == null) {
 				throw new RuntimeException("The directory change event of type created or modified must be accompanied by file data.");
 			}
-			// Copy the file from input to its appropriate location
-			String filepath = AppProperties.get(AppProperties.SYNC_DIR) + dce.getRelativeFilePath();
-			FileOutputStream out = null;
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			File target = resolveSyncPath(dce.getRelativeFilePath());
 			try {
-				// Copy the bytes into our buffer
-				Streams.copy(data, baos, true);
-				
-				// Compute the checksum
-				String checksum = ChecksumUtil.computeChecksumForData(baos.toByteArray());
-				
-				// Notify the checksum manager of the change
-				checksumManager.updateChecksumOnFile(checksum, filepath);
-				
 				// Update file on disk
-				out = new FileOutputStream(filepath);
-				logger.info("Updating file: " + filepath);
-				Streams.copy(new ByteArrayInputStream(baos.toByteArray()), out, true);
-				out.close();
-			} catch (Exception e) {
-				logger.severe("Failed to update file: " + filepath);
-			} finally {
-				if(data != null) {
-					try {
-						data.close();
-					} catch (IOException ignore) {}
-				}
-				if(out != null) {
-					try {
-						out.close();
-					} catch(IOException ignore) {}
-				}
+				logger.info("Updating file: " + target.getAbsolutePath());
+				installFile(received, target, checksum);
+			} catch (IOException e) {
+				logger.severe("Failed to update file: " + target.getAbsolutePath());
+				throw e;
 			}
 			break;
 		case DELETED:
 			// Delete the file from disk
-			File f = new File(AppProperties.get(AppProperties.SYNC_DIR) + File.separator + dce.getRelativeFilePath());
-			
-			// Update the checksum
-			checksumManager.updateChecksumOnFile("", f.getAbsolutePath()); //empty out the checksum
+			File f = resolveSyncPath(dce.getRelativeFilePath());
 			
+			// The deletion is recorded once the file is gone
 			if(f.exists()) {
+				Write delete = writes.begin(f.getAbsolutePath());
 				if(!f.delete()) {
+					writes.abort(delete);
 					logger.warning("Failed to delete file: " + f.getAbsolutePath());
-				} else {
-					logger.info("File deleted: " + f.getAbsolutePath());
+					break;
 				}
+				writes.complete(delete, null);
+				logger.info("File deleted: " + f.getAbsolutePath());
 			}
+			checksumManager.recordDeletion(f.getAbsolutePath());
 			break;
 		}
 	}
 	
+	/**
+	 * Resolves a path relative to the sync directory. Paths sent by peers that
+	 * would resolve outside of the sync directory are rejected.
+	 * @param relativePath the path relative to the sync directory
+	 * @return the file in the sync directory
+	 */
+	private File resolveSyncPath(String relativePath) {
+		Path syncDir = Paths.get(AppProperties.get(AppProperties.SYNC_DIR)).toAbsolutePath().normalize();
+		Path path = syncDir.resolve(relativePath).normalize();
+		if(!path.startsWith(syncDir) || path.equals(syncDir)) {
+			throw new IllegalArgumentException("The path is not in the sync directory: " + relativePath);
+		}
+		return path.toFile();
+	}
+	
+	/**
+	 * Reads the event sent by a peer.
+	 * @param event the event in JSON format
+	 * @return the event
+	 * @throws IllegalArgumentException if the event is malformed
+	 */
+	private static DirectoryChangeEvent readEvent(String event) {
+		try {
+			return DirectoryChangeEvent.fromJSON(event);
+		} catch(JSONException e) {
+			throw new IllegalArgumentException("Malformed event: " + e.getLocalizedMessage(), e);
+		}
+	}
+	
+	/**
+	 * Opens the body of a request, decompressing it if the peer compressed it.
+	 * @return the body or null if the content encoding is not supported, the
+	 *         error has then been sent
+	 */
+	private InputStream openBody(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String contentEncoding = request.getHeader("Content-Encoding");
+		InputStream body = Compression.decompress(request.getInputStream(), contentEncoding);
+		if(body == null) {
+			response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "Unsupported content encoding: " + contentEncoding);
+		}
+		return body;
+	}
+	
+	/**
+	 * Writes a file received from a peer to a temporary file and computes its
+	 * checksum as the bytes arrive. The stream is closed.
+	 * @param data the file sent by the peer
+	 * @param tmp the temporary file
+	 * @return the checksum of the file
+	 */
+	private String receiveFile(InputStream data, Path tmp) throws IOException {
+		try {
+			return ChecksumUtil.encode(receiveFile(data, tmp, -1));
+		} finally {
+			data.close();
+		}
+	}
+	
+	/**
+	 * Writes a file received from a peer to a temporary file and computes its
+	 * digest as the bytes arrive. The stream is left open.
+	 * @param data the file sent by the peer
+	 * @param tmp the temporary file
+	 * @param length the length of the file or -1 to read the stream to the end
+	 * @return the digest of the file
+	 */
+	private byte[] receiveFile(InputStream data, Path tmp, long length) throws IOException {
+		MessageDigest md = ChecksumUtil.createMessageDigest();
+		FileOutputStream out = new FileOutputStream(tmp.toFile());
+		try {
+			byte[] buf = new byte[64 * 1024];
+			long remaining = length < 0 ? Long.MAX_VALUE : length;
+			while(remaining > 0) {
+				int n = data.read(buf, 0, (int)Math.min(buf.length, remaining));
+				if(n < 0) {
+					if(length < 0) {
+						break;
+					}
+					throw new EOFException("The file sent by the peer is shorter than " + length + " bytes.");
+				}
+				md.update(buf, 0, n);
+				out.write(buf, 0, n);
+				remaining -= n;
+			}
+			out.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+		return md.digest();
+	}
+	
+	/**
+	 * Creates a temporary file for a file received from a peer.
+	 */
+	private Path createTempFile() throws IOException {
+		if(tempDir != null) {
+			Files.createDirectories(tempDir);
+			return Files.createTempFile(tempDir, "recv", ".tmp");
+		}
+		return Files.createTempFile("fsync-recv", ".tmp");
+	}
+	
+	/**
+	 * Replaces a file of the sync directory with a file received from a peer.
+	 * The checksum manager is told the checksum and the stat data of the file
+	 * once the file is in place, so a failed move leaves the previous record.
+	 * A rename keeps the size, modification time and inode of the file, a
+	 * file copied from another file system has new stat data which is read
+	 * again. The write is registered so that its change events are dropped
+	 * before they reach the checksum manager.
+	 * @param tmp the file received
+	 * @param target the file of the sync directory
+	 * @param checksum the checksum of the file received
+	 */
+	private void installFile(Path tmp, File target, String checksum) throws IOException {
+		// The file may be in a directory that does not exist yet
+		target.getParentFile().mkdirs();
+		long statMillis = System.currentTimeMillis();
+		BasicFileAttributes attrs = Files.readAttributes(tmp, BasicFileAttributes.class);
+		Write write = writes.begin(target.getAbsolutePath());
+		boolean moved = false;
+		try {
+			try {
+				Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException e) {
+				// The temporary directory is on another file system
+				Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				attrs = Files.readAttributes(target.toPath(), BasicFileAttributes.class);
+			}
+			checksumManager.updateChecksumOnFile(checksum, target.getAbsolutePath(), attrs, statMillis);
+			moved = true;
+		} finally {
+			if(moved) {
+				writes.complete(write, attrs);
+			} else {
+				writes.abort(write);
+			}
+		}
+	}
+	
 	/**
 	 * This class handles the HTTP update requests to the server.
 	 * The update notification should typically contain the full file
@@ -289,28 +909,43 @@ public class Peer2PeerCommunicator implements DirectoryChangeListener {
 	public class UpdateHandler extends AbstractHandler {
 		public void handle(String target, Request baseRequest, HttpServletRequest request,
 				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			
 			// Parse the request
 			String event = null;
-			InputStream data = null;
+			Path received = null;
+			String checksum = null;
 			try {
 				// Is the request a multi-part request
 				if(ServletFileUpload.isMultipartContent(request)) {
-					List<FileItem> items = upload.parseRequest(request);
-					if(items != null) {
-						for(FileItem item : items) {
-							// Handle event
-							if(item.isFormField() && item.getFieldName().equalsIgnoreCase(EVENT_PARAM)) {
-								event = item.getString();
-								continue;
-							}
-							// Handle file
-							if(item.getFieldName().equalsIgnoreCase(FILE_PARAM)) {
-								data = item.getInputStream();
-							}
+					// The parts are read as they arrive, the file is written once to its temporary file
+					FileItemIterator items = upload.getItemIterator(request);
+					while(items.hasNext()) {
+						FileItemStream item = items.next();
+						// Handle event
+						if(item.isFormField() && item.getFieldName().equalsIgnoreCase(EVENT_PARAM)) {
+							event = Streams.asString(item.openStream(), charsetOf(item.getContentType()));
+							continue;
+						}
+						// Handle file
+						if(item.getFieldName().equalsIgnoreCase(FILE_PARAM) && received == null) {
+							received = createTempFile();
+							checksum = receiveFile(item.openStream(), received);
 						}
 					}
 				} else {
 					event = request.getParameter(EVENT_PARAM);
+					
+					// The file may be sent as the body of the request, compressed or not
+					String contentType = request.getContentType();
+					if(contentType != null && contentType.startsWith(OCTET_STREAM)) {
+						InputStream data = openBody(request, response);
+						if(data == null) {
+							return;
+						}
+						received = createTempFile();
+						checksum = receiveFile(data, received);
+					}
 				}
 				
 				if(event == null) {
@@ -320,17 +955,194 @@ public class Peer2PeerCommunicator implements DirectoryChangeListener {
 				
 				// Update the local directory with the change prescribed in the event
 				DirectoryChangeEvent dce = DirectoryChangeEvent.fromJSON(event);
-				updateDirectory(dce, data);
+				updateDirectory(dce, received, checksum);
 				
 				// Send response OK
 				response.setStatus(HttpServletResponse.SC_OK);
 			} catch (FileUploadException e) {
 				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getLocalizedMessage());
 				return;
+			} finally {
+				if(received != null) {
+					Files.deleteIfExists(received);
+				}
+			}
+		}
+		
+		/**
+		 * Returns the charset of a form field, ISO-8859-1 unless its content type says otherwise.
+		 */
+		private String charsetOf(String contentType) {
+			if(contentType != null) {
+				for(String param : contentType.split(";")) {
+					param = param.trim();
+					if(param.regionMatches(true, 0, "charset=", 0, 8)) {
+						return param.substring(8).replace("\"", "");
+					}
+				}
 			}
+			return "ISO-8859-1";
 		}
 	}//UpdateHandler
 	
+	/**
+	 * The raw update handler receives a created or modified file as the body
+	 * of the request, with the event in a header. There is no multipart
+	 * framing so the peer can send the file straight from its page cache.
+	 * When the length of the file is given in a header, the file is followed
+	 * by its digest and is only moved into place if it matches. A peer that
+	 * knew the checksum of the file before sending it sends the checksum in a
+	 * header instead of the digest.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class RawUpdateHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			String event = request.getHeader(EVENT_HEADER);
+			if(event == null) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The '" + EVENT_HEADER + "' header not found in the request.");
+				return;
+			}
+			String lengthHeader = request.getHeader(LENGTH_HEADER);
+			long length = -1;
+			if(lengthHeader != null) {
+				try {
+					length = Long.parseLong(lengthHeader);
+				} catch(NumberFormatException e) {
+					length = -1;
+				}
+				if(length < 0) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid '" + LENGTH_HEADER + "' header: " + lengthHeader);
+					return;
+				}
+			}
+			InputStream data = openBody(request, response);
+			if(data == null) {
+				return;
+			}
+			String expectedChecksum = request.getHeader(CHECKSUM_HEADER);
+			Path received = createTempFile();
+			try {
+				String checksum;
+				if(lengthHeader == null) {
+					checksum = receiveFile(data, received);
+				} else {
+					// The file is followed by the digest the peer computed while sending it,
+					// unless the peer sent the checksum it knew beforehand
+					byte[] digest = receiveFile(data, received, length);
+					byte[] expected = null;
+					if(expectedChecksum == null) {
+						expected = new byte[digest.length];
+						ByteStreams.readFully(data, expected);
+					}
+					// Reading to the end also consumes the end of a compressed body
+					boolean trailing = data.read() >= 0;
+					data.close();
+					if(trailing) {
+						response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The body is longer than the file and its digest.");
+						return;
+					}
+					checksum = ChecksumUtil.encode(digest);
+					if(expected != null ? !MessageDigest.isEqual(digest, expected) : !checksum.equalsIgnoreCase(expectedChecksum)) {
+						logger.info("The file received does not match the digest sent by the peer: " + event);
+						response.sendError(HttpServletResponse.SC_CONFLICT, "The file does not match its digest.");
+						return;
+					}
+				}
+				DirectoryChangeEvent dce = DirectoryChangeEvent.fromJSON(URLDecoder.decode(event, "UTF-8"));
+				updateDirectory(dce, received, checksum);
+				response.setStatus(HttpServletResponse.SC_OK);
+			} finally {
+				Files.deleteIfExists(received);
+			}
+		}
+	}
+	
+	/**
+	 * The batch update handler receives many updates in a single request, as
+	 * framed by {@link UpdateBatch}. The updates are applied one after the
+	 * other as they arrive and the status of each of them is returned, so a
+	 * file that cannot be applied does not fail the rest of the batch. Only a
+	 * body that cannot be read fails the request.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class BatchUpdateHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			InputStream body = openBody(request, response);
+			if(body == null) {
+				return;
+			}
+			DataInputStream in = new DataInputStream(new BufferedInputStream(body, 64 * 1024));
+			List<Result> results = new ArrayList<Result>();
+			Path received = null;
+			try {
+				UpdateBatch.readHeader(in);
+				Update update;
+				while((update = UpdateBatch.readUpdate(in)) != null) {
+					String checksum = null;
+					if(update.hasFile()) {
+						// The file is followed by the digest the peer computed while sending it
+						received = createTempFile();
+						byte[] digest = receiveFile(in, received, update.getLength());
+						byte[] expected = new byte[digest.length];
+						in.readFully(expected);
+						if(!MessageDigest.isEqual(digest, expected)) {
+							logger.info("The file received does not match the digest sent by the peer: " + update.getEvent());
+							results.add(new Result(HttpServletResponse.SC_CONFLICT, "The file does not match its digest."));
+							Files.delete(received);
+							received = null;
+							continue;
+						}
+						checksum = ChecksumUtil.encode(digest);
+					}
+					results.add(applyUpdate(update.getEvent(), received, checksum));
+					if(received != null) {
+						Files.deleteIfExists(received);
+						received = null;
+					}
+				}
+				// Reading to the end also consumes the end of a compressed body
+				if(in.read() >= 0) {
+					throw new IOException("The body continues after the end of the batch.");
+				}
+			} catch(IOException e) {
+				logger.warning("Failed to read update batch after " + results.size() + " updates. " + e.getLocalizedMessage());
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+				return;
+			} finally {
+				in.close();
+				if(received != null) {
+					Files.deleteIfExists(received);
+				}
+			}
+			response.setContentType("application/json");
+			response.setStatus(HttpServletResponse.SC_OK);
+			UpdateBatch.writeResults(results, response.getWriter());
+		}
+		
+		/**
+		 * Applies an update of a batch.
+		 * @return the outcome of the update
+		 */
+		private Result applyUpdate(String event, Path received, String checksum) {
+			try {
+				DirectoryChangeEvent dce = DirectoryChangeEvent.fromJSON(event);
+				updateDirectory(dce, received, checksum);
+				return new Result(HttpServletResponse.SC_OK, null);
+			} catch(IOException e) {
+				return new Result(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getLocalizedMessage());
+			} catch(RuntimeException e) {
+				logger.warning("Failed to apply update: " + event + ". " + e.getLocalizedMessage());
+				return new Result(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+			}
+		}
+	}
+	
 	/**
 	 * The stop handler stops the http server causing the application to eventually shutdown.
 	 * @author shreyas shinde
@@ -360,4 +1172,556 @@ public class Peer2PeerCommunicator implements DirectoryChangeListener {
 			stopper.start();
 		}
 	}
+	
+	/**
+	 * Returns the statistics of the communicator in JSON format.
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		PoolStats pool = Http.getPoolStats();
+		if(pool != null) {
+			JSONObject http = new JSONObject();
+			http.put("leased", pool.getLeased());
+			http.put("available", pool.getAvailable());
+			http.put("pending", pool.getPending());
+			http.put("max", pool.getMax());
+			stats.put("httpPool", http);
+		}
+		JSONObject peerStats = new JSONObject();
+		for(PeerSender sender : getSenders()) {
+			peerStats.put(sender.getPeer(), sender.getStats());
+		}
+		stats.put("peers", peerStats);
+		stats.put("bandwidth", scheduler.getStats());
+		stats.put("peerWrites", writes.getStats());
+		if(chunkStore != null) {
+			stats.put("chunkStore", chunkStore.getStats());
+		}
+		if(antiEntropy != null) {
+			stats.put("antiEntropy", antiEntropy.getStats());
+		}
+		return stats;
+	}
+	
+	/**
+	 * The stats handler returns the statistics of the communicator in JSON format.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class StatsHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			response.setContentType("application/json");
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.getWriter().write(getStats().toString());
+			baseRequest.setHandled(true);
+		}
+	}
+	
+	/**
+	 * The signatures handler returns the block signatures of a file so that a
+	 * peer can send a modified file as a delta.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class SignaturesHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			String path = request.getParameter(PATH_PARAM);
+			if(path == null) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The 'path' parameter not found in the request.");
+				return;
+			}
+			File f;
+			try {
+				f = resolveSyncPath(path);
+			} catch(IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+				return;
+			}
+			if(!f.isFile()) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			response.setContentType("application/octet-stream");
+			response.setStatus(HttpServletResponse.SC_OK);
+			DeltaSync.writeSignatures(f.toPath(), new DataOutputStream(new BufferedOutputStream(response.getOutputStream(), 64 * 1024)));
+		}
+	}
+	
+	/**
+	 * The delta handler rebuilds a modified file from a delta against the
+	 * local copy of the file.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class DeltaHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			String event = request.getParameter(EVENT_PARAM);
+			if(event == null) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The 'event' parameter not found in the request.");
+				return;
+			}
+			File f;
+			try {
+				f = resolveSyncPath(readEvent(event).getRelativeFilePath());
+			} catch(IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+				return;
+			}
+			if(!f.isFile()) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			Path tmp = createTempFile();
+			try {
+				InputStream body = openBody(request, response);
+				if(body == null) {
+					return;
+				}
+				String checksum = DeltaSync.applyDelta(new DataInputStream(new BufferedInputStream(body, 64 * 1024)),
+						f.toPath(), tmp);
+				
+				logger.info("Updating file from delta: " + f.getAbsolutePath());
+				installFile(tmp, f, checksum);
+				response.setStatus(HttpServletResponse.SC_OK);
+			} catch(DeltaMismatchException e) {
+				logger.info("Delta does not match the local copy of " + f.getAbsolutePath() + ". " + e.getLocalizedMessage());
+				response.sendError(HttpServletResponse.SC_CONFLICT, e.getLocalizedMessage());
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+	}
+	
+	/**
+	 * The chunks want handler receives the manifest of a file and returns the
+	 * chunks of the file that are not in the chunk store.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class ChunksWantHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			String path = request.getParameter(PATH_PARAM);
+			if(path == null) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The 'path' parameter not found in the request.");
+				return;
+			}
+			if(chunkStore == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			File f;
+			try {
+				f = resolveSyncPath(path);
+			} catch(IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+				return;
+			}
+			Manifest manifest = ChunkTransfer.readManifest(new DataInputStream(new BufferedInputStream(request.getInputStream(), 64 * 1024)));
+			
+			// The local copy of the file usually has most of the chunks of a modified file
+			int[] missing = ChunkTransfer.findMissing(manifest, chunkStore, f.toPath());
+			response.setContentType("application/octet-stream");
+			response.setStatus(HttpServletResponse.SC_OK);
+			ChunkTransfer.writeMissing(missing, new DataOutputStream(new BufferedOutputStream(response.getOutputStream())));
+		}
+	}
+	
+	/**
+	 * The chunks commit handler puts a file together from the chunks sent by
+	 * the peer and the chunks in the chunk store.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class ChunksCommitHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			String event = request.getParameter(EVENT_PARAM);
+			if(event == null) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The 'event' parameter not found in the request.");
+				return;
+			}
+			if(chunkStore == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			File f;
+			try {
+				f = resolveSyncPath(readEvent(event).getRelativeFilePath());
+			} catch(IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+				return;
+			}
+			Path tmp = createTempFile();
+			try {
+				InputStream body = openBody(request, response);
+				if(body == null) {
+					return;
+				}
+				String checksum = ChunkTransfer.applyCommit(new DataInputStream(new BufferedInputStream(body, 64 * 1024)),
+						chunkStore, tmp);
+				
+				logger.info("Updating file from chunks: " + f.getAbsolutePath());
+				installFile(tmp, f, checksum);
+				response.setStatus(HttpServletResponse.SC_OK);
+			} catch(ChunkMismatchException e) {
+				logger.info("Could not put " + f.getAbsolutePath() + " together from chunks. " + e.getLocalizedMessage());
+				response.sendError(HttpServletResponse.SC_CONFLICT, e.getLocalizedMessage());
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+	}
+	
+	/**
+	 * The chunks have handler receives the hashes of a window of the chunks of
+	 * a file being streamed and returns the chunks that are neither in the
+	 * chunk store nor in the local copy of the file.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class ChunksHaveHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			String path = request.getParameter(PATH_PARAM);
+			if(path == null) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The 'path' parameter not found in the request.");
+				return;
+			}
+			if(chunkStore == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			List<byte[]> hashes = ChunkTransfer.readHashes(new DataInputStream(new BufferedInputStream(request.getInputStream(), 64 * 1024)));
+			LocalChunks local;
+			try {
+				local = getLocalChunks(request.getParameter(TRANSFER_PARAM), path);
+			} catch(IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+				return;
+			}
+			int[] missing = ChunkTransfer.findMissing(hashes, chunkStore, local);
+			response.setContentType("application/octet-stream");
+			response.setStatus(HttpServletResponse.SC_OK);
+			ChunkTransfer.writeMissing(missing, new DataOutputStream(new BufferedOutputStream(response.getOutputStream())));
+		}
+	}
+	
+	/**
+	 * The chunks stream handler puts a file together from a stream of chunks,
+	 * with the data of the chunks this peer does not have.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class ChunksStreamHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			String event = request.getParameter(EVENT_PARAM);
+			if(event == null) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The 'event' parameter not found in the request.");
+				return;
+			}
+			if(chunkStore == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			final String transfer = request.getParameter(TRANSFER_PARAM);
+			DirectoryChangeEvent dce;
+			File f;
+			try {
+				dce = readEvent(event);
+				f = resolveSyncPath(dce.getRelativeFilePath());
+			} catch(IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+				return;
+			}
+			Path tmp = createTempFile();
+			try {
+				InputStream body = openBody(request, response);
+				if(body == null) {
+					return;
+				}
+				// The local copy was split into chunks when the sender asked which chunks
+				// are missing, unless the stream got here first
+				final String path = dce.getRelativeFilePath();
+				String checksum = ChunkTransfer.applyStream(new DataInputStream(new BufferedInputStream(body, 64 * 1024)),
+						chunkStore, new LocalChunksLookup() {
+							public LocalChunks get() throws IOException {
+								return getLocalChunks(transfer, path);
+							}
+						}, tmp);
+				
+				logger.info("Updating file from chunks: " + f.getAbsolutePath());
+				installFile(tmp, f, checksum);
+				response.setStatus(HttpServletResponse.SC_OK);
+			} catch(ChunkMismatchException e) {
+				logger.info("Could not put " + f.getAbsolutePath() + " together from chunks. " + e.getLocalizedMessage());
+				response.sendError(HttpServletResponse.SC_CONFLICT, e.getLocalizedMessage());
+			} finally {
+				// The chunks looked up for a sender that names no transfer are left to expire
+				if(transfer != null) {
+					synchronized(localChunks) {
+						localChunks.remove(transfer);
+					}
+				}
+				Files.deleteIfExists(tmp);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the chunks of the local copy of a file, splitting the local copy
+	 * into chunks the first time a window of the file is asked for rather than
+	 * for each window.
+	 * @param transfer the id of the stream of chunks, or null if the sender
+	 *        names none, in which case the chunks are kept by path
+	 * @param path the path of the file relative to the sync directory
+	 */
+	private LocalChunks getLocalChunks(String transfer, String path) throws IOException {
+		String key = transfer != null ? transfer : path;
+		LocalChunks local;
+		synchronized(localChunks) {
+			local = localChunks.get(key);
+		}
+		if(local == null || local.isStale()) {
+			local = LocalChunks.index(resolveSyncPath(path).toPath());
+			synchronized(localChunks) {
+				localChunks.put(key, local);
+				if(localChunks.size() > MAX_LOCAL_CHUNKS) {
+					Iterator<LocalChunks> oldest = localChunks.values().iterator();
+					oldest.next();
+					oldest.remove();
+				}
+			}
+		}
+		return local;
+	}
+	
+	/**
+	 * The manifest handler returns the hashes of the directories and the
+	 * checksums of the files asked for by a peer reconciling with us.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class ManifestHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			response.setContentType("application/json");
+			response.setCharacterEncoding("UTF-8");
+			response.setStatus(HttpServletResponse.SC_OK);
+			try {
+				// The request is parsed before anything is written
+				antiEntropy.answer(request.getInputStream(), response.getWriter());
+			} catch(RuntimeException e) {
+				if(response.isCommitted()) {
+					throw e;
+				}
+				response.reset();
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+			}
+		}
+	}
+	
+	/**
+	 * The manifest entries handler returns the checksums of the files a page
+	 * at a time, all the pages of a walk coming from the same snapshot. The
+	 * 'cursor' parameter is the cursor ending the previous page, the 'prefix'
+	 * parameter filters the files by path and the 'limit' parameter is the
+	 * size of the page.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class ManifestEntriesHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			int limit = ManifestPages.DEFAULT_PAGE_SIZE;
+			try {
+				if(request.getParameter("limit") != null) {
+					limit = Integer.parseInt(request.getParameter("limit"));
+				}
+				response.setContentType("application/json");
+				response.setCharacterEncoding("UTF-8");
+				response.setStatus(HttpServletResponse.SC_OK);
+				manifestPages.writePage(request.getParameter("cursor"), request.getParameter("prefix"), limit,
+						response.getWriter());
+			} catch(ManifestPages.ExpiredCursorException e) {
+				response.sendError(HttpServletResponse.SC_GONE, e.getLocalizedMessage());
+			} catch(IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Returns the upload named in a request, or sends an error if there is no
+	 * such upload.
+	 * @return the upload or null if the error has been sent
+	 */
+	private UploadSessions.Session getUpload(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if(uploadSessions == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
+		UploadSessions.Session session = uploadSessions.get(request.getParameter(UPLOAD_PARAM));
+		if(session == null) {
+			response.sendError(HttpServletResponse.SC_GONE, "The upload does not exist or has expired.");
+		}
+		return session;
+	}
+	
+	private void sendStatus(UploadSessions.Session session, HttpServletResponse response) throws IOException {
+		response.setContentType("application/json");
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.getWriter().write(session.getStatus().toString());
+	}
+	
+	/**
+	 * The upload create handler starts a resumable upload, or returns the
+	 * status of the upload if it already exists so that the peer sends only
+	 * the parts that are missing.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class UploadCreateHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			if(uploadSessions == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			String event = request.getParameter(EVENT_PARAM);
+			String length = request.getParameter(LENGTH_PARAM);
+			if(event == null || length == null) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The 'event' or 'length' parameter not found in the request.");
+				return;
+			}
+			UploadSessions.Session session;
+			try {
+				DirectoryChangeEvent dce = readEvent(event);
+				if(dce.getType() == DirectoryChangeEventType.DELETED) {
+					throw new IllegalArgumentException("A delete has no file to upload.");
+				}
+				resolveSyncPath(dce.getRelativeFilePath());
+				session = uploadSessions.open(request.getParameter(UPLOAD_PARAM), event, Long.parseLong(length));
+			} catch(IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+				return;
+			}
+			sendStatus(session, response);
+		}
+	}
+	
+	/**
+	 * The upload status handler returns the parts of an upload received so
+	 * far and the offset up to which the file was received.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class UploadStatusHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			try {
+				UploadSessions.Session session = getUpload(request, response);
+				if(session != null) {
+					sendStatus(session, response);
+				}
+			} catch(IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+			}
+		}
+	}
+	
+	/**
+	 * The upload part handler writes a part of an upload, which is
+	 * acknowledged once it is on disk.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class UploadPartHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			try {
+				UploadSessions.Session session = getUpload(request, response);
+				if(session == null) {
+					return;
+				}
+				if(session.getCommittedChecksum() != null) {
+					// The part was put in the file moved into place already
+					response.setStatus(HttpServletResponse.SC_OK);
+					return;
+				}
+				InputStream body = openBody(request, response);
+				if(body == null) {
+					return;
+				}
+				session.writePart(Integer.parseInt(request.getParameter(PART_PARAM)), body);
+				response.setStatus(HttpServletResponse.SC_OK);
+			} catch(UploadSessions.PartMismatchException e) {
+				logger.info(e.getLocalizedMessage());
+				response.sendError(HttpServletResponse.SC_CONFLICT, e.getLocalizedMessage());
+			} catch(IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+			}
+		}
+	}
+	
+	/**
+	 * The upload commit handler checks the file put together from the parts
+	 * of an upload against its checksum and moves it into place.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class UploadCommitHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			try {
+				UploadSessions.Session session = getUpload(request, response);
+				if(session == null) {
+					return;
+				}
+				String committed = session.getCommittedChecksum();
+				if(committed != null) {
+					// The peer did not get the answer to its commit and sent it again
+					if(committed.equalsIgnoreCase(request.getParameter(CHECKSUM_PARAM))) {
+						response.setStatus(HttpServletResponse.SC_OK);
+					} else {
+						response.sendError(HttpServletResponse.SC_CONFLICT, "The upload was committed with another checksum.");
+					}
+					return;
+				}
+				if(!session.isComplete()) {
+					response.sendError(HttpServletResponse.SC_CONFLICT, "Parts of the upload are missing.");
+					return;
+				}
+				String checksum = session.computeChecksum();
+				if(!checksum.equalsIgnoreCase(request.getParameter(CHECKSUM_PARAM))) {
+					// The parts match their digests, so the file changed while it was sent
+					logger.info("The file uploaded does not match its checksum: " + session.getEvent());
+					session.delete();
+					response.sendError(HttpServletResponse.SC_CONFLICT, "The file does not match its checksum.");
+					return;
+				}
+				updateDirectory(DirectoryChangeEvent.fromJSON(session.getEvent()), session.getData(), checksum);
+				session.commit(checksum);
+				response.setStatus(HttpServletResponse.SC_OK);
+			} catch(IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getLocalizedMessage());
+			}
+		}
+	}
 }
@@ -0,0 +1,153 @@
+package com.fsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.json.JSONObject;
+
+import com.fsync.Http.HttpStatusException;
+import com.fsync.Http.StreamingResponse;
+import com.fsync.TransferScheduler.Priority;
+
+/**
+ * This class sends the requests of a {@link PeerSender} to its peer. The
+ * bytes of the bodies are paced by the scheduler of the peer, and bodies are
+ * compressed until the peer refuses compressed data. Shared by the
+ * {@link FileSender}s of the peer so that they learn what the peer refused
+ * together.
+ * @author shreyas shinde
+ *
+ */
+public class PeerConnection {
+	/** The body of requests that only have parameters */
+	public static final ContentProducer EMPTY_BODY = new ContentProducer() {
+		public void writeTo(OutputStream out) throws IOException {
+		}
+	};
+
+	/** The peer as host:port */
+	private final String peer;
+
+	/** Paces the bytes sent to the peer */
+	private volatile TransferScheduler scheduler = new TransferScheduler(0);
+
+	/** Compresses the files worth compressing, unless the peer refused compressed data */
+	private volatile Compression compression = new Compression(Compression.DEFAULT_LEVEL);
+	private volatile boolean compressionRefused = false;
+
+	private static final Logger logger = Logger.getLogger(PeerConnection.class.getName());
+
+	/**
+	 * @param peer the peer as host:port
+	 */
+	public PeerConnection(String peer) {
+		this.peer = peer;
+	}
+
+	/**
+	 * Returns the peer as host:port.
+	 */
+	public String getPeer() {
+		return peer;
+	}
+
+	/**
+	 * Returns the url of a request to the peer.
+	 * @param path the path of the request
+	 */
+	public String url(String path) {
+		return "http://" + peer + path;
+	}
+
+	public TransferScheduler getScheduler() {
+		return scheduler;
+	}
+
+	public void setScheduler(TransferScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Tests if bodies may be compressed: compression is enabled and the peer
+	 * did not refuse compressed data.
+	 */
+	public boolean isCompressionEnabled() {
+		return !compressionRefused && compression.isEnabled();
+	}
+
+	/**
+	 * Tests if a file is worth compressing for the peer.
+	 */
+	public boolean isCompressible(File f) {
+		return !compressionRefused && compression.isCompressible(f);
+	}
+
+	/**
+	 * Posts a body to the peer. A compressed body is sent again uncompressed
+	 * if the peer does not accept compressed data, and the peer is then no
+	 * longer sent compressed data.
+	 * The bytes of the body are paced by the scheduler, compressed if it is.
+	 * @param path the path of the request
+	 * @param params the query parameters or null
+	 * @param priority the class of the transfer
+	 * @param producer writes the body, possibly more than once
+	 * @param compress true to compress the body
+	 * @return the response of the peer
+	 * @throws IOException if the request failed
+	 */
+	public StreamingResponse post(String path, Map<String, String> params, Priority priority, ContentProducer producer,
+			boolean compress) throws IOException {
+		return post(path, params, null, priority, producer, compress);
+	}
+
+	public StreamingResponse post(String path, Map<String, String> params, Map<String, String> headers,
+			Priority priority, ContentProducer producer, boolean compress) throws IOException {
+		String url = url(path);
+		if(compress && !compressionRefused) {
+			try {
+				return Http.openPost(url, params, headers, throttle(compression.compress(producer), priority));
+			} catch(HttpStatusException ex) {
+				if(ex.getStatus() != HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE) {
+					throw ex;
+				}
+				compressionRefused = true;
+				logger.info("Peer " + peer + " does not accept compressed data, sending it uncompressed.");
+			}
+		}
+		return Http.openPost(url, params, headers, throttle(Http.body(producer), priority));
+	}
+
+	/**
+	 * Returns a body whose bytes are paced by the scheduler as they are written.
+	 */
+	public HttpEntity throttle(HttpEntity body, final Priority priority) {
+		final TransferScheduler scheduler = this.scheduler;
+		return new HttpEntityWrapper(body) {
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				super.writeTo(scheduler.throttle(out, priority));
+			}
+		};
+	}
+
+	/**
+	 * Returns the statistics of the compression in JSON format.
+	 */
+	public JSONObject getCompressionStats() {
+		JSONObject stats = compression.getStats();
+		stats.put("refused", compressionRefused);
+		return stats;
+	}
+}
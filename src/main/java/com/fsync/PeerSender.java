@@ -0,0 +1,944 @@
+package com.fsync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.entity.ContentProducer;
+import org.json.JSONObject;
+
+import com.fsync.ChecksumIndex.Record;
+import com.fsync.FileSender.Upload;
+import com.fsync.Http.HttpStatusException;
+import com.fsync.Http.StreamingResponse;
+import com.fsync.ReplicationJournal.Entry;
+import com.fsync.TransferScheduler.Priority;
+import com.fsync.UpdateBatch.Result;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * This class sends updates to a single peer. Each peer has its own bounded
+ * queue and sender threads so that a slow or unreachable peer never holds
+ * back the updates to the other peers. Updates to the same file are sent in
+ * the order they were submitted. Deletes and small files are sent before
+ * large files, and the bytes sent are paced by a {@link TransferScheduler}.
+ * Files are sent by {@link FileSender}s, tried in turn until one of them
+ * sends the file.
+ * <p>
+ * Updates are written to a journal before they are queued and stay there
+ * until the peer received them. When the peer cannot be reached, sending is
+ * suspended and retried after a delay that doubles with every failed attempt.
+ * Updates that did not fit in the queue, failed or were left over by a
+ * previous run are then sent again from the journal.
+ * @author shreyas shinde
+ *
+ */
+public class PeerSender {
+	/** Default number of sender threads and queued updates per peer */
+	public static final int DEFAULT_WORKERS  = 2;
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	/** Delay before the first retry, doubled after every failed retry up to the maximum */
+	public static final long DEFAULT_RETRY_MIN_MILLIS = 1000;
+	public static final long DEFAULT_RETRY_MAX_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 * How created and modified files are sent to a peer.
+	 */
+	public enum TransferMode {
+		/** The whole file is sent */
+		FULL,
+		/** Modified files are sent as a delta against the copy of the peer */
+		DELTA,
+		/** Files are sent as the content-defined chunks the peer does not have */
+		CHUNKS
+	}
+
+	/** Default size from which files are sent as chunks */
+	public static final long DEFAULT_CHUNK_MIN_SIZE   = 64 * 1024;
+
+	/** Default size from which modified files are sent as a delta */
+	public static final long DEFAULT_DELTA_MIN_SIZE   = 1024 * 1024;
+
+	/** Default size from which files sent in full are sent straight from the page cache */
+	public static final long DEFAULT_ZERO_COPY_MIN_SIZE = 1024 * 1024;
+
+	/** Default size from which files are sent as resumable uploads */
+	public static final long DEFAULT_RESUMABLE_MIN_SIZE = 256 * 1024 * 1024;
+
+	/** Default maximum number of parts of a file sent at once */
+	public static final int DEFAULT_MAX_STREAMS = 4;
+
+	/** Default limits of a batch: updates, bytes of files and time the first update waits */
+	public static final int DEFAULT_BATCH_MAX_UPDATES       = 256;
+	public static final long DEFAULT_BATCH_MAX_BYTES        = 4 * 1024 * 1024;
+	public static final long DEFAULT_BATCH_MAX_DELAY_MILLIS = 50;
+
+	/** Files up to this size are sent in batches */
+	public static final long BATCH_MAX_FILE_SIZE = 64 * 1024;
+
+	/** Number of files of a batch probed to decide whether to compress it */
+	private static final int BATCH_PROBES = 4;
+
+	/** Prefix of the keys of the batches in the executor, paths never contain it */
+	private static final String BATCH_KEY = "\0batch-";
+
+	/** The peer as host:port */
+	private final String peer;
+
+	/** The updates not yet received by the peer */
+	private final ReplicationJournal journal;
+
+	/** Sends the updates, one file at a time */
+	private final OrderedExecutor executor;
+
+	/** Schedules the retries */
+	private final ScheduledExecutorService retryTimer;
+	private final long retryMinMillis;
+	private final long retryMaxMillis;
+
+	/** The updates queued or being sent */
+	private final Set<Entry> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Entry, Boolean>());
+
+	/** Set while sending is suspended after a failure */
+	private boolean suspended = false;
+
+	/** Set when some pending updates are not queued */
+	private boolean backlog = false;
+
+	/** Number of consecutive failed attempts */
+	private int failures = 0;
+	private long retryAt = 0;
+
+	/** Counters */
+	private final AtomicLong sent     = new AtomicLong();
+	private final AtomicLong failed   = new AtomicLong();
+	private final AtomicLong deferred = new AtomicLong();
+
+	/** How files are sent */
+	private volatile TransferMode transferMode = TransferMode.CHUNKS;
+
+	/** Sends the requests to the peer */
+	private final PeerConnection connection;
+
+	/** The ways files are sent, tried in turn as the transfer mode allows */
+	private final ChunkSender chunkSender;
+	private final DeltaSender deltaSender;
+	private final ResumableSender resumableSender;
+	private final RawSender rawSender;
+	private final MultipartSender multipartSender;
+
+	/** Small files and deletes are sent in batches, 0 updates to send every update on its own */
+	private volatile int batchMaxUpdates = DEFAULT_BATCH_MAX_UPDATES;
+	private volatile long batchMaxBytes = DEFAULT_BATCH_MAX_BYTES;
+	private volatile long batchMaxDelayMillis = DEFAULT_BATCH_MAX_DELAY_MILLIS;
+	private long nextBatch = 0;
+
+	/** Set when the peer does not accept batches */
+	private volatile boolean batchRefused = false;
+
+	/** The batch being filled, guarded by this */
+	private Batch batch = null;
+
+	/** The batch being filled or sent with an update of each path, guarded by this */
+	private final Map<String, Batch> batchedPaths = new HashMap<String, Batch>();
+
+	/** The paths of the updates queued or being sent on their own, guarded by this */
+	private final Multiset<String> queuedPaths = HashMultiset.create();
+	private final AtomicLong batches        = new AtomicLong();
+	private final AtomicLong batchedUpdates = new AtomicLong();
+	private final AtomicLong batchFallbacks = new AtomicLong();
+
+	/** Keeps the checksums of the files sent, computed as they are sent */
+	private volatile ChecksumManager checksumManager = null;
+
+	/** Files of at least this size are sent after the others */
+	private volatile long largeFileSize = TransferScheduler.DEFAULT_LARGE_FILE_SIZE;
+
+	/** Time from submission to completion of the last update sent, and the largest seen */
+	private volatile long lagMillis = 0;
+	private final AtomicLong maxLagMillis = new AtomicLong();
+
+	private static final Logger logger = Logger.getLogger(PeerSender.class.getName());
+
+	/**
+	 * Creates a sender. Updates left pending in the journal are sent right away.
+	 * @param peer the peer as host:port
+	 * @param journal the journal of the updates to the peer
+	 * @param workers the number of updates sent to the peer in parallel
+	 * @param capacity the maximum number of updates queued for the peer
+	 * @param retryMinMillis the delay before the first retry
+	 * @param retryMaxMillis the maximum delay between retries
+	 */
+	public PeerSender(String peer, ReplicationJournal journal, int workers, int capacity,
+			long retryMinMillis, long retryMaxMillis) {
+		this.peer = peer;
+		this.journal = journal;
+		this.executor = new OrderedExecutor("fsync-peer-" + peer, workers, capacity);
+		// Large files leave a worker to the updates queued behind them
+		this.executor.setBackgroundLimit(Priority.LOW.ordinal(), Math.max(1, workers - 1));
+		this.retryTimer = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("fsync-peer-" + peer + "-retry").setDaemon(true).build());
+		this.connection = new PeerConnection(peer);
+		this.resumableSender = new ResumableSender(connection);
+		this.chunkSender = new ChunkSender(connection, resumableSender);
+		this.deltaSender = new DeltaSender(connection);
+		this.rawSender = new RawSender(connection);
+		this.multipartSender = new MultipartSender(connection);
+		this.retryMinMillis = retryMinMillis;
+		this.retryMaxMillis = Math.max(retryMinMillis, retryMaxMillis);
+		if(journal.size() > 0) {
+			retryTimer.execute(new Runnable() {
+				public void run() {
+					redrive();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the peer as host:port.
+	 */
+	public String getPeer() {
+		return peer;
+	}
+
+	/**
+	 * Submits an update for the peer. The update is written to the journal and
+	 * queued if there is room. The call never blocks.
+	 * @param event the event with the path relative to the sync directory
+	 * @param file the file sent with the event or null
+	 * @return false if the update was not queued and will be sent later
+	 */
+	public boolean submit(DirectoryChangeEvent event, File file) {
+		Entry e = journal.append(event.getRelativeFilePath(), event.toJSON().toString(),
+				file == null ? null : file.getAbsolutePath());
+		return dispatch(e);
+	}
+
+	/**
+	 * Sets how created and modified files are sent. Small files are always
+	 * sent in full.
+	 * @param transferMode the transfer mode
+	 */
+	public void setTransferMode(TransferMode transferMode) {
+		this.transferMode = transferMode;
+	}
+
+	/**
+	 * Sets the size from which files are sent as chunks in the chunks transfer mode.
+	 * @param chunkMinSize the size in bytes
+	 */
+	public void setChunkMinSize(long chunkMinSize) {
+		chunkSender.setMinSize(chunkMinSize);
+	}
+
+	/**
+	 * Sets the size from which modified files are sent as a delta against the
+	 * copy of the peer instead of in full, in the delta transfer mode.
+	 * @param deltaMinSize the size in bytes, -1 to always send files in full
+	 */
+	public void setDeltaMinSize(long deltaMinSize) {
+		deltaSender.setMinSize(deltaMinSize);
+	}
+
+	/**
+	 * Sets the size from which files sent in full and not compressed are sent
+	 * straight from the page cache to the socket.
+	 * @param zeroCopyMinSize the size in bytes, -1 to always send files through the http client
+	 */
+	public void setZeroCopyMinSize(long zeroCopyMinSize) {
+		rawSender.setZeroCopyMinSize(zeroCopyMinSize);
+	}
+
+	/**
+	 * Sets the size from which files are sent as resumable uploads: a part at a
+	 * time, so that an upload that fails is resumed from the parts the peer
+	 * has. In the chunks transfer mode, files are sent as resumable uploads
+	 * when the chunks the peer is missing add up to this size.
+	 * @param resumableMinSize the size in bytes, -1 to never resume uploads
+	 */
+	public void setResumableMinSize(long resumableMinSize) {
+		resumableSender.setMinSize(resumableMinSize);
+	}
+
+	/**
+	 * Sets the maximum number of parts of a resumable upload sent at once,
+	 * each over its own connection. The number of parts sent at once grows
+	 * up to the maximum as long as the throughput grows with it.
+	 * @param maxStreams the maximum number of parts, 1 to send one part at a time
+	 */
+	public void setMaxStreams(int maxStreams) {
+		resumableSender.setMaxStreams(maxStreams);
+	}
+
+	/**
+	 * Sets the scheduler that paces the bytes sent to the peer.
+	 * @param scheduler the scheduler of the peer
+	 */
+	public void setScheduler(TransferScheduler scheduler) {
+		connection.setScheduler(scheduler);
+	}
+
+	/**
+	 * Sets the size from which files are sent after the other updates. Such
+	 * large files also give way to the other updates while they are sent.
+	 * @param largeFileSize the size in bytes
+	 */
+	public void setLargeFileSize(long largeFileSize) {
+		this.largeFileSize = largeFileSize;
+	}
+
+	/**
+	 * Sets the limits of the batches of small files and deletes sent in a
+	 * single request. A batch is sent once it is full or once its first
+	 * update waited for the maximum delay.
+	 * @param maxUpdates the maximum number of updates of a batch, 0 to send every update on its own
+	 * @param maxBytes the maximum number of bytes of the files of a batch
+	 * @param maxDelayMillis the maximum time an update waits for the batch to fill
+	 */
+	public void setBatchLimits(int maxUpdates, long maxBytes, long maxDelayMillis) {
+		this.batchMaxUpdates = maxUpdates;
+		this.batchMaxBytes = maxBytes;
+		this.batchMaxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * Sets the checksum manager that is told the checksum of each file sent.
+	 * The checksum is computed while the file is sent, so files are only read
+	 * once. The checksum manager also shares the checksums between the senders
+	 * of the peers: a file whose checksum is known for its current stat data is
+	 * not hashed again.
+	 * @param checksumManager the checksum manager
+	 */
+	public void setChecksumManager(ChecksumManager checksumManager) {
+		this.checksumManager = checksumManager;
+	}
+
+	/**
+	 * Sets the compression of the files sent.
+	 * @param compression the compression
+	 */
+	public void setCompression(Compression compression) {
+		connection.setCompression(compression);
+	}
+
+	/**
+	 * Returns the number of updates queued or being sent.
+	 */
+	public int getQueued() {
+		return executor.getPendingTasks();
+	}
+
+	/**
+	 * Returns the number of updates not yet received by the peer.
+	 */
+	public int getPending() {
+		return journal.size();
+	}
+
+	/**
+	 * Tests if an update of a file has not yet been received by the peer.
+	 * @param path the relative path of the file
+	 */
+	public boolean isPending(String path) {
+		return journal.isPending(path);
+	}
+
+	/**
+	 * Returns the statistics of the sender in JSON format.
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("pending", getPending());
+		stats.put("queued", getQueued());
+		stats.put("capacity", executor.getCapacity());
+		stats.put("sent", sent.get());
+		stats.put("failed", failed.get());
+		stats.put("deferred", deferred.get());
+		stats.put("lagMillis", lagMillis);
+		stats.put("maxLagMillis", maxLagMillis.get());
+		stats.put("transferMode", transferMode.name());
+		for(FileSender fileSender : new FileSender[] { chunkSender, deltaSender, resumableSender, rawSender, multipartSender }) {
+			fileSender.addStats(stats);
+		}
+		stats.put("batches", batches.get());
+		stats.put("batchedUpdates", batchedUpdates.get());
+		stats.put("batchFallbacks", batchFallbacks.get());
+		stats.put("bandwidth", connection.getScheduler().getStats());
+		stats.put("compression", connection.getCompressionStats());
+		synchronized(this) {
+			stats.put("suspended", suspended);
+			stats.put("failures", failures);
+			if(suspended) {
+				stats.put("retryInMillis", Math.max(0, retryAt - System.currentTimeMillis()));
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Stops accepting updates and waits for the queued updates to be sent.
+	 * Updates not received by the peer stay in the journal.
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @return true if all the queued updates were sent
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		retryTimer.shutdownNow();
+		Batch filling;
+		synchronized(this) {
+			filling = batch;
+		}
+		if(filling != null) {
+			flush(filling);
+		}
+		boolean completed = executor.shutdown(timeout, unit);
+		resumableSender.shutdown();
+		try {
+			journal.close();
+		} catch(IOException e) {
+			logger.warning("Failed to close the journal of peer " + peer + ". " + e.getLocalizedMessage());
+		}
+		return completed;
+	}
+
+	/**
+	 * Queues a pending update unless sending is suspended or the queue is full.
+	 * @return false if the update was not queued
+	 */
+	private boolean dispatch(Entry e) {
+		return dispatch(e, true);
+	}
+
+	/**
+	 * Queues a pending update unless sending is suspended or the queue is full.
+	 * @param batch false to send the update on its own
+	 * @return false if the update was not queued
+	 */
+	private boolean dispatch(final Entry e, boolean batch) {
+		synchronized(this) {
+			if(suspended) {
+				backlog = true;
+				return false;
+			}
+		}
+		if(!inFlight.add(e)) {
+			return true;
+		}
+		if(batch && addToBatch(e)) {
+			return true;
+		}
+		synchronized(this) {
+			// The update supersedes the update of the path in the batch being filled
+			Batch b = batchedPaths.get(e.getPath());
+			if(b != null && !b.sending && !journal.isPending(b.updates.get(e.getPath()))) {
+				inFlight.remove(b.updates.remove(e.getPath()));
+				batchedPaths.remove(e.getPath());
+			}
+			queuedPaths.add(e.getPath());
+		}
+		final Priority priority = getPriority(e);
+		final long queued = System.nanoTime();
+		boolean accepted;
+		try {
+			accepted = executor.tryExecute(e.getPath(), priority.ordinal(), new Runnable() {
+				public void run() {
+					send(e, priority, queued);
+				}
+			});
+		} catch(RejectedExecutionException ex) {
+			accepted = false;
+		}
+		if(!accepted) {
+			inFlight.remove(e);
+			deferred.incrementAndGet();
+			synchronized(this) {
+				queuedPaths.remove(e.getPath());
+				backlog = true;
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Adds an update of a small file or a delete to the batch being filled.
+	 * Updates of a path that has an update queued on its own, or in a batch
+	 * being sent, are not batched so that they are sent after it.
+	 * @return false if the update has to be sent on its own
+	 */
+	private boolean addToBatch(Entry e) {
+		if(batchMaxUpdates <= 0 || batchRefused) {
+			return false;
+		}
+		long length = 0;
+		if(!e.getLocalFile().isEmpty()) {
+			length = new File(e.getLocalFile()).length();
+			if(length > Math.min(BATCH_MAX_FILE_SIZE, batchMaxBytes)) {
+				return false;
+			}
+		}
+		Batch full = null;
+		Batch created = null;
+		synchronized(this) {
+			Batch other = batchedPaths.get(e.getPath());
+			if(queuedPaths.contains(e.getPath()) || (other != null && other.sending)) {
+				return false;
+			}
+			if(batch == null) {
+				batch = created = new Batch(nextBatch++);
+			}
+			Entry superseded = batch.updates.put(e.getPath(), e);
+			if(superseded != null) {
+				inFlight.remove(superseded);
+			}
+			batch.bytes += length;
+			batchedPaths.put(e.getPath(), batch);
+			if(batch.updates.size() >= batchMaxUpdates || batch.bytes >= batchMaxBytes) {
+				full = batch;
+			}
+		}
+		if(full != null) {
+			flush(full);
+		} else if(created != null) {
+			final Batch b = created;
+			try {
+				retryTimer.schedule(new Runnable() {
+					public void run() {
+						flush(b);
+					}
+				}, batchMaxDelayMillis, TimeUnit.MILLISECONDS);
+			} catch(RejectedExecutionException ex) {
+				// Shutting down, the batch is sent by the shutdown
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Queues a batch unless it was already queued. If the queue is full the
+	 * updates of the batch are left in the journal and sent later.
+	 */
+	private void flush(final Batch b) {
+		synchronized(this) {
+			if(b.sending) {
+				return;
+			}
+			b.sending = true;
+			if(batch == b) {
+				batch = null;
+			}
+			if(b.updates.isEmpty()) {
+				return;
+			}
+		}
+		final long queued = System.nanoTime();
+		boolean accepted;
+		try {
+			accepted = executor.tryExecute(BATCH_KEY + b.id, Priority.HIGH.ordinal(), new Runnable() {
+				public void run() {
+					sendBatch(b, queued);
+				}
+			});
+		} catch(RejectedExecutionException ex) {
+			accepted = false;
+		}
+		if(!accepted) {
+			int count = release(b);
+			deferred.addAndGet(count);
+			synchronized(this) {
+				backlog = true;
+			}
+		}
+	}
+
+	/**
+	 * Releases the updates of a batch that is no longer sent and wakes up the
+	 * updates of the same paths waiting for it.
+	 * @return the number of updates of the batch
+	 */
+	private synchronized int release(Batch b) {
+		for(Map.Entry<String, Entry> update : b.updates.entrySet()) {
+			if(batchedPaths.get(update.getKey()) == b) {
+				batchedPaths.remove(update.getKey());
+			}
+			inFlight.remove(update.getValue());
+		}
+		notifyAll();
+		return b.updates.size();
+	}
+
+	/**
+	 * Waits until the update of a path in a batch being sent has been sent.
+	 */
+	private synchronized void awaitBatch(String path) {
+		Batch b;
+		while((b = batchedPaths.get(path)) != null && b.sending) {
+			try {
+				wait();
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Queues the pending updates that are not queued yet, oldest first, until
+	 * the queue is full.
+	 */
+	private void redrive() {
+		synchronized(this) {
+			suspended = false;
+			backlog = false;
+		}
+		for(Entry e : journal.getPending()) {
+			if(!inFlight.contains(e) && !dispatch(e)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Returns the class of an update: deletes and directories first, then
+	 * files, then large files.
+	 */
+	private Priority getPriority(Entry e) {
+		if(e.getLocalFile().isEmpty()) {
+			return Priority.HIGH;
+		}
+		File f = new File(e.getLocalFile());
+		if(f.isDirectory()) {
+			return Priority.HIGH;
+		}
+		return f.length() >= largeFileSize ? Priority.LOW : Priority.NORMAL;
+	}
+
+	private void send(Entry e, Priority priority, long queued) {
+		// An earlier update of the file may be in a batch being sent
+		awaitBatch(e.getPath());
+		if(!journal.isPending(e)) {
+			// Superseded while it was queued, the peer says nothing about its health
+			inFlight.remove(e);
+			synchronized(this) {
+				queuedPaths.remove(e.getPath());
+			}
+			return;
+		}
+		boolean success = false;
+		TransferScheduler scheduler = connection.getScheduler();
+		scheduler.begin(priority);
+		try {
+			String url = connection.url("/update");
+			Map<String, String> params = new HashMap<String, String>();
+			params.put(Peer2PeerCommunicator.EVENT_PARAM, e.getEvent());
+			if(e.getLocalFile().isEmpty()) {
+				Http.post(url, params);
+			} else {
+				final File f = new File(e.getLocalFile());
+				if(!f.exists()) {
+					// Deleted since, the delete is sent as an update of its own
+					logger.info("File no longer exists, update to peer " + peer + " skipped: " + e.getPath());
+				} else {
+					// Stat before reading so that a change made while the file is sent is
+					// not mistaken for the content sent
+					long statMillis = System.currentTimeMillis();
+					BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+					
+					// The file is hashed as it is sent unless its checksum is already
+					// known, from the sender of another peer or from the chunk manifest
+					Upload upload = new Upload(e, f, attrs, getKnownChecksum(f, attrs), priority, connection.isCompressible(f));
+					String checksum = null;
+					for(FileSender fileSender : getFileSenders()) {
+						checksum = fileSender.send(upload);
+						if(checksum != null) {
+							break;
+						}
+					}
+					if(checksumManager != null) {
+						checksumManager.updateChecksumOnFile(checksum, f.getAbsolutePath(), attrs, statMillis);
+					}
+				}
+			}
+			journal.ack(e);
+			sent.incrementAndGet();
+			success = true;
+		} catch(Exception ex) {
+			failed.incrementAndGet();
+			logger.log(Level.WARNING, "Failed to send update to peer: " + peer, ex);
+		} finally {
+			scheduler.end(priority);
+			inFlight.remove(e);
+			synchronized(this) {
+				queuedPaths.remove(e.getPath());
+			}
+			updateLag(queued);
+			if(success) {
+				onSuccess();
+			} else {
+				onFailure();
+			}
+		}
+	}
+
+	/**
+	 * Sends the updates of a batch in a single request. Updates the peer could
+	 * not apply are sent again on their own.
+	 */
+	private void sendBatch(Batch b, long queued) {
+		final List<Entry> updates = new ArrayList<Entry>();
+		for(Entry e : b.updates.values()) {
+			if(journal.isPending(e)) {
+				updates.add(e);
+			}
+		}
+		if(updates.isEmpty()) {
+			release(b);
+			return;
+		}
+		List<Entry> rejected = new ArrayList<Entry>();
+		boolean success = false;
+		TransferScheduler scheduler = connection.getScheduler();
+		scheduler.begin(Priority.HIGH);
+		try {
+			final int count = updates.size();
+			final BasicFileAttributes[] attrs = new BasicFileAttributes[count];
+			final long[] statMillis = new long[count];
+			final byte[][] digests = new byte[count][];
+			final List<Integer> written = new ArrayList<Integer>();
+			StreamingResponse response = connection.post("/update/batch", null, Priority.HIGH, new ContentProducer() {
+				public void writeTo(OutputStream os) throws IOException {
+					written.clear();
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+					UpdateBatch.writeHeader(out);
+					for(int i = 0; i < count; i++) {
+						Entry e = updates.get(i);
+						File f = null;
+						if(!e.getLocalFile().isEmpty()) {
+							f = new File(e.getLocalFile());
+							try {
+								statMillis[i] = System.currentTimeMillis();
+								attrs[i] = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+							} catch(NoSuchFileException ex) {
+								// Deleted since, the delete is sent as an update of its own
+								continue;
+							}
+						}
+						digests[i] = UpdateBatch.writeUpdate(out, e.getEvent(), f, f == null ? 0 : attrs[i].size());
+						written.add(i);
+					}
+					UpdateBatch.writeEnd(out);
+				}
+			}, isCompressible(updates));
+			List<Result> results;
+			try {
+				results = UpdateBatch.readResults(response.getContent());
+			} finally {
+				response.close();
+			}
+			if(results.size() != written.size()) {
+				throw new IOException("Peer " + peer + " returned " + results.size() + " results for "
+						+ written.size() + " updates.");
+			}
+			boolean[] sentInBatch = new boolean[count];
+			for(int k = 0; k < results.size(); k++) {
+				int i = written.get(k);
+				Entry e = updates.get(i);
+				Result result = results.get(k);
+				sentInBatch[i] = true;
+				if(!result.isSuccess()) {
+					logger.warning("Peer " + peer + " did not apply the update of " + e.getPath() + " (" + result.getStatus()
+							+ "), sending it on its own. " + result.getMessage());
+					rejected.add(e);
+					continue;
+				}
+				if(attrs[i] != null && checksumManager != null) {
+					checksumManager.updateChecksumOnFile(ChecksumUtil.encode(digests[i]), e.getLocalFile(), attrs[i], statMillis[i]);
+				}
+				journal.ack(e);
+				sent.incrementAndGet();
+			}
+			for(int i = 0; i < count; i++) {
+				if(!sentInBatch[i]) {
+					logger.info("File no longer exists, update to peer " + peer + " skipped: " + updates.get(i).getPath());
+					journal.ack(updates.get(i));
+					sent.incrementAndGet();
+				}
+			}
+			batches.incrementAndGet();
+			batchedUpdates.addAndGet(written.size() - rejected.size());
+			batchFallbacks.addAndGet(rejected.size());
+			success = true;
+		} catch(HttpStatusException ex) {
+			if(ex.getStatus() == HttpServletResponse.SC_NOT_FOUND) {
+				batchRefused = true;
+				logger.info("Peer " + peer + " does not accept batches, sending updates on their own.");
+				rejected.addAll(updates);
+				success = true;
+			} else {
+				failed.addAndGet(updates.size());
+				logger.log(Level.WARNING, "Failed to send batch of " + updates.size() + " updates to peer: " + peer, ex);
+			}
+		} catch(Exception ex) {
+			failed.addAndGet(updates.size());
+			logger.log(Level.WARNING, "Failed to send batch of " + updates.size() + " updates to peer: " + peer, ex);
+		} finally {
+			scheduler.end(Priority.HIGH);
+			release(b);
+			updateLag(queued);
+			if(success) {
+				onSuccess();
+			} else {
+				onFailure();
+			}
+		}
+		for(Entry e : rejected) {
+			dispatch(e, false);
+		}
+	}
+
+	/**
+	 * Tests if a batch is worth compressing by probing its first files.
+	 */
+	private boolean isCompressible(List<Entry> updates) {
+		if(!connection.isCompressionEnabled()) {
+			return false;
+		}
+		int probes = 0;
+		for(Entry e : updates) {
+			if(e.getLocalFile().isEmpty()) {
+				continue;
+			}
+			if(connection.isCompressible(new File(e.getLocalFile()))) {
+				return true;
+			}
+			if(++probes == BATCH_PROBES) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	private void updateLag(long queued) {
+		long lag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued);
+		lagMillis = lag;
+		long max;
+		while(lag > (max = maxLagMillis.get()) && !maxLagMillis.compareAndSet(max, lag)) {
+			;
+		}
+	}
+
+	/**
+	 * Returns the checksum of a file computed for the same stat data, by the
+	 * sender of another peer or when the file was scanned. The checksum of a
+	 * racy record is not trusted, the file may have been written again within
+	 * the same tick of its modification time.
+	 * @return the checksum or null if it is not known
+	 */
+	private String getKnownChecksum(File f, BasicFileAttributes attrs) {
+		ChecksumManager checksumManager = this.checksumManager;
+		Record record = checksumManager == null ? null : checksumManager.getRecord(f.getAbsolutePath());
+		if(record == null || record.isDeleted() || !record.isClean(attrs) || !ChecksumUtil.isDigest(record.getChecksum())) {
+			return null;
+		}
+		return record.getChecksum();
+	}
+
+	/**
+	 * Returns the ways a file is sent in the order they are tried: as chunks
+	 * or as a delta as the transfer mode asks, then as a resumable upload if
+	 * the file is large, then in a single request, raw or as multipart for the
+	 * peers that take nothing else.
+	 */
+	private FileSender[] getFileSenders() {
+		switch(transferMode) {
+		case CHUNKS:
+			return new FileSender[] { chunkSender, resumableSender, rawSender, multipartSender };
+		case DELTA:
+			return new FileSender[] { deltaSender, resumableSender, rawSender, multipartSender };
+		default:
+			return new FileSender[] { resumableSender, rawSender, multipartSender };
+		}
+	}
+
+	private void onSuccess() {
+		boolean redrive;
+		synchronized(this) {
+			failures = 0;
+			redrive = backlog && !suspended;
+		}
+		if(redrive) {
+			redrive();
+		}
+	}
+
+	private void onFailure() {
+		long delay;
+		int attempts;
+		synchronized(this) {
+			backlog = true;
+			if(suspended) {
+				// Already waiting to retry
+				return;
+			}
+			suspended = true;
+			delay = Math.min(retryMaxMillis, retryMinMillis << Math.min(failures, 30));
+			attempts = ++failures;
+			retryAt = System.currentTimeMillis() + delay;
+		}
+		logger.warning("Suspending updates to peer " + peer + " for " + delay + "ms after " + attempts
+				+ " failed attempts.");
+		try {
+			retryTimer.schedule(new Runnable() {
+				public void run() {
+					redrive();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch(RejectedExecutionException ignore) {
+			// Shutting down, the updates stay in the journal
+		}
+	}
+
+	/**
+	 * Updates sent together in a single request. Guarded by the sender.
+	 */
+	private static class Batch {
+		final long id;
+
+		/** The updates by path, in the order they were added */
+		final Map<String, Entry> updates = new LinkedHashMap<String, Entry>();
+		long bytes = 0;
+
+		/** Set once the batch no longer takes updates */
+		boolean sending = false;
+
+		Batch(long id) {
+			this.id = id;
+		}
+	}
+}
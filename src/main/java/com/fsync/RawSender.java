@@ -0,0 +1,144 @@
+package com.fsync;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.entity.ContentProducer;
+import org.json.JSONObject;
+
+import com.fsync.Http.HttpStatusException;
+
+/**
+ * This class sends files as the raw body of a request followed by their
+ * digest, which the peer checks before the file is moved into place. Large
+ * files that are not compressed are sent straight from the page cache to the
+ * socket. A file whose checksum is known is not hashed, its checksum is sent
+ * in a header instead of the digest.
+ * @author shreyas shinde
+ *
+ */
+public class RawSender implements FileSender {
+	private final PeerConnection connection;
+
+	/** Files at least this large are sent with sendfile, -1 to never send them so */
+	private volatile long zeroCopyMinSize = PeerSender.DEFAULT_ZERO_COPY_MIN_SIZE;
+	private final AtomicLong zeroCopyFiles = new AtomicLong();
+	private final AtomicLong zeroCopyBytes = new AtomicLong();
+
+	/** Set when the peer does not accept files as the raw body of a request */
+	private volatile boolean refused = false;
+
+	private static final Logger logger = Logger.getLogger(RawSender.class.getName());
+
+	/**
+	 * @param connection the connection to the peer
+	 */
+	public RawSender(PeerConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Sets the size from which files that are not compressed are sent
+	 * straight from the page cache to the socket.
+	 * @param zeroCopyMinSize the size in bytes, -1 to always send files through the http client
+	 */
+	public void setZeroCopyMinSize(long zeroCopyMinSize) {
+		this.zeroCopyMinSize = zeroCopyMinSize;
+	}
+
+	/**
+	 * Sends the bytes of the file up to the size it had when it was looked at.
+	 * @return the checksum of the file sent or null if it has to be sent as multipart instead
+	 * @throws IOException if the peer could not be reached
+	 */
+	public String send(Upload upload) throws IOException {
+		if(refused) {
+			return null;
+		}
+		final File f = upload.file;
+		final long length = upload.attrs.size();
+		String known = upload.known;
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put(Peer2PeerCommunicator.EVENT_HEADER, URLEncoder.encode(upload.entry.getEvent(), "UTF-8"));
+		headers.put(Peer2PeerCommunicator.LENGTH_HEADER, Long.toString(length));
+		final boolean hash = known == null;
+		if(!hash) {
+			headers.put(Peer2PeerCommunicator.CHECKSUM_HEADER, known);
+		}
+		try {
+			if(!upload.compress && zeroCopyMinSize >= 0 && length >= zeroCopyMinSize) {
+				byte[] digest = Http.postFile(connection.url("/update/raw"), null, headers, f, length,
+						hash ? ChecksumUtil.createMessageDigest() : null, connection.getScheduler().throttle(upload.priority));
+				zeroCopyFiles.incrementAndGet();
+				zeroCopyBytes.addAndGet(length);
+				return hash ? ChecksumUtil.encode(digest) : known;
+			}
+			final byte[][] digest = new byte[1][];
+			connection.post("/update/raw", null, headers, upload.priority, new ContentProducer() {
+				public void writeTo(OutputStream out) throws IOException {
+					digest[0] = writeWithDigest(f, length, hash, out);
+				}
+			}, upload.compress).close();
+			return hash ? ChecksumUtil.encode(digest[0]) : known;
+		} catch(HttpStatusException ex) {
+			if(ex.getStatus() == HttpServletResponse.SC_NOT_FOUND) {
+				refused = true;
+				logger.info("Peer " + connection.getPeer() + " does not accept raw uploads, sending files as multipart.");
+				return null;
+			}
+			throw ex;
+		}
+	}
+
+	public void addStats(JSONObject stats) {
+		stats.put("zeroCopyFiles", zeroCopyFiles.get());
+		stats.put("zeroCopyBytes", zeroCopyBytes.get());
+	}
+
+	/**
+	 * Writes the first bytes of a file followed by their digest.
+	 * @param length the number of bytes of the file to write
+	 * @param hash false to write the bytes only, when their checksum is known
+	 * @return the digest, or null if the bytes were not hashed
+	 */
+	private static byte[] writeWithDigest(File f, long length, boolean hash, OutputStream out) throws IOException {
+		MessageDigest md = hash ? ChecksumUtil.createMessageDigest() : null;
+		InputStream in = new FileInputStream(f);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			long remaining = length;
+			while(remaining > 0) {
+				int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+				if(n < 0) {
+					throw new EOFException("The file got shorter while it was sent: " + f);
+				}
+				if(md != null) {
+					md.update(buf, 0, n);
+				}
+				out.write(buf, 0, n);
+				remaining -= n;
+			}
+		} finally {
+			in.close();
+		}
+		byte[] digest = null;
+		if(md != null) {
+			digest = md.digest();
+			out.write(digest);
+		}
+		out.flush();
+		return digest;
+	}
+}
@@ -0,0 +1,288 @@
+package com.fsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * This class keeps the updates that still have to be sent to a peer. Updates
+ * are appended to a file before they are sent and an acknowledgement is
+ * appended once the peer received them, so that the pending updates survive
+ * a restart. Only the latest update of each path is kept: an update
+ * supersedes any pending update of the same path. The file is rewritten
+ * with only the pending updates once most of its records are obsolete.
+ * @author shreyas shinde
+ *
+ */
+public class ReplicationJournal implements Closeable {
+	/** Identifies a journal file */
+	private static final int MAGIC   = 0x46534a4c; //FSJL
+
+	/** Version of the journal file format */
+	private static final int VERSION = 1;
+
+	/** Record markers */
+	private static final byte PUT    = 1;
+	private static final byte ACK    = 2;
+
+	/** The file is compacted once it has this many obsolete records and they outnumber the pending updates */
+	private static final int COMPACT_MIN_OBSOLETE = 1000;
+
+	/** The journal file or null if the journal is kept in memory only */
+	private final Path file;
+
+	/** The pending updates by path, oldest first */
+	private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+
+	private long nextSeq = 1;
+
+	/** Number of records in the file */
+	private long records = 0;
+
+	private FileOutputStream fos = null;
+	private DataOutputStream out = null;
+
+	private static final Logger logger = Logger.getLogger(ReplicationJournal.class.getName());
+
+	/**
+	 * Opens the journal, loading the updates left pending by a previous run.
+	 * @param file the journal file or null to keep the journal in memory only
+	 * @throws IOException if the journal could not be opened for writing
+	 */
+	public ReplicationJournal(Path file) throws IOException {
+		this.file = file;
+		if(file != null) {
+			load();
+			// Drop the obsolete records and any partial record left by a crash
+			compact();
+			if(!pending.isEmpty()) {
+				logger.info("Loaded " + pending.size() + " pending updates from journal: " + file);
+			}
+		}
+	}
+
+	/**
+	 * Appends an update. A failure to write the update is logged and the update
+	 * is kept in memory so that it is still sent.
+	 * @param path the relative path of the file
+	 * @param event the event in JSON format
+	 * @param localFile the absolute path of the file to send with the event or null
+	 * @return the pending update
+	 */
+	public synchronized Entry append(String path, String event, String localFile) {
+		Entry e = new Entry(nextSeq++, path, event, localFile == null ? "" : localFile);
+		pending.remove(path);
+		pending.put(path, e);
+		if(out != null) {
+			try {
+				out.writeByte(PUT);
+				writeEntry(out, e);
+				out.flush();
+				records++;
+			} catch(IOException ex) {
+				logger.warning("Failed to write to journal " + file + ", the update is kept in memory only. "
+						+ ex.getLocalizedMessage());
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Records that an update was received by the peer.
+	 * @param e the update
+	 */
+	public synchronized void ack(Entry e) {
+		if(pending.get(e.path) != e) {
+			// Superseded by a newer update, which is still pending
+			return;
+		}
+		pending.remove(e.path);
+		if(out != null) {
+			try {
+				out.writeByte(ACK);
+				out.writeLong(e.seq);
+				out.writeUTF(e.path);
+				out.flush();
+				records++;
+			} catch(IOException ex) {
+				logger.warning("Failed to write to journal " + file + ". " + ex.getLocalizedMessage());
+			}
+			if(records - pending.size() >= COMPACT_MIN_OBSOLETE && records > 2 * pending.size()) {
+				try {
+					compact();
+				} catch(IOException ex) {
+					logger.warning("Failed to compact journal " + file + ". " + ex.getLocalizedMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests if the update is still pending, that is it was neither received
+	 * by the peer nor superseded by a newer update.
+	 */
+	public synchronized boolean isPending(Entry e) {
+		return pending.get(e.path) == e;
+	}
+
+	/**
+	 * Tests if an update of a file is still pending.
+	 * @param path the relative path of the file
+	 */
+	public synchronized boolean isPending(String path) {
+		return pending.containsKey(path);
+	}
+
+	/**
+	 * Returns the pending updates, oldest first.
+	 */
+	public synchronized List<Entry> getPending() {
+		return new ArrayList<Entry>(pending.values());
+	}
+
+	/**
+	 * Returns the number of pending updates.
+	 */
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	public synchronized void close() throws IOException {
+		if(fos != null) {
+			out.flush();
+			fos.getChannel().force(false);
+			fos.close();
+			fos = null;
+			out = null;
+		}
+	}
+
+	private void load() throws IOException {
+		if(!Files.exists(file)) {
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+		try {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				logger.warning("Ignoring unrecognized journal: " + file);
+				return;
+			}
+			byte marker;
+			while((marker = in.readByte()) == PUT || marker == ACK) {
+				if(marker == PUT) {
+					Entry e = readEntry(in);
+					pending.remove(e.path);
+					pending.put(e.path, e);
+					nextSeq = Math.max(nextSeq, e.seq + 1);
+				} else {
+					long seq = in.readLong();
+					String path = in.readUTF();
+					Entry e = pending.get(path);
+					if(e != null && e.seq == seq) {
+						pending.remove(path);
+					}
+				}
+			}
+		} catch(EOFException e) {
+			// A crash while appending leaves a partial record at the end
+			logger.warning("Journal ends with a partial record: " + file);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Rewrites the file with only the pending updates and reopens it for
+	 * appending. The journal is appended to even if the compaction fails.
+	 */
+	private void compact() throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		FileOutputStream tmpFos = new FileOutputStream(tmp.toFile());
+		try {
+			DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(tmpFos, 1 << 16));
+			tmpOut.writeInt(MAGIC);
+			tmpOut.writeInt(VERSION);
+			for(Entry e : pending.values()) {
+				tmpOut.writeByte(PUT);
+				writeEntry(tmpOut, e);
+			}
+			tmpOut.flush();
+			tmpFos.getChannel().force(false);
+		} finally {
+			tmpFos.close();
+		}
+		// The live journal is only closed once the compacted copy is on disk
+		close();
+		try {
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			records = pending.size();
+		} finally {
+			// Left as it was if the move failed, and appended to either way
+			fos = new FileOutputStream(file.toFile(), true);
+			out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 12));
+		}
+	}
+
+	private static void writeEntry(DataOutputStream out, Entry e) throws IOException {
+		out.writeLong(e.seq);
+		out.writeUTF(e.path);
+		out.writeUTF(e.event);
+		out.writeUTF(e.localFile);
+	}
+
+	private static Entry readEntry(DataInputStream in) throws IOException {
+		long seq = in.readLong();
+		String path = in.readUTF();
+		String event = in.readUTF();
+		String localFile = in.readUTF();
+		return new Entry(seq, path, event, localFile);
+	}
+
+	/**
+	 * An update pending for the peer.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class Entry {
+		final long seq;
+		final String path;
+		final String event;
+		final String localFile;
+
+		Entry(long seq, String path, String event, String localFile) {
+			this.seq = seq;
+			this.path = path;
+			this.event = event;
+			this.localFile = localFile;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public String getEvent() {
+			return event;
+		}
+
+		/**
+		 * Returns the absolute path of the file to send with the event or
+		 * an empty string if there is none.
+		 */
+		public String getLocalFile() {
+			return localFile;
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package com.fsync;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.entity.ContentProducer;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.fsync.DirectoryChangeEvent.DirectoryChangeEventType;
+import com.fsync.Http.HttpStatusException;
+import com.fsync.Http.StreamingResponse;
+import com.fsync.ReplicationJournal.Entry;
+import com.fsync.TransferScheduler.Priority;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * This class sends large files as resumable uploads. The peer returns the
+ * parts it already has and the others are sent, each followed by its digest.
+ * The parts the peer has are still read to compute the checksum of the file,
+ * which the peer checks once it has all the parts. Several parts are sent at
+ * once, over their own connections, as picked by a {@link StreamTuner}.
+ * @author shreyas shinde
+ *
+ */
+public class ResumableSender implements FileSender {
+	private final PeerConnection connection;
+
+	/** Files of at least this size are sent as resumable uploads, -1 to never resume */
+	private volatile long minSize = PeerSender.DEFAULT_RESUMABLE_MIN_SIZE;
+	private volatile boolean refused = false;
+	private final AtomicLong files        = new AtomicLong();
+	private final AtomicLong parts        = new AtomicLong();
+	private final AtomicLong bytesSkipped = new AtomicLong();
+
+	/** Sends the parts of the uploads, several at a time */
+	private final ExecutorService partSender;
+	private volatile int maxStreams = PeerSender.DEFAULT_MAX_STREAMS;
+
+	/** The number of parts sent at once that paid off for the last file */
+	private volatile int streams = 2;
+
+	private static final Logger logger = Logger.getLogger(ResumableSender.class.getName());
+
+	/**
+	 * @param connection the connection to the peer
+	 */
+	public ResumableSender(PeerConnection connection) {
+		this.connection = connection;
+		this.partSender = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+				.setNameFormat("fsync-peer-" + connection.getPeer() + "-part-%d").setDaemon(true).build());
+	}
+
+	/**
+	 * Sets the size from which files are sent as resumable uploads.
+	 * @param minSize the size in bytes, -1 to never resume uploads
+	 */
+	public void setMinSize(long minSize) {
+		this.minSize = minSize;
+	}
+
+	/**
+	 * Sets the maximum number of parts of an upload sent at once.
+	 * @param maxStreams the maximum number of parts, 1 to send one part at a time
+	 */
+	public void setMaxStreams(int maxStreams) {
+		this.maxStreams = Math.max(1, maxStreams);
+	}
+
+	/**
+	 * Tests if so many bytes are sent as a resumable upload rather than in a
+	 * request that starts over if it fails.
+	 */
+	public boolean isResumable(long bytes) {
+		return !refused && minSize >= 0 && bytes >= minSize;
+	}
+
+	/**
+	 * Tests if a file is a large file the peer never had. Such a file goes
+	 * straight to a resumable upload, which reads it once, rather than being
+	 * read for its manifest first.
+	 */
+	public boolean isNewLargeFile(Entry e, long size) {
+		return isResumable(size) && DirectoryChangeEvent.fromJSON(e.getEvent()).getType() == DirectoryChangeEventType.CREATED;
+	}
+
+	/**
+	 * Sends a file as a resumable upload. If the checksum of the file is
+	 * known, the parts the peer already has are not read.
+	 * @return the checksum of the file sent or null if it has to be sent in a single request instead
+	 * @throws IOException if the peer could not be reached or did not accept a part
+	 */
+	public String send(Upload upload) throws IOException {
+		Entry e = upload.entry;
+		final Priority priority = upload.priority;
+		final long length = upload.attrs.size();
+		if(!isResumable(length)) {
+			return null;
+		}
+		// The same file is resumed under the same id, a changed file is a new upload
+		String id = Hashing.murmur3_128().newHasher().putString(e.getPath(), Charsets.UTF_8).putLong(length)
+				.putLong(upload.attrs.lastModifiedTime().toMillis()).hash().toString();
+		Map<String, String> params = new HashMap<String, String>();
+		params.put(Peer2PeerCommunicator.UPLOAD_PARAM, id);
+		params.put(Peer2PeerCommunicator.EVENT_PARAM, e.getEvent());
+		params.put(Peer2PeerCommunicator.LENGTH_PARAM, Long.toString(length));
+		JSONObject status;
+		try {
+			StreamingResponse response = connection.post("/upload/create", params, priority, PeerConnection.EMPTY_BODY, false);
+			try {
+				status = new JSONObject(new JSONTokener(new InputStreamReader(response.getContent(), "UTF-8")));
+			} finally {
+				response.close();
+			}
+		} catch(HttpStatusException ex) {
+			if(ex.getStatus() == HttpServletResponse.SC_NOT_FOUND) {
+				refused = true;
+				logger.info("Peer " + connection.getPeer() + " does not accept resumable uploads, sending files in a single request.");
+				return null;
+			}
+			throw ex;
+		}
+		int partSize = status.getInt("partSize");
+		BitSet received = UploadSessions.readReceived(status);
+		if(received.cardinality() > 0) {
+			logger.info("Resuming the upload of " + e.getPath() + " to peer " + connection.getPeer() + " from "
+					+ received.cardinality() + " parts received.");
+		}
+
+		// The file is read in order to compute its checksum, and the parts the
+		// peer is missing are sent over as many connections as pay off
+		final StreamTuner tuner = new StreamTuner(streams, maxStreams);
+		Deque<Future<?>> sending = new ArrayDeque<Future<?>>();
+		MessageDigest md = upload.known == null ? ChecksumUtil.createMessageDigest() : null;
+		InputStream in = new FileInputStream(upload.file);
+		try {
+			for(int part = 0; (long)part * partSize < length; part++) {
+				final int n = (int)Math.min(partSize, length - (long)part * partSize);
+				if(md == null && received.get(part)) {
+					bytesSkipped.addAndGet(n);
+					ByteStreams.skipFully(in, n);
+					continue;
+				}
+				final byte[] buf = new byte[n];
+				try {
+					ByteStreams.readFully(in, buf, 0, n);
+				} catch(EOFException ex) {
+					throw new EOFException("The file got shorter while it was sent: " + upload.file);
+				}
+				if(md != null) {
+					md.update(buf, 0, n);
+				}
+				if(received.get(part)) {
+					bytesSkipped.addAndGet(n);
+					continue;
+				}
+				MessageDigest partDigest = ChecksumUtil.createMessageDigest();
+				partDigest.update(buf, 0, n);
+				final byte[] digest = partDigest.digest();
+				final Map<String, String> partParams = new HashMap<String, String>();
+				partParams.put(Peer2PeerCommunicator.UPLOAD_PARAM, id);
+				partParams.put(Peer2PeerCommunicator.PART_PARAM, Integer.toString(part));
+				final boolean compressPart = upload.compress;
+				while(sending.size() >= tuner.getStreams()) {
+					await(sending.removeFirst());
+				}
+				tuner.start(System.nanoTime());
+				sending.addLast(partSender.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						connection.post("/upload/part", partParams, priority, new ContentProducer() {
+							public void writeTo(OutputStream out) throws IOException {
+								out.write(buf, 0, n);
+								out.write(digest);
+								out.flush();
+							}
+						}, compressPart).close();
+						tuner.record(n, System.nanoTime());
+						parts.incrementAndGet();
+						return null;
+					}
+				}));
+			}
+			while(!sending.isEmpty()) {
+				await(sending.removeFirst());
+			}
+		} finally {
+			in.close();
+			// Parts still being sent after a failure are left to finish, they are acknowledged
+			// progress, but must not outlive the update
+			for(Future<?> future : sending) {
+				try {
+					future.get();
+				} catch(Exception ignore) {
+				}
+			}
+			streams = tuner.getStreams();
+		}
+
+		String checksum = md == null ? upload.known : ChecksumUtil.encode(md.digest());
+		Map<String, String> commitParams = new HashMap<String, String>();
+		commitParams.put(Peer2PeerCommunicator.UPLOAD_PARAM, id);
+		commitParams.put(Peer2PeerCommunicator.CHECKSUM_PARAM, checksum);
+		connection.post("/upload/commit", commitParams, priority, PeerConnection.EMPTY_BODY, false).close();
+		files.incrementAndGet();
+		return checksum;
+	}
+
+	public void addStats(JSONObject stats) {
+		stats.put("resumableFiles", files.get());
+		stats.put("resumableParts", parts.get());
+		stats.put("resumableBytesSkipped", bytesSkipped.get());
+		stats.put("streams", streams);
+	}
+
+	/**
+	 * Stops the threads sending the parts once they are done.
+	 */
+	public void shutdown() {
+		partSender.shutdown();
+	}
+
+	/**
+	 * Waits for a part to be sent.
+	 * @throws IOException if the part could not be sent
+	 */
+	private static void await(Future<?> future) throws IOException {
+		try {
+			future.get();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while sending a part.");
+		} catch(ExecutionException ex) {
+			Throwables.propagateIfPossible(ex.getCause(), IOException.class);
+			throw new IOException(ex.getCause());
+		}
+	}
+}
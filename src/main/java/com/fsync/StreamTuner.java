@@ -0,0 +1,95 @@
+package com.fsync;
+
+/**
+ * This class picks how many parts of a large file are sent to a peer at once.
+ * A single connection to a distant peer is held back by the round trip time,
+ * while too many connections only compete with each other. The throughput is
+ * measured over rounds of parts: a stream is added as long as the throughput
+ * grows by at least a tenth, otherwise the last stream added is taken away
+ * and the count is kept. A count is only tried again once the throughput
+ * drops by a third, for instance when the link changes.
+ * @author shreyas shinde
+ *
+ */
+public class StreamTuner {
+	/** The number of parts of a round per stream */
+	private static final int PARTS_PER_STREAM = 2;
+
+	/** The throughput must grow by this much for a stream to be kept */
+	private static final double MIN_GAIN = 1.1;
+
+	/** The throughput must drop by this much to try again */
+	private static final double MAX_LOSS = 0.66;
+
+	private final int maxStreams;
+
+	/** All guarded by this */
+	private int streams;
+	private boolean probing = true;
+	private double lastRate = 0;
+	private long roundStart = -1;
+	private long roundBytes = 0;
+	private int roundParts = 0;
+
+	/**
+	 * @param streams the number of streams to start with
+	 * @param maxStreams the maximum number of streams
+	 */
+	public StreamTuner(int streams, int maxStreams) {
+		this.maxStreams = Math.max(1, maxStreams);
+		this.streams = Math.max(1, Math.min(streams, this.maxStreams));
+	}
+
+	/**
+	 * Returns the number of parts to send at once.
+	 */
+	public synchronized int getStreams() {
+		return streams;
+	}
+
+	/**
+	 * Starts measuring, when the first part is sent.
+	 * @param now the time in nanoseconds
+	 */
+	public synchronized void start(long now) {
+		if(roundStart < 0) {
+			roundStart = now;
+		}
+	}
+
+	/**
+	 * Records a part sent and adjusts the number of streams at the end of a round.
+	 * @param bytes the size of the part
+	 * @param now the time in nanoseconds
+	 */
+	public synchronized void record(long bytes, long now) {
+		roundBytes += bytes;
+		if(++roundParts < PARTS_PER_STREAM * streams || now <= roundStart) {
+			return;
+		}
+		double rate = roundBytes / (double)(now - roundStart);
+		roundStart = now;
+		roundBytes = 0;
+		roundParts = 0;
+		if(probing) {
+			if(lastRate > 0 && rate < lastRate * MIN_GAIN) {
+				// The last stream added did not pay off
+				if(streams > 1) {
+					streams--;
+				}
+				probing = false;
+				lastRate = Math.max(rate, lastRate);
+				return;
+			}
+			lastRate = rate;
+			if(streams < maxStreams) {
+				streams++;
+			} else {
+				probing = false;
+			}
+		} else if(rate < lastRate * MAX_LOSS) {
+			probing = true;
+			lastRate = rate;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.fsync;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * This class shares the link between the transfers to the peers. Transfers
+ * fall in priority classes: deletes and batches of small files come first,
+ * then files, then large files. The bytes sent are drawn from token buckets,
+ * one shared by all the peers and one for each peer, so that replication
+ * leaves room for the other traffic of the link. Large files also give way to
+ * the other transfers: while a transfer of a higher class is in progress, a
+ * large file is sent a block at a time with pauses in between, so that a
+ * single large file does not hold up the small changes queued behind it.
+ * Large files only pause for part of each interval, so that they keep a share
+ * of the link under steady traffic of the other classes.
+ * @author shreyas shinde
+ *
+ */
+public class TransferScheduler {
+	/**
+	 * The priority classes of the transfers, the first one goes first.
+	 */
+	public enum Priority {
+		/** Deletes, directories and batches of small files */
+		HIGH,
+		/** Files */
+		NORMAL,
+		/** Large files, which give way to the other transfers */
+		LOW
+	}
+
+	/** Default size from which files are sent as large files */
+	public static final long DEFAULT_LARGE_FILE_SIZE = 64 * 1024 * 1024;
+
+	/** The bytes are drawn from the buckets a block at a time */
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	/** Large files pause for at most the first part of each interval, and then go on */
+	private static final long PAUSE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long MAX_PAUSE_NANOS      = TimeUnit.MILLISECONDS.toNanos(750);
+
+	/** The scheduler shared by all the peers, or null */
+	private final TransferScheduler parent;
+
+	/** The token bucket, or null without a limit */
+	private final RateLimiter limiter;
+	private final long bytesPerSecond;
+
+	/** The number of transfers of a higher class than large files in progress, guarded by this */
+	private int foreground = 0;
+
+	/** The start of the interval in which large files pause, guarded by this */
+	private long pauseIntervalStart = System.nanoTime() - PAUSE_INTERVAL_NANOS;
+
+	private final AtomicLong bytes         = new AtomicLong();
+	private final AtomicLong limitedMillis = new AtomicLong();
+	private final AtomicLong pausedMillis  = new AtomicLong();
+
+	/**
+	 * Creates a scheduler.
+	 * @param bytesPerSecond the maximum throughput, 0 for no limit
+	 */
+	public TransferScheduler(long bytesPerSecond) {
+		this(null, bytesPerSecond);
+	}
+
+	/**
+	 * Creates the scheduler of a peer.
+	 * @param parent the scheduler shared by all the peers, or null
+	 * @param bytesPerSecond the maximum throughput to the peer, 0 for no limit
+	 */
+	public TransferScheduler(TransferScheduler parent, long bytesPerSecond) {
+		this.parent = parent;
+		this.bytesPerSecond = Math.max(0, bytesPerSecond);
+		this.limiter = bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+	}
+
+	/**
+	 * Marks the start of a transfer. Must be followed by {@link #end(Priority)}.
+	 * @param priority the class of the transfer
+	 */
+	public void begin(Priority priority) {
+		if(priority != Priority.LOW) {
+			synchronized(this) {
+				foreground++;
+			}
+		}
+		if(parent != null) {
+			parent.begin(priority);
+		}
+	}
+
+	/**
+	 * Marks the end of a transfer.
+	 * @param priority the class of the transfer
+	 */
+	public void end(Priority priority) {
+		if(priority != Priority.LOW) {
+			synchronized(this) {
+				foreground--;
+				notifyAll();
+			}
+		}
+		if(parent != null) {
+			parent.end(priority);
+		}
+	}
+
+	/**
+	 * Waits until bytes may be sent. Large files first wait for the other
+	 * transfers, for at most the first part of each interval so that they
+	 * still get a share of the link.
+	 * @param bytes the number of bytes about to be sent
+	 * @param priority the class of the transfer
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	public void acquire(int bytes, Priority priority) throws InterruptedIOException {
+		if(bytes <= 0) {
+			return;
+		}
+		if(priority == Priority.LOW) {
+			long start = System.nanoTime();
+			long deadline = getPauseDeadline(start);
+			for(TransferScheduler s = this; s != null; s = s.parent) {
+				s.awaitIdle(deadline);
+			}
+			pausedMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+		for(TransferScheduler s = this; s != null; s = s.parent) {
+			s.take(bytes);
+		}
+	}
+
+	/**
+	 * Returns a throttle drawing from the buckets for a transfer.
+	 * @param priority the class of the transfer
+	 */
+	public Http.Throttle throttle(final Priority priority) {
+		return new Http.Throttle() {
+			public void acquire(int bytes) throws IOException {
+				TransferScheduler.this.acquire(bytes, priority);
+			}
+		};
+	}
+
+	/**
+	 * Returns a stream that draws from the buckets before each block written.
+	 * @param out the stream to throttle
+	 * @param priority the class of the transfer
+	 */
+	public OutputStream throttle(OutputStream out, final Priority priority) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				acquire(1, priority);
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while(len > 0) {
+					int n = Math.min(len, BLOCK_SIZE);
+					acquire(n, priority);
+					out.write(b, off, n);
+					off += n;
+					len -= n;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the statistics of the scheduler in JSON format.
+	 */
+	public JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		stats.put("bytesPerSecond", bytesPerSecond);
+		stats.put("bytes", bytes.get());
+		stats.put("limitedMillis", limitedMillis.get());
+		stats.put("pausedMillis", pausedMillis.get());
+		synchronized(this) {
+			stats.put("foreground", foreground);
+		}
+		return stats;
+	}
+
+	private void take(int n) {
+		bytes.addAndGet(n);
+		if(limiter != null) {
+			long start = System.nanoTime();
+			limiter.acquire(n);
+			limitedMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+	}
+
+	/**
+	 * Returns the time until which large files may pause in the current
+	 * interval, starting a new interval once the last one is over.
+	 */
+	private synchronized long getPauseDeadline(long now) {
+		if(now - pauseIntervalStart >= PAUSE_INTERVAL_NANOS) {
+			pauseIntervalStart = now;
+		}
+		return pauseIntervalStart + MAX_PAUSE_NANOS;
+	}
+
+	/**
+	 * Waits until no transfer of a higher class than large files is in progress.
+	 * @param deadline the time at which to stop waiting, in nanoseconds
+	 */
+	private synchronized void awaitIdle(long deadline) throws InterruptedIOException {
+		try {
+			long remaining;
+			while(foreground > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send.");
+		}
+	}
+}
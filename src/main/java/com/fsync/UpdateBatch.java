@@ -0,0 +1,208 @@
+package com.fsync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * This class frames many updates in the body of a single request, so that a
+ * storm of small files does not cost a request per file. Each update is its
+ * event followed by the length of the file, the file and the digest of the
+ * file. Deletes have no file. The receiver applies the updates one after the
+ * other and answers with the status of each update, in the order they were
+ * sent, so that a bad file does not fail the other updates of the batch.
+ * @author shreyas shinde
+ *
+ */
+public class UpdateBatch {
+	/** Identifies a batch */
+	private static final int MAGIC   = 0x46534255; //FSBU
+
+	/** Frame markers */
+	private static final byte UPDATE = 1;
+	private static final byte END    = 0;
+
+	/** The length of the file of an update that has none */
+	public static final long NO_FILE = -1;
+
+	/** The largest event accepted */
+	private static final int MAX_EVENT_LENGTH = 1024 * 1024;
+
+	/** Result fields */
+	private static final String RESULTS = "results";
+	private static final String STATUS  = "status";
+	private static final String MESSAGE = "message";
+
+	public static void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+	}
+
+	/**
+	 * Writes an update. The file is hashed as it is written.
+	 * @param event the event of the update
+	 * @param file the file of the update or null
+	 * @param length the number of bytes of the file to send
+	 * @return the digest of the file or null without a file
+	 * @throws IOException if the file got shorter or could not be read
+	 */
+	public static byte[] writeUpdate(DataOutputStream out, String event, File file, long length) throws IOException {
+		out.writeByte(UPDATE);
+		byte[] bytes = event.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		if(file == null) {
+			out.writeLong(NO_FILE);
+			return null;
+		}
+		out.writeLong(length);
+		MessageDigest md = ChecksumUtil.createMessageDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			long remaining = length;
+			while(remaining > 0) {
+				int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+				if(n < 0) {
+					throw new EOFException("The file got shorter while it was sent: " + file);
+				}
+				md.update(buf, 0, n);
+				out.write(buf, 0, n);
+				remaining -= n;
+			}
+		} finally {
+			in.close();
+		}
+		byte[] digest = md.digest();
+		out.write(digest);
+		return digest;
+	}
+
+	public static void writeEnd(DataOutputStream out) throws IOException {
+		out.writeByte(END);
+		out.flush();
+	}
+
+	public static void readHeader(DataInputStream in) throws IOException {
+		if(in.readInt() != MAGIC) {
+			throw new IOException("Not an update batch.");
+		}
+	}
+
+	/**
+	 * Reads the next update. The file of the update, if any, must then be
+	 * read from the stream followed by its digest.
+	 * @return the update or null at the end of the batch
+	 */
+	public static Update readUpdate(DataInputStream in) throws IOException {
+		byte marker = in.readByte();
+		if(marker == END) {
+			return null;
+		}
+		if(marker != UPDATE) {
+			throw new IOException("Invalid update batch marker: " + marker);
+		}
+		int eventLength = in.readInt();
+		if(eventLength < 0 || eventLength > MAX_EVENT_LENGTH) {
+			throw new IOException("Invalid event length: " + eventLength);
+		}
+		byte[] bytes = new byte[eventLength];
+		in.readFully(bytes);
+		long length = in.readLong();
+		if(length < NO_FILE) {
+			throw new IOException("Invalid file length: " + length);
+		}
+		return new Update(new String(bytes, "UTF-8"), length);
+	}
+
+	public static void writeResults(List<Result> results, Writer out) throws IOException {
+		JSONArray array = new JSONArray();
+		for(Result result : results) {
+			JSONObject json = new JSONObject();
+			json.put(STATUS, result.status);
+			if(result.message != null) {
+				json.put(MESSAGE, result.message);
+			}
+			array.put(json);
+		}
+		JSONObject json = new JSONObject();
+		json.put(RESULTS, array);
+		out.write(json.toString());
+		out.flush();
+	}
+
+	public static List<Result> readResults(InputStream in) throws IOException {
+		JSONArray array = new JSONObject(new JSONTokener(new InputStreamReader(in, "UTF-8"))).getJSONArray(RESULTS);
+		List<Result> results = new ArrayList<Result>(array.length());
+		for(int i = 0; i < array.length(); i++) {
+			JSONObject json = array.getJSONObject(i);
+			results.add(new Result(json.getInt(STATUS), json.optString(MESSAGE, null)));
+		}
+		return results;
+	}
+
+	/**
+	 * An update read from a batch.
+	 */
+	public static class Update {
+		private final String event;
+		private final long length;
+
+		Update(String event, long length) {
+			this.event = event;
+			this.length = length;
+		}
+
+		public String getEvent() {
+			return event;
+		}
+
+		/**
+		 * Returns the length of the file that follows or {@link UpdateBatch#NO_FILE}.
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		public boolean hasFile() {
+			return length != NO_FILE;
+		}
+	}
+
+	/**
+	 * The outcome of an update of a batch, as an HTTP status.
+	 */
+	public static class Result {
+		private final int status;
+		private final String message;
+
+		public Result(int status, String message) {
+			this.status = status;
+			this.message = message;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public boolean isSuccess() {
+			return status >= 200 && status < 300;
+		}
+	}
+}
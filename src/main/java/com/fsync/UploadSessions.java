@@ -0,0 +1,582 @@
+package com.fsync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * This class keeps the uploads of large files in progress, so that an upload
+ * that fails part of the way is resumed where it stopped instead of starting
+ * over. A file is sent as parts of a fixed size, each followed by its digest.
+ * A part is acknowledged once it is written and forced to disk, and the peer
+ * asks which parts were acknowledged before it sends the others. The file is
+ * hashed from the start as the parts come in: a part that follows the parts
+ * already hashed is hashed from the bytes received, while a part that comes in
+ * ahead of a part before it, as with parts sent in parallel, is read back once
+ * the parts before it are in. Once all the parts are in, the file is checked
+ * against its checksum and moved into place. An upload read from disk after a
+ * restart is read back up to the first part received after the restart.
+ * <p>
+ * Each upload keeps three files in the upload directory: the file being put
+ * together, the event and length of the upload, and the indices of the parts
+ * acknowledged. Uploads survive a restart, uploads left idle for a day are
+ * deleted when uploads are opened. An upload committed is remembered for a
+ * while, so that a peer that did not get the answer to its commit and sends
+ * the upload again is told it is complete rather than sending it all over.
+ * @author shreyas shinde
+ *
+ */
+public class UploadSessions {
+	/** The size of the parts of the files uploaded */
+	public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+	/** Uploads idle for longer are deleted */
+	private static final long MAX_IDLE_MILLIS = 24 * 60 * 60 * 1000L;
+
+	/** How often the idle uploads are looked for */
+	private static final long IDLE_CHECK_MILLIS = 60 * 60 * 1000L;
+
+	/** Uploads committed are remembered this long, and at most this many of them */
+	private static final long COMMITTED_MILLIS = 10 * 60 * 1000L;
+	private static final int MAX_COMMITTED = 1024;
+
+	/** The ids chosen by the peers, which are also file names */
+	private static final Pattern ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Status fields */
+	private static final String ID_FIELD  = "id";
+	private static final String EVENT     = "event";
+	private static final String LENGTH    = "length";
+	private static final String PART_SIZE = "partSize";
+	private static final String OFFSET    = "offset";
+	private static final String RECEIVED  = "received";
+
+	private final Path dir;
+	private final int partSize;
+
+	/** The uploads read from disk or created, guarded by this */
+	private final Map<String, Session> sessions = new HashMap<String, Session>();
+
+	/** The uploads committed lately in the order they were committed, guarded by this */
+	private final Map<String, Session> committed = new LinkedHashMap<String, Session>();
+
+	/** The last time the idle uploads were deleted, guarded by this */
+	private long idleChecked = 0;
+
+	/** The bytes of parts read back from disk to be hashed */
+	private final AtomicLong bytesReadBack = new AtomicLong();
+
+	private static final Logger logger = Logger.getLogger(UploadSessions.class.getName());
+
+	/**
+	 * @param dir the directory of the uploads, on the same file system as the sync directory
+	 * @param partSize the size of the parts of the uploads created
+	 */
+	public UploadSessions(Path dir, int partSize) throws IOException {
+		this.dir = dir;
+		this.partSize = partSize;
+		Files.createDirectories(dir);
+		deleteIdle();
+	}
+
+	/**
+	 * Returns an upload, creating it if needed. An upload with the same id
+	 * but another event or length is started over.
+	 * @param id the id of the upload chosen by the peer
+	 * @param event the event of the file uploaded
+	 * @param length the length of the file uploaded
+	 * @return the upload
+	 */
+	public synchronized Session open(String id, String event, long length) throws IOException {
+		checkId(id);
+		if(length < 0) {
+			throw new IllegalArgumentException("Invalid length: " + length);
+		}
+		if(System.currentTimeMillis() - idleChecked > IDLE_CHECK_MILLIS) {
+			deleteIdle();
+		}
+		Session session = get(id);
+		if(session != null && session.event.equals(event) && session.length == length) {
+			return session;
+		}
+		if(session != null) {
+			session.delete();
+		}
+		session = new Session(id, event, length, partSize);
+		session.create();
+		sessions.put(id, session);
+		return session;
+	}
+
+	/**
+	 * Returns an upload, which may have been committed lately.
+	 * @param id the id of the upload chosen by the peer
+	 * @return the upload or null if there is no such upload
+	 */
+	public synchronized Session get(String id) throws IOException {
+		checkId(id);
+		long now = System.currentTimeMillis();
+		for(Iterator<Session> it = committed.values().iterator(); it.hasNext(); ) {
+			if(now - it.next().committedAt <= COMMITTED_MILLIS) {
+				break;
+			}
+			it.remove();
+		}
+		Session session = committed.get(id);
+		if(session != null) {
+			return session;
+		}
+		session = sessions.get(id);
+		if(session == null && Files.exists(dir.resolve(id + ".meta"))) {
+			session = load(id);
+			sessions.put(id, session);
+		}
+		return session;
+	}
+
+	/**
+	 * Returns the number of bytes of the parts that were read back from disk
+	 * to be hashed, rather than hashed as they came in.
+	 */
+	public long getBytesReadBack() {
+		return bytesReadBack.get();
+	}
+
+	private synchronized void forget(Session session) {
+		sessions.remove(session.id);
+		committed.remove(session.id);
+	}
+
+	private synchronized void remember(Session session) {
+		sessions.remove(session.id);
+		committed.remove(session.id);
+		committed.put(session.id, session);
+		if(committed.size() > MAX_COMMITTED) {
+			Iterator<Session> oldest = committed.values().iterator();
+			oldest.next();
+			oldest.remove();
+		}
+	}
+
+	/**
+	 * Reads an upload from disk.
+	 */
+	private Session load(String id) throws IOException {
+		JSONObject meta = new JSONObject(new String(Files.readAllBytes(dir.resolve(id + ".meta")), UTF8));
+		Session session = new Session(id, meta.getString(EVENT), meta.getLong(LENGTH), meta.getInt(PART_SIZE));
+		File acks = dir.resolve(id + ".acks").toFile();
+		if(acks.exists() && Files.exists(session.getData())) {
+			DataInputStream in = new DataInputStream(new FileInputStream(acks));
+			try {
+				// A torn last index is ignored, the part is sent again
+				for(long n = acks.length() / 4; n > 0; n--) {
+					int part = in.readInt();
+					if(part >= 0 && part < session.getParts()) {
+						session.received.set(part);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return session;
+	}
+
+	private static void checkId(String id) {
+		if(id == null || !ID.matcher(id).matches()) {
+			throw new IllegalArgumentException("Invalid upload id: " + id);
+		}
+	}
+
+	/**
+	 * Deletes the uploads left idle, guarded by this. An upload is idle when
+	 * none of its files changed for a while.
+	 */
+	private void deleteIdle() throws IOException {
+		long now = System.currentTimeMillis();
+		idleChecked = now;
+		Map<String, Long> lastModified = new HashMap<String, Long>();
+		DirectoryStream<Path> files = Files.newDirectoryStream(dir);
+		try {
+			for(Path file : files) {
+				String id = getId(file);
+				long modified = Files.getLastModifiedTime(file).toMillis();
+				Long previous = lastModified.get(id);
+				lastModified.put(id, previous == null ? modified : Math.max(previous, modified));
+			}
+		} finally {
+			files.close();
+		}
+		files = Files.newDirectoryStream(dir);
+		try {
+			for(Path file : files) {
+				String id = getId(file);
+				if(now - lastModified.get(id) > MAX_IDLE_MILLIS) {
+					logger.info("Deleting idle upload file: " + file);
+					Files.deleteIfExists(file);
+					sessions.remove(id);
+				}
+			}
+		} finally {
+			files.close();
+		}
+	}
+
+	/**
+	 * Returns the id of the upload a file of the upload directory belongs to.
+	 */
+	private static String getId(Path file) {
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return dot < 0 ? name : name.substring(0, dot);
+	}
+
+	/**
+	 * An upload in progress.
+	 * @author shreyas shinde
+	 *
+	 */
+	public class Session {
+		private final String id;
+		private final String event;
+		private final long length;
+		private final int partSize;
+
+		/** The parts acknowledged, guarded by this */
+		private final BitSet received = new BitSet();
+
+		/** The digest of the first parts acknowledged, guarded by prefixLock */
+		private final Object prefixLock = new Object();
+		private MessageDigest prefix = null;
+		private int hashedParts = 0;
+
+		/** The checksum of the file moved into place once the upload is committed */
+		private volatile String committedChecksum = null;
+		private volatile long committedAt = 0;
+
+		Session(String id, String event, long length, int partSize) {
+			this.id = id;
+			this.event = event;
+			this.length = length;
+			this.partSize = partSize;
+		}
+
+		public String getEvent() {
+			return event;
+		}
+
+		/**
+		 * Returns the file being put together.
+		 */
+		public Path getData() {
+			return dir.resolve(id + ".data");
+		}
+
+		public int getParts() {
+			return (int)((length + partSize - 1) / partSize);
+		}
+
+		/**
+		 * Returns the offset up to which all the parts were acknowledged.
+		 */
+		public synchronized long getOffset() {
+			return Math.min(length, (long)received.nextClearBit(0) * partSize);
+		}
+
+		public synchronized boolean isComplete() {
+			return received.cardinality() == getParts();
+		}
+
+		/**
+		 * Writes a part read from a stream, followed by its digest. The part is
+		 * acknowledged once it is on disk. A part that follows the parts already
+		 * hashed is hashed as it is read, the parts that came in ahead of it are
+		 * then read back and hashed.
+		 * @param part the index of the part
+		 * @param in the part followed by its digest
+		 * @throws PartMismatchException if the part does not match its digest
+		 * @throws IOException if the part could not be read or written
+		 */
+		public void writePart(int part, InputStream in) throws IOException {
+			if(part < 0 || part >= getParts()) {
+				throw new IllegalArgumentException("Invalid part: " + part);
+			}
+			long offset = (long)part * partSize;
+			long remaining = Math.min(partSize, length - offset);
+			MessageDigest md = ChecksumUtil.createMessageDigest();
+			MessageDigest next = nextPrefix(part);
+			FileChannel channel = FileChannel.open(getData(), StandardOpenOption.WRITE);
+			try {
+				byte[] buf = new byte[64 * 1024];
+				while(remaining > 0) {
+					int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+					if(n < 0) {
+						throw new EOFException("The part ended early.");
+					}
+					md.update(buf, 0, n);
+					if(next != null) {
+						next.update(buf, 0, n);
+					}
+					ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+					while(bb.hasRemaining()) {
+						offset += channel.write(bb, offset);
+					}
+					remaining -= n;
+				}
+				byte[] digest = new byte[md.getDigestLength()];
+				new DataInputStream(in).readFully(digest);
+				if(in.read() >= 0) {
+					throw new IOException("The part is longer than expected.");
+				}
+				if(!MessageDigest.isEqual(md.digest(), digest)) {
+					throw new PartMismatchException("Part " + part + " does not match its digest.");
+				}
+				channel.force(false);
+			} finally {
+				channel.close();
+			}
+			acknowledge(part);
+			if(next != null) {
+				synchronized(prefixLock) {
+					if(hashedParts == part) {
+						prefix = next;
+						hashedParts = part + 1;
+					}
+				}
+			}
+			try {
+				hashPrefix();
+			} catch(IOException e) {
+				// Hashed again when the upload is committed
+				logger.warning("Failed to hash upload " + id + ". " + e.getLocalizedMessage());
+			}
+		}
+
+		/**
+		 * Computes the checksum of the file put together. Only the parts that
+		 * were not hashed as they came in are read, which are all of them for
+		 * an upload read from disk.
+		 */
+		public String computeChecksum() throws IOException {
+			synchronized(prefixLock) {
+				hashPrefix();
+				if(hashedParts < getParts()) {
+					throw new IllegalStateException("Parts of upload " + id + " are missing.");
+				}
+				if(prefix == null) {
+					prefix = ChecksumUtil.createMessageDigest();
+				}
+				String checksum = ChecksumUtil.encode(prefix.digest());
+				// The digest was reset
+				prefix = null;
+				hashedParts = 0;
+				return checksum;
+			}
+		}
+
+		/**
+		 * Returns a copy of the digest of the parts already hashed if a part
+		 * follows them, for the part to be hashed as it is read, null otherwise.
+		 */
+		private MessageDigest nextPrefix(int part) {
+			synchronized(prefixLock) {
+				if(hashedParts != part) {
+					return null;
+				}
+				if(prefix == null) {
+					return ChecksumUtil.createMessageDigest();
+				}
+				try {
+					return (MessageDigest)prefix.clone();
+				} catch(CloneNotSupportedException e) {
+					// The part is read back instead
+					return null;
+				}
+			}
+		}
+
+		/**
+		 * Reads back and hashes the parts acknowledged that follow the parts
+		 * already hashed.
+		 */
+		private void hashPrefix() throws IOException {
+			synchronized(prefixLock) {
+				int end;
+				synchronized(this) {
+					end = received.nextClearBit(hashedParts);
+				}
+				if(end == hashedParts) {
+					return;
+				}
+				if(prefix == null) {
+					prefix = ChecksumUtil.createMessageDigest();
+				}
+				long position = (long)hashedParts * partSize;
+				long stop = Math.min(length, (long)end * partSize);
+				boolean hashed = false;
+				FileChannel channel = FileChannel.open(getData(), StandardOpenOption.READ);
+				try {
+					ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+					while(position < stop) {
+						buf.clear();
+						buf.limit((int)Math.min(buf.capacity(), stop - position));
+						int n = channel.read(buf, position);
+						if(n < 0) {
+							throw new EOFException("The file of upload " + id + " is shorter than expected.");
+						}
+						prefix.update(buf.array(), 0, n);
+						position += n;
+						bytesReadBack.addAndGet(n);
+					}
+					hashedParts = end;
+					hashed = true;
+				} finally {
+					channel.close();
+					if(!hashed) {
+						// Part of a part was hashed, start over
+						prefix = null;
+						hashedParts = 0;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Returns the checksum of the file the upload was committed with, or
+		 * null if it was not committed.
+		 */
+		public String getCommittedChecksum() {
+			return committedChecksum;
+		}
+
+		/**
+		 * Marks the upload committed once the file put together was moved into
+		 * place, and deletes its files. The upload is remembered for a while
+		 * with all its parts received.
+		 * @param checksum the checksum of the file moved into place
+		 */
+		public void commit(String checksum) throws IOException {
+			committedChecksum = checksum;
+			committedAt = System.currentTimeMillis();
+			remember(this);
+			Files.deleteIfExists(getData());
+			Files.deleteIfExists(dir.resolve(id + ".acks"));
+			Files.deleteIfExists(dir.resolve(id + ".meta"));
+		}
+
+		/**
+		 * Deletes the files of the upload. The file put together is left alone
+		 * if it was moved into place.
+		 */
+		public void delete() throws IOException {
+			forget(this);
+			Files.deleteIfExists(getData());
+			Files.deleteIfExists(dir.resolve(id + ".acks"));
+			Files.deleteIfExists(dir.resolve(id + ".meta"));
+		}
+
+		/**
+		 * Returns the status of the upload in JSON format: the parts received
+		 * as ranges of indices, the end excluded.
+		 */
+		public synchronized JSONObject getStatus() {
+			JSONObject status = new JSONObject();
+			status.put(ID_FIELD, id);
+			status.put(LENGTH, length);
+			status.put(PART_SIZE, partSize);
+			status.put(OFFSET, getOffset());
+			JSONArray ranges = new JSONArray();
+			for(int start = received.nextSetBit(0); start >= 0; start = received.nextSetBit(received.nextClearBit(start))) {
+				ranges.put(new JSONArray().put(start).put(received.nextClearBit(start)));
+			}
+			status.put(RECEIVED, ranges);
+			return status;
+		}
+
+		private synchronized void acknowledge(int part) throws IOException {
+			if(received.get(part)) {
+				return;
+			}
+			DataOutputStream acks = new DataOutputStream(new FileOutputStream(dir.resolve(id + ".acks").toFile(), true));
+			try {
+				acks.writeInt(part);
+				acks.flush();
+			} finally {
+				acks.close();
+			}
+			received.set(part);
+		}
+
+		private void create() throws IOException {
+			Files.deleteIfExists(dir.resolve(id + ".acks"));
+			FileChannel channel = FileChannel.open(getData(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				// Sized up front so that the parts can be written in any order
+				if(length > 0) {
+					channel.write(ByteBuffer.allocate(1), length - 1);
+				}
+			} finally {
+				channel.close();
+			}
+			JSONObject meta = new JSONObject();
+			meta.put(EVENT, event);
+			meta.put(LENGTH, length);
+			meta.put(PART_SIZE, partSize);
+			Files.write(dir.resolve(id + ".meta"), meta.toString().getBytes(UTF8));
+		}
+	}
+
+	/**
+	 * Reads the status of an upload written by {@link Session#getStatus()}.
+	 * @return the parts received
+	 */
+	public static BitSet readReceived(JSONObject status) {
+		BitSet received = new BitSet();
+		JSONArray ranges = status.getJSONArray(RECEIVED);
+		for(int i = 0; i < ranges.length(); i++) {
+			JSONArray range = ranges.getJSONArray(i);
+			received.set(range.getInt(0), range.getInt(1));
+		}
+		return received;
+	}
+
+	/**
+	 * Thrown when a part does not match its digest.
+	 * @author shreyas shinde
+	 *
+	 */
+	public static class PartMismatchException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public PartMismatchException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package com.fsync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import com.fsync.ChecksumIndex.Record;
+import com.fsync.DirectoryChangeEvent.DirectoryChangeEventType;
+
+/**
+ * This class keeps the writes made to the sync directory on behalf of the
+ * peers, so that the change events the directory observer raises for them
+ * are dropped instead of being sent back. A write is registered before the
+ * file is moved into place or deleted, and completed with the file key, the
+ * modification time and the size of the file written. An event raised while
+ * the write is in progress is ours. Once the write completed, an event is
+ * ours as long as the file still has the stat data it was written with, so
+ * a local change made right after a write is still sent to the peers. The
+ * writes are forgotten after a while, by then their events have been seen.
+ * @author shreyas shinde
+ *
+ */
+public class WriteRegistry {
+	/** Default time completed writes are kept */
+	public static final long DEFAULT_RETENTION_MILLIS = 60 * 1000;
+
+	private final long retentionMillis;
+
+	/** The writes by absolute path, oldest first, guarded by this */
+	private final Map<String, Write> writes = new LinkedHashMap<String, Write>();
+
+	private final AtomicLong suppressed = new AtomicLong();
+
+	/**
+	 * @param retentionMillis how long completed writes are kept
+	 */
+	public WriteRegistry(long retentionMillis) {
+		this.retentionMillis = retentionMillis;
+	}
+
+	/**
+	 * Registers a write about to be made. Must be followed by
+	 * {@link #complete(Write, BasicFileAttributes)} or {@link #abort(Write)}.
+	 * @param path the absolute path of the file written or deleted
+	 * @return the write
+	 */
+	public synchronized Write begin(String path) {
+		expire();
+		Write write = new Write(normalize(path));
+		// Re-inserted so that the writes stay ordered by age
+		writes.remove(write.path);
+		writes.put(write.path, write);
+		return write;
+	}
+
+	/**
+	 * Completes a write.
+	 * @param write the write
+	 * @param attrs the attributes of the file written, or null if the file was deleted
+	 */
+	public synchronized void complete(Write write, BasicFileAttributes attrs) {
+		write.inProgress = false;
+		write.completed = System.currentTimeMillis();
+		if(attrs != null) {
+			write.size = attrs.size();
+			write.mtime = Record.mtimeOf(attrs);
+			write.fileKey = Record.fileKeyOf(attrs);
+		}
+	}
+
+	/**
+	 * Forgets a write that failed.
+	 */
+	public synchronized void abort(Write write) {
+		if(writes.get(write.path) == write) {
+			writes.remove(write.path);
+		}
+	}
+
+	/**
+	 * Tells whether a change event was caused by a write of ours. Events of
+	 * writes in progress and of deletes are recognized without any I/O,
+	 * events of completed writes by the stat data of the file. A change that
+	 * is not ours makes the write be forgotten.
+	 * @param path the absolute path of the file changed
+	 * @param type the type of the change
+	 * @return true if the event must be dropped
+	 */
+	public boolean isEcho(String path, DirectoryChangeEventType type) {
+		String key = normalize(path);
+		Write write;
+		long size, mtime, fileKey;
+		synchronized(this) {
+			write = writes.get(key);
+			if(write == null) {
+				return false;
+			}
+			if(write.inProgress || (write.size < 0 && type == DirectoryChangeEventType.DELETED)) {
+				suppressed.incrementAndGet();
+				return true;
+			}
+			size = write.size;
+			mtime = write.mtime;
+			fileKey = write.fileKey;
+		}
+		if(size >= 0 && type != DirectoryChangeEventType.DELETED) {
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(Paths.get(key), BasicFileAttributes.class);
+				if(attrs.size() == size && Record.mtimeOf(attrs) == mtime && Record.fileKeyOf(attrs) == fileKey) {
+					suppressed.incrementAndGet();
+					return true;
+				}
+			} catch(NoSuchFileException e) {
+				// Deleted since, the event is passed on
+			} catch(IOException e) {
+				// Passed on, the file is looked at again when it is sent
+			}
+		}
+		abort(write);
+		return false;
+	}
+
+	/**
+	 * Returns the number of events dropped as echoes of our writes.
+	 */
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+
+	/**
+	 * Returns the statistics of the registry in JSON format.
+	 */
+	public synchronized JSONObject getStats() {
+		JSONObject stats = new JSONObject();
+		int inProgress = 0;
+		for(Write write : writes.values()) {
+			if(write.inProgress) {
+				inProgress++;
+			}
+		}
+		stats.put("inProgress", inProgress);
+		stats.put("recent", writes.size() - inProgress);
+		stats.put("suppressed", suppressed.get());
+		return stats;
+	}
+
+	/**
+	 * Forgets the writes completed long ago, guarded by this.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		for(Iterator<Write> i = writes.values().iterator(); i.hasNext();) {
+			Write write = i.next();
+			if(write.inProgress) {
+				continue;
+			}
+			if(now - write.completed <= retentionMillis) {
+				// The writes after it are more recent
+				break;
+			}
+			i.remove();
+		}
+	}
+
+	private static String normalize(String path) {
+		return Paths.get(path).toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * A write of a file or a delete.
+	 */
+	public static class Write {
+		private final String path;
+
+		/** All guarded by the registry */
+		private boolean inProgress = true;
+		private long completed = 0;
+
+		/** The stat data of the file written, a size of -1 for a delete */
+		private long size = -1;
+		private long mtime = 0;
+		private long fileKey = 0;
+
+		Write(String path) {
+			this.path = path;
+		}
+	}
+}
@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
 
 import org.junit.AfterClass;
@@ -13,6 +14,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.fsync.ChecksumManager;
+import com.google.common.base.Predicate;
 
 public class ChecksumManagerTest {
 	public static String testDir = "/tmp/ChecksumManagerTest";
@@ -90,6 +92,132 @@ public class ChecksumManagerTest {
 		f2.delete();
 	}
 	
+	@Test
+	public void testCreateChecksumOnDirectoryWithIndex() throws Exception {
+		File f1 = createTestFileWithData("f1.dat", "abcefghijklmnopqrstuvwxyz");
+		// Written long enough ago for its checksum to be trusted from its stat data
+		f1.setLastModified(System.currentTimeMillis() - 60000);
+		File index = File.createTempFile("ChecksumManagerTest", ".idx");
+		index.delete();
+		
+		// The first scan hashes the file and saves the index
+		ChecksumManager cm = new ChecksumManager(testDir);
+		cm.setIndexFile(index.toPath());
+		cm.createChecksumOnDirectory();
+		assertTrue(index.exists());
+		String checksum = cm.getChecksum(f1.getAbsolutePath());
+		assertNotNull(checksum);
+		
+		// An unchanged file is not rehashed, so a record with matching stat data is trusted
+		BasicFileAttributes attrs = Files.readAttributes(f1.toPath(), BasicFileAttributes.class);
+		ChecksumStore records = new ChecksumStore();
+		records.put(f1.getAbsolutePath().replace(testDir, ""), new ChecksumIndex.Record("fromindex", attrs, System.currentTimeMillis()));
+		ChecksumIndex.save(index.toPath(), records);
+		cm = new ChecksumManager(testDir);
+		cm.setIndexFile(index.toPath());
+		cm.createChecksumOnDirectory();
+		assertEquals("fromindex", cm.getChecksum(f1.getAbsolutePath()));
+		
+		// A changed file is rehashed
+		f1.setLastModified(f1.lastModified() - 10000);
+		cm = new ChecksumManager(testDir);
+		cm.setIndexFile(index.toPath());
+		cm.createChecksumOnDirectory();
+		assertEquals(checksum, cm.getChecksum(f1.getAbsolutePath()));
+		
+		// Cleanup
+		f1.delete();
+		index.delete();
+	}
+	
+	@Test
+	public void testExpireDeletions() throws Exception {
+		ChecksumManager cm = new ChecksumManager(testDir);
+		long now = System.currentTimeMillis();
+		cm.recordDeletion(testDir + "/old.dat", now - 60000);
+		cm.recordDeletion(testDir + "/recreated.dat", now - 60000);
+		cm.recordDeletion(testDir + "/recent.dat", now);
+		cm.updateChecksumOnFile("testchecksum", testDir + "/recreated.dat");
+		
+		// Only the records of the files deleted long enough ago are dropped
+		assertEquals(1, cm.expireDeletions(30000));
+		assertNull(cm.getRecord(testDir + "/old.dat"));
+		assertTrue(cm.isChecksumValid("", testDir + "/recent.dat"));
+		assertEquals("testchecksum", cm.getChecksum(testDir + "/recreated.dat"));
+	}
+	
+	@Test
+	public void testPendingDeletionsAreKept() throws Exception {
+		ChecksumManager cm = new ChecksumManager(testDir);
+		long now = System.currentTimeMillis();
+		cm.recordDeletion(testDir + "/heard.dat", now - 60000);
+		cm.recordDeletion(testDir + "/missed.dat", now - 60000);
+		
+		// A peer has yet to receive the delete of missed.dat
+		final ReplicationJournal journal = new ReplicationJournal(null);
+		journal.append("missed.dat", "{}", null);
+		assertEquals(1, cm.expireDeletions(30000, new Predicate<String>() {
+			public boolean apply(String path) {
+				return journal.isPending(path);
+			}
+		}));
+		assertNull(cm.getRecord(testDir + "/heard.dat"));
+		assertTrue(cm.getRecord(testDir + "/missed.dat").isDeleted());
+	}
+	
+	@Test
+	public void testDeletionsAreSavedInIndex() throws Exception {
+		File f1 = createTestFileWithData("f1.dat", "abcefghijklmnopqrstuvwxyz");
+		File index = File.createTempFile("ChecksumManagerTest", ".idx");
+		index.delete();
+		ChecksumManager cm = new ChecksumManager(testDir);
+		cm.setIndexFile(index.toPath());
+		cm.createChecksumOnDirectory();
+		
+		// The file is deleted and the index saved
+		long deleted = System.currentTimeMillis() - 60000;
+		f1.delete();
+		cm.recordDeletion(f1.getAbsolutePath(), deleted);
+		cm.saveIndex();
+		
+		// The delete record survives the restart, with its deletion time
+		cm = new ChecksumManager(testDir);
+		cm.setIndexFile(index.toPath());
+		cm.createChecksumOnDirectory();
+		ChecksumIndex.Record record = cm.getRecord(f1.getAbsolutePath());
+		assertNotNull(record);
+		assertTrue(record.isDeleted());
+		assertEquals(deleted, record.getDeletedMillis());
+		assertEquals(0, cm.expireDeletions(120000));
+		assertEquals(1, cm.expireDeletions(30000));
+		
+		// Cleanup
+		index.delete();
+	}
+	
+	@Test
+	public void testRacyRecordsAreNotTrusted() throws Exception {
+		File f1 = createTestFileWithData("f1.dat", "abcefghijklmnopqrstuvwxyz");
+		ChecksumManager cm = new ChecksumManager(testDir);
+		
+		// Written right before it was read, a write in the same tick would keep its stat data
+		long statMillis = System.currentTimeMillis();
+		BasicFileAttributes attrs = Files.readAttributes(f1.toPath(), BasicFileAttributes.class);
+		cm.updateChecksumOnFile("testchecksum", f1.getAbsolutePath(), attrs, statMillis);
+		assertTrue(cm.getRecord(f1.getAbsolutePath()).isRacy());
+		assertTrue(cm.getRecord(f1.getAbsolutePath()).matches(attrs));
+		assertFalse(cm.getRecord(f1.getAbsolutePath()).isClean(attrs));
+		
+		// Written long before it was read
+		f1.setLastModified(statMillis - 60000);
+		attrs = Files.readAttributes(f1.toPath(), BasicFileAttributes.class);
+		cm.updateChecksumOnFile("testchecksum", f1.getAbsolutePath(), attrs, statMillis);
+		assertTrue(cm.getRecord(f1.getAbsolutePath()).isClean(attrs));
+		
+		// Cleanup
+		f1.delete();
+	}
+	
 	/**
 	 * Creates a test file with some data.
 	 * @param filename
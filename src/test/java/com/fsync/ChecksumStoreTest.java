@@ -0,0 +1,152 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.fsync.ChecksumIndex.Record;
+
+public class ChecksumStoreTest {
+
+	@Test
+	public void testPutAndGet() throws Exception {
+		ChecksumStore store = new ChecksumStore();
+		String checksum = ChecksumUtil.computeChecksumForData("0123456789".getBytes());
+		store.put("/a/b.dat", new Record(checksum, 10, 1234, 42));
+		
+		Record record = store.get("/a/b.dat");
+		assertEquals(checksum, record.getChecksum());
+		assertEquals(10, record.size);
+		assertEquals(1234, record.mtime);
+		assertEquals(42, record.fileKey);
+		assertNull(store.get("/a/c.dat"));
+		assertEquals(1, store.size());
+	}
+	
+	@Test
+	public void testLiteralAndEmptyChecksums() throws Exception {
+		ChecksumStore store = new ChecksumStore();
+		store.put("/literal", new Record("testchecksum!"));
+		store.put("/deleted", new Record(""));
+		assertEquals("testchecksum!", store.getChecksum("/literal"));
+		assertEquals("", store.getChecksum("/deleted"));
+		
+		// Replacing a literal with a digest
+		String checksum = ChecksumUtil.computeChecksumForData("abc".getBytes());
+		store.put("/literal", new Record(checksum));
+		assertEquals(checksum, store.getChecksum("/literal"));
+	}
+
+	@Test
+	public void testManyEntriesWithRemoves() throws Exception {
+		ChecksumStore store = new ChecksumStore(4, 20);
+		Map<String, String> expected = new HashMap<String, String>();
+		for(int i = 0; i < 20000; i++) {
+			String path = "/dir" + (i % 100) + "/file" + i + ".dat";
+			String checksum = ChecksumUtil.computeChecksumForData(path.getBytes());
+			store.put(path, new Record(checksum));
+			expected.put(path, checksum);
+		}
+		for(int i = 0; i < 20000; i += 3) {
+			String path = "/dir" + (i % 100) + "/file" + i + ".dat";
+			assertTrue(store.remove(path));
+			expected.remove(path);
+		}
+		assertEquals(expected.size(), store.size());
+		for(Map.Entry<String, String> e : expected.entrySet()) {
+			assertEquals(e.getValue(), store.getChecksum(e.getKey()));
+		}
+		
+		final Map<String, String> visited = new HashMap<String, String>();
+		store.forEach(new ChecksumStore.Visitor() {
+			public void visit(String path, Record record) {
+				visited.put(path, record.getChecksum());
+			}
+		});
+		assertEquals(expected, visited);
+	}
+	
+	@Test
+	public void testSnapshot() throws Exception {
+		ChecksumStore store = new ChecksumStore(4, 20);
+		Map<String, String> expected = new HashMap<String, String>();
+		for(int i = 0; i < 5000; i++) {
+			String path = "/dir" + (i % 10) + "/file" + i + ".dat";
+			String checksum = ChecksumUtil.computeChecksumForData(path.getBytes());
+			store.put(path, new Record(checksum));
+			expected.put(path, checksum);
+		}
+		store.put("/literal", new Record("testchecksum!"));
+		expected.put("/literal", "testchecksum!");
+		ChecksumStore.Snapshot snapshot = store.snapshot();
+		
+		// Changes made after the snapshot are not seen by it
+		for(int i = 0; i < 5000; i += 2) {
+			store.remove("/dir" + (i % 10) + "/file" + i + ".dat");
+		}
+		store.put("/new", new Record(""));
+		store.put("/literal", new Record("changed!"));
+		assertEquals(expected.size(), snapshot.size());
+		
+		// Walk the snapshot a page at a time, resuming from the position
+		Map<String, String> visited = new HashMap<String, String>();
+		long position = 0;
+		do {
+			ChecksumStore.Cursor cursor = snapshot.cursor(position);
+			for(int n = 0; n < 333 && cursor.hasNext(); n++) {
+				ChecksumStore.Entry entry = cursor.next();
+				assertNull(visited.put(entry.getPath(), entry.getRecord().getChecksum()));
+			}
+			position = cursor.hasNext() ? cursor.getPosition() : -1;
+		} while(position >= 0);
+		assertEquals(expected, visited);
+		assertEquals(2502, store.size());
+		assertEquals("changed!", store.getChecksum("/literal"));
+		assertTrue(store.snapshot().getVersion() > snapshot.getVersion());
+	}
+
+	@Test
+	public void testSnapshotsOfLargeShard() throws Exception {
+		// A single shard large enough to be split in segments
+		ChecksumStore store = new ChecksumStore(1, 20);
+		Map<String, String> expected = new HashMap<String, String>();
+		for(int i = 0; i < 10000; i++) {
+			String checksum = ChecksumUtil.computeChecksumForData(("file" + i).getBytes());
+			store.put("/file" + i, new Record(checksum));
+			expected.put("/file" + i, checksum);
+		}
+		ChecksumStore.Snapshot first = store.snapshot();
+		
+		// Removes shift entries across segments, puts resize the table
+		Map<String, String> changed = new HashMap<String, String>(expected);
+		for(int i = 0; i < 10000; i += 7) {
+			store.remove("/file" + i);
+			changed.remove("/file" + i);
+		}
+		ChecksumStore.Snapshot second = store.snapshot();
+		for(int i = 10000; i < 20000; i++) {
+			store.put("/file" + i, new Record(""));
+		}
+		store.put("/file1", new Record("literal!"));
+		
+		assertEquals(expected, toMap(first));
+		assertEquals(changed, toMap(second));
+		changed.put("/file1", "literal!");
+		for(int i = 10000; i < 20000; i++) {
+			changed.put("/file" + i, "");
+		}
+		assertEquals(changed, toMap(store.snapshot()));
+	}
+	
+	private static Map<String, String> toMap(ChecksumStore.Snapshot snapshot) {
+		Map<String, String> entries = new HashMap<String, String>();
+		for(ChecksumStore.Entry entry : snapshot) {
+			assertNull(entries.put(entry.getPath(), entry.getRecord().getChecksum()));
+		}
+		assertEquals(snapshot.size(), entries.size());
+		return entries;
+	}
+}
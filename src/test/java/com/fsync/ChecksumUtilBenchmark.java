@@ -0,0 +1,135 @@
+package com.fsync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Measures the hashing throughput of {@link ChecksumUtil} against the original
+ * byte-at-a-time implementation for a range of file sizes. This is not run as
+ * part of the unit tests; run it with:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;deps&gt; com.fsync.ChecksumUtilBenchmark [sizeInKB ...]
+ * </pre>
+ * @author shreyas shinde
+ *
+ */
+public class ChecksumUtilBenchmark {
+	/** Default file sizes in KB */
+	private static final long[] DEFAULT_SIZES = {4, 64, 1024, 16 * 1024, 128 * 1024, 512 * 1024};
+
+	/** The legacy implementation is too slow to be run on large files */
+	private static final long LEGACY_MAX_SIZE = 16L * 1024 * 1024;
+
+	/** Each measurement runs for at least this long */
+	private static final long MIN_RUN_NANOS   = 2000000000L;
+
+	public static void main(String[] args) throws Exception {
+		long[] sizes = DEFAULT_SIZES;
+		if(args.length > 0) {
+			sizes = new long[args.length];
+			for(int i = 0; i < args.length; i++) {
+				sizes[i] = Long.parseLong(args[i]);
+			}
+		}
+
+		System.out.println(String.format("%12s %16s %16s %10s", "size", "legacy MB/s", "current MB/s", "speedup"));
+		for(long sizeKB : sizes) {
+			long size = sizeKB * 1024;
+			File f = createTestFile(size);
+			try {
+				// Make sure both implementations agree before timing them
+				String expected = legacyChecksumForFile(f.getAbsolutePath());
+				if(size <= LEGACY_MAX_SIZE && !expected.equals(ChecksumUtil.computeChecksumForFile(f.getAbsolutePath()))) {
+					throw new IllegalStateException("Checksum mismatch for size " + size);
+				}
+
+				double current = measure(f, false);
+				if(size <= LEGACY_MAX_SIZE) {
+					double legacy = measure(f, true);
+					System.out.println(String.format("%12s %16.1f %16.1f %9.1fx",
+							sizeKB + "KB", legacy, current, current / legacy));
+				} else {
+					System.out.println(String.format("%12s %16s %16.1f %10s",
+							sizeKB + "KB", "skipped", current, "-"));
+				}
+			} finally {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Hashes the file repeatedly and returns the throughput in MB/s.
+	 */
+	private static double measure(File f, boolean legacy) {
+		// Warm up
+		hash(f, legacy);
+
+		long bytes = 0;
+		long start = System.nanoTime();
+		long elapsed = 0;
+		do {
+			hash(f, legacy);
+			bytes += f.length();
+			elapsed = System.nanoTime() - start;
+		} while(elapsed < MIN_RUN_NANOS);
+		return (bytes / (1024.0 * 1024.0)) / (elapsed / 1e9);
+	}
+
+	private static String hash(File f, boolean legacy) {
+		if(legacy) {
+			return legacyChecksumForFile(f.getAbsolutePath());
+		}
+		return ChecksumUtil.computeChecksumForFile(f.getAbsolutePath());
+	}
+
+	/**
+	 * The original implementation that reads through the digest stream one byte at a time.
+	 */
+	private static String legacyChecksumForFile(String filepath) {
+		if(new File(filepath).length() > LEGACY_MAX_SIZE) {
+			return null;
+		}
+		try {
+			MessageDigest md = MessageDigest.getInstance(ChecksumUtil.getMessageDigestAlgorithm());
+			InputStream is = Files.newInputStream(Paths.get(filepath));
+			try {
+				DigestInputStream dis = new DigestInputStream(is, md);
+				while(dis.read() != -1) {
+					;
+				}
+			} finally {
+				is.close();
+			}
+			return ChecksumUtil.encode(md.digest());
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static File createTestFile(long size) throws Exception {
+		File f = File.createTempFile("ChecksumUtilBenchmark", ".dat");
+		Random random = new Random(size);
+		byte[] block = new byte[1024 * 1024];
+		OutputStream os = new FileOutputStream(f);
+		try {
+			long remaining = size;
+			while(remaining > 0) {
+				random.nextBytes(block);
+				int n = (int)Math.min(block.length, remaining);
+				os.write(block, 0, n);
+				remaining -= n;
+			}
+		} finally {
+			os.close();
+		}
+		return f;
+	}
+}
@@ -4,7 +4,12 @@ import static org.junit.Assert.*;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -57,4 +62,54 @@ public class ChecksumUtilTest {
 		String observed = ChecksumUtil.computeChecksumForData(data);
 		assertTrue(observed.equalsIgnoreCase(expected));
 	}
+	
+	@Test
+	public void testChecksumIsLowerCase() throws Exception {
+		// Peers compare the checksums they send each other as they are
+		String observed = ChecksumUtil.computeChecksumForData("0123456789abcdefghijklmnopqurstuvwxyz".getBytes());
+		assertEquals("ehv3bjje6hgv53//ck9h9n6pzti=", observed);
+		assertTrue(ChecksumUtil.isDigest(observed));
+		assertFalse(ChecksumUtil.isDigest("testchecksum"));
+		
+		// The checksum is kept as it is by the checksum store
+		ChecksumStore store = new ChecksumStore();
+		store.put("/a.dat", new ChecksumIndex.Record(observed));
+		assertEquals(observed, store.getChecksum("/a.dat"));
+	}
+	
+	@Test
+	public void testComputeChecksumForMappedFile() throws Exception {
+		// A sparse file spanning two mapped regions, with data around the boundary
+		File testFile = File.createTempFile("ChecksumUtilTest", ".dat");
+		testFile.deleteOnExit();
+		Random random = new Random(1);
+		RandomAccessFile raf = new RandomAccessFile(testFile, "rw");
+		try {
+			raf.setLength(ChecksumUtil.MMAP_REGION_SIZE + 12345);
+			for(long position : new long[] { 0, ChecksumUtil.MMAP_THRESHOLD - 100, ChecksumUtil.MMAP_REGION_SIZE - 4096,
+					raf.length() - 1000 }) {
+				byte[] data = new byte[(int)Math.min(8192, raf.length() - position)];
+				random.nextBytes(data);
+				raf.seek(position);
+				raf.write(data);
+			}
+		} finally {
+			raf.close();
+		}
+		
+		// Compare with a plain read of the file
+		MessageDigest md = ChecksumUtil.createMessageDigest();
+		InputStream in = new FileInputStream(testFile);
+		try {
+			byte[] buf = new byte[1 << 20];
+			for(int n; (n = in.read(buf)) >= 0;) {
+				md.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		String observed = ChecksumUtil.computeChecksumForFile(testFile.getAbsolutePath());
+		assertEquals(ChecksumUtil.encode(md.digest()), observed);
+		testFile.delete();
+	}
 }
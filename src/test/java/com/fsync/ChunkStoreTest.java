@@ -0,0 +1,64 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+public class ChunkStoreTest {
+
+	@Test
+	public void testChunkStoredTwiceIsCountedOnce() throws Exception {
+		Path dir = Files.createTempDirectory("ChunkStoreTest");
+		final ChunkStore store = new ChunkStore(dir, ChunkStore.DEFAULT_MAX_BYTES);
+		final byte[] data = new byte[100000];
+		new Random(12).nextBytes(data);
+		final byte[] hash = ChecksumUtil.createMessageDigest().digest(data);
+
+		// Parallel streams of similar files store the same chunks at once
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		List<Future<Void>> puts = new ArrayList<Future<Void>>();
+		for(int i = 0; i < 32; i++) {
+			puts.add(threads.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					store.put(hash, data, 0, data.length);
+					return null;
+				}
+			}));
+		}
+		for(Future<Void> put : puts) {
+			put.get();
+		}
+		threads.shutdown();
+		assertEquals(data.length, store.getBytes());
+		assertArrayEquals(data, store.get(hash));
+	}
+
+	@Test
+	public void testHasCountsAsUse() throws Exception {
+		Path dir = Files.createTempDirectory("ChunkStoreTest");
+		ChunkStore store = new ChunkStore(dir, ChunkStore.DEFAULT_MAX_BYTES);
+		byte[] data = "a chunk".getBytes("UTF-8");
+		byte[] hash = ChecksumUtil.createMessageDigest().digest(data);
+		assertFalse(store.has(hash));
+		store.put(hash, data, 0, data.length);
+
+		// A chunk a peer was told about is not the first to be evicted
+		String name = Hex.encodeHexString(hash);
+		Path chunk = dir.resolve(name.substring(0, 2)).resolve(name);
+		long old = System.currentTimeMillis() - 3600 * 1000;
+		chunk.toFile().setLastModified(old);
+		assertTrue(store.has(hash));
+		assertTrue(chunk.toFile().lastModified() > old + 60 * 1000);
+	}
+}
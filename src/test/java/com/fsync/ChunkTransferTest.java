@@ -0,0 +1,186 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fsync.ChunkTransfer.ChunkMismatchException;
+import com.fsync.ChunkTransfer.LocalChunks;
+import com.fsync.ChunkTransfer.LocalChunksLookup;
+import com.fsync.ChunkTransfer.Manifest;
+
+public class ChunkTransferTest {
+
+	@Test
+	public void testBoundariesSurviveInsertion() throws Exception {
+		Random random = new Random(11);
+		byte[] original = new byte[2 * 1024 * 1024];
+		random.nextBytes(original);
+		byte[] inserted = new byte[100];
+		random.nextBytes(inserted);
+		byte[] modified = concat(Arrays.copyOfRange(original, 0, 1000000), inserted,
+				Arrays.copyOfRange(original, 1000000, original.length));
+
+		Path dir = Files.createTempDirectory("ChunkTransferTest");
+		List<String> before = chunkHashes(Files.write(dir.resolve("a"), original));
+		List<String> after = chunkHashes(Files.write(dir.resolve("b"), modified));
+		List<String> changed = new ArrayList<String>(after);
+		changed.removeAll(before);
+		assertTrue("changed chunks: " + changed.size(), changed.size() <= 2);
+	}
+
+	@Test
+	public void testOnlyMissingChunksAreSent() throws Exception {
+		Random random = new Random(12);
+		byte[] original = new byte[3 * 1024 * 1024];
+		random.nextBytes(original);
+		byte[] modified = Arrays.copyOf(original, original.length);
+		modified[2000000] ^= 1;
+
+		Path dir = Files.createTempDirectory("ChunkTransferTest");
+		ChunkStore store = new ChunkStore(dir.resolve("chunks"), ChunkStore.DEFAULT_MAX_BYTES);
+		Path local = Files.write(dir.resolve("local"), original);
+
+		// The store is seeded from the local copy of the receiver
+		Manifest manifest = ChunkTransfer.manifest(Files.write(dir.resolve("source"), modified));
+		int[] missing = ChunkTransfer.findMissing(manifest, store, local);
+		assertTrue(missing.length >= 1 && manifest.getBytes(missing) <= Chunker.MAX_SIZE);
+		assertEquals(manifest.getBytes(missing), roundTrip(manifest, missing, dir, store, modified));
+
+		// A copy of the file needs no data at all
+		Manifest copy = ChunkTransfer.manifest(Files.write(dir.resolve("copy"), modified));
+		assertEquals(0, ChunkTransfer.findMissing(copy, store, null).length);
+		assertEquals(0, roundTrip(copy, new int[0], dir, store, modified));
+	}
+
+	@Test
+	public void testEmptyAndSmallFiles() throws Exception {
+		Path dir = Files.createTempDirectory("ChunkTransferTest");
+		ChunkStore store = new ChunkStore(dir.resolve("chunks"), ChunkStore.DEFAULT_MAX_BYTES);
+		for(byte[] data : new byte[][] { new byte[0], new byte[] { 1, 2, 3 }, new byte[Chunker.MIN_SIZE + 1] }) {
+			Manifest manifest = ChunkTransfer.manifest(Files.write(dir.resolve("source"), data));
+			int[] missing = ChunkTransfer.findMissing(manifest, store, null);
+			roundTrip(manifest, missing, dir, store, data);
+		}
+	}
+
+	@Test(expected = ChunkMismatchException.class)
+	public void testEvictedChunkIsDetected() throws Exception {
+		byte[] data = new byte[500000];
+		new Random(13).nextBytes(data);
+		Path dir = Files.createTempDirectory("ChunkTransferTest");
+		Path source = Files.write(dir.resolve("source"), data);
+		Manifest manifest = ChunkTransfer.manifest(source);
+
+		// The receiver has none of the chunks but the sender is told it has all of them
+		ChunkStore store = new ChunkStore(dir.resolve("chunks"), ChunkStore.DEFAULT_MAX_BYTES);
+		roundTrip(manifest, new int[0], dir, store, data);
+	}
+
+	@Test
+	public void testStreamedChunks() throws Exception {
+		Random random = new Random(14);
+		byte[] original = new byte[3 * 1024 * 1024];
+		random.nextBytes(original);
+		byte[] modified = Arrays.copyOf(original, original.length);
+		modified[2000000] ^= 1;
+
+		Path dir = Files.createTempDirectory("ChunkTransferTest");
+		ChunkStore store = new ChunkStore(dir.resolve("chunks"), ChunkStore.DEFAULT_MAX_BYTES);
+		LocalChunks local = LocalChunks.index(Files.write(dir.resolve("local"), original));
+		assertFalse(local.isStale());
+
+		// The chunks of the local copy are not sent, nor added to the store
+		long sent = streamRoundTrip(Files.write(dir.resolve("source"), modified), dir, store, local, modified);
+		assertTrue("sent " + sent, sent >= 1 && sent <= Chunker.MAX_SIZE);
+
+		// A new file needs all of its chunks, a copy of it none
+		byte[] other = new byte[1024 * 1024];
+		random.nextBytes(other);
+		LocalChunks none = LocalChunks.index(dir.resolve("none"));
+		assertEquals(other.length, streamRoundTrip(Files.write(dir.resolve("source"), other), dir, store, none, other));
+		assertEquals(0, streamRoundTrip(Files.write(dir.resolve("source"), other), dir, store, none, other));
+	}
+
+	private long streamRoundTrip(Path source, Path dir, final ChunkStore store, final LocalChunks local, byte[] expected) throws Exception {
+		// The receiver is asked for the missing chunks of the whole file as one window
+		final List<byte[]> hashes = new ArrayList<byte[]>();
+		final List<byte[]> chunks = new ArrayList<byte[]>();
+		byte[] digest = Chunker.chunk(source, new Chunker.Visitor() {
+			public void visit(long offset, byte[] data, int off, int len, byte[] hash) {
+				hashes.add(hash);
+				chunks.add(Arrays.copyOfRange(data, off, off + len));
+			}
+		});
+		List<Integer> missing = new ArrayList<Integer>();
+		for(int index : ChunkTransfer.findMissing(hashes, store, local)) {
+			missing.add(index);
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		ChunkTransfer.writeStreamHeader(out);
+		long sent = 0;
+		for(int i = 0; i < hashes.size(); i++) {
+			byte[] chunk = chunks.get(i);
+			ChunkTransfer.writeStreamChunk(hashes.get(i), chunk, 0, chunk.length, missing.contains(i), out);
+			sent += missing.contains(i) ? chunk.length : 0;
+		}
+		ChunkTransfer.writeStreamEnd(digest, out);
+
+		Path target = dir.resolve("target");
+		final int[] lookups = new int[1];
+		String checksum = ChunkTransfer.applyStream(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())), store,
+				new LocalChunksLookup() {
+					public LocalChunks get() {
+						lookups[0]++;
+						return local;
+					}
+				}, target);
+		assertArrayEquals(expected, Files.readAllBytes(target));
+		assertEquals(ChecksumUtil.computeChecksumForData(expected), checksum);
+		// The local copy is only looked up for a chunk that is not in the store, and once
+		assertTrue("lookups " + lookups[0], lookups[0] <= 1);
+		return sent;
+	}
+
+	private long roundTrip(Manifest manifest, int[] missing, Path dir, ChunkStore store, byte[] expected) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		long sent = ChunkTransfer.writeCommit(manifest, missing, dir.resolve("source"), new DataOutputStream(baos));
+		Path target = dir.resolve("target");
+		String checksum = ChunkTransfer.applyCommit(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())), store, target);
+		assertArrayEquals(expected, Files.readAllBytes(target));
+		assertEquals(ChecksumUtil.computeChecksumForData(expected), checksum);
+		return sent;
+	}
+
+	private List<String> chunkHashes(Path file) throws Exception {
+		final List<String> hashes = new ArrayList<String>();
+		Chunker.chunk(file, new Chunker.Visitor() {
+			public void visit(long offset, byte[] data, int off, int len, byte[] hash) {
+				assertTrue(len <= Chunker.MAX_SIZE);
+				hashes.add(ChecksumUtil.encode(hash));
+			}
+		});
+		return hashes;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		for(byte[] part : parts) {
+			baos.write(part, 0, part.length);
+		}
+		return baos.toByteArray();
+	}
+}
@@ -0,0 +1,85 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentProducer;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class CompressionTest {
+
+	@Test
+	public void testProbe() throws Exception {
+		Path dir = Files.createTempDirectory("CompressionTest");
+		byte[] random = new byte[1024 * 1024];
+		new Random(1).nextBytes(random);
+		Compression compression = new Compression(Compression.DEFAULT_LEVEL);
+		assertTrue(compression.isCompressible(Files.write(dir.resolve("text"), text(1024 * 1024)).toFile()));
+		assertTrue(compression.isCompressible(Files.write(dir.resolve("small"), text(100)).toFile()));
+		assertFalse(compression.isCompressible(Files.write(dir.resolve("random"), random).toFile()));
+		assertFalse(compression.isCompressible(Files.write(dir.resolve("empty"), new byte[0]).toFile()));
+		assertFalse(new Compression(0).isCompressible(dir.resolve("text").toFile()));
+		assertEquals(1, compression.getStats().getLong("skipped"));
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		final byte[] data = text(3 * 1024 * 1024 + 17);
+		Compression compression = new Compression(6);
+		HttpEntity entity = compression.compress(new ContentProducer() {
+			public void writeTo(OutputStream out) throws IOException {
+				// Written in pieces of odd sizes and closed by the producer
+				for(int off = 0; off < data.length; off += 1000) {
+					out.write(data, off, Math.min(1000, data.length - off));
+				}
+				out.close();
+			}
+		});
+		assertEquals(Compression.DEFLATE, entity.getContentEncoding().getValue());
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		entity.writeTo(compressed);
+
+		InputStream in = Compression.decompress(new ByteArrayInputStream(compressed.toByteArray()), "Deflate");
+		assertArrayEquals(data, ByteStreams.toByteArray(in));
+		in.close();
+
+		JSONObject stats = compression.getStats();
+		assertEquals(1, stats.getLong("files"));
+		assertEquals(data.length, stats.getLong("bytesIn"));
+		assertEquals(compressed.size(), stats.getLong("bytesOut"));
+		assertTrue(stats.getDouble("ratio") < 0.5);
+	}
+
+	@Test
+	public void testUnsupportedEncoding() {
+		InputStream in = new ByteArrayInputStream(new byte[0]);
+		assertSame(in, Compression.decompress(in, null));
+		assertSame(in, Compression.decompress(in, "identity"));
+		assertNull(Compression.decompress(in, "br"));
+	}
+
+	/**
+	 * Returns log-like text.
+	 */
+	private static byte[] text(int length) {
+		Random random = new Random(2);
+		StringBuilder sb = new StringBuilder();
+		while(sb.length() < length) {
+			sb.append("2014-03-0").append(random.nextInt(10)).append(" INFO com.fsync.App request ")
+				.append(random.nextInt(100000)).append(" served in ").append(random.nextInt(500)).append(" ms\n");
+		}
+		return sb.substring(0, length).getBytes();
+	}
+}
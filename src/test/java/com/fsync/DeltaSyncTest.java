@@ -0,0 +1,136 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fsync.DeltaSync.DeltaMismatchException;
+import com.fsync.DeltaSync.DeltaStats;
+import com.fsync.DeltaSync.Signatures;
+
+public class DeltaSyncTest {
+
+	@Test
+	public void testWeakChecksumRolls() {
+		byte[] data = new byte[10000];
+		new Random(1).nextBytes(data);
+		int len = 2048;
+		int a = 0, b = 0;
+		for(int i = 0; i < len; i++) {
+			a += data[i] & 0xff;
+			b += (len - i) * (data[i] & 0xff);
+		}
+		for(int pos = 0; pos + len < data.length; pos++) {
+			assertEquals(DeltaSync.weakChecksum(data, pos, len), (a & 0xffff) | (b << 16));
+			int out = data[pos] & 0xff;
+			a += (data[pos + len] & 0xff) - out;
+			b += a - len * out;
+		}
+	}
+
+	@Test
+	public void testSmallChangesSendLittleData() throws Exception {
+		Random random = new Random(42);
+		byte[] original = new byte[4 * 1024 * 1024 + 123];
+		random.nextBytes(original);
+
+		// Overwrite a few bytes, insert some and delete some so that blocks shift
+		byte[] modified = Arrays.copyOf(original, original.length);
+		modified[100] ^= 1;
+		modified[3000000] ^= 1;
+		byte[] inserted = new byte[777];
+		random.nextBytes(inserted);
+		modified = concat(Arrays.copyOfRange(modified, 0, 1000000), inserted,
+				Arrays.copyOfRange(modified, 1000000, 2000000), Arrays.copyOfRange(modified, 2005000, modified.length));
+
+		DeltaStats stats = roundTrip(original, modified);
+		assertTrue("literal bytes: " + stats.getLiteralBytes(), stats.getLiteralBytes() < 64 * 1024);
+		assertEquals(modified.length, stats.getLiteralBytes() + stats.getMatchedBytes());
+	}
+
+	@Test
+	public void testEdgeCases() throws Exception {
+		Random random = new Random(7);
+		byte[] data = new byte[100000];
+		random.nextBytes(data);
+		// Unrelated files, empty files and a truncated file
+		byte[] other = new byte[50000];
+		random.nextBytes(other);
+		roundTrip(data, other);
+		roundTrip(new byte[0], data);
+		roundTrip(data, new byte[0]);
+		roundTrip(data, Arrays.copyOf(data, 99999));
+		roundTrip(data, data);
+	}
+
+	@Test(expected = DeltaMismatchException.class)
+	public void testChangedBasisIsDetected() throws Exception {
+		byte[] data = new byte[100000];
+		new Random(3).nextBytes(data);
+		Path dir = Files.createTempDirectory("DeltaSyncTest");
+		Path basis = Files.write(dir.resolve("basis"), data);
+		Path source = Files.write(dir.resolve("source"), data);
+		Signatures signatures = signatures(basis);
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		DeltaSync.writeDelta(source, signatures, new DataOutputStream(delta));
+
+		// The copy of the receiver changes after it sent its signatures
+		data[5000] ^= 1;
+		Files.write(basis, data);
+		DeltaSync.applyDelta(new DataInputStream(new ByteArrayInputStream(delta.toByteArray())), basis, dir.resolve("target"));
+	}
+
+	@Test(expected = DeltaMismatchException.class)
+	public void testCopyPastTheLastBlockIsRejected() throws Exception {
+		Path dir = Files.createTempDirectory("DeltaSyncTest");
+		Path basis = Files.write(dir.resolve("basis"), new byte[10000]);
+		// A run of blocks whose index overflows past the last block of the basis
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(delta);
+		out.writeInt(0x4653444c);
+		out.writeInt(1024);
+		out.writeByte(1);
+		out.writeInt(Integer.MAX_VALUE);
+		out.writeInt(2);
+		out.flush();
+		DeltaSync.applyDelta(new DataInputStream(new ByteArrayInputStream(delta.toByteArray())), basis, dir.resolve("target"));
+	}
+
+	private DeltaStats roundTrip(byte[] receiver, byte[] sender) throws Exception {
+		Path dir = Files.createTempDirectory("DeltaSyncTest");
+		Path basis = Files.write(dir.resolve("basis"), receiver);
+		Path source = Files.write(dir.resolve("source"), sender);
+		Path target = dir.resolve("target");
+
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		DeltaStats stats = DeltaSync.writeDelta(source, signatures(basis), new DataOutputStream(delta));
+		String checksum = DeltaSync.applyDelta(new DataInputStream(new ByteArrayInputStream(delta.toByteArray())), basis, target);
+
+		assertArrayEquals(sender, Files.readAllBytes(target));
+		assertEquals(ChecksumUtil.computeChecksumForData(sender), checksum);
+		return stats;
+	}
+
+	private Signatures signatures(Path file) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DeltaSync.writeSignatures(file, new DataOutputStream(baos));
+		return DeltaSync.readSignatures(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		for(byte[] part : parts) {
+			baos.write(part, 0, part.length);
+		}
+		return baos.toByteArray();
+	}
+}
@@ -0,0 +1,56 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import com.fsync.ChecksumIndex.Record;
+
+public class DirectoryIndexTest {
+
+	@Test
+	public void testFilesByDirectory() throws Exception {
+		ChecksumStore store = new ChecksumStore();
+		DirectoryIndex index = new DirectoryIndex();
+		store.setListener(index);
+		store.put("/top", new Record(checksum(0)));
+		store.put("/a/f1", new Record(checksum(1)));
+		store.put("/a/f2", new Record(checksum(2)));
+		store.put("/a/b/c/f3", new Record(checksum(3)));
+		store.put("/a/f1", new Record(checksum(4)));
+		store.put("/a/f2", Record.deleted(System.currentTimeMillis()));
+
+		assertEquals(new HashSet<String>(Arrays.asList("/top")), new HashSet<String>(index.getFiles("", false)));
+		assertEquals(new HashSet<String>(Arrays.asList("/a/f1", "/a/f2")), new HashSet<String>(index.getFiles("a", false)));
+		assertEquals(new HashSet<String>(Arrays.asList("/a/f1", "/a/f2", "/a/b/c/f3")),
+				new HashSet<String>(index.getFiles("/a/", true)));
+		assertTrue(index.getFiles("a/b", false).isEmpty());
+		assertEquals(Arrays.asList("/a/b/c/f3"), index.getFiles("a/b", true));
+		assertTrue(index.getFiles("x", true).isEmpty());
+		assertEquals(4, index.size());
+	}
+
+	@Test
+	public void testEmptyDirectoriesArePruned() throws Exception {
+		ChecksumStore store = new ChecksumStore();
+		DirectoryIndex index = new DirectoryIndex();
+		store.setListener(index);
+		store.put("/a/f1", new Record(checksum(1)));
+		store.put("/a/b/c/f2", new Record(checksum(2)));
+		store.remove("/a/b/c/f2");
+		assertEquals(2, index.size());
+		assertTrue(index.getFiles("a/b", true).isEmpty());
+		assertEquals(Arrays.asList("/a/f1"), index.getFiles("", true));
+
+		store.remove("/a/f1");
+		assertEquals(1, index.size());
+		assertTrue(index.getFiles("", true).isEmpty());
+	}
+
+	private static String checksum(int i) {
+		return ChecksumUtil.encode(ChecksumUtil.createMessageDigest().digest(("file" + i).getBytes()));
+	}
+}
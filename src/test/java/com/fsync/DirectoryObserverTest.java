@@ -5,8 +5,14 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -118,13 +124,145 @@ public class DirectoryObserverTest {
 		testListener.clearAllReceivedEvents();
 	}
 
+	@Test
+	public void testNestedDirectory() throws Exception {
+		DirectoryObserver dirObs = new DirectoryObserver();
+		dirObs.start();
+		TestDirectoryChangeListener testListener = new TestDirectoryChangeListener();
+		dirObs.registerListener(testListener);
+		
+		// Register a path
+		String testDir = "/tmp/DirectoryObserverTestNested";
+		new File(testDir).mkdirs();
+		dirObs.registerDirectory(testDir);
+		
+		// Create a new directory and a file in it
+		File subDir = new File(testDir, "sub");
+		subDir.mkdirs();
+		OutputStream os = new FileOutputStream(new File(subDir, "testB.dat"));
+		os.flush();
+		os.close();
+		
+		// Sleep a bit
+		Thread.sleep(5000);
+		
+		// The file in the new directory should have been observed
+		assertTrue(testListener.getAllReceivedEvents().size() >= 1);
+		for(DirectoryChangeEvent dce : testListener.getAllReceivedEvents()) {
+			assertEquals("sub" + File.separator + "testB.dat", dce.getRelativeFilePath());
+		}
+		testListener.clearAllReceivedEvents();
+		
+		// Delete the file and the directory
+		new File(subDir, "testB.dat").delete();
+		subDir.delete();
+		Thread.sleep(5000);
+		assertEquals(1, testListener.getAllReceivedEvents().size()); //the file, not the directory
+		dirObs.stop();
+		new File(testDir).delete();
+	}
+
+	@Test
+	public void testReconcile() throws Exception {
+		Path testDir = Files.createTempDirectory("DirectoryObserverTestReconcile");
+		Path subDir = Files.createDirectory(testDir.resolve("sub"));
+		Files.write(testDir.resolve("a.dat"), "unchanged".getBytes());
+		Files.write(testDir.resolve("b.dat"), "modified".getBytes());
+		Files.write(testDir.resolve("d.dat"), "deleted".getBytes());
+		Files.write(subDir.resolve("e.dat"), "deleted with its directory".getBytes());
+		// Written long before the scan, its record is not racy
+		testDir.resolve("a.dat").toFile().setLastModified(System.currentTimeMillis() - 60000);
+		ChecksumManager cm = new ChecksumManager(testDir.toString());
+		cm.createChecksumOnDirectory();
+		
+		// Change the directory while nobody is watching
+		Files.write(testDir.resolve("b.dat"), "modified, longer".getBytes());
+		Files.write(testDir.resolve("c.dat"), "created".getBytes());
+		Files.delete(testDir.resolve("d.dat"));
+		Files.delete(subDir.resolve("e.dat"));
+		Files.delete(subDir);
+		
+		DirectoryObserver dirObs = new DirectoryObserver();
+		dirObs.setChecksumManager(cm);
+		dirObs.start();
+		TestDirectoryChangeListener testListener = new TestDirectoryChangeListener();
+		dirObs.registerListener(testListener);
+		dirObs.registerDirectory(testDir.toString());
+		dirObs.reconcileLater(testDir);
+		
+		// Only the changes are notified
+		Set<String> expected = new HashSet<String>(Arrays.asList("b.dat MODIFIED", "c.dat CREATED",
+				"d.dat DELETED", "sub" + File.separator + "e.dat DELETED"));
+		assertEquals(expected, awaitEvents(testListener, expected.size()));
+		assertEquals(expected.size(), testListener.getAllReceivedEvents().size());
+		dirObs.stop();
+		
+		Files.delete(testDir.resolve("a.dat"));
+		Files.delete(testDir.resolve("b.dat"));
+		Files.delete(testDir.resolve("c.dat"));
+		Files.delete(testDir);
+	}
+	
+	@Test
+	public void testDeletedDirectory() throws Exception {
+		Path testDir = Files.createTempDirectory("DirectoryObserverTestDeleted");
+		Path subDir = Files.createDirectories(testDir.resolve("sub").resolve("deep"));
+		Files.write(testDir.resolve("kept.dat"), "kept".getBytes());
+		Files.write(testDir.resolve("sub").resolve("x.dat"), "x".getBytes());
+		Files.write(testDir.resolve("sub").resolve("y.dat"), "y".getBytes());
+		Files.write(subDir.resolve("z.dat"), "z".getBytes());
+		ChecksumManager cm = new ChecksumManager(testDir.toString());
+		cm.createChecksumOnDirectory();
+		
+		DirectoryObserver dirObs = new DirectoryObserver();
+		dirObs.setChecksumManager(cm);
+		dirObs.start();
+		TestDirectoryChangeListener testListener = new TestDirectoryChangeListener();
+		dirObs.registerListener(testListener);
+		dirObs.registerDirectory(testDir.toString());
+		Thread.sleep(1000);
+		
+		// Remove the populated sub-directory
+		Files.delete(subDir.resolve("z.dat"));
+		Files.delete(subDir);
+		Files.delete(testDir.resolve("sub").resolve("x.dat"));
+		Files.delete(testDir.resolve("sub").resolve("y.dat"));
+		Files.delete(testDir.resolve("sub"));
+		
+		// Each file is notified as deleted, the directories are not
+		String sub = "sub" + File.separator;
+		Set<String> expected = new HashSet<String>(Arrays.asList(sub + "x.dat DELETED", sub + "y.dat DELETED",
+				sub + "deep" + File.separator + "z.dat DELETED"));
+		assertEquals(expected, awaitEvents(testListener, expected.size()));
+		dirObs.stop();
+		
+		Files.delete(testDir.resolve("kept.dat"));
+		Files.delete(testDir);
+	}
+	
+	/**
+	 * Waits a little for some events and a bit longer for any extra event.
+	 * @return the relative path and type of each event received
+	 */
+	private static Set<String> awaitEvents(TestDirectoryChangeListener listener, int count) throws InterruptedException {
+		for(int i = 0; i < 100 && listener.getAllReceivedEvents().size() < count; i++) {
+			Thread.sleep(100);
+		}
+		Thread.sleep(1000);
+		Set<String> events = new HashSet<String>();
+		for(DirectoryChangeEvent dce : new ArrayList<DirectoryChangeEvent>(listener.getAllReceivedEvents())) {
+			events.add(dce.getRelativeFilePath() + " " + dce.getType());
+		}
+		return events;
+	}
+
 	/**
 	 * A test listener of directory change events.
 	 * @author shreyas shinde
 	 *
 	 */
 	public class TestDirectoryChangeListener implements DirectoryChangeListener {
-		private ArrayList<DirectoryChangeEvent> list = new ArrayList<DirectoryChangeEvent>();
+		private List<DirectoryChangeEvent> list = Collections.synchronizedList(new ArrayList<DirectoryChangeEvent>());
 
 		public void listen(DirectoryChangeEvent dirChangeEvent) {
 			list.add(dirChangeEvent);
@@ -0,0 +1,110 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fsync.DirectoryChangeEvent.DirectoryChangeEventType;
+
+public class EventCoalescerTest {
+
+	@Test
+	public void testBurstIsMerged() throws Exception {
+		CollectingListener listener = new CollectingListener();
+		EventCoalescer coalescer = new EventCoalescer(100, 1000, listener);
+		coalescer.start();
+		coalescer.submit(event("/tmp/a.dat", DirectoryChangeEventType.CREATED));
+		coalescer.submit(event("/tmp/a.dat", DirectoryChangeEventType.MODIFIED));
+		coalescer.submit(event("/tmp/a.dat", DirectoryChangeEventType.MODIFIED));
+		coalescer.submit(event("/tmp/b.dat", DirectoryChangeEventType.CREATED));
+		coalescer.submit(event("/tmp/b.dat", DirectoryChangeEventType.DELETED));
+		Thread.sleep(500);
+		
+		assertEquals(1, listener.events.size());
+		assertEquals(DirectoryChangeEventType.CREATED, listener.events.get(0).getType());
+		assertEquals(4, coalescer.getEventsSaved());
+		coalescer.stop();
+	}
+	
+	@Test
+	public void testMaxDelay() throws Exception {
+		CollectingListener listener = new CollectingListener();
+		EventCoalescer coalescer = new EventCoalescer(200, 300, listener);
+		coalescer.start();
+		for(int i = 0; i < 12; i++) {
+			coalescer.submit(event("/tmp/a.dat", DirectoryChangeEventType.MODIFIED));
+			Thread.sleep(50);
+		}
+		// The file never went quiet but the event was not held back forever
+		assertTrue(listener.events.size() >= 1);
+		coalescer.stop();
+	}
+	
+	@Test
+	public void testRenameOverThenDelete() throws Exception {
+		ChecksumManager cm = new ChecksumManager("/tmp/sync");
+		cm.updateChecksumOnFile(ChecksumUtil.encode(ChecksumUtil.createMessageDigest().digest("a".getBytes())), "/tmp/sync/a.dat");
+		CollectingListener listener = new CollectingListener();
+		EventCoalescer coalescer = new EventCoalescer(100, 1000, listener);
+		coalescer.setChecksumManager(cm);
+		coalescer.start();
+		// A temporary file is renamed over a.dat and a.dat is then deleted
+		coalescer.submit(event("/tmp/sync/a.dat", DirectoryChangeEventType.CREATED));
+		coalescer.submit(event("/tmp/sync/a.dat", DirectoryChangeEventType.DELETED));
+		// A new file that came and went
+		coalescer.submit(event("/tmp/sync/b.dat", DirectoryChangeEventType.CREATED));
+		coalescer.submit(event("/tmp/sync/b.dat", DirectoryChangeEventType.DELETED));
+		Thread.sleep(500);
+		
+		assertEquals(1, listener.events.size());
+		assertEquals("/tmp/sync/a.dat", listener.events.get(0).getAbsoluteFilePath());
+		assertEquals(DirectoryChangeEventType.DELETED, listener.events.get(0).getType());
+		coalescer.stop();
+	}
+	
+	@Test
+	public void testPendingIsBounded() throws Exception {
+		CollectingListener listener = new CollectingListener();
+		EventCoalescer coalescer = new EventCoalescer(10000, 10000, 2, listener);
+		coalescer.start();
+		coalescer.submit(event("/tmp/a.dat", DirectoryChangeEventType.CREATED));
+		coalescer.submit(event("/tmp/b.dat", DirectoryChangeEventType.CREATED));
+		coalescer.submit(event("/tmp/b.dat", DirectoryChangeEventType.MODIFIED));
+		assertTrue(listener.events.isEmpty());
+		
+		// The oldest held event is passed on to make room
+		coalescer.submit(event("/tmp/c.dat", DirectoryChangeEventType.CREATED));
+		assertEquals(1, listener.events.size());
+		assertEquals("/tmp/a.dat", listener.events.get(0).getAbsoluteFilePath());
+		coalescer.stop();
+		assertEquals(3, listener.events.size());
+	}
+	
+	@Test
+	public void testMerge() {
+		assertEquals(DirectoryChangeEventType.CREATED, EventCoalescer.merge(DirectoryChangeEventType.CREATED, DirectoryChangeEventType.MODIFIED));
+		assertNull(EventCoalescer.merge(DirectoryChangeEventType.CREATED, DirectoryChangeEventType.DELETED));
+		assertEquals(DirectoryChangeEventType.DELETED, EventCoalescer.merge(DirectoryChangeEventType.MODIFIED, DirectoryChangeEventType.DELETED));
+		assertEquals(DirectoryChangeEventType.MODIFIED, EventCoalescer.merge(DirectoryChangeEventType.DELETED, DirectoryChangeEventType.CREATED));
+	}
+	
+	private static DirectoryChangeEvent event(String path, DirectoryChangeEventType type) {
+		return new DirectoryChangeEvent().setAbsoluteFilePath(path).setType(type).setTime(System.currentTimeMillis());
+	}
+	
+	private static class CollectingListener implements DirectoryChangeListener {
+		final List<DirectoryChangeEvent> events = Collections.synchronizedList(new ArrayList<DirectoryChangeEvent>());
+		
+		public void listen(DirectoryChangeEvent dirChangeEvent) {
+			events.add(dirChangeEvent);
+		}
+		
+		public String getName() {
+			return "CollectingListener";
+		}
+	}
+}
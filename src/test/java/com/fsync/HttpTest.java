@@ -0,0 +1,177 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentProducer;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fsync.Http.HttpStatusException;
+import com.fsync.Http.StreamingResponse;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+
+public class HttpTest {
+	private Server server;
+	private EchoHandler handler;
+	private String url;
+
+	@Before
+	public void setUp() throws Exception {
+		Http.configure(4, 2, 5000, 5000, 5000, 60000);
+		server = new Server();
+		ServerConnector connector = new ServerConnector(server);
+		connector.setPort(0);
+		server.addConnector(connector);
+		handler = new EchoHandler();
+		server.setHandler(handler);
+		server.start();
+		url = "http://localhost:" + connector.getLocalPort();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Http.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void testConnectionIsReused() throws Exception {
+		for(int i = 0; i < 3; i++) {
+			assertEquals("hello", new String(Http.get(url + "/echo", ImmutableMap.of("q", "hello"))));
+		}
+		assertEquals(3, handler.ports.size());
+		assertEquals(1, new HashSet<Integer>(handler.ports).size());
+		assertEquals(0, Http.getPoolStats().getLeased());
+		assertEquals(1, Http.getPoolStats().getAvailable());
+	}
+
+	@Test
+	public void testErrorReturnsConnectionToPool() throws Exception {
+		try {
+			Http.openPost(url + "/error", null, Http.body(new ByteArrayInputStream(new byte[1000]), 1000));
+			fail("The server returned an error.");
+		} catch(HttpStatusException e) {
+			assertEquals(500, e.getStatus());
+		}
+		assertEquals(0, Http.getPoolStats().getLeased());
+		Http.get(url + "/echo", null);
+		assertEquals(handler.ports.get(0), handler.ports.get(1));
+	}
+
+	@Test
+	public void testBodies() throws Exception {
+		final byte[] data = new byte[200 * 1024 + 17];
+		new Random(9).nextBytes(data);
+		File file = File.createTempFile("HttpTest", ".dat");
+		file.deleteOnExit();
+		Files.write(file.toPath(), data);
+
+		assertArrayEquals(data, post(Http.body(new ByteArrayInputStream(data), data.length)));
+		assertArrayEquals(data, post(Http.body(Channels.newChannel(new ByteArrayInputStream(data)), data.length)));
+		assertArrayEquals(Arrays.copyOfRange(data, 0, 5000),
+				post(Http.body(Channels.newChannel(new ByteArrayInputStream(data)), 5000)));
+		assertArrayEquals(Arrays.copyOfRange(data, 1000, 101000), post(Http.body(file, 1000, 100000)));
+		assertArrayEquals(data, post(Http.body(new ContentProducer() {
+			public void writeTo(OutputStream out) throws IOException {
+				out.write(data);
+			}
+		})));
+
+		StreamingResponse response = Http.openGet(url + "/echo", ImmutableMap.of("q", "streamed"));
+		try {
+			assertEquals(200, response.getStatus());
+			assertEquals(8, response.getContentLength());
+			assertEquals("streamed", new String(response.toByteArray()));
+		} finally {
+			response.close();
+		}
+		assertEquals(1, new HashSet<Integer>(handler.ports).size());
+		file.delete();
+	}
+
+	@Test
+	public void testPostFileWithDigest() throws Exception {
+		byte[] data = new byte[300 * 1024];
+		new Random(10).nextBytes(data);
+		File file = File.createTempFile("HttpTest", ".dat");
+		file.deleteOnExit();
+		Files.write(file.toPath(), data);
+
+		byte[] trailer = Http.postFile(url + "/echo", null, null, file, data.length, ChecksumUtil.createMessageDigest());
+		assertArrayEquals(ChecksumUtil.createMessageDigest().digest(data), trailer);
+		assertArrayEquals(data, Arrays.copyOfRange(handler.body, 0, data.length));
+		assertArrayEquals(trailer, Arrays.copyOfRange(handler.body, data.length, handler.body.length));
+
+		// A digest computed beforehand is sent as is
+		byte[] known = new byte[trailer.length];
+		Http.postFile(url + "/echo", null, null, file, data.length, known, null);
+		assertArrayEquals(data, Arrays.copyOfRange(handler.body, 0, data.length));
+		assertArrayEquals(known, Arrays.copyOfRange(handler.body, data.length, handler.body.length));
+
+		try {
+			Http.postFile(url + "/error", null, null, file, data.length, null);
+			fail("The server returned an error.");
+		} catch(HttpStatusException e) {
+			assertEquals(500, e.getStatus());
+		}
+		file.delete();
+	}
+
+	private byte[] post(HttpEntity body) throws IOException {
+		StreamingResponse response = Http.openPost(url + "/echo", null, body);
+		try {
+			return response.toByteArray();
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Answers with the body of the request, or the 'q' parameter if there is
+	 * no body. Requests to /error fail after their body is read.
+	 */
+	private static class EchoHandler extends AbstractHandler {
+		final List<Integer> ports = Collections.synchronizedList(new ArrayList<Integer>());
+		volatile byte[] body;
+
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			ports.add(request.getRemotePort());
+			body = ByteStreams.toByteArray(request.getInputStream());
+			if(target.equals("/error")) {
+				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "failed");
+				return;
+			}
+			byte[] content = body.length > 0 || request.getParameter("q") == null ? body
+					: request.getParameter("q").getBytes("UTF-8");
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentLength(content.length);
+			response.getOutputStream().write(content);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.fsync.ChecksumIndex.Record;
+import com.fsync.MerkleTree.NodeInfo;
+
+public class MerkleTreeTest {
+
+	@Test
+	public void testIncrementalMatchesRebuilt() throws Exception {
+		ChecksumStore store = new ChecksumStore();
+		MerkleTree tree = new MerkleTree();
+		store.setListener(tree);
+		for(int i = 0; i < 1000; i++) {
+			store.put("/d" + (i % 7) + "/e" + (i % 3) + "/f" + i, new Record(checksum(i)));
+		}
+		for(int i = 0; i < 1000; i += 5) {
+			store.put("/d" + (i % 7) + "/e" + (i % 3) + "/f" + i, new Record(checksum(i + 1)));
+		}
+		for(int i = 1; i < 1000; i += 10) {
+			store.remove("/d" + (i % 7) + "/e" + (i % 3) + "/f" + i);
+		}
+
+		// The same files added in reverse order
+		MerkleTree rebuilt = new MerkleTree();
+		for(int i = 999; i >= 0; i--) {
+			String checksum = store.getChecksum("/d" + (i % 7) + "/e" + (i % 3) + "/f" + i);
+			if(checksum != null) {
+				rebuilt.changed("/d" + (i % 7) + "/e" + (i % 3) + "/f" + i, null, checksum);
+			}
+		}
+		assertEquals(rebuilt.getRootHash(), tree.getRootHash());
+		NodeInfo node = tree.getNode("d3");
+		assertEquals(rebuilt.getNode("d3").getHash(), node.getHash());
+		assertEquals(3, node.getDirs().size());
+		assertEquals(0, node.getFiles());
+		assertEquals(1000 - 100, tree.getNode("").getTotal());
+	}
+
+	@Test
+	public void testDifferingFile() throws Exception {
+		MerkleTree a = new MerkleTree();
+		MerkleTree b = new MerkleTree();
+		for(int i = 0; i < 100; i++) {
+			a.changed("/x/y" + (i % 4) + "/f" + i, null, checksum(i));
+			b.changed("/x/y" + (i % 4) + "/f" + i, null, checksum(i));
+		}
+		assertEquals(a.getRootHash(), b.getRootHash());
+		b.changed("/x/y2/f6", checksum(6), checksum(7));
+		assertFalse(a.getRootHash().equals(b.getRootHash()));
+		assertFalse(a.getNode("x").getHash().equals(b.getNode("x").getHash()));
+		assertEquals(a.getNode("x/y1").getHash(), b.getNode("x/y1").getHash());
+		assertFalse(a.getNode("x/y2").getFilesHash().equals(b.getNode("x/y2").getFilesHash()));
+	}
+
+	@Test
+	public void testDeletedFilesAreLeftOut() throws Exception {
+		MerkleTree tree = new MerkleTree();
+		String empty = tree.getRootHash();
+		tree.changed("/a/b/f", null, checksum(1));
+		assertNotNull(tree.getNode("a/b"));
+		assertEquals(Collections.singleton("a"), tree.getNode("").getDirs().keySet());
+
+		// A tombstone is the same as no file at all
+		tree.changed("/a/b/f", checksum(1), "");
+		assertEquals(empty, tree.getRootHash());
+		assertNull(tree.getNode("a"));
+		assertTrue(tree.getNode("").getDirs().isEmpty());
+		tree.changed("/a/b/f", "", null);
+		assertEquals(empty, tree.getRootHash());
+	}
+
+	private static String checksum(int i) {
+		return ChecksumUtil.encode(ChecksumUtil.createMessageDigest().digest(("file" + i).getBytes()));
+	}
+}
@@ -0,0 +1,157 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class OrderedExecutorTest {
+
+	@Test
+	public void testTasksOfAKeyRunInOrder() throws Exception {
+		OrderedExecutor executor = new OrderedExecutor("OrderedExecutorTest", 4, 100);
+		final List<Integer> a = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Integer> b = Collections.synchronizedList(new ArrayList<Integer>());
+		for(int i = 0; i < 1000; i++) {
+			final int n = i;
+			executor.execute("a", new Runnable() {
+				public void run() {
+					a.add(n);
+				}
+			});
+			executor.execute("b", new Runnable() {
+				public void run() {
+					b.add(n);
+				}
+			});
+		}
+		assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+		assertEquals(1000, a.size());
+		assertEquals(1000, b.size());
+		for(int i = 0; i < 1000; i++) {
+			assertEquals(i, a.get(i).intValue());
+			assertEquals(i, b.get(i).intValue());
+		}
+	}
+	
+	@Test
+	public void testCapacityIsBounded() throws Exception {
+		OrderedExecutor executor = new OrderedExecutor("OrderedExecutorTest", 2, 3);
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable blocked = new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch(InterruptedException ignore) {
+				}
+			}
+		};
+		assertTrue(executor.tryExecute("a", blocked));
+		assertTrue(executor.tryExecute("b", blocked));
+		assertTrue(executor.tryExecute("c", blocked));
+		assertFalse(executor.tryExecute("d", blocked));
+		assertEquals(3, executor.getPendingTasks());
+		release.countDown();
+		assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testHigherPriorityRunsFirst() throws Exception {
+		OrderedExecutor executor = new OrderedExecutor("OrderedExecutorTest", 1, 100);
+		final CountDownLatch release = new CountDownLatch(1);
+		executor.tryExecute("blocked", new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch(InterruptedException ignore) {
+				}
+			}
+		});
+		final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+		String[] keys = { "low1", "normal1", "high1", "low2", "high2" };
+		int[] priorities = { 2, 1, 0, 2, 0 };
+		for(int i = 0; i < keys.length; i++) {
+			final String key = keys[i];
+			assertTrue(executor.tryExecute(key, priorities[i], new Runnable() {
+				public void run() {
+					ran.add(key);
+				}
+			}));
+		}
+		release.countDown();
+		assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("high1", "high2", "normal1", "low1", "low2"), ran);
+	}
+
+	@Test
+	public void testBackgroundTasksLeaveAWorker() throws Exception {
+		OrderedExecutor executor = new OrderedExecutor("OrderedExecutorTest", 2, 100);
+		executor.setBackgroundLimit(2, 1);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+		for(final String key : new String[] { "low1", "low2" }) {
+			assertTrue(executor.tryExecute(key, 2, new Runnable() {
+				public void run() {
+					ran.add(key);
+					started.countDown();
+					try {
+						release.await();
+					} catch(InterruptedException ignore) {
+					}
+				}
+			}));
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+		}
+
+		// The second background task waits for the first, the other task does not
+		final CountDownLatch normal = new CountDownLatch(1);
+		assertTrue(executor.tryExecute("normal", 1, new Runnable() {
+			public void run() {
+				ran.add("normal");
+				normal.countDown();
+			}
+		}));
+		assertTrue(normal.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("low1", "normal"), ran);
+
+		release.countDown();
+		assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("low1", "normal", "low2"), ran);
+	}
+
+	@Test
+	public void testShutdownNowReleasesQueuedTasks() throws Exception {
+		OrderedExecutor executor = new OrderedExecutor("OrderedExecutorTest", 1, 100);
+		final CountDownLatch started = new CountDownLatch(1);
+		executor.execute("a", new Runnable() {
+			public void run() {
+				started.countDown();
+				try {
+					Thread.sleep(60000);
+				} catch(InterruptedException ignore) {
+				}
+			}
+		});
+		// More tasks than a chain runs in a turn, the rest are queued again
+		for(int i = 0; i < 40; i++) {
+			executor.execute("a", new Runnable() {
+				public void run() {
+				}
+			});
+		}
+		started.await();
+		assertFalse(executor.shutdown(100, TimeUnit.MILLISECONDS));
+		long deadline = System.currentTimeMillis() + 10000;
+		while(executor.getPendingTasks() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, executor.getPendingTasks());
+	}
+}
@@ -0,0 +1,411 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fsync.DirectoryChangeEvent.DirectoryChangeEventType;
+import com.fsync.PeerSender.TransferMode;
+import com.fsync.UpdateBatch.Result;
+import com.fsync.UpdateBatch.Update;
+import com.google.common.io.ByteStreams;
+
+public class PeerSenderTest {
+	private final List<StubPeer> peers = new ArrayList<StubPeer>();
+	private final List<PeerSender> senders = new ArrayList<PeerSender>();
+	private Path dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("PeerSenderTest");
+		Http.configure(16, 8, 5000, 5000, 5000, 60000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for(StubPeer peer : peers) {
+			peer.release();
+		}
+		for(PeerSender sender : senders) {
+			sender.shutdown(5, TimeUnit.SECONDS);
+		}
+		for(StubPeer peer : peers) {
+			peer.server.stop();
+		}
+		Http.shutdown();
+	}
+
+	@Test
+	public void testStalledPeerDoesNotDelayOthers() throws Exception {
+		StubPeer stalled = startPeer();
+		StubPeer healthy = startPeer();
+		stalled.stall();
+		PeerSender toStalled = createSender(stalled, 1);
+		PeerSender toHealthy = createSender(healthy, 1);
+		for(int i = 0; i < 5; i++) {
+			toStalled.submit(event("f" + i, DirectoryChangeEventType.DELETED), null);
+			toHealthy.submit(event("f" + i, DirectoryChangeEventType.DELETED), null);
+		}
+
+		// The healthy peer gets all its updates while the other one holds the first
+		awaitSent(toHealthy, 5);
+		stalled.await(1);
+		assertEquals(1, stalled.requests.size());
+		assertEquals(5, toStalled.getPending());
+
+		stalled.release();
+		stalled.await(5);
+		awaitSent(toStalled, 5);
+	}
+
+	@Test
+	public void testLargeFilesLeaveAWorker() throws Exception {
+		StubPeer peer = startPeer();
+		peer.stall();
+		PeerSender sender = createSender(peer, 2);
+		sender.setLargeFileSize(10000);
+		sender.submit(event("large1", DirectoryChangeEventType.CREATED), createFile("large1", 20000));
+		peer.await(1);
+		sender.submit(event("large2", DirectoryChangeEventType.CREATED), createFile("large2", 20000));
+		sender.submit(event("small", DirectoryChangeEventType.CREATED), createFile("small", 1000));
+
+		// The small file is sent while the first large file holds a worker, the second one waits
+		peer.await(2);
+		Thread.sleep(100);
+		assertEquals(2, peer.requests.size());
+		assertTrue(peer.requests.get(0), peer.requests.get(0).endsWith(" large1"));
+		assertTrue(peer.requests.get(1), peer.requests.get(1).endsWith(" small"));
+
+		peer.release();
+		awaitSent(sender, 3);
+		assertTrue(peer.requests.get(2), peer.requests.get(2).endsWith(" large2"));
+	}
+
+	@Test
+	public void testSupersededUpdateIsNotSent() throws Exception {
+		StubPeer peer = startPeer();
+		peer.stall();
+		PeerSender sender = createSender(peer, 1);
+		sender.submit(event("busy", DirectoryChangeEventType.DELETED), null);
+		peer.await(1);
+
+		// Queued behind the update being sent, the first one is superseded by the second
+		File f = createFile("a", 1000);
+		sender.submit(event("a", DirectoryChangeEventType.CREATED), f);
+		sender.submit(event("a", DirectoryChangeEventType.DELETED), null);
+		assertEquals(2, sender.getPending());
+		peer.release();
+		awaitSent(sender, 2);
+		assertEquals(Arrays.asList("/update busy", "/update a"), peer.requests);
+	}
+
+	@Test
+	public void testBackoffAndRedrive() throws Exception {
+		StubPeer peer = startPeer();
+		peer.failures.set(2);
+		PeerSender sender = createSender(peer, 1);
+		long start = System.nanoTime();
+		sender.submit(event("a", DirectoryChangeEventType.DELETED), null);
+
+		// Suspended after the failure, the update submitted meanwhile waits in the journal
+		awaitCondition(sender, "suspended");
+		assertFalse(sender.submit(event("b", DirectoryChangeEventType.DELETED), null));
+		awaitSent(sender, 2);
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		// Retried after 50 and then 100ms
+		assertTrue("Sent after " + millis + "ms", millis >= 150);
+		assertEquals(2, sender.getStats().getLong("failed"));
+		assertEquals(0, sender.getStats().getInt("failures"));
+		assertFalse(sender.getStats().getBoolean("suspended"));
+		assertEquals(0, sender.getPending());
+	}
+
+	@Test
+	public void testBatchFillAndFallback() throws Exception {
+		StubPeer peer = startPeer();
+		PeerSender sender = createSender(peer, 2);
+		sender.setBatchLimits(3, PeerSender.DEFAULT_BATCH_MAX_BYTES, 60000);
+
+		// A full batch is sent without waiting for the delay
+		sender.submit(event("a", DirectoryChangeEventType.CREATED), createFile("a", 100));
+		sender.submit(event("b", DirectoryChangeEventType.DELETED), null);
+		sender.submit(event("c", DirectoryChangeEventType.CREATED), createFile("c", 200));
+		awaitSent(sender, 3);
+		// The small text files are worth compressing
+		assertEquals(Arrays.asList("/update/batch deflate a", "/update/batch deflate b", "/update/batch deflate c"), peer.requests);
+		assertEquals(1, sender.getStats().getLong("batches"));
+
+		// A peer without batches gets the updates on their own from then on
+		peer.requests.clear();
+		peer.statuses.put("/update/batch", HttpServletResponse.SC_NOT_FOUND);
+		for(String name : new String[] { "d", "e", "f" }) {
+			sender.submit(event(name, DirectoryChangeEventType.DELETED), null);
+		}
+		awaitSent(sender, 6);
+		sender.submit(event("g", DirectoryChangeEventType.DELETED), null);
+		awaitSent(sender, 7);
+		for(String name : new String[] { "d", "e", "f" }) {
+			assertEquals(1, Collections.frequency(peer.requests, "/update/batch " + name));
+			assertEquals(1, Collections.frequency(peer.requests, "/update " + name));
+		}
+		assertEquals("/update g", peer.requests.get(peer.requests.size() - 1));
+		assertEquals(7, peer.requests.size());
+	}
+
+	@Test
+	public void testUnsupportedRequestsAreDowngraded() throws Exception {
+		StubPeer peer = startPeer();
+		peer.statuses.put("/update/raw", HttpServletResponse.SC_NOT_FOUND);
+		peer.refuseCompressed = true;
+		PeerSender sender = createSender(peer, 1);
+		ChecksumManager checksumManager = new ChecksumManager(dir.toString());
+		sender.setChecksumManager(checksumManager);
+
+		// Compressed then raw are refused, the file is then sent as multipart
+		File a = createFile("a", 100000);
+		sender.submit(event("a", DirectoryChangeEventType.CREATED), a);
+		awaitSent(sender, 1);
+		assertEquals(Arrays.asList("/update/raw deflate a", "/update/raw a", "/update "), peer.requests);
+		assertTrue(sender.getStats().getJSONObject("compression").getBoolean("refused"));
+		
+		// The file was hashed as the form was written
+		assertEquals(ChecksumUtil.computeChecksumForFile(a.getAbsolutePath()), checksumManager.getChecksum(a.getAbsolutePath()));
+
+		// And the next files go straight to multipart
+		peer.requests.clear();
+		sender.submit(event("b", DirectoryChangeEventType.CREATED), createFile("b", 100000));
+		awaitSent(sender, 2);
+		assertEquals(Arrays.asList("/update "), peer.requests);
+	}
+
+	private StubPeer startPeer() throws Exception {
+		StubPeer peer = new StubPeer();
+		peers.add(peer);
+		return peer;
+	}
+
+	@Test
+	public void testKnownChecksumIsNotComputedAgain() throws Exception {
+		StubPeer peer = startPeer();
+		PeerSender sender = createSender(peer, 1);
+		ChecksumManager checksumManager = new ChecksumManager(dir.toString());
+		sender.setChecksumManager(checksumManager);
+
+		// Hashed by the sender of another peer right after it was written, a
+		// write in the same tick would have kept its stat data
+		File f = createFile("k", 5000);
+		String known = ChecksumUtil.computeChecksumForData("not the content".getBytes());
+		checksumManager.updateChecksumOnFile(known, f.getAbsolutePath(),
+				Files.readAttributes(f.toPath(), BasicFileAttributes.class), System.currentTimeMillis());
+		sender.submit(event("k", DirectoryChangeEventType.MODIFIED), f);
+		awaitSent(sender, 1);
+		String checksum = ChecksumUtil.computeChecksumForFile(f.getAbsolutePath());
+		assertNull(peer.checksum);
+		assertEquals(checksum, ChecksumUtil.encode(trailer(peer.body)));
+
+		// Hashed long after it was written, as far as this sender can tell
+		f.setLastModified(System.currentTimeMillis() - 60000);
+		checksumManager.updateChecksumOnFile(known, f.getAbsolutePath(),
+				Files.readAttributes(f.toPath(), BasicFileAttributes.class), System.currentTimeMillis());
+		sender.submit(event("k", DirectoryChangeEventType.MODIFIED), f);
+		awaitSent(sender, 2);
+		assertEquals(known, peer.checksum);
+		assertEquals(5000, peer.body.length);
+
+		// Changed since, the file is hashed as it is sent
+		f = createFile("k", 6000);
+		sender.submit(event("k", DirectoryChangeEventType.MODIFIED), f);
+		awaitSent(sender, 3);
+		checksum = ChecksumUtil.computeChecksumForFile(f.getAbsolutePath());
+		assertNull(peer.checksum);
+		assertEquals(checksum, ChecksumUtil.encode(trailer(peer.body)));
+		assertEquals(checksum, checksumManager.getChecksum(f.getAbsolutePath()));
+		assertEquals(3, peer.requests.size());
+	}
+
+	private static byte[] trailer(byte[] body) {
+		return Arrays.copyOfRange(body, body.length - ChecksumUtil.createMessageDigest().getDigestLength(), body.length);
+	}
+
+	/**
+	 * Creates a sender of files sent in full, with batches only when asked for.
+	 */
+	private PeerSender createSender(StubPeer peer, int workers) throws IOException {
+		PeerSender sender = new PeerSender("localhost:" + peer.port, new ReplicationJournal(null), workers, 100, 50, 1000);
+		sender.setTransferMode(TransferMode.FULL);
+		sender.setResumableMinSize(-1);
+		sender.setZeroCopyMinSize(-1);
+		sender.setBatchLimits(0, 0, 0);
+		senders.add(sender);
+		return sender;
+	}
+
+	private File createFile(String name, int length) throws IOException {
+		StringBuilder text = new StringBuilder();
+		while(text.length() < length) {
+			text.append("line ").append(text.length()).append('\n');
+		}
+		return Files.write(dir.resolve(name), text.substring(0, length).getBytes("UTF-8")).toFile();
+	}
+
+	private static DirectoryChangeEvent event(String path, DirectoryChangeEventType type) {
+		DirectoryChangeEvent event = new DirectoryChangeEvent();
+		event.setRelativeFilePath(path);
+		event.setType(type);
+		return event;
+	}
+
+	private static void awaitSent(PeerSender sender, long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(sender.getStats().getLong("sent") < count || sender.getPending() > 0) {
+			assertTrue("Sent " + sender.getStats(), System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static void awaitCondition(PeerSender sender, String flag) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(!sender.getStats().getBoolean(flag)) {
+			assertTrue("Not " + flag + ": " + sender.getStats(), System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	/**
+	 * A peer that records the requests it gets as the target followed by the
+	 * path of the event, and that can be made to stall or fail.
+	 */
+	private static class StubPeer extends AbstractHandler {
+		final Server server = new Server();
+		final int port;
+		final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+		/** The status returned for a target */
+		final Map<String, Integer> statuses = new ConcurrentHashMap<String, Integer>();
+
+		/** The number of requests still to fail */
+		final AtomicInteger failures = new AtomicInteger();
+		volatile boolean refuseCompressed = false;
+
+		/** The body and the checksum header of the last request other than a batch */
+		volatile byte[] body = null;
+		volatile String checksum = null;
+		private volatile CountDownLatch stall = null;
+
+		StubPeer() throws Exception {
+			ServerConnector connector = new ServerConnector(server);
+			connector.setPort(0);
+			server.addConnector(connector);
+			server.setHandler(this);
+			server.start();
+			port = connector.getLocalPort();
+		}
+
+		void stall() {
+			stall = new CountDownLatch(1);
+		}
+
+		void release() {
+			CountDownLatch latch = stall;
+			if(latch != null) {
+				latch.countDown();
+			}
+		}
+
+		void await(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while(requests.size() < count) {
+				assertTrue("Requests: " + requests, System.currentTimeMillis() < deadline);
+				Thread.sleep(5);
+			}
+		}
+
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			String encoding = request.getHeader("Content-Encoding");
+			String prefix = target + (encoding == null ? " " : " " + encoding + " ");
+			if(target.equals("/update/batch")) {
+				List<Result> results = new ArrayList<Result>();
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Compression.decompress(request.getInputStream(), encoding)));
+				UpdateBatch.readHeader(in);
+				for(Update update; (update = UpdateBatch.readUpdate(in)) != null;) {
+					if(update.hasFile()) {
+						ByteStreams.skipFully(in, update.getLength() + ChecksumUtil.createMessageDigest().getDigestLength());
+					}
+					requests.add(prefix + DirectoryChangeEvent.fromJSON(update.getEvent()).getRelativeFilePath());
+					results.add(new Result(HttpServletResponse.SC_OK, null));
+				}
+				if(reject(target, encoding, response)) {
+					return;
+				}
+				response.setStatus(HttpServletResponse.SC_OK);
+				UpdateBatch.writeResults(results, new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+				return;
+			}
+			String event = request.getHeader(Peer2PeerCommunicator.EVENT_HEADER);
+			event = event != null ? URLDecoder.decode(event, "UTF-8") : request.getParameter(Peer2PeerCommunicator.EVENT_PARAM);
+			InputStream in = Compression.decompress(request.getInputStream(), encoding);
+			body = ByteStreams.toByteArray(in != null ? in : request.getInputStream());
+			checksum = request.getHeader(Peer2PeerCommunicator.CHECKSUM_HEADER);
+			requests.add(prefix + (event == null ? "" : DirectoryChangeEvent.fromJSON(event).getRelativeFilePath()));
+			CountDownLatch latch = stall;
+			if(latch != null) {
+				try {
+					latch.await(10, TimeUnit.SECONDS);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if(reject(target, encoding, response)) {
+				return;
+			}
+			response.setStatus(HttpServletResponse.SC_OK);
+		}
+
+		private boolean reject(String target, String encoding, HttpServletResponse response) throws IOException {
+			Integer status = statuses.get(target);
+			if(failures.getAndDecrement() > 0) {
+				status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+			} else if(refuseCompressed && encoding != null) {
+				status = HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE;
+			}
+			if(status == null) {
+				return false;
+			}
+			response.sendError(status);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fsync.ReplicationJournal.Entry;
+
+public class ReplicationJournalTest {
+
+	@Test
+	public void testPendingUpdatesSurviveReopen() throws Exception {
+		Path dir = Files.createTempDirectory("ReplicationJournalTest");
+		Path file = dir.resolve("peer.journal");
+		ReplicationJournal journal = new ReplicationJournal(file);
+		Entry a1 = journal.append("a", "{\"n\":1}", "/tmp/a");
+		Entry b = journal.append("b", "{\"n\":2}", null);
+		Entry c = journal.append("c", "{\"n\":3}", null);
+		Entry a2 = journal.append("a", "{\"n\":4}", "/tmp/a");
+
+		// The first update of 'a' was superseded
+		assertFalse(journal.isPending(a1));
+		journal.ack(a1);
+		assertTrue(journal.isPending(a2));
+		journal.ack(b);
+		assertEquals(2, journal.size());
+		journal.close();
+
+		journal = new ReplicationJournal(file);
+		List<Entry> pending = journal.getPending();
+		assertEquals(2, pending.size());
+		assertEquals("c", pending.get(0).getPath());
+		assertEquals(c.getEvent(), pending.get(0).getEvent());
+		assertEquals("", pending.get(0).getLocalFile());
+		assertEquals("a", pending.get(1).getPath());
+		assertEquals("{\"n\":4}", pending.get(1).getEvent());
+		assertEquals("/tmp/a", pending.get(1).getLocalFile());
+
+		// Updates appended after a reopen supersede the loaded ones
+		journal.append("c", "{\"n\":5}", null);
+		journal.close();
+		journal = new ReplicationJournal(file);
+		assertEquals(2, journal.size());
+		assertEquals("{\"n\":5}", journal.getPending().get(1).getEvent());
+		journal.close();
+	}
+
+	@Test
+	public void testPartialRecordIsDropped() throws Exception {
+		Path dir = Files.createTempDirectory("ReplicationJournalTest");
+		Path file = dir.resolve("peer.journal");
+		ReplicationJournal journal = new ReplicationJournal(file);
+		journal.append("a", "{}", null);
+		journal.append("b", "{}", null);
+		journal.close();
+
+		// Cut the last record in half as a crash while appending would
+		RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		journal = new ReplicationJournal(file);
+		assertEquals(1, journal.size());
+		assertEquals("a", journal.getPending().get(0).getPath());
+		journal.append("c", "{}", null);
+		journal.close();
+
+		journal = new ReplicationJournal(file);
+		assertEquals(2, journal.size());
+		journal.close();
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		Path dir = Files.createTempDirectory("ReplicationJournalTest");
+		Path file = dir.resolve("peer.journal");
+		ReplicationJournal journal = new ReplicationJournal(file);
+		for(int i = 0; i < 10000; i++) {
+			journal.ack(journal.append("file" + (i % 10), "{\"n\":" + i + "}", null));
+		}
+		journal.append("last", "{}", null);
+		journal.close();
+		// The acknowledged updates have been compacted away
+		assertTrue(Files.size(file) < 100 * 1024);
+
+		journal = new ReplicationJournal(file);
+		assertEquals(1, journal.size());
+		assertEquals("last", journal.getPending().get(0).getPath());
+		journal.close();
+	}
+
+	@Test
+	public void testFailedCompactionKeepsJournalDurable() throws Exception {
+		Path dir = Files.createTempDirectory("ReplicationJournalTest");
+		Path file = dir.resolve("peer.journal");
+		ReplicationJournal journal = new ReplicationJournal(file);
+
+		// The compacted copy cannot be written where a directory is in the way
+		Files.createFile(Files.createDirectory(dir.resolve("peer.journal.tmp")).resolve("busy"));
+		for(int i = 0; i < 3000; i++) {
+			journal.ack(journal.append("file" + (i % 10), "{\"n\":" + i + "}", null));
+		}
+		journal.append("last", "{}", null);
+		journal.close();
+		Files.delete(dir.resolve("peer.journal.tmp").resolve("busy"));
+		Files.delete(dir.resolve("peer.journal.tmp"));
+
+		// The updates were still written to the journal
+		journal = new ReplicationJournal(file);
+		assertEquals(1, journal.size());
+		assertEquals("last", journal.getPending().get(0).getPath());
+		journal.close();
+	}
+}
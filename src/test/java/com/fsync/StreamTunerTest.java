@@ -0,0 +1,45 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class StreamTunerTest {
+	private static final long PART = 1000;
+
+	@Test
+	public void testGrowsWhileThroughputGrows() throws Exception {
+		// Each stream carries the same throughput up to 3 streams
+		StreamTuner tuner = new StreamTuner(1, 8);
+		long now = run(tuner, 0, 3, 40);
+		assertEquals(3, tuner.getStreams());
+
+		// A link that gets much worse has the count tried again
+		run(tuner, now, 1, 40);
+		assertTrue(tuner.getStreams() <= 4);
+	}
+
+	@Test
+	public void testStaysWithinMaximum() throws Exception {
+		StreamTuner tuner = new StreamTuner(2, 4);
+		run(tuner, 0, 100, 60);
+		assertEquals(4, tuner.getStreams());
+		assertEquals(1, new StreamTuner(0, 0).getStreams());
+	}
+
+	/**
+	 * Sends parts over a link whose throughput grows with the streams up to
+	 * a number of streams.
+	 * @return the time at the end
+	 */
+	private static long run(StreamTuner tuner, long now, int usefulStreams, int parts) {
+		tuner.start(now);
+		for(int i = 0; i < parts; i++) {
+			int streams = Math.min(tuner.getStreams(), usefulStreams);
+			// The time to send a part at a time over the streams
+			now += 1000000 / streams;
+			tuner.record(PART, now);
+		}
+		return now;
+	}
+}
@@ -0,0 +1,87 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.fsync.TransferScheduler.Priority;
+
+public class TransferSchedulerTest {
+
+	@Test
+	public void testBandwidthIsLimited() throws Exception {
+		// The peer may send faster than all the peers together
+		TransferScheduler global = new TransferScheduler(1024 * 1024);
+		TransferScheduler peer = new TransferScheduler(global, 100 * 1024 * 1024);
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		OutputStream out = peer.throttle(sink, Priority.NORMAL);
+
+		long start = System.nanoTime();
+		out.write(new byte[512 * 1024]);
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertEquals(512 * 1024, sink.size());
+		assertTrue("Sent in " + millis + "ms", millis >= 350);
+		assertEquals(512 * 1024, global.getStats().getLong("bytes"));
+		assertEquals(512 * 1024, peer.getStats().getLong("bytes"));
+	}
+
+	@Test
+	public void testLargeFilesGiveWay() throws Exception {
+		TransferScheduler global = new TransferScheduler(0);
+		final TransferScheduler peer = new TransferScheduler(global, 0);
+
+		// A small file sent to another peer holds up the large file
+		global.begin(Priority.NORMAL);
+		Thread small = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch(InterruptedException ignore) {
+				}
+				peer.end(Priority.NORMAL);
+			}
+		};
+		peer.begin(Priority.NORMAL);
+		global.end(Priority.NORMAL);
+		small.start();
+
+		long start = System.nanoTime();
+		peer.acquire(1024, Priority.LOW);
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("Paused for " + millis + "ms", millis >= 150 && millis < 1000);
+		small.join();
+
+		// Other transfers do not wait for each other
+		peer.begin(Priority.HIGH);
+		start = System.nanoTime();
+		peer.acquire(1024, Priority.NORMAL);
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+		peer.end(Priority.HIGH);
+		assertEquals(0, global.getStats().getInt("foreground"));
+	}
+
+	@Test
+	public void testLargeFilesProgressUnderLoad() throws Exception {
+		TransferScheduler global = new TransferScheduler(0);
+		TransferScheduler peer = new TransferScheduler(global, 0);
+
+		// Another peer sends small files all the time
+		global.begin(Priority.HIGH);
+		long start = System.nanoTime();
+		int blocks = 0;
+		while(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(2000)) {
+			peer.acquire(64 * 1024, Priority.LOW);
+			blocks++;
+		}
+		global.end(Priority.HIGH);
+
+		// The large file paused for part of each interval only
+		long paused = peer.getStats().getLong("pausedMillis");
+		assertTrue("Sent " + blocks + " blocks", blocks > 10);
+		assertTrue("Paused for " + paused + "ms", paused >= 1000 && paused < 1800);
+	}
+}
@@ -0,0 +1,74 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fsync.UpdateBatch.Result;
+import com.fsync.UpdateBatch.Update;
+
+public class UpdateBatchTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[] data = new byte[100000];
+		new Random(21).nextBytes(data);
+		Path file = Files.write(Files.createTempFile("UpdateBatchTest", ".dat"), data);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		UpdateBatch.writeHeader(out);
+		byte[] digest = UpdateBatch.writeUpdate(out, "{\"type\":\"CREATED\"}", file.toFile(), data.length);
+		assertNull(UpdateBatch.writeUpdate(out, "{\"type\":\"DELETED\"}", null, 0));
+		UpdateBatch.writeEnd(out);
+		assertArrayEquals(ChecksumUtil.createMessageDigest().digest(data), digest);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+		UpdateBatch.readHeader(in);
+		Update created = UpdateBatch.readUpdate(in);
+		assertEquals("{\"type\":\"CREATED\"}", created.getEvent());
+		assertTrue(created.hasFile());
+		byte[] received = new byte[(int)created.getLength()];
+		in.readFully(received);
+		assertArrayEquals(data, received);
+		byte[] trailer = new byte[digest.length];
+		in.readFully(trailer);
+		assertArrayEquals(digest, trailer);
+		Update deleted = UpdateBatch.readUpdate(in);
+		assertEquals("{\"type\":\"DELETED\"}", deleted.getEvent());
+		assertFalse(deleted.hasFile());
+		assertNull(UpdateBatch.readUpdate(in));
+		assertEquals(-1, in.read());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotABatch() throws Exception {
+		UpdateBatch.readHeader(new DataInputStream(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4 })));
+	}
+
+	@Test
+	public void testResults() throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		UpdateBatch.writeResults(Arrays.asList(new Result(200, null), new Result(409, "mismatch")),
+				new OutputStreamWriter(baos, "UTF-8"));
+		List<Result> results = UpdateBatch.readResults(new ByteArrayInputStream(baos.toByteArray()));
+		assertEquals(2, results.size());
+		assertTrue(results.get(0).isSuccess());
+		assertNull(results.get(0).getMessage());
+		assertFalse(results.get(1).isSuccess());
+		assertEquals(409, results.get(1).getStatus());
+		assertEquals("mismatch", results.get(1).getMessage());
+	}
+}
@@ -0,0 +1,148 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fsync.UploadSessions.PartMismatchException;
+import com.fsync.UploadSessions.Session;
+
+public class UploadSessionsTest {
+
+	@Test
+	public void testResume() throws Exception {
+		Path dir = Files.createTempDirectory("UploadSessionsTest");
+		byte[] data = new byte[10000];
+		new Random(22).nextBytes(data);
+
+		UploadSessions sessions = new UploadSessions(dir, 4096);
+		Session session = sessions.open("abc", "{}", data.length);
+		assertEquals(3, session.getParts());
+		session.writePart(2, part(data, 2, 4096));
+		session.writePart(0, part(data, 0, 4096));
+		assertEquals(4096, session.getOffset());
+		assertFalse(session.isComplete());
+
+		// The parts received are read back after a restart
+		sessions = new UploadSessions(dir, 4096);
+		session = sessions.open("abc", "{}", data.length);
+		BitSet received = UploadSessions.readReceived(session.getStatus());
+		assertTrue(received.get(0));
+		assertFalse(received.get(1));
+		assertTrue(received.get(2));
+		session.writePart(1, part(data, 1, 4096));
+		assertEquals(data.length, session.getOffset());
+		assertTrue(session.isComplete());
+		assertEquals(ChecksumUtil.computeChecksumForData(data), session.computeChecksum());
+		assertArrayEquals(data, Files.readAllBytes(session.getData()));
+
+		// Another length starts over
+		session = sessions.open("abc", "{}", data.length + 1);
+		assertEquals(0, UploadSessions.readReceived(session.getStatus()).cardinality());
+		session.delete();
+		assertNull(sessions.get("abc"));
+	}
+
+	@Test
+	public void testPartsHashedAsTheyComeIn() throws Exception {
+		byte[] data = new byte[10000];
+		new Random(23).nextBytes(data);
+		UploadSessions sessions = new UploadSessions(Files.createTempDirectory("UploadSessionsTest"), 4096);
+		Session session = sessions.open("abc", "{}", data.length);
+		session.writePart(1, part(data, 1, 4096));
+		session.writePart(2, part(data, 2, 4096));
+		session.writePart(0, part(data, 0, 4096));
+
+		// The file is not read again on commit
+		Files.write(session.getData(), new byte[data.length]);
+		assertEquals(ChecksumUtil.computeChecksumForData(data), session.computeChecksum());
+		// The parts that came in ahead of part 0 were read back
+		assertEquals(data.length - 4096, sessions.getBytesReadBack());
+	}
+
+	@Test
+	public void testPartsInOrderAreNotReadBack() throws Exception {
+		byte[] data = new byte[10000];
+		new Random(24).nextBytes(data);
+		UploadSessions sessions = new UploadSessions(Files.createTempDirectory("UploadSessionsTest"), 4096);
+		Session session = sessions.open("abc", "{}", data.length);
+		for(int part = 0; part < session.getParts(); part++) {
+			session.writePart(part, part(data, part, 4096));
+		}
+		assertEquals(ChecksumUtil.computeChecksumForData(data), session.computeChecksum());
+		assertEquals(0, sessions.getBytesReadBack());
+	}
+
+	@Test
+	public void testPartMismatch() throws Exception {
+		UploadSessions sessions = new UploadSessions(Files.createTempDirectory("UploadSessionsTest"), 4096);
+		Session session = sessions.open("abc", "{}", 5000);
+		byte[] body = toByteArray(part(new byte[5000], 1, 4096));
+		body[0] ^= 1;
+		try {
+			session.writePart(1, new ByteArrayInputStream(body));
+			fail("The part does not match its digest.");
+		} catch(PartMismatchException e) {
+		}
+		assertEquals(0, UploadSessions.readReceived(session.getStatus()).cardinality());
+	}
+
+	@Test
+	public void testCommittedUploadIsRemembered() throws Exception {
+		Path dir = Files.createTempDirectory("UploadSessionsTest");
+		byte[] data = new byte[5000];
+		new Random(24).nextBytes(data);
+		UploadSessions sessions = new UploadSessions(dir, 4096);
+		Session session = sessions.open("abc", "{}", data.length);
+		session.writePart(0, part(data, 0, 4096));
+		session.writePart(1, part(data, 1, 4096));
+		String checksum = session.computeChecksum();
+		Files.move(session.getData(), dir.resolve("moved"));
+		session.commit(checksum);
+		assertFalse(Files.exists(dir.resolve("abc.meta")));
+
+		// A peer that did not get the answer to its commit finds the upload complete
+		session = sessions.open("abc", "{}", data.length);
+		assertEquals(checksum, session.getCommittedChecksum());
+		assertEquals(2, UploadSessions.readReceived(session.getStatus()).cardinality());
+		assertEquals(checksum, sessions.get("abc").getCommittedChecksum());
+
+		// Another length starts over
+		session = sessions.open("abc", "{}", data.length + 1);
+		assertNull(session.getCommittedChecksum());
+		assertEquals(0, UploadSessions.readReceived(session.getStatus()).cardinality());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidId() throws Exception {
+		new UploadSessions(Files.createTempDirectory("UploadSessionsTest"), 4096).open("../abc", "{}", 10);
+	}
+
+	/**
+	 * Returns a part of the data followed by its digest.
+	 */
+	private static ByteArrayInputStream part(byte[] data, int part, int partSize) throws Exception {
+		int offset = part * partSize;
+		int length = Math.min(partSize, data.length - offset);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(data, offset, length);
+		MessageDigest md = ChecksumUtil.createMessageDigest();
+		md.update(data, offset, length);
+		out.write(md.digest());
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	private static byte[] toByteArray(ByteArrayInputStream in) {
+		byte[] bytes = new byte[in.available()];
+		in.read(bytes, 0, bytes.length);
+		return bytes;
+	}
+}
@@ -0,0 +1,68 @@
+package com.fsync;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Test;
+
+import com.fsync.DirectoryChangeEvent.DirectoryChangeEventType;
+import com.fsync.WriteRegistry.Write;
+
+public class WriteRegistryTest {
+
+	@Test
+	public void testEchoOfWrite() throws Exception {
+		Path dir = Files.createTempDirectory("WriteRegistryTest");
+		Path file = dir.resolve("a");
+		String path = file.toString();
+		WriteRegistry writes = new WriteRegistry(WriteRegistry.DEFAULT_RETENTION_MILLIS);
+
+		// While the file is written, and after as long as it is unchanged
+		Write write = writes.begin(path);
+		assertTrue(writes.isEcho(path, DirectoryChangeEventType.CREATED));
+		Files.write(file, "peer".getBytes());
+		writes.complete(write, Files.readAttributes(file, BasicFileAttributes.class));
+		assertTrue(writes.isEcho(dir.resolve("./a").toString(), DirectoryChangeEventType.CREATED));
+		assertTrue(writes.isEcho(path, DirectoryChangeEventType.MODIFIED));
+		assertFalse(writes.isEcho(dir.resolve("b").toString(), DirectoryChangeEventType.CREATED));
+
+		// A local change is passed on, and so are the changes after it
+		Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+		assertFalse(writes.isEcho(path, DirectoryChangeEventType.MODIFIED));
+		Files.setLastModifiedTime(file, Files.readAttributes(file, BasicFileAttributes.class).lastModifiedTime());
+		assertFalse(writes.isEcho(path, DirectoryChangeEventType.MODIFIED));
+		assertEquals(3, writes.getSuppressed());
+	}
+
+	@Test
+	public void testEchoOfDelete() throws Exception {
+		String path = Files.createTempDirectory("WriteRegistryTest").resolve("a").toString();
+		WriteRegistry writes = new WriteRegistry(WriteRegistry.DEFAULT_RETENTION_MILLIS);
+		writes.complete(writes.begin(path), null);
+		assertTrue(writes.isEcho(path, DirectoryChangeEventType.DELETED));
+
+		// The file created again locally is passed on
+		assertFalse(writes.isEcho(path, DirectoryChangeEventType.CREATED));
+		assertFalse(writes.isEcho(path, DirectoryChangeEventType.DELETED));
+
+		// A write that failed is forgotten
+		writes.abort(writes.begin(path));
+		assertFalse(writes.isEcho(path, DirectoryChangeEventType.CREATED));
+		assertEquals(1, writes.getSuppressed());
+	}
+
+	@Test
+	public void testCompletedWritesExpire() throws Exception {
+		Path file = Files.createTempFile("WriteRegistryTest", null);
+		WriteRegistry writes = new WriteRegistry(0);
+		writes.complete(writes.begin(file.toString()), Files.readAttributes(file, BasicFileAttributes.class));
+		Thread.sleep(5);
+		writes.begin(file.resolveSibling("other").toString());
+		assertFalse(writes.isEcho(file.toString(), DirectoryChangeEventType.MODIFIED));
+		assertEquals(1, writes.getStats().getInt("inProgress"));
+	}
+}
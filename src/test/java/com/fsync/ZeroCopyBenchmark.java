@@ -0,0 +1,196 @@
+package com.fsync;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the CPU time the sender spends per GB sent with the multipart
+ * upload of {@link Http#post(String, Map, Map)} against the zero-copy upload
+ * of {@link Http#postFile(String, Map, Map, File, long, MessageDigest)}, with
+ * and without the digest of the file computed as it is sent. The files are sent to a local server that throws the data away, so that only
+ * the sender is measured. This is not run as part of the unit tests; run it with:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;deps&gt; com.fsync.ZeroCopyBenchmark [sizeInMB ...]
+ * </pre>
+ * @author shreyas shinde
+ *
+ */
+public class ZeroCopyBenchmark {
+	/** Default file sizes in MB */
+	private static final long[] DEFAULT_SIZES = {1, 16, 256, 1024};
+
+	/** Each measurement sends at least this many bytes */
+	private static final long MIN_RUN_BYTES = 2L * 1024 * 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		long[] sizes = DEFAULT_SIZES;
+		if(args.length > 0) {
+			sizes = new long[args.length];
+			for(int i = 0; i < args.length; i++) {
+				sizes[i] = Long.parseLong(args[i]);
+			}
+		}
+
+		ServerSocket server = new ServerSocket(0);
+		startSink(server);
+		String url = "http://localhost:" + server.getLocalPort() + "/update";
+
+		System.out.println(String.format("%10s %14s %14s %14s %16s %16s %16s %10s %10s", "size",
+				"multipart MB/s", "zerocopy MB/s", "digest MB/s", "multipart ms/GB", "zerocopy ms/GB", "digest ms/GB",
+				"cpu saved", "w/ digest"));
+		for(long sizeMB : sizes) {
+			File f = createTestFile(sizeMB * 1024 * 1024);
+			try {
+				double[] multipart = measure(url, f, false, false);
+				double[] zeroCopy = measure(url, f, true, false);
+				double[] digest = measure(url, f, true, true);
+				System.out.println(String.format("%10s %14.1f %14.1f %14.1f %16.1f %16.1f %16.1f %9.0f%% %9.0f%%", sizeMB + "MB",
+						multipart[0], zeroCopy[0], digest[0], multipart[1], zeroCopy[1], digest[1],
+						100 * (1 - zeroCopy[1] / multipart[1]), 100 * (1 - digest[1] / multipart[1])));
+			} finally {
+				f.delete();
+			}
+		}
+		server.close();
+		Http.shutdown();
+	}
+
+	/**
+	 * Sends the file repeatedly and returns the throughput in MB/s and the CPU
+	 * time of the sending thread in ms per GB sent.
+	 */
+	private static double[] measure(String url, File f, boolean zeroCopy, boolean digest) throws IOException {
+		// Warm up
+		send(url, f, zeroCopy, digest);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long bytes = 0;
+		long cpuStart = threads.getCurrentThreadCpuTime();
+		long start = System.nanoTime();
+		do {
+			send(url, f, zeroCopy, digest);
+			bytes += f.length();
+		} while(bytes < MIN_RUN_BYTES);
+		long elapsed = System.nanoTime() - start;
+		long cpu = threads.getCurrentThreadCpuTime() - cpuStart;
+		double gb = bytes / (1024.0 * 1024.0 * 1024.0);
+		return new double[] { gb * 1024 / (elapsed / 1e9), cpu / 1e6 / gb };
+	}
+
+	private static void send(String url, File f, boolean zeroCopy, boolean digest) throws IOException {
+		if(zeroCopy) {
+			Http.postFile(url, null, null, f, f.length(), digest ? ChecksumUtil.createMessageDigest() : null);
+		} else {
+			Http.post(url, null, Collections.singletonMap(Peer2PeerCommunicator.FILE_PARAM, f));
+		}
+	}
+
+	/**
+	 * Accepts connections and reads the requests, throwing their content away.
+	 */
+	private static void startSink(final ServerSocket server) {
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while(true) {
+						final Socket socket = server.accept();
+						Thread handler = new Thread(new Runnable() {
+							public void run() {
+								drain(socket);
+							}
+						});
+						handler.setDaemon(true);
+						handler.start();
+					}
+				} catch(IOException ignore) {
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private static void drain(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream(), 256 * 1024);
+			OutputStream out = socket.getOutputStream();
+			byte[] buf = new byte[256 * 1024];
+			while(true) {
+				long length = 0;
+				boolean expectContinue = false, close = false;
+				String line;
+				while(!(line = readLine(in)).isEmpty()) {
+					String lower = line.toLowerCase();
+					if(lower.startsWith("content-length:")) {
+						length = Long.parseLong(line.substring(15).trim());
+					} else if(lower.startsWith("expect:")) {
+						expectContinue = true;
+					} else if(lower.startsWith("connection:") && lower.contains("close")) {
+						close = true;
+					}
+				}
+				if(expectContinue) {
+					out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII"));
+					out.flush();
+				}
+				while(length > 0) {
+					int n = in.read(buf, 0, (int)Math.min(buf.length, length));
+					if(n < 0) {
+						return;
+					}
+					length -= n;
+				}
+				out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+				out.flush();
+				if(close) {
+					socket.close();
+					return;
+				}
+			}
+		} catch(IOException ignore) {
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while((c = in.read()) != '\n') {
+			if(c < 0) {
+				throw new IOException("Connection closed.");
+			}
+			line.append((char)c);
+		}
+		return line.toString().trim();
+	}
+
+	private static File createTestFile(long size) throws Exception {
+		File f = File.createTempFile("ZeroCopyBenchmark", ".dat");
+		Random random = new Random(size);
+		byte[] block = new byte[1024 * 1024];
+		OutputStream os = new FileOutputStream(f);
+		try {
+			long remaining = size;
+			while(remaining > 0) {
+				random.nextBytes(block);
+				int n = (int)Math.min(block.length, remaining);
+				os.write(block, 0, n);
+				remaining -= n;
+			}
+		} finally {
+			os.close();
+		}
+		return f;
+	}
+}